@@ -0,0 +1,128 @@
+package anuled.dynamicstore;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+import org.apache.jena.atlas.io.AWriter;
+import org.apache.jena.graph.Node;
+
+import anuled.dynamicstore.backend.TileCache;
+import anuled.dynamicstore.backend.TileObservation;
+
+/**
+ * <code>data:</code> URI holding a tile's PNG, which is only encoded when
+ * somebody asks for it. {@link #writeURI(AWriter)} streams the base64 straight
+ * from the tile cache, so the writers in {@link anuled.dynamicstore.writer}
+ * never build the (large) URI string at all. Anything else which needs the
+ * URI (e.g. {@link #getURI()}, {@link #hasURI(String)}, visitors, or
+ * <code>toString</code>) encodes the whole image the first time, and the node
+ * then holds on to the encoded URI for as long as it lives.
+ *
+ * Image nodes are only equal to other image nodes for the same tile. Plain
+ * Jena nodes compare labels directly, so they would never consider an image
+ * node equal to themselves anyway, and this keeps equality symmetric (and
+ * hashing cheap).
+ */
+public class ImageNode extends LazyURINode {
+	public static final String PREFIX = "data:image/png;base64,";
+	// bytes encoded at a time; a multiple of 3 so that there's no padding
+	// until the end
+	private static final int CHUNK_BYTES = 3 * 1024;
+
+	private final TileObservation observation;
+
+	public ImageNode(TileObservation observation) {
+		super(new Label(observation));
+		this.observation = observation;
+	}
+
+	public TileObservation getObservation() {
+		return observation;
+	}
+
+	/** Write the URI out a chunk at a time, without any escaping */
+	public void writeURI(AWriter out) {
+		out.print(PREFIX);
+		Base64.Encoder encoder = Base64.getEncoder();
+		byte[] raw = new byte[CHUNK_BYTES];
+		byte[] encoded = new byte[CHUNK_BYTES / 3 * 4];
+		char[] chars = new char[encoded.length];
+		try (TileCache.Lease lease = observation.openTile()) {
+			ByteBuffer data = lease.getData().duplicate();
+			while (data.hasRemaining()) {
+				int numRaw = Math.min(raw.length, data.remaining());
+				data.get(raw, 0, numRaw);
+				int numEncoded = encoder.encode(numRaw == raw.length ? raw
+						: Arrays.copyOf(raw, numRaw), encoded);
+				for (int i = 0; i < numEncoded; i++) {
+					chars[i] = (char) encoded[i];
+				}
+				out.print(numEncoded == chars.length ? chars
+						: Arrays.copyOf(chars, numEncoded));
+			}
+		}
+	}
+
+	/** Encode the whole URI into a string; avoid this for big result sets */
+	@Override
+	protected String formatURI() {
+		try (TileCache.Lease lease = observation.openTile()) {
+			ByteBuffer encoded = Base64.getEncoder()
+					.encode(lease.getData().duplicate());
+			return PREFIX + new String(encoded.array(), encoded.arrayOffset(),
+					encoded.remaining(), StandardCharsets.US_ASCII);
+		}
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		return other instanceof ImageNode
+				&& observation.equals(((ImageNode) other).observation);
+	}
+
+	@Override
+	public int hashCode() {
+		return observation.hashCode();
+	}
+
+	/**
+	 * Node equality, except that an image node is also the same as a plain
+	 * URI node holding its data URI (which means encoding the image)
+	 */
+	public static boolean sameValue(Node a, Node b) {
+		if (a instanceof ImageNode && !(b instanceof ImageNode)) {
+			return b.isURI() && ((ImageNode) a).hasURI(b.getURI());
+		}
+		if (b instanceof ImageNode && !(a instanceof ImageNode)) {
+			return a.isURI() && ((ImageNode) b).hasURI(a.getURI());
+		}
+		return a.equals(b);
+	}
+
+	/** Stands in for the URI string as the node's label */
+	private static final class Label {
+		private final TileObservation observation;
+
+		Label(TileObservation observation) {
+			this.observation = observation;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			return other instanceof Label
+					&& observation.equals(((Label) other).observation);
+		}
+
+		@Override
+		public int hashCode() {
+			return observation.hashCode();
+		}
+
+		@Override
+		public String toString() {
+			return "ImageNode: " + observation;
+		}
+	}
+}
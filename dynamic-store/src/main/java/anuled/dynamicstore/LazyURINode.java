@@ -0,0 +1,72 @@
+package anuled.dynamicstore;
+
+import org.apache.jena.graph.NodeVisitor;
+import org.apache.jena.graph.Node_URI;
+import org.apache.jena.rdf.model.impl.Util;
+import org.apache.jena.shared.PrefixMapping;
+
+/**
+ * URI node which only formats its URI when somebody asks for it (through
+ * {@link #getURI()}, or anything else which needs the URI: visitors,
+ * {@link #hasURI(String)}, namespaces, <code>toString</code>, and so on). The
+ * URI is kept once it's been formatted, so each node formats it at most once.
+ *
+ * The label Jena sees is a stand-in object rather than the URI, so plain Jena
+ * nodes (which compare labels directly) never consider a lazy node equal to
+ * themselves. Subclasses provide their own <code>equals</code> and
+ * <code>hashCode</code>, which shouldn't need the URI either.
+ */
+abstract class LazyURINode extends Node_URI {
+	// formatted on first use; racing threads just format it twice
+	private volatile String uri;
+
+	/**
+	 * Jena only has two ways of making a URI node: with the URI itself, which
+	 * is what we're trying to avoid, or with an arbitrary label object, which
+	 * is deprecated. This is the one place that uses the latter.
+	 */
+	@SuppressWarnings("deprecation")
+	protected LazyURINode(Object label) {
+		super(label);
+	}
+
+	/** Format the node's URI, the first time it's needed */
+	protected abstract String formatURI();
+
+	@Override
+	public String getURI() {
+		String rv = uri;
+		if (rv == null) {
+			rv = formatURI();
+			uri = rv;
+		}
+		return rv;
+	}
+
+	@Override
+	public Object visitWith(NodeVisitor v) {
+		return v.visitURI(this, getURI());
+	}
+
+	@Override
+	public boolean hasURI(String uri) {
+		return getURI().equals(uri);
+	}
+
+	@Override
+	public String getNameSpace() {
+		String uri = getURI();
+		return uri.substring(0, Util.splitNamespaceXML(uri));
+	}
+
+	@Override
+	public String getLocalName() {
+		String uri = getURI();
+		return uri.substring(Util.splitNamespaceXML(uri));
+	}
+
+	@Override
+	public String toString(PrefixMapping pm, boolean quoting) {
+		return pm == null ? getURI() : pm.shortForm(getURI());
+	}
+}
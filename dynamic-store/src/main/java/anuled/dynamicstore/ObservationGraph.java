@@ -4,12 +4,14 @@ import java.util.List;
 import java.util.Optional;
 import java.util.stream.Stream;
 
+import org.apache.jena.graph.GraphStatisticsHandler;
 import org.apache.jena.graph.Node;
 import org.apache.jena.graph.Triple;
 import org.apache.jena.graph.impl.GraphBase;
 import org.apache.jena.util.iterator.ExtendedIterator;
 import org.apache.jena.util.iterator.WrappedIterator;
 
+import anuled.dynamicstore.backend.HDF5Collection;
 import anuled.dynamicstore.backend.HDF5Dataset;
 import anuled.dynamicstore.backend.Observation;
 import anuled.dynamicstore.backend.Product;
@@ -21,9 +23,8 @@ import anuled.dynamicstore.rdfmapper.properties.ObservationProperty;
 import anuled.dynamicstore.rdfmapper.properties.PropertyIndex;
 
 /**
- * Jena graph which can be queried from satellite data, retrieved from an HDF5
- * file. This will get refactored later on (so that multiple tiles are
- * supported, new rasters can be added, etc.)
+ * Jena graph which can be queried from satellite data, retrieved from one or
+ * more HDF5 files (see {@link HDF5Collection}).
  */
 public final class ObservationGraph extends GraphBase {
 	/**
@@ -31,31 +32,44 @@ public final class ObservationGraph extends GraphBase {
 	 * <code>qb:DatastructureDefinition</code>, etc. These properties will be
 	 * searched first on any query (we can speed that up later)
 	 */
-	private HDF5Dataset reader;
+	private HDF5Collection reader;
 	private String qbDataSetPrefix;
 
 	public ObservationGraph(String h5Filename, String qbDataSetPrefix) {
-		super();
-		reader = new HDF5Dataset(h5Filename);
-		this.qbDataSetPrefix = qbDataSetPrefix;
+		this(new HDF5Dataset(h5Filename), qbDataSetPrefix);
 	}
 
 	public ObservationGraph(HDF5Dataset reader, String qbDataSetPrefix) {
+		this(reader.asCollection(), qbDataSetPrefix);
+	}
+
+	/** Graph over every observation in a collection of HDF5 files */
+	public ObservationGraph(HDF5Collection reader, String qbDataSetPrefix) {
 		super();
 		this.reader = reader;
 		this.qbDataSetPrefix = qbDataSetPrefix;
 	}
 
+	/** Files which the graph's observations come from */
+	public HDF5Collection getCollection() {
+		return reader;
+	}
+
+	/** Prefix of the URIs of the graph's <code>qb:DataSet</code>s */
+	public String getQBDataSetPrefix() {
+		return qbDataSetPrefix;
+	}
+
 	/**
 	 * Make sure that the triple is consistent with the desired object.
 	 */
 	private static boolean objMatches(Triple trip, Node obj) {
-		Object tObj = trip.getObject();
+		Node tObj = trip.getObject();
 		if (obj == null) {
 			// obj == null means "triple's object can be anything you want"
 			return true;
 		}
-		return tObj.equals(obj);
+		return ImageNode.sameValue(tObj, obj);
 	}
 
 	/** Get the qb:Dataset URI for a given product */
@@ -78,7 +92,16 @@ public final class ObservationGraph extends GraphBase {
 	 */
 	protected Stream<Triple> mapToTriples(Observation obs, Node pred,
 			Node obj) {
-		Node obsNode = new ObservationNode(obs);
+		return mapToTriples(obs, new ObservationNode(obs), pred, obj);
+	}
+
+	/**
+	 * As {@link #mapToTriples(Observation, Node, Node)}, but with a node for
+	 * the observation which has already been made (e.g. the subject the graph
+	 * was queried with), so that its URI needn't be formatted again.
+	 */
+	protected Stream<Triple> mapToTriples(Observation obs, Node obsNode,
+			Node pred, Node obj) {
 
 		if (pred != null) {
 			// We only fetch the matching predicate, if we can
@@ -129,9 +152,7 @@ public final class ObservationGraph extends GraphBase {
 	}
 
 	private Stream<Observation> getAllObservations() {
-		// So much null… I may be doing this wrong.
-		return reader.cells(null, null, null, null, null, null)
-				.flatMap(c -> c.observations(null, null));
+		return new ObservationFilter(reader, qbDataSetPrefix).execute();
 	}
 
 	/**
@@ -179,10 +200,12 @@ public final class ObservationGraph extends GraphBase {
 		return Stream.of();
 	}
 
-	public Stream<ObservationNode> observationURIs(List<Triple> pattern) {
-		// Get the observation URIs matching the given pattern
-		// All subjects in the pattern must be non-concrete; all
-		// predicates and objects must be concrete.
+	/**
+	 * Filter for the observations matching a pattern. All subjects in the
+	 * pattern must be non-concrete; all predicates and objects must be
+	 * concrete.
+	 */
+	private ObservationFilter filterFor(List<Triple> pattern) {
 		ObservationFilter filter = new ObservationFilter(reader,
 				qbDataSetPrefix);
 
@@ -193,8 +216,75 @@ public final class ObservationGraph extends GraphBase {
 			assert trip.getObject().isConcrete();
 			filter.constrainProperty(predURI, trip.getObject());
 		}
+		return filter;
+	}
+
+	public Stream<ObservationNode> observationURIs(List<Triple> pattern) {
+		return observationURIs(pattern, 0);
+	}
 
-		return filter.execute().map(obs -> new ObservationNode(obs));
+	/**
+	 * Like {@link #observationURIs(List)}, but skipping the first
+	 * <code>offset</code> matches. Matches always come in the same order, so
+	 * this pages through them without visiting the skipped ones.
+	 */
+	public Stream<ObservationNode> observationURIs(List<Triple> pattern,
+			long offset) {
+		// Get the observation URIs matching the given pattern
+		return filterFor(pattern).execute(offset)
+				.map(obs -> new ObservationNode(obs));
+	}
+
+	/**
+	 * Observations matching a pattern (as for {@link #observationURIs(List)}),
+	 * ordered by time: oldest first, or latest first if
+	 * <code>latestFirst</code> is set. Every matching cell is looked at
+	 * before the first observation comes out.
+	 */
+	public Stream<ObservationNode> observationURIsByTime(List<Triple> pattern,
+			boolean latestFirst) {
+		return observationURIsByTime(pattern, latestFirst, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Like {@link #observationURIsByTime(List, boolean)}, but only the first
+	 * <code>limit</code> matches, so only that many times need to be kept
+	 * while the cells are looked at
+	 */
+	public Stream<ObservationNode> observationURIsByTime(List<Triple> pattern,
+			boolean latestFirst, long limit) {
+		return filterFor(pattern).executeByTime(latestFirst, limit)
+				.map(obs -> new ObservationNode(obs));
+	}
+
+	/**
+	 * Observations matching a pattern (as for {@link #observationURIs(List)}),
+	 * ordered by DGGS cell ID across every file
+	 */
+	public Stream<ObservationNode> observationURIsByCell(List<Triple> pattern) {
+		return filterFor(pattern).executeByCell()
+				.map(obs -> new ObservationNode(obs));
+	}
+
+	/**
+	 * Count the observations {@link #observationURIs(List)} would return for
+	 * a pattern. Where possible, this is worked out from the catalogs alone.
+	 */
+	public long countObservations(List<Triple> pattern) {
+		return filterFor(pattern).count();
+	}
+
+	/**
+	 * Estimate how many observations {@link #observationURIs(List)} would
+	 * return for a pattern, from catalog statistics alone
+	 */
+	public long estimateObservations(List<Triple> pattern) {
+		return filterFor(pattern).estimateCount();
+	}
+
+	@Override
+	protected GraphStatisticsHandler createStatisticsHandler() {
+		return new ObservationStatisticsHandler(this);
 	}
 
 	/**
@@ -211,8 +301,16 @@ public final class ObservationGraph extends GraphBase {
 				obj = trip.getMatchObject();
 		Stream<Observation> observations = matchingObservations(subj, pred,
 				obj);
-		Stream<Triple> lsTrips = observations
-				.flatMap(obs -> mapToTriples(obs, pred, obj));
+		Stream<Triple> lsTrips;
+		if (subj != null) {
+			// subj already names the (single) matching observation, so use it
+			// as the subject of each triple
+			lsTrips = observations
+					.flatMap(obs -> mapToTriples(obs, subj, pred, obj));
+		} else {
+			lsTrips = observations
+					.flatMap(obs -> mapToTriples(obs, pred, obj));
+		}
 		return WrappedIterator.create(lsTrips.iterator());
 	}
 
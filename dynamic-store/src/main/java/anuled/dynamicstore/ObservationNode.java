@@ -9,9 +9,19 @@ import anuled.dynamicstore.rdfmapper.URLScheme;
  * This lets us attach actual Observation pointers to observation URLs.
  * Particularly useful for stuff like GraphBaseFind, since it saves us from
  * parsing a URI into an observation.
+ *
+ * Unlike {@link ImageNode}, the URI is formatted up front rather than lazily.
+ * Plain Jena nodes compare themselves with other nodes by reading their label
+ * field directly, so with a lazy label <code>plainNode.equals(node)</code>
+ * would be false for identical URIs, and joins between observations and URIs
+ * written into a query (e.g. with <code>VALUES</code> in a sub-select) would
+ * quietly come up empty. Instead, two observation nodes from the same dataset
+ * are compared by observation ID without looking at their URIs, and
+ * {@link ObservationGraph} reuses the node it was queried with rather than
+ * formatting the URI again for every triple.
  */
 public class ObservationNode extends Node_URI {
-	private Observation observation;
+	private final Observation observation;
 
 	public ObservationNode(Observation observation) {
 		super(URLScheme.observationURL(observation));
@@ -21,4 +31,30 @@ public class ObservationNode extends Node_URI {
 	public Observation getObservation() {
 		return observation;
 	}
+
+	@Override
+	public boolean equals(Object other) {
+		if (this == other) {
+			return true;
+		}
+		if (other instanceof ObservationNode) {
+			Observation otherObs = ((ObservationNode) other).observation;
+			if (observation.getCell().getDataset() == otherObs.getCell()
+					.getDataset()) {
+				return observation.getID() == otherObs.getID();
+			}
+			// the same observation may appear in more than one file, in which
+			// case only the URIs will tell
+		}
+		return super.equals(other);
+	}
+
+	/**
+	 * Must agree with the hash of a plain URI node with the same URI, which is
+	 * cheap since strings cache their hashes
+	 */
+	@Override
+	public int hashCode() {
+		return super.hashCode();
+	}
 }
@@ -0,0 +1,50 @@
+package anuled.dynamicstore;
+
+import java.util.Collections;
+
+import org.apache.jena.graph.GraphStatisticsHandler;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+
+import anuled.dynamicstore.rdfmapper.properties.PropertyIndex;
+
+/**
+ * Estimates the number of triples in an {@link ObservationGraph} matching a
+ * pattern, from the observation counts in the graph's catalogs (see
+ * {@link anuled.dynamicstore.backend.ObservationStatistics}). Nothing is
+ * scanned, so estimates are cheap enough to make for every block of a query
+ * while planning it.
+ *
+ * Any node which isn't concrete (variables included) is a wildcard. Each
+ * observation is counted as having one value for each property; the few
+ * properties with more (e.g. <code>rdf:type</code>) are undercounted, which
+ * doesn't matter for ordering patterns.
+ */
+public class ObservationStatisticsHandler implements GraphStatisticsHandler {
+	private final ObservationGraph graph;
+
+	public ObservationStatisticsHandler(ObservationGraph graph) {
+		this.graph = graph;
+	}
+
+	@Override
+	public long getStatistic(Node s, Node p, Node o) {
+		int numProperties = PropertyIndex.externalPropertyURIs().size();
+		if (s.isConcrete()) {
+			// a single observation (if any) has a value for each property
+			return p.isConcrete() ? 1 : numProperties;
+		}
+		if (!p.isConcrete()) {
+			long total = graph.getCollection().getStatistics().getTotal();
+			return o.isConcrete() ? total : total * numProperties;
+		}
+		if (!p.isURI() || !PropertyIndex.getProperty(p.getURI()).isPresent()) {
+			return 0;
+		}
+		if (!o.isConcrete()) {
+			return graph.getCollection().getStatistics().getTotal();
+		}
+		return graph.estimateObservations(
+				Collections.singletonList(Triple.create(Node.ANY, p, o)));
+	}
+}
@@ -1,11 +1,23 @@
 package anuled.dynamicstore;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
 import org.apache.jena.graph.Graph;
 import org.apache.jena.rdf.model.Model;
 import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.shared.Lock;
 
+import anuled.dynamicstore.backend.DatasetOptions;
+import anuled.dynamicstore.backend.DirectoryWatcher;
+import anuled.dynamicstore.backend.HDF5Collection;
 import anuled.dynamicstore.backend.HDF5Dataset;
 import anuled.dynamicstore.backend.Product;
+import anuled.dynamicstore.http.ObservationServer;
 import anuled.dynamicstore.rdfmapper.MetadataFactory;
 
 /**
@@ -14,8 +26,9 @@ import anuled.dynamicstore.rdfmapper.MetadataFactory;
  * observation time (e.g. one dataset for Landsat observations in July 2016, one
  * for MODIS observations in October 2014, etc.).
  * 
- * This class has an associated <code>HDF5Dataset</code> which stores the actual
- * pixel data, as well as metadata about band counts, satellite names, etc. It
+ * This class has an associated <code>HDF5Collection</code> (of one or more
+ * HDF5 files) which stores the actual pixel data, as well as metadata about
+ * band counts, satellite names, etc. It
  * also has a prefix URL for the virtual RDF data cube graph associated with the
  * dataset (e.g. <code>https://example.org/data/landsat-june-2016/<code>).
  * 
@@ -32,26 +45,107 @@ import anuled.dynamicstore.rdfmapper.MetadataFactory;
  * 
  * The union of these graphs yields the aforementioned virtual RDF data cube
  * graph.
+ * 
+ * If a directory is being watched (see {@link #watchDirectory(String, long)}),
+ * new HDF5 files are added to both graphs as they arrive.
  */
 public class QBCovDataset {
-	private String uriPrefix, hdf5Path;
-	private HDF5Dataset backingDataset;
+	private String uriPrefix;
+	private HDF5Collection backingDataset;
 	private ObservationGraph observationGraph;
 	private Model metaModel = ModelFactory.createDefaultModel();
+	// names of products already described in metaModel
+	private final Set<String> describedProducts = new HashSet<>();
+	private DirectoryWatcher watcher = null;
+	private ObservationServer server = null;
 
 	public QBCovDataset(String hdf5Path, String uriPrefix) {
-		this.hdf5Path = hdf5Path;
+		this(hdf5Path, uriPrefix, new DatasetOptions());
+	}
+
+	public QBCovDataset(String hdf5Path, String uriPrefix,
+			DatasetOptions options) {
+		this(Collections.singletonList(hdf5Path), uriPrefix, options);
+	}
+
+	/**
+	 * Construct a dataset spanning several HDF5 files (e.g. one per scene),
+	 * which are presented as a single observation graph.
+	 */
+	public QBCovDataset(List<String> hdf5Paths, String uriPrefix,
+			DatasetOptions options) {
 		this.uriPrefix = uriPrefix;
 
-		backingDataset = new HDF5Dataset(this.hdf5Path);
+		backingDataset = HDF5Collection.open(hdf5Paths, options);
 
-		for (Product prod : backingDataset.getProducts()) {
-			Model prodModel = MetadataFactory.makeMetaModel(prod, uriPrefix);
-			metaModel.add(prodModel);
-		}
+		describeProducts(backingDataset.getProducts());
+		backingDataset.addListener(
+				dataset -> describeProducts(dataset.getProducts()));
 		observationGraph = new ObservationGraph(backingDataset, uriPrefix);
 	}
 
+	/** Add metadata for any products we haven't described yet */
+	private void describeProducts(Set<Product> products) {
+		metaModel.enterCriticalSection(Lock.WRITE);
+		try {
+			for (Product prod : products) {
+				if (describedProducts.add(prod.getName())) {
+					metaModel.add(
+							MetadataFactory.makeMetaModel(prod, uriPrefix));
+				}
+			}
+		} finally {
+			metaModel.leaveCriticalSection();
+		}
+	}
+
+	/**
+	 * Start adding new HDF5 files from a directory as they appear, without
+	 * interrupting queries. Files already in the directory but not yet in
+	 * the dataset are added too.
+	 *
+	 * @param settleMillis
+	 *            how long a new file must go unmodified before it is read
+	 * @throws IOException
+	 *             if the directory can't be watched
+	 */
+	public synchronized void watchDirectory(String directory,
+			long settleMillis) throws IOException {
+		if (watcher != null) {
+			throw new IllegalStateException("Already watching a directory");
+		}
+		watcher = new DirectoryWatcher(backingDataset, directory,
+				settleMillis);
+	}
+
+	/**
+	 * Start serving tiles, pixel values and observations' triples over HTTP
+	 * (see {@link ObservationServer}). For tiles to be linked from the graph,
+	 * the tile URL prefix (see {@link DatasetOptions#setTileURLPrefix(String)})
+	 * has to point at this server.
+	 */
+	public synchronized void serveHTTP(int port) {
+		if (server != null) {
+			throw new IllegalStateException("Already serving HTTP");
+		}
+		server = new ObservationServer(observationGraph, port);
+	}
+
+	/**
+	 * Stop watching for new files and serving HTTP, and close the HDF5 files
+	 */
+	public synchronized void dispose() {
+		if (watcher != null) {
+			watcher.close();
+			watcher = null;
+		}
+		if (server != null) {
+			server.close();
+			server = null;
+		}
+		backingDataset.dispose();
+	}
+
 	public Graph getObservationGraph() {
 		return observationGraph;
 	}
@@ -63,4 +157,13 @@ public class QBCovDataset {
 	public String getPrefix() {
 		return uriPrefix;
 	}
+
+	/** Paths to the HDF5 files currently backing this dataset */
+	public List<String> getHDF5Paths() {
+		List<String> paths = new ArrayList<>();
+		for (HDF5Dataset dataset : backingDataset.getDatasets()) {
+			paths.add(dataset.getFilename());
+		}
+		return Collections.unmodifiableList(paths);
+	}
 }
@@ -1,8 +1,14 @@
 package anuled.dynamicstore;
 
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
 import org.apache.jena.assembler.Assembler;
 import org.apache.jena.assembler.Mode;
 import org.apache.jena.assembler.assemblers.AssemblerBase;
+import org.apache.jena.assembler.exceptions.AssemblerException;
 import org.apache.jena.query.ARQ;
 import org.apache.jena.rdf.model.Model;
 import org.apache.jena.rdf.model.ModelFactory;
@@ -15,8 +21,13 @@ import org.apache.jena.sparql.engine.main.StageBuilder;
 import org.apache.jena.sparql.engine.main.StageGenerator;
 import org.apache.jena.sparql.util.graph.GraphUtils;
 
-import anuled.dynamicstore.sparqlopt.ObservationGraphOpExecutor;
+import anuled.dynamicstore.backend.DatasetOptions;
+import anuled.dynamicstore.backend.DirectoryWatcher;
+import anuled.dynamicstore.backend.HDF5Collection;
+import anuled.dynamicstore.http.ObservationServer;
+import anuled.dynamicstore.sparqlopt.ObservationSliceOpExecutor;
 import anuled.dynamicstore.sparqlopt.ObservationGraphStageGenerator;
+import anuled.dynamicstore.writer.StreamingWriters;
 import anuled.vocabulary.LED;
 
 public class QBCovGraphAssembler extends AssemblerBase {
@@ -63,6 +74,10 @@ public class QBCovGraphAssembler extends AssemblerBase {
 						}
 					});
 
+			// Result writers which stream image data straight out of the
+			// tile cache
+			StreamingWriters.init();
+
 			// XXX: Registering these two classes globally is a Bad Idea(tm).
 			// If I can, I'd like to add them to relevant contexts (e.g. in
 			// production, in unit tests) manually.
@@ -75,11 +90,12 @@ public class QBCovGraphAssembler extends AssemblerBase {
 					oldGenerator);
 			StageBuilder.setGenerator(ARQ.getContext(), newGenerator);
 
-			// Also load our filter-handling opExecutor
+			// Also load our filter-handling (and count- and
+			// slice-answering) opExecutor
 			QC.setFactory(ARQ.getContext(), new OpExecutorFactory() {
 				@Override
 				public OpExecutor create(ExecutionContext execCtx) {
-					return new ObservationGraphOpExecutor(execCtx);
+					return new ObservationSliceOpExecutor(execCtx);
 				}
 			});
 
@@ -99,10 +115,141 @@ public class QBCovGraphAssembler extends AssemblerBase {
 		// As far as I can tell, exactlyOneProperty never actually returns
 		// false. It just throws an exception when the condition isn't met. Why
 		// that isn't documented is beyond me.
-		GraphUtils.exactlyOneProperty(root, LED.hdf5Path);
 		GraphUtils.exactlyOneProperty(root, LED.uriPrefix);
-		String hdf5Path = GraphUtils.getAsStringValue(root, LED.hdf5Path);
 		String uriPrefix = GraphUtils.getAsStringValue(root, LED.uriPrefix);
-		return new QBCovDataset(hdf5Path, uriPrefix);
+		boolean watch = readWatch(root);
+		int httpPort = -1;
+		if (root.hasProperty(LED.httpPort)) {
+			GraphUtils.atmostOneProperty(root, LED.httpPort);
+			httpPort = root.getProperty(LED.httpPort).getInt();
+		}
+		DatasetOptions options = readOptions(root);
+		if (httpPort >= 0 && options.getTileURLPrefix() == null) {
+			// only any good for clients on this machine
+			options.setTileURLPrefix(
+					ObservationServer.urlPrefix("localhost", httpPort));
+		}
+		QBCovDataset dataset = new QBCovDataset(readPaths(root, watch),
+				uriPrefix, options);
+		if (httpPort >= 0) {
+			try {
+				dataset.serveHTTP(httpPort);
+			} catch (RuntimeException e) {
+				dataset.dispose();
+				throw new AssemblerException(root,
+						"Can't serve HTTP: " + e.getMessage());
+			}
+		}
+		if (watch) {
+			long settleMillis = DirectoryWatcher.DEFAULT_SETTLE_MILLIS;
+			if (root.hasProperty(LED.watchSettleMillis)) {
+				GraphUtils.atmostOneProperty(root, LED.watchSettleMillis);
+				settleMillis = root.getProperty(LED.watchSettleMillis)
+						.getLong();
+			}
+			try {
+				dataset.watchDirectory(GraphUtils.getAsStringValue(root,
+						LED.hdf5Directory), settleMillis);
+			} catch (IOException | IllegalArgumentException e) {
+				dataset.dispose();
+				throw new AssemblerException(root,
+						"Can't watch directory: " + e.getMessage());
+			}
+		}
+		return dataset;
+	}
+
+	/**
+	 * Should new files in <code>led:hdf5Directory</code> be picked up as they
+	 * arrive (<code>led:watchDirectory true</code>)?
+	 */
+	private static boolean readWatch(Resource root) {
+		if (!root.hasProperty(LED.watchDirectory)) {
+			return false;
+		}
+		GraphUtils.atmostOneProperty(root, LED.watchDirectory);
+		boolean watch = root.getProperty(LED.watchDirectory).getBoolean();
+		if (watch && !root.hasProperty(LED.hdf5Directory)) {
+			throw new AssemblerException(root,
+					"led:watchDirectory needs an led:hdf5Directory");
+		}
+		return watch;
+	}
+
+	/**
+	 * Read the HDF5 files to serve: either exactly one
+	 * <code>led:hdf5Path</code>, or a <code>led:hdf5Directory</code> whose
+	 * HDF5 files are all served as one dataset. The directory may only be
+	 * empty if it's being watched.
+	 */
+	private static List<String> readPaths(Resource root, boolean watch) {
+		if (!root.hasProperty(LED.hdf5Directory)) {
+			GraphUtils.exactlyOneProperty(root, LED.hdf5Path);
+			return Collections.singletonList(
+					GraphUtils.getAsStringValue(root, LED.hdf5Path));
+		}
+		GraphUtils.atmostOneProperty(root, LED.hdf5Directory);
+		if (root.hasProperty(LED.hdf5Path)) {
+			throw new AssemblerException(root,
+					"Can't have both led:hdf5Path and led:hdf5Directory");
+		}
+		String directory = GraphUtils.getAsStringValue(root,
+				LED.hdf5Directory);
+		List<String> paths;
+		try {
+			paths = HDF5Collection.listDirectory(directory);
+		} catch (IllegalArgumentException e) {
+			throw new AssemblerException(root, e.getMessage());
+		}
+		if (paths.isEmpty() && !watch) {
+			throw new AssemblerException(root,
+					"No HDF5 files in '" + directory + "'");
+		}
+		return paths;
+	}
+
+	/** Read optional tuning parameters for the backing HDF5 dataset */
+	private static DatasetOptions readOptions(Resource root) {
+		DatasetOptions options = new DatasetOptions();
+		if (root.hasProperty(LED.loaderParallelism)) {
+			GraphUtils.atmostOneProperty(root, LED.loaderParallelism);
+			options.setLoaderParallelism(
+					root.getProperty(LED.loaderParallelism).getInt());
+		}
+		if (root.hasProperty(LED.catalogStorage)) {
+			// "heap" or "mapped"
+			GraphUtils.atmostOneProperty(root, LED.catalogStorage);
+			String storage = GraphUtils.getAsStringValue(root,
+					LED.catalogStorage);
+			try {
+				options.setCatalogStorage(DatasetOptions.CatalogStorage
+						.valueOf(storage.toUpperCase(Locale.ROOT)));
+			} catch (IllegalArgumentException e) {
+				throw new AssemblerException(root,
+						"Unknown catalog storage '" + storage + "'");
+			}
+		}
+		if (root.hasProperty(LED.pixelCacheBytes)) {
+			GraphUtils.atmostOneProperty(root, LED.pixelCacheBytes);
+			options.setPixelCacheBytes(
+					root.getProperty(LED.pixelCacheBytes).getLong());
+		}
+		if (root.hasProperty(LED.tileCacheBytes)) {
+			GraphUtils.atmostOneProperty(root, LED.tileCacheBytes);
+			options.setTileCacheBytes(
+					root.getProperty(LED.tileCacheBytes).getLong());
+		}
+		if (root.hasProperty(LED.maxOpenFiles)) {
+			GraphUtils.atmostOneProperty(root, LED.maxOpenFiles);
+			options.setMaxOpenFiles(
+					root.getProperty(LED.maxOpenFiles).getInt());
+		}
+		if (root.hasProperty(LED.tileURLPrefix)) {
+			// link to tiles under this prefix instead of inlining them
+			GraphUtils.atmostOneProperty(root, LED.tileURLPrefix);
+			options.setTileURLPrefix(
+					GraphUtils.getAsStringValue(root, LED.tileURLPrefix));
+		}
+		return options;
 	}
 }
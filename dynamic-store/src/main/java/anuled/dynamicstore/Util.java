@@ -1,8 +1,12 @@
 package anuled.dynamicstore;
 
+import java.time.Instant;
+import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.TemporalAccessor;
 import java.util.Optional;
 
 import org.apache.jena.datatypes.BaseDatatype;
@@ -57,6 +61,29 @@ public class Util {
 		return Optional.empty();
 	}
 
+	/**
+	 * Read an <code>xsd:dateTime</code>-style literal as an instant. Times
+	 * without a time zone are taken to be UTC, which is what all of our data
+	 * is in.
+	 */
+	public static Optional<Instant> toInstant(Node node) {
+		if (node.isLiteral()) {
+			String lv = node.getLiteralLexicalForm();
+			try {
+				TemporalAccessor parsed = DateTimeFormatter.ISO_DATE_TIME
+						.parseBest(lv, ZonedDateTime::from,
+								LocalDateTime::from);
+				if (parsed instanceof ZonedDateTime) {
+					return Optional.of(((ZonedDateTime) parsed).toInstant());
+				}
+				return Optional.of(
+						((LocalDateTime) parsed).toInstant(ZoneOffset.UTC));
+			} catch (DateTimeParseException e) {
+			}
+		}
+		return Optional.empty();
+	}
+
 	private static DateTimeFormatter canonicalFormatter = DateTimeFormatter
 			.ofPattern("yyyy'-'MM'-'dd'T'HH':'mm':'ss'Z'");
 
@@ -0,0 +1,37 @@
+package anuled.dynamicstore.backend;
+
+/**
+ * Identifies the data behind an observation in the dataset's caches: the
+ * dataset it came from plus an {@link ObservationID}. The caches are shared by
+ * every file in a collection, so the ID alone isn't enough.
+ */
+final class CacheKey {
+	final HDF5Dataset dataset;
+	final long id;
+
+	/**
+	 * @param allBands
+	 *            whether the key is for data covering every band of the
+	 *            observation at once (e.g. a pixel's values), rather than for
+	 *            the observation's band alone
+	 */
+	CacheKey(Observation obs, boolean allBands) {
+		this.dataset = obs.getCell().getDataset();
+		this.id = allBands ? ObservationID.firstBandPixel(obs.getID())
+				: obs.getID();
+	}
+
+	@Override
+	public int hashCode() {
+		return Long.hashCode(id) * 31 + dataset.hashCode();
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if (!(other instanceof CacheKey)) {
+			return false;
+		}
+		CacheKey key = (CacheKey) other;
+		return id == key.id && dataset == key.dataset;
+	}
+}
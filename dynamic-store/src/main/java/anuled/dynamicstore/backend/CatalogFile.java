@@ -0,0 +1,352 @@
+package anuled.dynamicstore.backend;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads and writes the sidecar cell catalog stored next to each HDF5 file
+ * (e.g. <code>scene.h5.catalog</code> for <code>scene.h5</code>). The catalog
+ * holds everything <code>HDF5Dataset</code> would otherwise have to learn by
+ * walking every group in the HDF5 file: cell IDs, centres, bounds and the
+ * timestamps available for each product.
+ *
+ * The file is a straight dump of the columns of a {@link CellCatalog}: a short
+ * header, then each column in turn (doubles, then longs, then ints, then the
+ * UTF-8 bytes of the cell IDs), so that reading it back is a handful of bulk
+ * copies rather than a parse. Columns are aligned so that a
+ * {@link MappedCellCatalog} can also use them in place.
+ *
+ * Catalogs are tagged with the size and modification time of the HDF5 file
+ * they were built from, and are ignored (and later overwritten) if the HDF5
+ * file changes.
+ */
+class CatalogFile {
+	private static final Logger logger = LoggerFactory
+			.getLogger(CatalogFile.class);
+	static final String SUFFIX = ".catalog";
+	// "LEDC" in ASCII
+	private static final int MAGIC = 0x4c454443;
+	private static final int VERSION = 3;
+
+	private CatalogFile() {
+	}
+
+	/** Where the catalog for a given HDF5 file lives */
+	static File sidecarFor(String h5Path) {
+		return new File(h5Path + SUFFIX);
+	}
+
+	private static void writeString(DataOutputStream out, String str)
+			throws IOException {
+		byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer buf) {
+		byte[] bytes = new byte[buf.getInt()];
+		buf.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/** Pad the output to a multiple of eight bytes */
+	private static void align(DataOutputStream out) throws IOException {
+		while (out.size() % 8 != 0) {
+			out.writeByte(0);
+		}
+	}
+
+	private static void writeDoubles(DataOutputStream out, double[] arr)
+			throws IOException {
+		for (double d : arr) {
+			out.writeDouble(d);
+		}
+	}
+
+	private static void writeInts(DataOutputStream out, int[] arr)
+			throws IOException {
+		for (int i : arr) {
+			out.writeInt(i);
+		}
+	}
+
+	/**
+	 * Write out a catalog. The catalog is written to a temporary file first
+	 * and then moved into place, so concurrent readers never see a
+	 * half-written catalog.
+	 *
+	 * @return true if the catalog was written, false if it could not be (e.g.
+	 *         because the directory is read-only)
+	 */
+	static boolean write(String h5Path, HeapCellCatalog catalog) {
+		File h5File = new File(h5Path);
+		File sidecar = sidecarFor(h5Path);
+		File tempFile = null;
+		try {
+			tempFile = File.createTempFile(sidecar.getName(), ".tmp",
+					sidecar.getAbsoluteFile().getParentFile());
+			try (DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(h5File.length());
+				out.writeLong(h5File.lastModified());
+
+				out.writeInt(catalog.numProducts());
+				for (int p = 0; p < catalog.numProducts(); p++) {
+					writeString(out, catalog.getProduct(p).getName());
+				}
+
+				// IDs are stored as one blob of UTF-8 plus offsets into it
+				int n = catalog.size();
+				int[] idOffsets = new int[n + 1];
+				ByteArrayOutputStream idBytes = new ByteArrayOutputStream();
+				for (int i = 0; i < n; i++) {
+					byte[] bytes = catalog.getID(i)
+							.getBytes(StandardCharsets.UTF_8);
+					idBytes.write(bytes);
+					idOffsets[i + 1] = idOffsets[i] + bytes.length;
+				}
+
+				out.writeInt(n);
+				out.writeInt(catalog.bounds.length);
+				out.writeInt(catalog.epochs.length);
+				out.writeInt(catalog.timeIndices.length);
+				out.writeInt(idBytes.size());
+				align(out);
+
+				// Must match the order in Layout
+				writeDoubles(out, catalog.centreLon);
+				writeDoubles(out, catalog.centreLat);
+				writeDoubles(out, catalog.latMin);
+				writeDoubles(out, catalog.latMax);
+				writeDoubles(out, catalog.longMin);
+				writeDoubles(out, catalog.longMax);
+				writeDoubles(out, catalog.bounds);
+				writeDoubles(out, catalog.subLatMin);
+				writeDoubles(out, catalog.subLatMax);
+				writeDoubles(out, catalog.subLongMin);
+				writeDoubles(out, catalog.subLongMax);
+				for (long epoch : catalog.epochs) {
+					out.writeLong(epoch);
+				}
+				writeInts(out, catalog.boundsOffsets);
+				writeInts(out, catalog.timeOffsets);
+				writeInts(out, catalog.timeIndices);
+				writeInts(out, idOffsets);
+				writeInts(out, catalog.subtreeEnd);
+				writeInts(out, catalog.subMaxLevel);
+				idBytes.writeTo(out);
+			}
+			Files.move(tempFile.toPath(), sidecar.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			return true;
+		} catch (IOException e) {
+			logger.warn("Could not write cell catalog " + sidecar, e);
+			if (tempFile != null) {
+				tempFile.delete();
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Location of each column within a mapped catalog file. Every column is a
+	 * read-only slice of the mapping; nothing is copied.
+	 */
+	static class Layout {
+		final Product[] products;
+		final int numCells;
+		final ByteBuffer centreLon, centreLat, latMin, latMax, longMin,
+				longMax, bounds, subLatMin, subLatMax, subLongMin, subLongMax,
+				epochs, boundsOffsets, timeOffsets, timeIndices, idOffsets,
+				subtreeEnd, subMaxLevel, idBytes;
+		private final ByteBuffer buf;
+
+		/**
+		 * Parse the header of a mapped catalog and slice up the rest of it.
+		 * The buffer should be positioned just after the version stamp.
+		 *
+		 * @throws IllegalArgumentException
+		 *             if the catalog refers to a product we don't know about,
+		 *             or its columns run past the end of the file.
+		 */
+		Layout(ByteBuffer buf, HDF5Dataset owner) {
+			this.buf = buf;
+			Map<String, Product> productsByName = new HashMap<>();
+			for (Product prod : owner.getProducts()) {
+				productsByName.put(prod.getName(), prod);
+			}
+			int numProducts = buf.getInt();
+			products = new Product[numProducts];
+			for (int p = 0; p < numProducts; p++) {
+				String name = readString(buf);
+				products[p] = productsByName.get(name);
+				if (products[p] == null) {
+					throw new IllegalArgumentException(
+							"Unknown product " + name);
+				}
+			}
+
+			int n = numCells = buf.getInt();
+			int boundsLength = buf.getInt();
+			int numEpochs = buf.getInt();
+			int numTimeIndices = buf.getInt();
+			int idBytesLength = buf.getInt();
+			((Buffer) buf).position((buf.position() + 7) & ~7);
+
+			centreLon = next(8, n);
+			centreLat = next(8, n);
+			latMin = next(8, n);
+			latMax = next(8, n);
+			longMin = next(8, n);
+			longMax = next(8, n);
+			bounds = next(8, boundsLength);
+			subLatMin = next(8, n);
+			subLatMax = next(8, n);
+			subLongMin = next(8, n);
+			subLongMax = next(8, n);
+			epochs = next(8, numEpochs);
+			boundsOffsets = next(4, n + 1);
+			timeOffsets = next(4, n * numProducts + 1);
+			timeIndices = next(4, numTimeIndices);
+			idOffsets = next(4, n + 1);
+			subtreeEnd = next(4, n);
+			subMaxLevel = next(4, n);
+			idBytes = next(1, idBytesLength);
+		}
+
+		/** Slice off the next column, of count elements of the given size */
+		private ByteBuffer next(int elementSize, int count) {
+			if (count < 0) {
+				throw new IllegalArgumentException("Negative column length");
+			}
+			int start = buf.position();
+			int end = start + elementSize * count;
+			ByteBuffer column = buf.duplicate();
+			((Buffer) column).limit(end);
+			((Buffer) buf).position(end);
+			return column.slice();
+		}
+	}
+
+	/**
+	 * Memory-map the catalog for an HDF5 file and check that it is up to
+	 * date.
+	 *
+	 * @return the layout of the catalog, or <code>null</code> if there is no
+	 *         catalog, or the catalog is corrupt or out of date.
+	 */
+	private static Layout map(String h5Path, HDF5Dataset owner) {
+		File h5File = new File(h5Path);
+		File sidecar = sidecarFor(h5Path);
+		if (!sidecar.isFile()) {
+			return null;
+		}
+		// The mapping stays valid after the channel is closed
+		try (FileChannel chan = FileChannel.open(sidecar.toPath(),
+				StandardOpenOption.READ)) {
+			MappedByteBuffer buf = chan.map(FileChannel.MapMode.READ_ONLY, 0,
+					chan.size());
+			if (buf.getInt() != MAGIC || buf.getInt() != VERSION
+					|| buf.getLong() != h5File.length()
+					|| buf.getLong() != h5File.lastModified()) {
+				return null;
+			}
+			return new Layout(buf, owner);
+		} catch (IOException | BufferUnderflowException
+				| IndexOutOfBoundsException | IllegalArgumentException e) {
+			logger.warn("Ignoring unreadable cell catalog " + sidecar, e);
+			return null;
+		}
+	}
+
+	private static double[] toDoubles(ByteBuffer column) {
+		double[] rv = new double[column.remaining() / 8];
+		column.asDoubleBuffer().get(rv);
+		return rv;
+	}
+
+	private static long[] toLongs(ByteBuffer column) {
+		long[] rv = new long[column.remaining() / 8];
+		column.asLongBuffer().get(rv);
+		return rv;
+	}
+
+	private static int[] toInts(ByteBuffer column) {
+		int[] rv = new int[column.remaining() / 4];
+		column.asIntBuffer().get(rv);
+		return rv;
+	}
+
+	/**
+	 * Read the catalog for an HDF5 file onto the heap.
+	 *
+	 * @return the catalog, or <code>null</code> if there is no catalog, or the
+	 *         catalog is corrupt or out of date.
+	 */
+	static HeapCellCatalog read(String h5Path, HDF5Dataset owner) {
+		Layout layout = map(h5Path, owner);
+		if (layout == null) {
+			return null;
+		}
+		int n = layout.numCells;
+		int[] idOffsets = toInts(layout.idOffsets);
+		byte[] idBytes = new byte[layout.idBytes.remaining()];
+		layout.idBytes.get(idBytes);
+		String[] ids = new String[n];
+		try {
+			for (int i = 0; i < n; i++) {
+				ids[i] = new String(idBytes, idOffsets[i],
+						idOffsets[i + 1] - idOffsets[i],
+						StandardCharsets.UTF_8).intern();
+			}
+		} catch (IndexOutOfBoundsException e) {
+			logger.warn("Ignoring unreadable cell catalog "
+					+ sidecarFor(h5Path), e);
+			return null;
+		}
+		// the subtree columns are cheap to recompute, so they're skipped here
+		return new HeapCellCatalog(owner, ids, toDoubles(layout.centreLon),
+				toDoubles(layout.centreLat), toDoubles(layout.latMin),
+				toDoubles(layout.latMax), toDoubles(layout.longMin),
+				toDoubles(layout.longMax), toInts(layout.boundsOffsets),
+				toDoubles(layout.bounds), layout.products,
+				toLongs(layout.epochs), toInts(layout.timeOffsets),
+				toInts(layout.timeIndices));
+	}
+
+	/**
+	 * Use the catalog for an HDF5 file in place, without copying it onto the
+	 * heap.
+	 *
+	 * @return the catalog, or <code>null</code> if there is no catalog, or the
+	 *         catalog is corrupt or out of date.
+	 */
+	static MappedCellCatalog mapped(String h5Path, HDF5Dataset owner) {
+		Layout layout = map(h5Path, owner);
+		if (layout == null) {
+			return null;
+		}
+		return new MappedCellCatalog(owner, layout);
+	}
+}
@@ -0,0 +1,186 @@
+package anuled.dynamicstore.backend;
+
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+
+import ch.systemsx.cisd.hdf5.IHDF5DoubleReader;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import ncsa.hdf.hdf5lib.exceptions.HDF5AttributeException;
+import ncsa.hdf.hdf5lib.exceptions.HDF5SymbolTableException;
+
+/**
+ * Builds the catalog of cells in an HDF5 file by walking its group hierarchy.
+ * This is what <code>HDF5Dataset</code> falls back to when there is no usable
+ * catalog file.
+ *
+ * With a parallelism greater than one, each top-level DGGS subtree (N, O, P,
+ * Q, R, S) is walked as a separate task in a fork/join pool. Every worker
+ * thread borrows its own reader from the dataset's {@link ReaderPool} so that
+ * tasks don't fight over the dataset's main reader. Any other top-level
+ * groups (such as <code>/products</code>) are walked meanwhile on the calling
+ * thread, with the main reader.
+ */
+class CatalogLoader {
+	/** Top-level groups holding the six rHEALPix faces */
+	private static final Set<String> FACES = new HashSet<>(
+			Arrays.asList("N", "O", "P", "Q", "R", "S"));
+
+	private final HDF5Dataset owner;
+	private final int parallelism;
+
+	CatalogLoader(HDF5Dataset owner, int parallelism) {
+		this.owner = owner;
+		this.parallelism = parallelism;
+	}
+
+	/** Find every cell in the file and pack them into a catalog */
+	HeapCellCatalog load() {
+		if (parallelism <= 1) {
+			return walk("/", owner.getReader()).build(owner);
+		}
+		return loadParallel().build(owner);
+	}
+
+	private static String childPath(String group, String child) {
+		return group.endsWith("/") ? group + child : group + "/" + child;
+	}
+
+	/**
+	 * Read a cell's metadata from the HDF5 file and append it to the catalog
+	 * iff the group looks like real data.
+	 */
+	private void tryAddCell(CellCatalog.Builder cells, String group,
+			IHDF5Reader fp) {
+		// centre is (lon, lat)
+		IHDF5DoubleReader doubleReader = fp.float64();
+		double[] centre;
+		try {
+			centre = doubleReader.getArrayAttr(group, "centre");
+		} catch (HDF5AttributeException | HDF5SymbolTableException e) {
+			return;
+		}
+		// bounds are list of (lon, lat), IIRC
+		double[][] bounds = doubleReader.getMatrixAttr(group, "bounds");
+		// We need at least four coordinates to make a non-degenerate shape
+		assert bounds.length >= 4;
+
+		Map<Product, List<ZonedDateTime>> times = new HashMap<>();
+		for (Product prod : owner.getProducts()) {
+			String groupPath = childPath(group, prod.getName());
+			if (fp.isGroup(groupPath)) {
+				for (String member : fp.getGroupMembers(groupPath)) {
+					if (member.startsWith("pixel@")) {
+						// we expect format "pixel@<ISO 8601 date>"
+						String[] timeStrings = member.split("@", 2);
+						times.computeIfAbsent(prod, k -> new ArrayList<>())
+								.add(ZonedDateTime.parse(timeStrings[1]));
+					}
+				}
+			}
+		}
+		cells.add(group.replace("/", ""), centre, bounds, times);
+	}
+
+	/** Breadth-first walk over the subtree rooted at the given group */
+	private CellCatalog.Builder walk(String root, IHDF5Reader fp) {
+		CellCatalog.Builder cells = new CellCatalog.Builder(
+				owner.getProducts());
+		Queue<String> to_explore = new LinkedList<String>();
+		to_explore.add(root);
+		assert fp.isGroup(to_explore.peek());
+
+		// Populate list of HDF5Cells (albeit only ones with data in them!)
+		while (!to_explore.isEmpty()) {
+			String group = to_explore.remove();
+			tryAddCell(cells, group, fp);
+
+			// Now add children to explore
+			for (String child : fp.getGroupMembers(group)) {
+				String path = childPath(group, child);
+				if (fp.isGroup(path)) {
+					to_explore.add(path);
+				}
+			}
+		}
+		return cells;
+	}
+
+	private CellCatalog.Builder loadParallel() {
+		IHDF5Reader mainReader = owner.getReader();
+		CellCatalog.Builder cells = new CellCatalog.Builder(
+				owner.getProducts());
+		tryAddCell(cells, "/", mainReader);
+
+		Map<Thread, IHDF5Reader> readers = new ConcurrentHashMap<>();
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			List<ForkJoinTask<CellCatalog.Builder>> tasks = new ArrayList<>();
+			List<String> others = new ArrayList<>();
+			for (String child : mainReader.getGroupMembers("/")) {
+				String path = childPath("/", child);
+				if (!mainReader.isGroup(path)) {
+					continue;
+				}
+				if (!FACES.contains(child)) {
+					others.add(path);
+					continue;
+				}
+				tasks.add(pool.submit(() -> {
+					IHDF5Reader threadReader = readers.computeIfAbsent(
+							Thread.currentThread(), t -> owner.getReaderPool()
+									.acquire(owner.getFilename()));
+					return walk(path, threadReader);
+				}));
+			}
+			for (String path : others) {
+				cells.addAll(walk(path, mainReader));
+			}
+			for (ForkJoinTask<CellCatalog.Builder> task : tasks) {
+				cells.addAll(task.join());
+			}
+		} finally {
+			// if a task failed, others may still be reading; readers aren't
+			// thread-safe, so they can't go back to the pool until every
+			// task has stopped
+			pool.shutdownNow();
+			awaitQuietly(pool);
+			for (IHDF5Reader reader : readers.values()) {
+				owner.getReaderPool().release(owner.getFilename(), reader);
+			}
+		}
+		return cells;
+	}
+
+	/**
+	 * Wait for every running task in a pool to finish. Interrupts are held
+	 * off until then (and passed on afterwards), since giving up early would
+	 * leave readers in use.
+	 */
+	private static void awaitQuietly(ForkJoinPool pool) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				if (pool.awaitTermination(1, TimeUnit.MINUTES)) {
+					break;
+				}
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -2,103 +2,42 @@ package anuled.dynamicstore.backend;
 
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
-import java.util.function.Supplier;
-import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
-import ch.systemsx.cisd.hdf5.IHDF5DoubleReader;
-import ch.systemsx.cisd.hdf5.IHDF5Reader;
-import ncsa.hdf.hdf5lib.exceptions.HDF5AttributeException;
-import ncsa.hdf.hdf5lib.exceptions.HDF5SymbolTableException;
-
 /**
- * Class representing a single DGGS cell, and its associated observations
+ * Class representing a single DGGS cell, and its associated observations.
+ * Cells are lightweight views onto a position in the dataset's
+ * {@link CellCatalog}; all of their metadata lives in the catalog.
  */
 public class Cell {
-	private String path, dggsIdent;
-	private double[] centre;
-	private List<List<Double>> bounds;
-	private double latMin, latMax, longMin, longMax;
-	private double degreesSpanned;
-	HDF5Dataset owner;
-	private Map<Product, Set<ZonedDateTime>> availableProducts;
+	private final CellCatalog catalog;
+	private final int index;
 
-	/**
-	 * Thrown by the constructor when the given cell is not in the dataset
-	 */
-	protected class NotACell extends Exception {
-		private static final long serialVersionUID = 1L;
+	Cell(CellCatalog catalog, int index) {
+		this.catalog = catalog;
+		this.index = index;
 	}
 
-	protected Cell(String path, HDF5Dataset owner) throws NotACell {
-		this.owner = owner;
-		this.path = path;
-
-		IHDF5Reader fp = owner.getReader();
-		// centre is (lon, lat)
-		IHDF5DoubleReader doubleReader = fp.float64();
-
-		try {
-			centre = doubleReader.getArrayAttr(path, "centre");
-		} catch (HDF5AttributeException|HDF5SymbolTableException e) {
-			throw new NotACell();
-		}
-		// bounds are list of (lon, lat), IIRC
-		double[][] allBounds = doubleReader.getMatrixAttr(path, "bounds");
-		// We need at least four coordinates to make a non-degenerate shape
-		assert allBounds.length >= 4;
-		bounds = new ArrayList<List<Double>>();
-		latMin = longMin = Double.POSITIVE_INFINITY;
-		latMax = longMax = Double.NEGATIVE_INFINITY;
-		for (int row = 0; row < allBounds.length; row++) {
-			List<Double> pair = new ArrayList<Double>(2);
-			double[] thisRow = allBounds[row];
-			assert thisRow.length == 2;
-			double lon = thisRow[0];
-			double lat = thisRow[1];
-			pair.add(lon);
-			pair.add(lat);
-			bounds.add(pair);
-
-			latMin = Math.min(latMin, lat);
-			latMax = Math.max(latMax, lat);
-			longMin = Math.min(longMin, lon);
-			longMax = Math.max(longMax, lon);
-		}
-
-		// This will be used for resolution calculation
-		degreesSpanned = (latMax - latMin + longMax - longMin) / 2;
-
-		availableProducts = new HashMap<>();
-		dggsIdent = path.replace("/", "");
-		for (Product prod : owner.getProducts()) {
-			String groupPath = path + "/" + prod.getName();
-			if (fp.isGroup(groupPath)) {
-				for (String member : fp.getGroupMembers(groupPath)) {
-					if (member.startsWith("pixel@")) {
-						// we expect format "pixel@<ISO 8601 date>"
-						String[] timeStrings = member.split("@", 2);
-						availableProducts
-								.computeIfAbsent(prod,
-										k -> new HashSet<ZonedDateTime>())
-								.add(ZonedDateTime.parse(timeStrings[1]));
-					}
-				}
-			}
-		}
+	/** Catalog holding this cell's metadata */
+	CellCatalog getCatalog() {
+		return catalog;
 	}
 
-	protected IHDF5Reader getReader() {
-		return owner.getReader();
+	/** Position of this cell in its catalog */
+	int getIndex() {
+		return index;
 	}
 
+	/** Path to this cell's group in the HDF5 file (e.g. /R/7/8/5) */
 	protected String getPath() {
-		return path;
+		String dggsIdent = getDGGSIdent();
+		StringBuilder path = new StringBuilder(2 * dggsIdent.length());
+		for (int i = 0; i < dggsIdent.length(); i++) {
+			path.append('/').append(dggsIdent.charAt(i));
+		}
+		return path.toString();
 	}
 
 	/**
@@ -106,7 +45,7 @@ public class Cell {
 	 * cell
 	 */
 	public double getDegreesSpanned() {
-		return degreesSpanned;
+		return (getLatMax() - getLatMin() + getLongMax() - getLongMin()) / 2;
 	}
 
 	/**
@@ -115,15 +54,15 @@ public class Cell {
 	 */
 	public boolean inRect(Double lonMin, Double lonMax, Double latMin,
 			Double latMax) {
-		return (lonMin == null || this.longMin >= lonMin)
-				&& (lonMax == null || this.longMax <= lonMax)
-				&& (latMin == null || this.latMin >= latMin)
-				&& (latMax == null || this.latMax <= latMax);
+		return (lonMin == null || getLongMin() >= lonMin)
+				&& (lonMax == null || getLongMax() <= lonMax)
+				&& (latMin == null || getLatMin() >= latMin)
+				&& (latMax == null || getLatMax() <= latMax);
 	}
 
 	/** Return the parent dataset containing this cell */
 	public HDF5Dataset getDataset() {
-		return owner;
+		return catalog.getDataset();
 	}
 
 	/**
@@ -144,25 +83,6 @@ public class Cell {
 		return new TileObservation(this, product, timestamp, band);
 	}
 
-	// used in method below
-	private Stream<Integer> makeBandRange(Product prod, Integer band) {
-		Supplier<IntStream> mkRange;
-		if (band == null) {
-			mkRange = () -> {
-				return IntStream.range(0, prod.getNumBands());
-			};
-		} else if (band < 0 || band >= prod.getNumBands()) {
-			// can only get valid bands
-			return Stream.of();
-		} else {
-			mkRange = () -> {
-				return IntStream.of(band);
-			};
-		}
-
-		return mkRange.get().boxed();
-	}
-
 	/**
 	 * Yield a stream of pixel and tile observations across all bands of the
 	 * dataset
@@ -177,77 +97,59 @@ public class Cell {
 	 */
 	public Stream<Observation> observations(Integer band,
 			Class<?> expectedType) {
-		Stream<Boolean> isPixelStream;
-		if (expectedType == null) {
-			isPixelStream = Stream.of(true, false);
-		} else if (expectedType.equals(PixelObservation.class)) {
-			isPixelStream = Stream.of(true);
-		} else if (expectedType.equals(TileObservation.class)) {
-			isPixelStream = Stream.of(false);
-		} else {
-			throw new RuntimeException("Expected type must be "
-					+ "PixelObservation or TileObservation");
-		}
-
-		// This is hideous, unfortunately. I'm trying to compute the following
-		// cross product:
-		//
-		// (whether observation should be a pixel) x (products)
-		// x (times for product) x (bands for product)
-		//
-		// The last two sets (times and bands for product) depend on the second
-		// one. Further, the first and last sets depend on the argument. That's
-		// why there are so many levels of flatMap here.
-		return isPixelStream.flatMap(isPixel -> {
-			return availableProducts.entrySet().stream().flatMap(entry -> {
-				// we want to produce a stream which yields tuples of (product,
-				// time, band, isPixel)
-				Product prod = entry.getKey();
+		return observations(band, expectedType, Long.MIN_VALUE,
+				Long.MAX_VALUE);
+	}
 
-				return makeBandRange(prod, band).flatMap(bandNum -> {
-					return entry.getValue().stream().map(time -> {
-						if (isPixel) {
-							return pixelObservation(prod, time, bandNum);
-						} else {
-							return tileObservation(prod, time, bandNum);
-						}
-					});
-				});
-			});
-		});
+	/**
+	 * Like {@link #observations(Integer, Class)}, but only yields
+	 * observations with timestamps in a given range. Times are kept sorted
+	 * in the catalog, so the range is found by binary search and times
+	 * outside it are never visited. The observations are enumerated by an
+	 * {@link ObservationCursor}.
+	 *
+	 * @param timeMin
+	 *            earliest time to include, in epoch seconds
+	 * @param timeMax
+	 *            latest time to include, in epoch seconds
+	 */
+	public Stream<Observation> observations(Integer band,
+			Class<?> expectedType, long timeMin, long timeMax) {
+		return new ObservationCursor(band, expectedType, timeMin, timeMax)
+				.reset(this).stream();
 	}
 
 	/**
 	 * Fetch the rHEALPix identifier (e.g. <code>R7852</code>) for this cell
 	 */
 	public String getDGGSIdent() {
-		return dggsIdent;
+		return catalog.getID(index);
 	}
 
 	/** Get the latitude of the centre of the cell */
 	public double getLat() {
-		return centre[1];
+		return catalog.getCentreLat(index);
 	}
 
 	/** Get the longitude of the centre of the cell */
 	public double getLon() {
-		return centre[0];
+		return catalog.getCentreLon(index);
 	}
 
 	public double getLatMin() {
-		return latMin;
+		return catalog.getLatMin(index);
 	}
 
 	public double getLatMax() {
-		return latMax;
+		return catalog.getLatMax(index);
 	}
 
 	public double getLongMin() {
-		return longMin;
+		return catalog.getLongMin(index);
 	}
 
 	public double getLongMax() {
-		return longMax;
+		return catalog.getLongMax(index);
 	}
 
 	@Override
@@ -255,13 +157,20 @@ public class Cell {
 		return "Cell " + getDGGSIdent();
 	}
 
+	/** List of (lon, lat) pairs making up the boundary of the cell */
 	public List<List<Double>> getBounds() {
+		int numPoints = catalog.numBoundsPoints(index);
+		List<List<Double>> bounds = new ArrayList<>(numPoints);
+		for (int point = 0; point < numPoints; point++) {
+			bounds.add(Arrays.asList(catalog.boundsLon(index, point),
+					catalog.boundsLat(index, point)));
+		}
 		return bounds;
 	}
 
 	@Override
 	public int hashCode() {
-		return dggsIdent.hashCode();
+		return getDGGSIdent().hashCode();
 	}
 
 	@Override
@@ -0,0 +1,409 @@
+package anuled.dynamicstore.backend;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Column-oriented store for the metadata of every cell in an HDF5 file. Rather
+ * than keeping an object (plus boxed bounds, hash sets of timestamps, etc.)
+ * per cell, each attribute is kept in a column indexed by cell number.
+ * <code>Cell</code> instances are just lightweight views onto a position in
+ * the catalog.
+ *
+ * Cells are sorted by DGGS ID. Timestamps are stored once, as a sorted list of
+ * epoch seconds shared by the whole catalog; each (cell, product) pair refers
+ * to a sorted run of indices into that list.
+ *
+ * The catalog also records the shape of the rHEALPix hierarchy for
+ * {@link CellIndex}. Since cells are sorted by ID, the catalog is a pre-order
+ * traversal of the hierarchy, and the subtree below each cell (every cell
+ * whose ID it is a prefix of) is a contiguous run of cells starting at that
+ * cell.
+ *
+ * There are two implementations: {@link HeapCellCatalog} keeps its columns in
+ * Java arrays, while {@link MappedCellCatalog} reads them straight out of a
+ * memory-mapped catalog file.
+ */
+abstract class CellCatalog {
+	private final HDF5Dataset owner;
+	// Products, sorted by name
+	protected final Product[] products;
+
+	protected CellCatalog(HDF5Dataset owner, Product[] products) {
+		this.owner = owner;
+		this.products = products;
+	}
+
+	HDF5Dataset getDataset() {
+		return owner;
+	}
+
+	abstract int size();
+
+	abstract String getID(int cell);
+
+	/** Level of a cell in the DGGS hierarchy (i.e. length of its ID) */
+	abstract int getLevel(int cell);
+
+	/**
+	 * Find the index of the cell with the given DGGS ID.
+	 *
+	 * @return the index, or -1 if there is no such cell.
+	 */
+	abstract int indexOf(String dggsID);
+
+	abstract double getCentreLon(int cell);
+
+	abstract double getCentreLat(int cell);
+
+	abstract double getLatMin(int cell);
+
+	abstract double getLatMax(int cell);
+
+	abstract double getLongMin(int cell);
+
+	abstract double getLongMax(int cell);
+
+	abstract int numBoundsPoints(int cell);
+
+	abstract double boundsLon(int cell, int point);
+
+	abstract double boundsLat(int cell, int point);
+
+	int numProducts() {
+		return products.length;
+	}
+
+	Product getProduct(int product) {
+		return products[product];
+	}
+
+	/** Index of a product in this catalog, or -1 if it isn't present */
+	int productIndex(Product product) {
+		for (int p = 0; p < products.length; p++) {
+			if (products[p].equals(product)) {
+				return p;
+			}
+		}
+		return -1;
+	}
+
+	/** Index of the product with the given name, or -1 if there isn't one */
+	int productIndex(String productName) {
+		int lo = 0, hi = products.length - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int cmp = products[mid].getName().compareTo(productName);
+			if (cmp < 0) {
+				lo = mid + 1;
+			} else if (cmp > 0) {
+				hi = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	/** Number of distinct timestamps in the whole catalog */
+	abstract int numEpochs();
+
+	/** i-th distinct timestamp in the catalog (in ascending order) */
+	abstract long epoch(int i);
+
+	/** Number of timestamps for which a cell has data for a product */
+	abstract int numTimes(int cell, int product);
+
+	/** k-th timestamp (in ascending order) for a cell and product */
+	abstract long epochSecond(int cell, int product, int k);
+
+	/**
+	 * Index (for {@link #epoch(int)}) of the k-th timestamp for a cell and
+	 * product
+	 */
+	abstract int epochIndex(int cell, int product, int k);
+
+	/**
+	 * Find a timestamp in the (sorted) run of times for a cell and product.
+	 *
+	 * @return k such that <code>epochSecond(cell, product, k)</code> is the
+	 *         given time, or -1 if the cell has no data for that time.
+	 */
+	int timeIndexOf(int cell, int product, long epochSecond) {
+		int k = timeLowerBound(cell, product, epochSecond);
+		if (k < numTimes(cell, product)
+				&& epochSecond(cell, product, k) == epochSecond) {
+			return k;
+		}
+		return -1;
+	}
+
+	/**
+	 * Index of the first time for a cell and product which is at or after
+	 * <code>epochSecond</code>, or <code>numTimes(cell, product)</code> if
+	 * there is none.
+	 */
+	int timeLowerBound(int cell, int product, long epochSecond) {
+		int lo = 0, hi = numTimes(cell, product);
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (epochSecond(cell, product, mid) < epochSecond) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * Index of the first time for a cell and product which is strictly after
+	 * <code>epochSecond</code>, or <code>numTimes(cell, product)</code> if
+	 * there is none.
+	 */
+	int timeUpperBound(int cell, int product, long epochSecond) {
+		int lo = 0, hi = numTimes(cell, product);
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (epochSecond(cell, product, mid) <= epochSecond) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	ZonedDateTime timestamp(int cell, int product, int k) {
+		return toTimestamp(epochSecond(cell, product, k));
+	}
+
+	static ZonedDateTime toTimestamp(long epochSecond) {
+		return ZonedDateTime.ofInstant(Instant.ofEpochSecond(epochSecond),
+				ZoneOffset.UTC);
+	}
+
+	/** Index just past the last cell in the subtree rooted at a cell */
+	abstract int subtreeEnd(int cell);
+
+	/** Extent of all cells in the subtree rooted at a cell */
+	abstract double subtreeLatMin(int cell);
+
+	abstract double subtreeLatMax(int cell);
+
+	abstract double subtreeLongMin(int cell);
+
+	abstract double subtreeLongMax(int cell);
+
+	/** Deepest level of any cell in the subtree rooted at a cell */
+	abstract int subtreeMaxLevel(int cell);
+
+	/**
+	 * Accumulates cell metadata as it is discovered, then sorts and packs it
+	 * into a <code>CellCatalog</code>.
+	 */
+	static class Builder {
+		private final Product[] products;
+		private final List<String> ids = new ArrayList<>();
+		// six values per cell: centre lon/lat, lat min/max, lon min/max
+		private double[] geometry = new double[64];
+		private int[] numBounds = new int[16];
+		private double[] bounds = new double[64];
+		private int boundsLength = 0;
+		// numTimes[i * P + p] epoch seconds for cell i, product p, in order
+		private int[] numTimes = new int[16];
+		private long[] times = new long[64];
+		private int timesLength = 0;
+
+		Builder(Collection<Product> products) {
+			this.products = products.toArray(new Product[0]);
+			Arrays.sort(this.products,
+					Comparator.comparing(Product::getName));
+		}
+
+		int size() {
+			return ids.size();
+		}
+
+		/**
+		 * Add a cell to the catalog.
+		 *
+		 * @param centre
+		 *            (lon, lat) pair
+		 * @param cellBounds
+		 *            list of (lon, lat) pairs
+		 * @param cellTimes
+		 *            times at which each product has data for this cell
+		 */
+		void add(String dggsID, double[] centre, double[][] cellBounds,
+				Map<Product, ? extends Collection<ZonedDateTime>> cellTimes) {
+			int cell = ids.size();
+			ids.add(dggsID.intern());
+
+			double latMin = Double.POSITIVE_INFINITY,
+					longMin = Double.POSITIVE_INFINITY;
+			double latMax = Double.NEGATIVE_INFINITY,
+					longMax = Double.NEGATIVE_INFINITY;
+			bounds = ensure(bounds, boundsLength + 2 * cellBounds.length);
+			for (double[] point : cellBounds) {
+				double lon = point[0], lat = point[1];
+				bounds[boundsLength++] = lon;
+				bounds[boundsLength++] = lat;
+				latMin = Math.min(latMin, lat);
+				latMax = Math.max(latMax, lat);
+				longMin = Math.min(longMin, lon);
+				longMax = Math.max(longMax, lon);
+			}
+			numBounds = ensure(numBounds, cell + 1);
+			numBounds[cell] = cellBounds.length;
+
+			geometry = ensure(geometry, 6 * (cell + 1));
+			geometry[6 * cell] = centre[0];
+			geometry[6 * cell + 1] = centre[1];
+			geometry[6 * cell + 2] = latMin;
+			geometry[6 * cell + 3] = latMax;
+			geometry[6 * cell + 4] = longMin;
+			geometry[6 * cell + 5] = longMax;
+
+			int P = products.length;
+			numTimes = ensure(numTimes, (cell + 1) * P);
+			for (int p = 0; p < P; p++) {
+				Collection<ZonedDateTime> prodTimes = cellTimes
+						.get(products[p]);
+				if (prodTimes == null) {
+					numTimes[cell * P + p] = 0;
+					continue;
+				}
+				long[] epochs = new long[prodTimes.size()];
+				int k = 0;
+				for (ZonedDateTime time : prodTimes) {
+					epochs[k++] = time.toEpochSecond();
+				}
+				Arrays.sort(epochs);
+				times = ensure(times, timesLength + epochs.length);
+				int distinct = 0;
+				for (int j = 0; j < epochs.length; j++) {
+					if (j == 0 || epochs[j] != epochs[j - 1]) {
+						times[timesLength + distinct++] = epochs[j];
+					}
+				}
+				timesLength += distinct;
+				numTimes[cell * P + p] = distinct;
+			}
+		}
+
+		/** Append every cell from another builder over the same products */
+		void addAll(Builder other) {
+			assert Arrays.equals(products, other.products);
+			int n = size(), m = other.size(), P = products.length;
+			ids.addAll(other.ids);
+			geometry = ensure(geometry, 6 * (n + m));
+			System.arraycopy(other.geometry, 0, geometry, 6 * n, 6 * m);
+			numBounds = ensure(numBounds, n + m);
+			System.arraycopy(other.numBounds, 0, numBounds, n, m);
+			bounds = ensure(bounds, boundsLength + other.boundsLength);
+			System.arraycopy(other.bounds, 0, bounds, boundsLength,
+					other.boundsLength);
+			boundsLength += other.boundsLength;
+			numTimes = ensure(numTimes, (n + m) * P);
+			System.arraycopy(other.numTimes, 0, numTimes, n * P, m * P);
+			times = ensure(times, timesLength + other.timesLength);
+			System.arraycopy(other.times, 0, times, timesLength,
+					other.timesLength);
+			timesLength += other.timesLength;
+		}
+
+		private static double[] ensure(double[] arr, int needed) {
+			return needed <= arr.length ? arr
+					: Arrays.copyOf(arr, Math.max(needed, 2 * arr.length));
+		}
+
+		private static int[] ensure(int[] arr, int needed) {
+			return needed <= arr.length ? arr
+					: Arrays.copyOf(arr, Math.max(needed, 2 * arr.length));
+		}
+
+		private static long[] ensure(long[] arr, int needed) {
+			return needed <= arr.length ? arr
+					: Arrays.copyOf(arr, Math.max(needed, 2 * arr.length));
+		}
+
+		/** Sort the cells by DGGS ID and pack them into an on-heap catalog */
+		HeapCellCatalog build(HDF5Dataset owner) {
+			int n = ids.size();
+			int P = products.length;
+
+			// offsets into the unsorted bounds/times arrays, so that we can
+			// copy cells out in sorted order
+			int[] srcBounds = new int[n + 1];
+			int[] srcTimes = new int[n * P + 1];
+			for (int cell = 0; cell < n; cell++) {
+				srcBounds[cell + 1] = srcBounds[cell] + numBounds[cell];
+			}
+			for (int slot = 0; slot < n * P; slot++) {
+				srcTimes[slot + 1] = srcTimes[slot] + numTimes[slot];
+			}
+
+			long[] epochs = Arrays.copyOf(times, timesLength);
+			Arrays.sort(epochs);
+			int numEpochs = 0;
+			for (int j = 0; j < epochs.length; j++) {
+				if (j == 0 || epochs[j] != epochs[j - 1]) {
+					epochs[numEpochs++] = epochs[j];
+				}
+			}
+			epochs = Arrays.copyOf(epochs, numEpochs);
+
+			Integer[] order = new Integer[n];
+			for (int i = 0; i < n; i++) {
+				order[i] = i;
+			}
+			Arrays.sort(order, Comparator.comparing(ids::get));
+
+			String[] outIDs = new String[n];
+			double[] centreLon = new double[n], centreLat = new double[n],
+					latMin = new double[n], latMax = new double[n],
+					longMin = new double[n], longMax = new double[n];
+			int[] boundsOffsets = new int[n + 1];
+			double[] outBounds = new double[boundsLength];
+			int[] timeOffsets = new int[n * P + 1];
+			int[] timeIndices = new int[timesLength];
+			for (int dst = 0; dst < n; dst++) {
+				int src = order[dst];
+				outIDs[dst] = ids.get(src);
+				centreLon[dst] = geometry[6 * src];
+				centreLat[dst] = geometry[6 * src + 1];
+				latMin[dst] = geometry[6 * src + 2];
+				latMax[dst] = geometry[6 * src + 3];
+				longMin[dst] = geometry[6 * src + 4];
+				longMax[dst] = geometry[6 * src + 5];
+
+				boundsOffsets[dst + 1] = boundsOffsets[dst] + numBounds[src];
+				System.arraycopy(bounds, 2 * srcBounds[src], outBounds,
+						2 * boundsOffsets[dst], 2 * numBounds[src]);
+
+				for (int p = 0; p < P; p++) {
+					int srcSlot = src * P + p, dstSlot = dst * P + p;
+					int count = numTimes[srcSlot];
+					timeOffsets[dstSlot + 1] = timeOffsets[dstSlot] + count;
+					for (int k = 0; k < count; k++) {
+						timeIndices[timeOffsets[dstSlot] + k] = Arrays
+								.binarySearch(epochs,
+										times[srcTimes[srcSlot] + k]);
+					}
+				}
+			}
+
+			return new HeapCellCatalog(owner, outIDs, centreLon, centreLat,
+					latMin, latMax, longMin, longMax, boundsOffsets,
+					outBounds, products, epochs, timeOffsets, timeIndices);
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package anuled.dynamicstore.backend;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Index of the cells in a {@link CellCatalog} arranged according to the
+ * rHEALPix hierarchy. Each cell is the root of a subtree holding every cell
+ * whose DGGS ID it is a prefix of (e.g. <code>R78</code> is above
+ * <code>R780</code> through <code>R788</code>), and the index stores the
+ * bounding box of every such subtree. That lets bounding box queries skip
+ * whole subtrees which can't contain a matching cell, so a query only costs
+ * O(cells returned + depth of tree) rather than a scan over every cell.
+ *
+ * Because the catalog is sorted by DGGS ID, it is already a pre-order
+ * traversal of the tree: each subtree is a contiguous run of cells starting at
+ * its root. The tree is therefore stored implicitly, as subtree columns in the
+ * catalog itself, rather than as a graph of node objects.
+ */
+class CellIndex {
+	private final CellCatalog catalog;
+
+	CellIndex(CellCatalog catalog) {
+		this.catalog = catalog;
+	}
+
+	/** Number of cells in the index */
+	public int size() {
+		return catalog.size();
+	}
+
+	/**
+	 * Look up a cell by its DGGS ID.
+	 *
+	 * @return the cell, or <code>null</code> if it is not in the index
+	 */
+	public Cell get(String dggsID) {
+		int idx = catalog.indexOf(dggsID);
+		return idx < 0 ? null : new Cell(catalog, idx);
+	}
+
+	/**
+	 * Could any cell in the subtree rooted at the given cell fall entirely
+	 * within the given rectangle? If the whole subtree lies to one side of
+	 * the rectangle then no cell in it can.
+	 */
+	private boolean mayContainCellsIn(int node, Double lonMin, Double lonMax,
+			Double latMin, Double latMax) {
+		return (lonMin == null || catalog.subtreeLongMax(node) >= lonMin)
+				&& (lonMax == null || catalog.subtreeLongMin(node) <= lonMax)
+				&& (latMin == null || catalog.subtreeLatMax(node) >= latMin)
+				&& (latMax == null || catalog.subtreeLatMin(node) <= latMax);
+	}
+
+	/**
+	 * Find all cells falling entirely within the given rectangle. Any of the
+	 * arguments may be <code>null</code> to leave that side unconstrained.
+	 *
+	 * @param cellLevel
+	 *            only return cells at this level of the hierarchy (or at any
+	 *            level, if <code>null</code>).
+	 */
+	public Stream<Cell> query(Integer cellLevel, Double lonMin, Double lonMax,
+			Double latMin, Double latMax) {
+		return query(cellLevel, lonMin, lonMax, latMin, latMax, 0);
+	}
+
+	/**
+	 * Like {@link #query(Integer, Double, Double, Double, Double)}, but only
+	 * returning cells at or after the given index in the catalog. Since the
+	 * catalog is a pre-order traversal, the scan simply starts there.
+	 */
+	public Stream<Cell> query(Integer cellLevel, Double lonMin, Double lonMax,
+			Double latMin, Double latMax, int from) {
+		Iterator<Cell> iter = new QueryIterator(cellLevel, lonMin, lonMax,
+				latMin, latMax, Math.max(0, from));
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iter,
+				Spliterator.ORDERED | Spliterator.DISTINCT
+						| Spliterator.NONNULL),
+				false);
+	}
+
+	/**
+	 * Lazy scan over the catalog which jumps past subtrees that couldn't hold
+	 * a matching cell.
+	 */
+	private class QueryIterator implements Iterator<Cell> {
+		private final Integer cellLevel;
+		private final Double lonMin, lonMax, latMin, latMax;
+		private int pos;
+		private int next = -1;
+
+		QueryIterator(Integer cellLevel, Double lonMin, Double lonMax,
+				Double latMin, Double latMax, int from) {
+			this.pos = from;
+			this.cellLevel = cellLevel;
+			this.lonMin = lonMin;
+			this.lonMax = lonMax;
+			this.latMin = latMin;
+			this.latMax = latMax;
+			advance();
+		}
+
+		private boolean worthVisiting(int node) {
+			if (cellLevel != null && (catalog.getLevel(node) > cellLevel
+					|| catalog.subtreeMaxLevel(node) < cellLevel)) {
+				return false;
+			}
+			return mayContainCellsIn(node, lonMin, lonMax, latMin, latMax);
+		}
+
+		private void advance() {
+			next = -1;
+			int n = catalog.size();
+			while (next < 0 && pos < n) {
+				int node = pos;
+				if (!worthVisiting(node)) {
+					pos = catalog.subtreeEnd(node);
+					continue;
+				}
+				pos++;
+				if ((cellLevel == null || catalog.getLevel(node) == cellLevel)
+						&& inRect(node)) {
+					next = node;
+				}
+			}
+		}
+
+		private boolean inRect(int node) {
+			return (lonMin == null || catalog.getLongMin(node) >= lonMin)
+					&& (lonMax == null || catalog.getLongMax(node) <= lonMax)
+					&& (latMin == null || catalog.getLatMin(node) >= latMin)
+					&& (latMax == null || catalog.getLatMax(node) <= latMax);
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next >= 0;
+		}
+
+		@Override
+		public Cell next() {
+			if (next < 0) {
+				throw new NoSuchElementException();
+			}
+			Cell rv = new Cell(catalog, next);
+			advance();
+			return rv;
+		}
+	}
+}
@@ -0,0 +1,159 @@
+package anuled.dynamicstore.backend;
+
+/**
+ * Tuning knobs for an <code>HDF5Dataset</code>. The defaults are sensible for
+ * small files; deployments serving large catalogs will probably want to
+ * change some of them (usually through the assembler configuration).
+ */
+public class DatasetOptions {
+	/** Where a dataset keeps its cell catalog */
+	public static enum CatalogStorage {
+		/** In ordinary Java arrays */
+		HEAP,
+		/**
+		 * Off-heap, in a read-only memory mapping of the sidecar catalog file.
+		 * Falls back to the heap if the catalog file can't be written.
+		 */
+		MAPPED
+	}
+
+	private int loaderParallelism = 1;
+	private boolean useCatalogFile = true;
+	private CatalogStorage catalogStorage = CatalogStorage.HEAP;
+	private long pixelCacheBytes = 16 * 1024 * 1024;
+	private long tileCacheBytes = 64 * 1024 * 1024;
+	private int ioThreads = 1;
+	private int maxOpenFiles = 64;
+	private String tileURLPrefix = null;
+
+	/**
+	 * Number of threads used to walk the HDF5 hierarchy when there is no
+	 * usable catalog file. A value of 1 walks the file serially.
+	 */
+	public int getLoaderParallelism() {
+		return loaderParallelism;
+	}
+
+	public DatasetOptions setLoaderParallelism(int loaderParallelism) {
+		if (loaderParallelism < 1) {
+			throw new IllegalArgumentException(
+					"Loader parallelism must be at least 1");
+		}
+		this.loaderParallelism = loaderParallelism;
+		return this;
+	}
+
+	/**
+	 * Whether to read (and write) the sidecar cell catalog next to the HDF5
+	 * file, rather than walking the HDF5 hierarchy on every open.
+	 */
+	public boolean getUseCatalogFile() {
+		return useCatalogFile;
+	}
+
+	public DatasetOptions setUseCatalogFile(boolean useCatalogFile) {
+		this.useCatalogFile = useCatalogFile;
+		return this;
+	}
+
+	/**
+	 * Where to keep the cell catalog. Mapped catalogs need the sidecar catalog
+	 * file, so they're only used when {@link #getUseCatalogFile()} is true.
+	 */
+	public CatalogStorage getCatalogStorage() {
+		return catalogStorage;
+	}
+
+	public DatasetOptions setCatalogStorage(CatalogStorage catalogStorage) {
+		this.catalogStorage = catalogStorage;
+		return this;
+	}
+
+	/**
+	 * Heap budget (in bytes) for the cache of pixel arrays shared by all
+	 * queries on the dataset. Zero disables the cache.
+	 */
+	public long getPixelCacheBytes() {
+		return pixelCacheBytes;
+	}
+
+	public DatasetOptions setPixelCacheBytes(long pixelCacheBytes) {
+		if (pixelCacheBytes < 0) {
+			throw new IllegalArgumentException(
+					"Pixel cache budget must be non-negative");
+		}
+		this.pixelCacheBytes = pixelCacheBytes;
+		return this;
+	}
+
+	/**
+	 * Budget (in bytes of direct memory) for the off-heap cache of PNG tiles
+	 * shared by all queries on the dataset. Zero disables the cache.
+	 */
+	public long getTileCacheBytes() {
+		return tileCacheBytes;
+	}
+
+	public DatasetOptions setTileCacheBytes(long tileCacheBytes) {
+		if (tileCacheBytes < 0) {
+			throw new IllegalArgumentException(
+					"Tile cache budget must be non-negative");
+		}
+		this.tileCacheBytes = tileCacheBytes;
+		return this;
+	}
+
+	/**
+	 * Number of dedicated threads (each with its own HDF5 reader) serving
+	 * reads of observation data. The HDF5 library serialises most work
+	 * internally, so one or two is usually enough; concurrent queries are
+	 * batched onto these threads either way.
+	 */
+	public int getIOThreads() {
+		return ioThreads;
+	}
+
+	public DatasetOptions setIOThreads(int ioThreads) {
+		if (ioThreads < 1) {
+			throw new IllegalArgumentException(
+					"Need at least one I/O thread");
+		}
+		this.ioThreads = ioThreads;
+		return this;
+	}
+
+	/**
+	 * Number of HDF5 files which may be kept open at once. Files beyond this
+	 * are closed when idle (least recently used first) and reopened when
+	 * next read. For an <code>HDF5Collection</code> the limit applies to the
+	 * whole collection.
+	 */
+	public int getMaxOpenFiles() {
+		return maxOpenFiles;
+	}
+
+	public DatasetOptions setMaxOpenFiles(int maxOpenFiles) {
+		if (maxOpenFiles < 1) {
+			throw new IllegalArgumentException(
+					"Need to allow at least one open file");
+		}
+		this.maxOpenFiles = maxOpenFiles;
+		return this;
+	}
+
+	/**
+	 * Prefix of the URLs given for <code>led:imageData</code>, or null (the
+	 * default) to give each tile's PNG inline as a <code>data:</code> URI.
+	 * With a prefix, images are only linked to, so whatever serves the prefix
+	 * (e.g. <code>anuled.dynamicstore.http.ObservationServer</code>) has to hand out
+	 * the data.
+	 */
+	public String getTileURLPrefix() {
+		return tileURLPrefix;
+	}
+
+	public DatasetOptions setTileURLPrefix(String tileURLPrefix) {
+		this.tileURLPrefix = tileURLPrefix;
+		return this;
+	}
+}
@@ -0,0 +1,32 @@
+package anuled.dynamicstore.backend;
+
+/**
+ * Everything that an {@link HDF5Dataset} needs besides its own catalog: the
+ * pixel and tile caches, the pool of open readers and the I/O threads. A
+ * dataset opened on its own has its own set; the files in an
+ * {@link HDF5Collection} all share one, so that memory, file handles and
+ * threads are bounded for the whole collection rather than per file.
+ */
+final class DatasetResources {
+	final PixelCache pixelCache;
+	final TileCache tileCache;
+	final ReaderPool readers;
+	final HDF5IO io;
+
+	/**
+	 * @param name
+	 *            used to name the I/O threads
+	 */
+	DatasetResources(DatasetOptions options, String name) {
+		pixelCache = new PixelCache(options.getPixelCacheBytes());
+		tileCache = new TileCache(options.getTileCacheBytes());
+		readers = new ReaderPool(options.getMaxOpenFiles());
+		io = new HDF5IO(readers, options.getIOThreads(), name);
+	}
+
+	/** Stop the I/O threads and close every reader */
+	void close() {
+		io.close();
+		readers.close();
+	}
+}
@@ -0,0 +1,210 @@
+package anuled.dynamicstore.backend;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches a directory and adds new HDF5 files to an {@link HDF5Collection}
+ * as they land, so that fresh acquisitions become queryable without a
+ * restart.
+ *
+ * A file is only opened once it has gone quiet (no create or modify events)
+ * for the settle time, since a file which is still being copied in can't be
+ * read yet. Opening happens on the watcher's own thread and the new file is
+ * published with {@link HDF5Collection#add(HDF5Dataset)}, so queries never
+ * wait on ingestion. If a file can't be opened, it is skipped until it changes
+ * again.
+ *
+ * Files which are deleted or replaced after being added are not removed from
+ * the collection.
+ */
+public class DirectoryWatcher implements AutoCloseable {
+	private static final Logger logger = LoggerFactory
+			.getLogger(DirectoryWatcher.class);
+	/** Default quiet period before a new file is opened, in milliseconds */
+	public static final long DEFAULT_SETTLE_MILLIS = 2000;
+
+	private final HDF5Collection collection;
+	private final Path directory;
+	private final long settleNanos;
+	private final WatchService watcher;
+	private final Thread thread;
+	// files waiting to go quiet -> time of the last event for them
+	private final Map<String, Long> pending = new HashMap<>();
+	private volatile long added = 0, failed = 0;
+
+	/**
+	 * Start watching a directory. Any HDF5 files already in it which aren't in
+	 * the collection are picked up too.
+	 *
+	 * @param collection
+	 *            collection to add files to; must have been made with
+	 *            {@link HDF5Collection#open(List, DatasetOptions)}
+	 * @param settleMillis
+	 *            how long a file must go unmodified before it is opened
+	 * @throws IOException
+	 *             if the directory can't be watched
+	 */
+	public DirectoryWatcher(HDF5Collection collection, String directory,
+			long settleMillis) throws IOException {
+		if (settleMillis < 0) {
+			throw new IllegalArgumentException(
+					"Settle time must be non-negative");
+		}
+		this.collection = collection;
+		this.directory = Paths.get(directory);
+		this.settleNanos = TimeUnit.MILLISECONDS.toNanos(settleMillis);
+		watcher = FileSystems.getDefault().newWatchService();
+		try {
+			this.directory.register(watcher,
+					StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY);
+		} catch (IOException | RuntimeException e) {
+			watcher.close();
+			throw e;
+		}
+		// after registering, so that nothing slips between scan and watch
+		rescan();
+		thread = new Thread(this::run, "hdf5-watch-" + directory);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public DirectoryWatcher(HDF5Collection collection, String directory)
+			throws IOException {
+		this(collection, directory, DEFAULT_SETTLE_MILLIS);
+	}
+
+	/** Queue every HDF5 file in the directory which we don't have yet */
+	private void rescan() {
+		long now = System.nanoTime();
+		for (String filename : HDF5Collection
+				.listDirectory(directory.toString())) {
+			if (!collection.contains(filename)) {
+				pending.put(filename, now);
+			}
+		}
+	}
+
+	private void run() {
+		try {
+			while (true) {
+				WatchKey key = pending.isEmpty() ? watcher.take()
+						: watcher.poll(nextWait(), TimeUnit.NANOSECONDS);
+				if (key != null) {
+					handleEvents(key);
+				}
+				ingestSettled();
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			// closed
+		}
+	}
+
+	/** Nanoseconds until the first pending file has settled */
+	private long nextWait() {
+		long now = System.nanoTime();
+		long wait = settleNanos;
+		for (long last : pending.values()) {
+			wait = Math.min(wait, last + settleNanos - now);
+		}
+		return Math.max(wait, 0);
+	}
+
+	private void handleEvents(WatchKey key) {
+		long now = System.nanoTime();
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				// lost track of what changed, so look at everything
+				rescan();
+				continue;
+			}
+			Path name = (Path) event.context();
+			if (HDF5Collection.isHDF5Name(name.toString())) {
+				String filename = directory.resolve(name).toString();
+				if (!collection.contains(filename)) {
+					pending.put(filename, now);
+				}
+			}
+		}
+		key.reset();
+	}
+
+	/** Open and publish every pending file which has gone quiet */
+	private void ingestSettled() {
+		long now = System.nanoTime();
+		List<String> settled = new ArrayList<>();
+		for (Map.Entry<String, Long> entry : pending.entrySet()) {
+			if (now - entry.getValue() >= settleNanos) {
+				settled.add(entry.getKey());
+			}
+		}
+		for (String filename : settled) {
+			pending.remove(filename);
+			if (Thread.currentThread().isInterrupted()) {
+				return;
+			}
+			try {
+				if (collection.addFile(filename) != null) {
+					added++;
+					logger.info("Added " + filename);
+				}
+			} catch (RuntimeException e) {
+				// maybe it isn't HDF5 after all, or isn't finished; we'll try
+				// again if it changes
+				failed++;
+				logger.warn("Couldn't add " + filename, e);
+			}
+		}
+	}
+
+	/** Number of files added to the collection so far */
+	public long getAdded() {
+		return added;
+	}
+
+	/** Number of attempts to add a file which failed */
+	public long getFailed() {
+		return failed;
+	}
+
+	/**
+	 * Stop watching. Waits for a file which is being opened to be published
+	 * (or abandoned), so the collection can be disposed of afterwards.
+	 */
+	@Override
+	public void close() {
+		try {
+			watcher.close();
+		} catch (IOException e) {
+			logger.warn("Couldn't close watch service", e);
+		}
+		thread.interrupt();
+		boolean interrupted = false;
+		while (thread.isAlive()) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
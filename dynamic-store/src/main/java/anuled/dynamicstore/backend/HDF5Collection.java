@@ -0,0 +1,1106 @@
+package anuled.dynamicstore.backend;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32;
+
+/**
+ * Several HDF5 files (e.g. one per Landsat scene) presented as a single
+ * dataset. Each file is still opened as its own {@link HDF5Dataset}, but they
+ * share one pixel cache, one tile cache, one pool of open readers and one set
+ * of I/O threads, and queries go through the collection rather than any
+ * particular file.
+ *
+ * For every file, the collection keeps a {@link Summary} of what the file
+ * covers: its products, the span of its timestamps and the extent of its
+ * cells. Queries consult the summaries first and only look at files which
+ * could have matching observations, so a query for one week over a small
+ * area doesn't touch the other scenes at all. Counts of each file's
+ * observations (see {@link ObservationStatistics}), which let the query
+ * planner tell how much a pattern will match before running it, take a pass
+ * over the whole catalog, so they're only worked out the first time the
+ * planner asks for them (see {@link HDF5Dataset#getStatistics()}).
+ *
+ * Files can be added while the collection is in use (see
+ * {@link #addFile(String)} and {@link DirectoryWatcher}). The list of files,
+ * their summaries and the merged products form an immutable snapshot, which
+ * is replaced wholesale (copy-on-write) when a file is added. Every query
+ * reads the snapshot once and works from it, so queries in flight see a
+ * consistent set of files and never wait on a file being opened.
+ */
+public class HDF5Collection {
+	private static final String[] EXTENSIONS = { ".h5", ".hdf5", ".he5" };
+
+	private final AtomicReference<Snapshot> snapshot;
+	private final List<Consumer<HDF5Dataset>> listeners = new ArrayList<>();
+	// shared by every file if we opened them ourselves; null otherwise
+	private DatasetResources resources = null;
+	private DatasetOptions options = null;
+
+	/**
+	 * Everything a query needs to know about the files; never modified,
+	 * except to remember the merged statistics once they've been worked out
+	 */
+	private static final class Snapshot {
+		final List<HDF5Dataset> datasets;
+		final List<Summary> summaries;
+		final Set<Product> products;
+		// racing threads just merge them twice
+		private volatile ObservationStatistics statistics = null;
+
+		Snapshot(List<HDF5Dataset> datasets, List<Summary> summaries) {
+			this.datasets = Collections.unmodifiableList(datasets);
+			this.summaries = Collections.unmodifiableList(summaries);
+			Set<Product> allProducts = new LinkedHashSet<>();
+			for (HDF5Dataset dataset : datasets) {
+				// products are equal by name, so the first file's copy wins
+				allProducts.addAll(dataset.getProducts());
+			}
+			products = Collections.unmodifiableSet(allProducts);
+		}
+
+		ObservationStatistics statistics() {
+			ObservationStatistics rv = statistics;
+			if (rv == null) {
+				List<ObservationStatistics> parts = new ArrayList<>();
+				for (HDF5Dataset dataset : datasets) {
+					parts.add(dataset.getStatistics());
+				}
+				rv = ObservationStatistics.merge(parts);
+				statistics = rv;
+			}
+			return rv;
+		}
+
+		/** Copy of this snapshot with one more file at the end */
+		Snapshot with(HDF5Dataset dataset) {
+			List<HDF5Dataset> newDatasets = new ArrayList<>(datasets);
+			newDatasets.add(dataset);
+			List<Summary> newSummaries = new ArrayList<>(summaries);
+			newSummaries.add(new Summary(dataset.getCatalog()));
+			return new Snapshot(newDatasets, newSummaries);
+		}
+
+		boolean contains(String filename) {
+			for (HDF5Dataset dataset : datasets) {
+				if (dataset.getFilename().equals(filename)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/** What a file covers, worked out once from its catalog */
+	static final class Summary {
+		final Set<String> productNames = new LinkedHashSet<>();
+		// epoch seconds; timeMin > timeMax if the file has no observations
+		final long timeMin, timeMax;
+		double latMin = Double.POSITIVE_INFINITY,
+				latMax = Double.NEGATIVE_INFINITY,
+				lonMin = Double.POSITIVE_INFINITY,
+				lonMax = Double.NEGATIVE_INFINITY;
+		int maxLevel = -1;
+
+		Summary(CellCatalog catalog) {
+			for (int p = 0; p < catalog.numProducts(); p++) {
+				productNames.add(catalog.getProduct(p).getName());
+			}
+			int numEpochs = catalog.numEpochs();
+			if (numEpochs > 0) {
+				timeMin = catalog.epoch(0);
+				timeMax = catalog.epoch(numEpochs - 1);
+			} else {
+				timeMin = Long.MAX_VALUE;
+				timeMax = Long.MIN_VALUE;
+			}
+			// the roots of the DGGS hierarchy cover every cell in the file
+			for (int root = 0; root < catalog.size(); root = catalog
+					.subtreeEnd(root)) {
+				latMin = Math.min(latMin, catalog.subtreeLatMin(root));
+				latMax = Math.max(latMax, catalog.subtreeLatMax(root));
+				lonMin = Math.min(lonMin, catalog.subtreeLongMin(root));
+				lonMax = Math.max(lonMax, catalog.subtreeLongMax(root));
+				maxLevel = Math.max(maxLevel, catalog.subtreeMaxLevel(root));
+			}
+		}
+
+		/**
+		 * Could the file have any observations matching these constraints?
+		 * The arguments have the same meaning as those of
+		 * {@link HDF5Dataset#cells(Integer, String, Double, Double, Double, Double)},
+		 * plus an inclusive time range in epoch seconds.
+		 */
+		boolean mayMatch(Integer cellLevel, Double lonMin, Double lonMax,
+				Double latMin, Double latMax, long timeMin, long timeMax) {
+			// a cell lying entirely within the rectangle has to lie within
+			// the file's extent too
+			return timeMin <= this.timeMax && timeMax >= this.timeMin
+					&& (cellLevel == null || cellLevel <= maxLevel)
+					&& (lonMin == null || this.lonMax >= lonMin)
+					&& (lonMax == null || this.lonMin <= lonMax)
+					&& (latMin == null || this.latMax >= latMin)
+					&& (latMax == null || this.latMin <= latMax);
+		}
+	}
+
+	/**
+	 * Put a collection together from datasets which have already been opened.
+	 * Disposing of the collection disposes of the datasets.
+	 */
+	public HDF5Collection(List<HDF5Dataset> datasets) {
+		List<Summary> summaries = new ArrayList<>(datasets.size());
+		for (HDF5Dataset dataset : datasets) {
+			summaries.add(new Summary(dataset.getCatalog()));
+		}
+		snapshot = new AtomicReference<>(
+				new Snapshot(new ArrayList<>(datasets), summaries));
+	}
+
+	/** A collection of just one file */
+	public HDF5Collection(HDF5Dataset dataset) {
+		this(Collections.singletonList(dataset));
+	}
+
+	/**
+	 * Open several HDF5 files as one collection. Files are opened in parallel
+	 * (up to the loader parallelism in <code>options</code>), and all of them
+	 * share caches, open readers and I/O threads, sized as given in
+	 * <code>options</code>. In particular, no more than
+	 * {@link DatasetOptions#getMaxOpenFiles()} files are kept open at once.
+	 */
+	public static HDF5Collection open(List<String> filenames,
+			DatasetOptions options) {
+		DatasetResources shared = new DatasetResources(options, "collection");
+		int threads = Math.max(1,
+				Math.min(options.getLoaderParallelism(), filenames.size()));
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<HDF5Dataset>> futures = new ArrayList<>();
+		try {
+			for (String filename : filenames) {
+				futures.add(pool.submit(
+						() -> new HDF5Dataset(filename, options, shared)));
+			}
+			List<HDF5Dataset> opened = new ArrayList<>();
+			RuntimeException failure = null;
+			for (Future<HDF5Dataset> future : futures) {
+				try {
+					opened.add(future.get());
+				} catch (ExecutionException e) {
+					if (failure == null) {
+						failure = e.getCause() instanceof RuntimeException
+								? (RuntimeException) e.getCause()
+								: new RuntimeException(e.getCause());
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					failure = new RuntimeException(
+							"Interrupted while opening HDF5 files", e);
+					break;
+				}
+			}
+			if (failure != null) {
+				// don't leak the files which did open
+				for (HDF5Dataset dataset : opened) {
+					dataset.dispose();
+				}
+				shared.close();
+				throw failure;
+			}
+			HDF5Collection rv = new HDF5Collection(opened);
+			rv.resources = shared;
+			rv.options = options;
+			return rv;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * List the HDF5 files (<code>.h5</code>, <code>.hdf5</code> or
+	 * <code>.he5</code>) directly inside a directory, sorted by name.
+	 */
+	public static List<String> listDirectory(String directory) {
+		File dir = new File(directory);
+		File[] files = dir.listFiles(
+				file -> file.isFile() && isHDF5Name(file.getName()));
+		if (files == null) {
+			throw new IllegalArgumentException(
+					"'" + directory + "' is not a readable directory");
+		}
+		Arrays.sort(files);
+		List<String> rv = new ArrayList<>(files.length);
+		for (File file : files) {
+			rv.add(file.getPath());
+		}
+		return rv;
+	}
+
+	/** Does a file name have one of the HDF5 extensions? */
+	static boolean isHDF5Name(String name) {
+		String lower = name.toLowerCase(Locale.ROOT);
+		for (String ext : EXTENSIONS) {
+			if (lower.endsWith(ext)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Open another HDF5 file and add it to the collection, sharing the
+	 * collection's caches, readers and I/O threads. The file is opened before
+	 * anything is published, so queries don't wait on it; once it has been
+	 * added, new queries will see it.
+	 *
+	 * Only works for collections created with
+	 * {@link #open(List, DatasetOptions)}.
+	 *
+	 * @return the new dataset, or null if the file was already in the
+	 *         collection
+	 */
+	public HDF5Dataset addFile(String filename) {
+		if (resources == null) {
+			throw new IllegalStateException(
+					"Can only add files to a collection made with open()");
+		}
+		if (snapshot.get().contains(filename)) {
+			return null;
+		}
+		HDF5Dataset dataset = new HDF5Dataset(filename, options, resources);
+		if (!add(dataset)) {
+			// somebody else beat us to it
+			dataset.dispose();
+			return null;
+		}
+		return dataset;
+	}
+
+	/**
+	 * Add an already-opened dataset to the collection, unless a file of the
+	 * same name is already there. Listeners registered with
+	 * {@link #addListener(Consumer)} are told about the new dataset once it is
+	 * visible to queries.
+	 *
+	 * @return whether the dataset was added
+	 */
+	public boolean add(HDF5Dataset dataset) {
+		Snapshot current, next;
+		do {
+			current = snapshot.get();
+			if (current.contains(dataset.getFilename())) {
+				return false;
+			}
+			next = current.with(dataset);
+		} while (!snapshot.compareAndSet(current, next));
+		List<Consumer<HDF5Dataset>> toTell;
+		synchronized (listeners) {
+			toTell = new ArrayList<>(listeners);
+		}
+		for (Consumer<HDF5Dataset> listener : toTell) {
+			listener.accept(dataset);
+		}
+		return true;
+	}
+
+	/**
+	 * Register a callback to be run (on the adding thread) each time a file is
+	 * added to the collection
+	 */
+	public void addListener(Consumer<HDF5Dataset> listener) {
+		synchronized (listeners) {
+			listeners.add(listener);
+		}
+	}
+
+	/** Is there a file with this name in the collection? */
+	public boolean contains(String filename) {
+		return snapshot.get().contains(filename);
+	}
+
+	/**
+	 * Every file in the collection, in the order they were added. This is a
+	 * snapshot; files added later won't show up in it.
+	 */
+	public List<HDF5Dataset> getDatasets() {
+		return snapshot.get().datasets;
+	}
+
+	/** Union of the products in every file (again, a snapshot) */
+	public Set<Product> getProducts() {
+		return snapshot.get().products;
+	}
+
+	/**
+	 * Observation counts for every file in the collection (as a snapshot),
+	 * for estimating the cost of a query before running it
+	 */
+	public ObservationStatistics getStatistics() {
+		return snapshot.get().statistics();
+	}
+
+	/**
+	 * Find the files which might contain observations matching a query,
+	 * using only the per-file summaries (and, if a cell ID is given, a lookup
+	 * in each file's catalog). No observation data is read.
+	 *
+	 * @param timeMin
+	 *            earliest time of interest, in epoch seconds
+	 * @param timeMax
+	 *            latest time of interest, in epoch seconds
+	 */
+	public List<HDF5Dataset> candidates(Integer cellLevel, String cellID,
+			Double lonMin, Double lonMax, Double latMin, Double latMax,
+			long timeMin, long timeMax) {
+		Snapshot current = snapshot.get();
+		List<HDF5Dataset> rv = new ArrayList<>();
+		for (int i = 0; i < current.datasets.size(); i++) {
+			HDF5Dataset dataset = current.datasets.get(i);
+			if (current.summaries.get(i).mayMatch(cellLevel, lonMin, lonMax, latMin,
+					latMax, timeMin, timeMax)
+					&& (cellID == null
+							|| dataset.getCatalog().indexOf(cellID) >= 0)) {
+				rv.add(dataset);
+			}
+		}
+		return rv;
+	}
+
+	/**
+	 * Stream the cells matching a query from every candidate file, file by
+	 * file. The stream is sequential, so iterating over it or taking the
+	 * first few cells only opens the files it needs to; callers whose
+	 * terminal operation can use several threads (a count, say) can ask for
+	 * it in parallel, and files will then be scanned concurrently.
+	 */
+	public Stream<Cell> cells(Integer cellLevel, String cellID, Double lonMin,
+			Double lonMax, Double latMin, Double latMax, long timeMin,
+			long timeMax) {
+		List<HDF5Dataset> files = candidates(cellLevel, cellID, lonMin,
+				lonMax, latMin, latMax, timeMin, timeMax);
+		List<Supplier<Stream<Cell>>> parts = new ArrayList<>();
+		for (HDF5Dataset dataset : files) {
+			parts.add(() -> dataset.cells(cellLevel, cellID, lonMin, lonMax,
+					latMin, latMax));
+		}
+		return new LazyConcat<>(parts).stream();
+	}
+
+	/**
+	 * Stream the observations of every cell matching a query, with the same
+	 * arguments as {@link #cells(Integer, String, Double, Double, Double, Double, long, long)}
+	 * plus those of {@link Cell#observations(Integer, Class, long, long)}.
+	 * Each file's cells are walked by a single {@link ObservationCursor}, so
+	 * there is no per-cell (or per-observation) stream plumbing. As with
+	 * <code>cells</code>, the stream is sequential, but splits between files
+	 * if it's made parallel.
+	 *
+	 * The order of observations is stable: file by file (in the order they
+	 * were added), then in {@link ObservationCursor} order within each file.
+	 */
+	public Stream<Observation> observations(Integer cellLevel, String cellID,
+			Double lonMin, Double lonMax, Double latMin, Double latMax,
+			Integer band, Class<?> expectedType, long timeMin, long timeMax) {
+		return observations(cellLevel, cellID, lonMin, lonMax, latMin,
+				latMax, band, expectedType, timeMin, timeMax, 0);
+	}
+
+	/**
+	 * Like
+	 * {@link #observations(Integer, String, Double, Double, Double, Double, Integer, Class, long, long)},
+	 * but starting <code>offset</code> observations into the results. Files
+	 * and cells before the offset are skipped using counts from the catalog
+	 * (see {@link ObservationCursor#skip(long)}), so no observations are made
+	 * for them; a deep page costs about as much as the first.
+	 */
+	public Stream<Observation> observations(Integer cellLevel, String cellID,
+			Double lonMin, Double lonMax, Double latMin, Double latMax,
+			Integer band, Class<?> expectedType, long timeMin, long timeMax,
+			long offset) {
+		if (offset < 0) {
+			throw new IllegalArgumentException("Offset must be non-negative");
+		}
+		List<HDF5Dataset> files = candidates(cellLevel, cellID, lonMin,
+				lonMax, latMin, latMax, timeMin, timeMax);
+		Stream<Observation> first = null;
+		if (offset > 0) {
+			// find the file the offset lands in, and seek to it there
+			while (first == null && !files.isEmpty()) {
+				Stream<Cell> cells = files.get(0).cells(cellLevel, cellID,
+						lonMin, lonMax, latMin, latMax);
+				ObservationCursor cursor = new ObservationCursor(band,
+						expectedType, timeMin, timeMax)
+								.reset(cells.iterator());
+				offset -= cursor.skip(offset);
+				if (offset == 0) {
+					first = cursor.stream().onClose(cells::close);
+				} else {
+					cells.close();
+				}
+				files = files.subList(1, files.size());
+			}
+			if (first == null) {
+				return Stream.of();
+			}
+		}
+		return scanAll(first, files, cellLevel, cellID, lonMin, lonMax,
+				latMin, latMax, band, expectedType, timeMin, timeMax);
+	}
+
+	/**
+	 * Like
+	 * {@link #observations(Integer, String, Double, Double, Double, Double, Integer, Class, long, long)},
+	 * but starting just after the given position (which is usually that of
+	 * the last observation a client has seen; see
+	 * {@link #position(Observation)}). Files before the position's file are
+	 * skipped, and the cursor for its file looks its observation up in the
+	 * catalog and seeks straight to it, so resuming a scan costs the same
+	 * however far into it the position is.
+	 *
+	 * @param after
+	 *            position to start after, or null to start at the beginning
+	 * @throws IllegalArgumentException
+	 *             if the position can't have come from this collection, or
+	 *             the files before it (or its observation) have changed
+	 *             since
+	 */
+	public Stream<Observation> observationsAfter(Integer cellLevel,
+			String cellID, Double lonMin, Double lonMax, Double latMin,
+			Double latMax, Integer band, Class<?> expectedType, long timeMin,
+			long timeMax, ObservationPosition after) {
+		List<HDF5Dataset> files = candidates(cellLevel, cellID, lonMin,
+				lonMax, latMin, latMax, timeMin, timeMax);
+		if (after == null) {
+			return scanAll(null, files, cellLevel, cellID, lonMin, lonMax,
+					latMin, latMax, band, expectedType, timeMin, timeMax);
+		}
+		List<HDF5Dataset> all = getDatasets();
+		if (after.getFileIndex() >= all.size()) {
+			throw new IllegalArgumentException(
+					"No file with index " + after.getFileIndex());
+		}
+		if (fingerprint(all, after.getFileIndex()) != after
+				.getFileFingerprint()) {
+			throw new IllegalArgumentException("Files have changed since "
+					+ after + " was handed out");
+		}
+		HDF5Dataset afterFile = all.get(after.getFileIndex());
+		// candidates are in collection order, so drop those before the file
+		int start = 0;
+		while (start < files.size()
+				&& all.indexOf(files.get(start)) < after.getFileIndex()) {
+			start++;
+		}
+		files = files.subList(start, files.size());
+		Stream<Observation> first = null;
+		if (!files.isEmpty() && files.get(0) == afterFile) {
+			long id = afterFile.observationID(after.getProductName(),
+					CellCatalog.toTimestamp(after.getEpochSecond()),
+					after.getCellID(), after.getBand(), !after.isTile());
+			if (id == ObservationID.NONE) {
+				throw new IllegalArgumentException(
+						"No observation at " + after);
+			}
+			Stream<Cell> cells = afterFile.cells(cellLevel, cellID, lonMin,
+					lonMax, latMin, latMax, ObservationID.cellIndex(id));
+			ObservationCursor cursor = new ObservationCursor(band,
+					expectedType, timeMin, timeMax).reset(cells.iterator());
+			try {
+				cursor.seekAfter(id);
+			} catch (IllegalArgumentException e) {
+				cells.close();
+				throw e;
+			}
+			first = cursor.stream().onClose(cells::close);
+			files = files.subList(1, files.size());
+		}
+		return scanAll(first, files, cellLevel, cellID, lonMin, lonMax,
+				latMin, latMax, band, expectedType, timeMin, timeMax);
+	}
+
+	/**
+	 * Position of an observation from one of the collection's files, for
+	 * passing to
+	 * {@link #observationsAfter(Integer, String, Double, Double, Double, Double, Integer, Class, long, long, ObservationPosition)}
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the observation isn't from this collection
+	 */
+	public ObservationPosition position(Observation obs) {
+		List<HDF5Dataset> all = getDatasets();
+		HDF5Dataset dataset = obs.getCell().getDataset();
+		for (int i = 0; i < all.size(); i++) {
+			if (all.get(i) == dataset) {
+				return new ObservationPosition(i, fingerprint(all, i),
+						obs.getCell().getDGGSIdent(),
+						obs.getProduct().getName(),
+						obs.getTimestamp().toEpochSecond(), obs.getBand(),
+						ObservationID.isTile(obs.getID()));
+			}
+		}
+		throw new IllegalArgumentException(
+				obs + " isn't from a file in this collection");
+	}
+
+	/**
+	 * Fingerprint of the names (without directories) of the first
+	 * <code>last + 1</code> files, which changes if a file is added before
+	 * or in place of one of them
+	 */
+	private static int fingerprint(List<HDF5Dataset> files, int last) {
+		CRC32 crc = new CRC32();
+		for (int i = 0; i <= last; i++) {
+			crc.update(new File(files.get(i).getFilename()).getName()
+					.getBytes(StandardCharsets.UTF_8));
+			crc.update(0);
+		}
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Count the observations which
+	 * {@link #observations(Integer, String, Double, Double, Double, Double, Integer, Class, long, long)}
+	 * would return (with the same arguments), using only the catalogs; see
+	 * {@link ObservationCursor#count()}
+	 */
+	public long count(Integer cellLevel, String cellID, Double lonMin,
+			Double lonMax, Double latMin, Double latMax, Integer band,
+			Class<?> expectedType, long timeMin, long timeMax) {
+		long rv = 0;
+		for (HDF5Dataset dataset : candidates(cellLevel, cellID, lonMin,
+				lonMax, latMin, latMax, timeMin, timeMax)) {
+			try (Stream<Cell> cells = dataset.cells(cellLevel, cellID, lonMin,
+					lonMax, latMin, latMax)) {
+				rv += new ObservationCursor(band, expectedType, timeMin,
+						timeMax).reset(cells.iterator()).count();
+			}
+		}
+		return rv;
+	}
+
+	/**
+	 * Like
+	 * {@link #observations(Integer, String, Double, Double, Double, Double, Integer, Class, long, long)},
+	 * but ordered by time: oldest first, or latest first if
+	 * <code>latestFirst</code> is set. Observations at the same time are in
+	 * the usual order. The catalog already has each cell's times for each
+	 * product in order, so this is a k-way merge of those runs (see
+	 * {@link TimeMerge}). Every matching cell is walked, and a run for each
+	 * of its products put on a heap, before the first observation comes out;
+	 * after that each observation costs a heap operation, however many
+	 * distinct times there are. When only the first few observations are
+	 * wanted, use
+	 * {@link #observationsByTime(Integer, String, Double, Double, Double, Double, Integer, Class, long, long, boolean, long)}
+	 * instead.
+	 */
+	public Stream<Observation> observationsByTime(Integer cellLevel,
+			String cellID, Double lonMin, Double lonMax, Double latMin,
+			Double latMax, Integer band, Class<?> expectedType, long timeMin,
+			long timeMax, boolean latestFirst) {
+		return observationsByTime(cellLevel, cellID, lonMin, lonMax, latMin,
+				latMax, band, expectedType, timeMin, timeMax, latestFirst,
+				Long.MAX_VALUE);
+	}
+
+	/**
+	 * Like
+	 * {@link #observationsByTime(Integer, String, Double, Double, Double, Double, Integer, Class, long, long, boolean)},
+	 * but only the first <code>limit</code> observations. Matching cells are
+	 * still all walked, but only the times which could be among the first
+	 * <code>limit</code> observations are kept (at most <code>limit</code>
+	 * of them, each found by binary search in its run), so memory doesn't
+	 * depend on how many cells match.
+	 */
+	public Stream<Observation> observationsByTime(Integer cellLevel,
+			String cellID, Double lonMin, Double lonMax, Double latMin,
+			Double latMax, Integer band, Class<?> expectedType, long timeMin,
+			long timeMax, boolean latestFirst, long limit) {
+		if (limit < 0) {
+			throw new IllegalArgumentException("Limit must be non-negative");
+		}
+		TimeMerge iter = new TimeMerge(band, expectedType, latestFirst,
+				limit);
+		List<HDF5Dataset> files = limit == 0 ? Collections.emptyList()
+				: candidates(cellLevel, cellID, lonMin, lonMax, latMin,
+						latMax, timeMin, timeMax);
+		for (int file = 0; file < files.size(); file++) {
+			try (Stream<Cell> cells = files.get(file).cells(cellLevel, cellID,
+					lonMin, lonMax, latMin, latMax)) {
+				Iterator<Cell> cellIter = cells.iterator();
+				while (cellIter.hasNext()) {
+					iter.addCell(file, cellIter.next(), timeMin, timeMax);
+				}
+			}
+		}
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iter,
+				Spliterator.ORDERED | Spliterator.NONNULL), false);
+	}
+
+	/**
+	 * Like
+	 * {@link #observations(Integer, String, Double, Double, Double, Double, Integer, Class, long, long)},
+	 * but ordered by DGGS ID across all files (rather than file by file);
+	 * observations of the same cell are in the usual order. Each file's scan
+	 * is already ordered by cell, so this is a k-way merge of one scan per
+	 * file, holding one observation per file at a time.
+	 */
+	public Stream<Observation> observationsByCell(Integer cellLevel,
+			String cellID, Double lonMin, Double lonMax, Double latMin,
+			Double latMax, Integer band, Class<?> expectedType, long timeMin,
+			long timeMax) {
+		List<HDF5Dataset> files = candidates(cellLevel, cellID, lonMin,
+				lonMax, latMin, latMax, timeMin, timeMax);
+		if (files.size() <= 1) {
+			return scanAll(null, files, cellLevel, cellID, lonMin, lonMax,
+					latMin, latMax, band, expectedType, timeMin, timeMax);
+		}
+		List<Stream<Observation>> scans = new ArrayList<>();
+		for (HDF5Dataset dataset : files) {
+			scans.add(scan(dataset, cellLevel, cellID, lonMin, lonMax, latMin,
+					latMax, band, expectedType, timeMin, timeMax));
+		}
+		CellMerge iter = new CellMerge(scans);
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iter,
+				Spliterator.ORDERED | Spliterator.NONNULL), false)
+				.onClose(() -> scans.forEach(Stream::close));
+	}
+
+	/**
+	 * Concatenation of streams (usually one per file) which are only opened
+	 * once the previous one has been used up, so that a scan only opens as
+	 * many as it needs. Unlike <code>flatMap</code>, which on Java 8 pushes a
+	 * whole inner stream through at once when it's pulled through an
+	 * iterator or a short-circuiting operation (JDK-8075939), this hands out
+	 * one element at a time. It splits between parts, so parallel terminal
+	 * operations still go through several files at once.
+	 */
+	private static final class LazyConcat<T> implements Spliterator<T> {
+		private final List<Supplier<Stream<T>>> parts;
+		// parts which have been opened but not closed, across all splits
+		private final Set<Stream<T>> open;
+		private int next, end;
+		private Stream<T> current = null;
+		private Spliterator<T> iter = null;
+
+		LazyConcat(List<Supplier<Stream<T>>> parts) {
+			this(parts, ConcurrentHashMap.newKeySet(), 0, parts.size());
+		}
+
+		private LazyConcat(List<Supplier<Stream<T>>> parts,
+				Set<Stream<T>> open, int next, int end) {
+			this.parts = parts;
+			this.open = open;
+			this.next = next;
+			this.end = end;
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super T> action) {
+			while (iter == null || !iter.tryAdvance(action)) {
+				closeCurrent();
+				if (next >= end) {
+					return false;
+				}
+				current = parts.get(next++).get();
+				open.add(current);
+				iter = current.spliterator();
+			}
+			return true;
+		}
+
+		@Override
+		public Spliterator<T> trySplit() {
+			if (end - next < 2) {
+				return null;
+			}
+			// the prefix takes the part in progress (if any) with it
+			int mid = (next + end) >>> 1;
+			LazyConcat<T> prefix = new LazyConcat<>(parts, open, next, mid);
+			prefix.current = current;
+			prefix.iter = iter;
+			current = null;
+			iter = null;
+			next = mid;
+			return prefix;
+		}
+
+		@Override
+		public long estimateSize() {
+			return Long.MAX_VALUE;
+		}
+
+		@Override
+		public int characteristics() {
+			return Spliterator.ORDERED | Spliterator.NONNULL;
+		}
+
+		private void closeCurrent() {
+			if (current != null) {
+				open.remove(current);
+				current.close();
+				current = null;
+				iter = null;
+			}
+		}
+
+		/** Close whatever parts are still open */
+		void close() {
+			for (Stream<T> stream : open) {
+				stream.close();
+			}
+			open.clear();
+		}
+
+		/**
+		 * Sequential stream of the concatenation, which closes any open
+		 * parts
+		 */
+		Stream<T> stream() {
+			return StreamSupport.stream(this, false).onClose(this::close);
+		}
+	}
+
+	/**
+	 * Merge of the runs of times for each (file, cell, product), which the
+	 * catalog keeps in ascending order, into one sequence ordered by time.
+	 * The heap holds one entry per run that isn't used up, keyed by the
+	 * run's current time, with ties going to the earlier file, cell and
+	 * product. Each step takes the observation at the head of the first run
+	 * (going through the bands and types at one time in the usual order), and
+	 * the run goes back on the heap if it has any left.
+	 *
+	 * With a limit, each time is added as a run of its own, and only as many
+	 * as could make the first <code>limit</code> observations are kept: they
+	 * wait on a second heap, worst first, until the merge starts.
+	 */
+	private static final class TimeMerge implements Iterator<Observation> {
+		private static final class Run {
+			final int file;
+			final Cell cell;
+			final Product product;
+			final int productIndex;
+			final int bandStart, bandEnd;
+			// position within the run; time steps from timeStart towards
+			// timeEnd (which is exclusive either way)
+			int time, band, kind;
+			final int timeEnd;
+			long epochSecond;
+
+			Run(int file, Cell cell, int productIndex, int timeStart,
+					int timeEnd, int bandStart, int bandEnd) {
+				this.file = file;
+				this.cell = cell;
+				this.productIndex = productIndex;
+				this.product = cell.getCatalog().getProduct(productIndex);
+				this.time = timeStart;
+				this.timeEnd = timeEnd;
+				this.bandStart = bandStart;
+				this.bandEnd = bandEnd;
+			}
+		}
+
+		// range of "kinds" to visit, as in ObservationCursor: 0 is pixels,
+		// 1 is tiles
+		private final int kindStart, kindEnd;
+		private final Integer onlyBand;
+		private final boolean latestFirst;
+		private final PriorityQueue<Run> heads;
+		// single-time runs which might be needed, worst first, and how many
+		// observations they hold; null once the merge has started (or if
+		// there's no limit)
+		private PriorityQueue<Run> candidates;
+		private long held = 0;
+		private long remaining;
+
+		TimeMerge(Integer band, Class<?> expectedType, boolean latestFirst,
+				long limit) {
+			if (expectedType == null) {
+				kindStart = 0;
+				kindEnd = 2;
+			} else if (expectedType.equals(PixelObservation.class)) {
+				kindStart = 0;
+				kindEnd = 1;
+			} else if (expectedType.equals(TileObservation.class)) {
+				kindStart = 1;
+				kindEnd = 2;
+			} else {
+				throw new RuntimeException("Expected type must be "
+						+ "PixelObservation or TileObservation");
+			}
+			this.onlyBand = band;
+			this.latestFirst = latestFirst;
+			this.remaining = limit;
+			Comparator<Run> byTime = Comparator
+					.comparingLong((Run r) -> r.epochSecond);
+			Comparator<Run> order = (latestFirst ? byTime.reversed() : byTime)
+					.thenComparingInt(r -> r.file)
+					.thenComparingInt(r -> r.cell.getIndex())
+					.thenComparingInt(r -> r.productIndex);
+			heads = new PriorityQueue<>(order);
+			if (limit != Long.MAX_VALUE) {
+				candidates = new PriorityQueue<>(order.reversed());
+			}
+		}
+
+		/** Add a run for each of a cell's products with matching times */
+		void addCell(int file, Cell cell, long timeMin, long timeMax) {
+			CellCatalog catalog = cell.getCatalog();
+			int index = cell.getIndex();
+			for (int p = 0; p < catalog.numProducts(); p++) {
+				int numBands = catalog.getProduct(p).getNumBands();
+				int bandStart = 0, bandEnd = numBands;
+				if (onlyBand != null) {
+					bandStart = onlyBand;
+					bandEnd = onlyBand + 1;
+				}
+				int lo = catalog.timeLowerBound(index, p, timeMin);
+				int hi = catalog.timeUpperBound(index, p, timeMax);
+				if (lo >= hi || bandStart < 0 || bandEnd > numBands) {
+					continue;
+				}
+				if (candidates == null) {
+					Run run = latestFirst
+							? new Run(file, cell, p, hi - 1, lo - 1,
+									bandStart, bandEnd)
+							: new Run(file, cell, p, lo, hi, bandStart,
+									bandEnd);
+					enterTime(run);
+					heads.add(run);
+					continue;
+				}
+				for (int i = 0; i < hi - lo; i++) {
+					int time = latestFirst ? hi - 1 - i : lo + i;
+					Run run = new Run(file, cell, p, time,
+							time + (latestFirst ? -1 : 1), bandStart, bandEnd);
+					enterTime(run);
+					if (!offer(run)) {
+						// the rest of the run is later still
+						break;
+					}
+				}
+			}
+		}
+
+		/**
+		 * Keep a single-time run if it could be among the first
+		 * <code>remaining</code> observations, dropping any others which no
+		 * longer can
+		 *
+		 * @return whether the run was kept
+		 */
+		private boolean offer(Run run) {
+			// (the worst candidate comes first, so a run which comes after it
+			// in the merge compares less)
+			if (held >= remaining && candidates.comparator().compare(run,
+					candidates.peek()) < 0) {
+				return false;
+			}
+			candidates.add(run);
+			held += perTime(run);
+			while (held - perTime(candidates.peek()) >= remaining) {
+				Run worst = candidates.poll();
+				held -= perTime(worst);
+				if (worst == run) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/** Number of observations at each of a run's times */
+		private long perTime(Run run) {
+			return (long) (run.bandEnd - run.bandStart)
+					* (kindEnd - kindStart);
+		}
+
+		/** Move a run to the first band and type at its current time */
+		private void enterTime(Run run) {
+			run.band = run.bandStart;
+			run.kind = kindStart;
+			run.epochSecond = run.cell.getCatalog().epochSecond(
+					run.cell.getIndex(), run.productIndex, run.time);
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (candidates != null) {
+				heads.addAll(candidates);
+				candidates = null;
+			}
+			return remaining > 0 && !heads.isEmpty();
+		}
+
+		@Override
+		public Observation next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Run run = heads.poll();
+			remaining--;
+			CellCatalog catalog = run.cell.getCatalog();
+			int cellIndex = run.cell.getIndex();
+			long id = ObservationID.pack(cellIndex,
+					catalog.epochIndex(cellIndex, run.productIndex, run.time),
+					run.productIndex, run.band, run.kind == 1);
+			Observation rv = run.kind == 1
+					? new TileObservation(run.cell, run.product, id)
+					: new PixelObservation(run.cell, run.product, id);
+			// advance the run, much as ObservationCursor does
+			if (++run.kind >= kindEnd) {
+				run.kind = kindStart;
+				if (++run.band >= run.bandEnd) {
+					run.time += latestFirst ? -1 : 1;
+					if (run.time == run.timeEnd) {
+						return rv;
+					}
+					enterTime(run);
+				}
+			}
+			heads.add(run);
+			return rv;
+		}
+	}
+
+	/**
+	 * Merge of several streams which are each ordered by DGGS ID; ties go to
+	 * the earlier stream
+	 */
+	private static final class CellMerge implements Iterator<Observation> {
+		private static final class Head {
+			final Observation obs;
+			final int index;
+			final Iterator<Observation> rest;
+
+			Head(Observation obs, int index, Iterator<Observation> rest) {
+				this.obs = obs;
+				this.index = index;
+				this.rest = rest;
+			}
+		}
+
+		private final PriorityQueue<Head> heads;
+
+		CellMerge(List<Stream<Observation>> streams) {
+			heads = new PriorityQueue<>(Math.max(1, streams.size()),
+					Comparator.comparing((Head h) -> h.obs.getCell()
+							.getDGGSIdent()).thenComparingInt(h -> h.index));
+			for (int i = 0; i < streams.size(); i++) {
+				Iterator<Observation> iter = streams.get(i).iterator();
+				if (iter.hasNext()) {
+					heads.add(new Head(iter.next(), i, iter));
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return !heads.isEmpty();
+		}
+
+		@Override
+		public Observation next() {
+			Head head = heads.poll();
+			if (head == null) {
+				throw new NoSuchElementException();
+			}
+			if (head.rest.hasNext()) {
+				heads.add(new Head(head.rest.next(), head.index, head.rest));
+			}
+			return head.obs;
+		}
+	}
+
+	/**
+	 * Observations from a cursor which has already been positioned (if
+	 * any), followed by those of each of the given files
+	 */
+	private static Stream<Observation> scanAll(Stream<Observation> first,
+			List<HDF5Dataset> files, Integer cellLevel, String cellID,
+			Double lonMin, Double lonMax, Double latMin, Double latMax,
+			Integer band, Class<?> expectedType, long timeMin, long timeMax) {
+		if (files.size() == 1 && first == null) {
+			return scan(files.get(0), cellLevel, cellID, lonMin, lonMax,
+					latMin, latMax, band, expectedType, timeMin, timeMax);
+		}
+		List<Supplier<Stream<Observation>>> parts = new ArrayList<>();
+		if (first != null) {
+			parts.add(() -> first);
+		}
+		for (HDF5Dataset dataset : files) {
+			parts.add(() -> scan(dataset, cellLevel, cellID, lonMin, lonMax,
+					latMin, latMax, band, expectedType, timeMin, timeMax));
+		}
+		return new LazyConcat<>(parts).stream();
+	}
+
+	private static Stream<Observation> scan(HDF5Dataset dataset,
+			Integer cellLevel, String cellID, Double lonMin, Double lonMax,
+			Double latMin, Double latMax, Integer band, Class<?> expectedType,
+			long timeMin, long timeMax) {
+		Stream<Cell> cells = dataset.cells(cellLevel, cellID, lonMin, lonMax,
+				latMin, latMax);
+		return new ObservationCursor(band, expectedType, timeMin, timeMax)
+				.reset(cells.iterator()).stream().onClose(cells::close);
+	}
+
+	/**
+	 * Keyed lookup of a single observation; see
+	 * {@link HDF5Dataset#observation(String, ZonedDateTime, String, int, boolean)}.
+	 * Only files with the right product and time span are asked.
+	 */
+	public Observation observation(String productName,
+			ZonedDateTime timestamp, String cellID, int band, boolean pixel) {
+		long time = timestamp.toEpochSecond();
+		Snapshot current = snapshot.get();
+		for (int i = 0; i < current.datasets.size(); i++) {
+			Summary summary = current.summaries.get(i);
+			if (!summary.productNames.contains(productName)
+					|| time < summary.timeMin || time > summary.timeMax) {
+				continue;
+			}
+			Observation obs = current.datasets.get(i).observation(productName,
+					timestamp, cellID, band, pixel);
+			if (obs != null) {
+				return obs;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Clean up every file in the collection. Stop anything which adds files
+	 * (e.g. a {@link DirectoryWatcher}) first.
+	 */
+	public void dispose() {
+		for (HDF5Dataset dataset : snapshot.get().datasets) {
+			dataset.dispose();
+		}
+		if (resources != null) {
+			resources.close();
+		}
+	}
+}
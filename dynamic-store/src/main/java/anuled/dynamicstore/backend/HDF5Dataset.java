@@ -1,38 +1,135 @@
 package anuled.dynamicstore.backend;
 
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashMap;
+import java.io.File;
+import java.time.ZonedDateTime;
 import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.Map;
-import java.util.Queue;
 import java.util.Set;
-import java.util.function.Predicate;
+import java.util.function.Function;
 import java.util.stream.Stream;
 
-import ch.systemsx.cisd.hdf5.HDF5Factory;
 import ch.systemsx.cisd.hdf5.IHDF5Reader;
 
 /* Class for accessing satellite observations stored using our custom HDF5 format. */
 
 public class HDF5Dataset {
+	private String filename;
+	private DatasetOptions options;
 	private IHDF5Reader fp;
-	private Map<Integer, Collection<Cell>> cellsByLevel;
-	private Map<String, Cell> cellsByID;
+	private CellCatalog catalog;
+	private CellIndex cellIndex;
 	private Set<Product> products;
+	private DatasetResources resources;
+	// whether resources are ours alone (rather than shared by a collection)
+	private boolean ownsResources;
+	// made the first time they're needed; racing threads just make them twice
+	private volatile ObservationStatistics statistics = null;
+	private volatile HDF5Collection asCollection = null;
 
+	/**
+	 * Main reader, used for metadata while the dataset is being opened. It's
+	 * handed back to the reader pool once the dataset is open, after which
+	 * this returns null; observation data is read through the I/O threads.
+	 */
 	protected IHDF5Reader getReader() {
 		return fp;
 	}
 
+	/**
+	 * Run some metadata reads with a reader on this file: the main reader
+	 * while the dataset is being opened, and a reader borrowed from the pool
+	 * after that.
+	 */
+	<T> T withReader(Function<IHDF5Reader, T> action) {
+		if (fp != null) {
+			return action.apply(fp);
+		}
+		IHDF5Reader reader = resources.readers.acquire(filename);
+		try {
+			return action.apply(reader);
+		} finally {
+			resources.readers.release(filename, reader);
+		}
+	}
+
 	/** Construct a new HDF5 dataset from a path to an HDF5 file */
 	public HDF5Dataset(String filename) {
-		fp = HDF5Factory.openForReading(filename);
-		populateProducts();
+		this(filename, new DatasetOptions());
+	}
+
+	/**
+	 * Construct a new HDF5 dataset from a path to an HDF5 file, with
+	 * non-default tuning options.
+	 */
+	public HDF5Dataset(String filename, DatasetOptions options) {
+		this(filename, options,
+				new DatasetResources(options, new File(filename).getName()),
+				true);
+	}
+
+	/**
+	 * Construct a dataset which shares its caches, readers and I/O threads
+	 * with other datasets (e.g. the other files in an
+	 * {@link HDF5Collection}). Cache keys pair the dataset with the
+	 * observation's {@link ObservationID}, so entries from different files
+	 * never collide, even if the files hold the same observations.
+	 */
+	HDF5Dataset(String filename, DatasetOptions options,
+			DatasetResources shared) {
+		this(filename, options, shared, false);
+	}
+
+	private HDF5Dataset(String filename, DatasetOptions options,
+			DatasetResources resources, boolean ownsResources) {
+		this.filename = filename;
+		this.options = options;
+		this.resources = resources;
+		this.ownsResources = ownsResources;
+		try {
+			fp = resources.readers.acquire(filename);
+			try {
+				populateProducts();
+				loadCatalog();
+			} finally {
+				resources.readers.release(filename, fp);
+				fp = null;
+			}
+		} catch (RuntimeException e) {
+			if (ownsResources) {
+				resources.close();
+			}
+			throw e;
+		}
+	}
+
+	private void loadCatalog() {
 		// Read all cells into core (but not their data); makes our job easier
-		// later
-		populateCells();
+		// later. Walking the HDF5 hierarchy is slow for big files, so we try
+		// the persisted catalog first.
+		boolean mapped = options.getUseCatalogFile() && options
+				.getCatalogStorage() == DatasetOptions.CatalogStorage.MAPPED;
+		CellCatalog cached = null;
+		if (mapped) {
+			cached = CatalogFile.mapped(filename, this);
+		} else if (options.getUseCatalogFile()) {
+			cached = CatalogFile.read(filename, this);
+		}
+		if (cached != null) {
+			indexCells(cached);
+			return;
+		}
+
+		HeapCellCatalog loaded = new CatalogLoader(this,
+				options.getLoaderParallelism()).load();
+		indexCells(loaded);
+		if (options.getUseCatalogFile()
+				&& CatalogFile.write(filename, loaded) && mapped) {
+			// swap to the freshly-written file so that the loaded copy can be
+			// collected; stick with the loaded copy if that fails
+			CellCatalog remapped = CatalogFile.mapped(filename, this);
+			if (remapped != null) {
+				indexCells(remapped);
+			}
+		}
 	}
 	
 	private void populateProducts() {
@@ -42,50 +139,19 @@ public class HDF5Dataset {
 		}
 	}
 
-	private void populateCells() {
-		cellsByLevel = new HashMap<Integer, Collection<Cell>>();
-		cellsByID = new HashMap<String, Cell>();
-		Queue<String> to_explore = new LinkedList<String>();
-		to_explore.add("/");
-		assert fp.isGroup(to_explore.peek());
-
-		// Populate list of HDF5Cells (albeit only ones with data in them!)
-		while (!to_explore.isEmpty()) {
-			String group = to_explore.remove();
-
-			// Append this node to the index iff it looks like real data
-			try {
-				Cell cell = new Cell(group, this);
-				Integer level = cell.getDGGSIdent().length();
-				if (cellsByLevel.containsKey(level)) {
-					cellsByLevel.get(level).add(cell);
-				} else {
-					Collection<Cell> newList = new ArrayList<Cell>();
-					newList.add(cell);
-					cellsByLevel.put(Integer.valueOf(level), newList);
-				}
-				cellsByID.put(cell.getDGGSIdent(), cell);
-			} catch (Cell.NotACell e) {
-				/* pass */
-			}
-
-			// Now add children to explore
-			for (String child : fp.getGroupMembers(group)) {
-				String childPath = group;
-				if (!childPath.endsWith("/")) {
-					childPath += "/";
-				}
-				childPath += child;
-				if (fp.isGroup(childPath)) {
-					to_explore.add(childPath);
-				}
-			}
-		}
+	private void indexCells(CellCatalog cells) {
+		ObservationID.checkCatalog(filename, cells);
+		catalog = cells;
+		cellIndex = new CellIndex(cells);
 	}
 
 	/** Call this function after using the class to clean up HDF5 references. */
 	public void dispose() {
-		fp.close();
+		if (ownsResources) {
+			resources.close();
+		} else {
+			resources.readers.closeFile(filename);
+		}
 	}
 
 	/**
@@ -100,36 +166,33 @@ public class HDF5Dataset {
 	 */
 	public Stream<Cell> cells(Integer cellLevel, String cellID, Double lonMin,
 			Double lonMax, Double latMin, Double latMax) {
-		// TODO: Use implicit rHEALPix tree to speed up this search. Doing it
-		// this way doesn't make sense when there are many qb:Observations.
-		Predicate<Cell> inRect = cell -> cell.inRect(lonMin, lonMax, latMin,
-				latMax);
+		return cells(cellLevel, cellID, lonMin, lonMax, latMin, latMax, 0);
+	}
 
+	/**
+	 * Like {@link #cells(Integer, String, Double, Double, Double, Double)},
+	 * but skipping cells before the given index in the catalog (i.e. before
+	 * the cell with that index, in DGGS ID order)
+	 */
+	Stream<Cell> cells(Integer cellLevel, String cellID, Double lonMin,
+			Double lonMax, Double latMin, Double latMax, int fromIndex) {
 		// If a cell ID was specified, use it
 		if (cellID != null) {
 			// Having the wrong cell level makes us return nothing
 			if (cellLevel == null || cellLevel.equals(cellID.length())) {
-				Cell theCell = cellsByID.get(cellID);
-				if (theCell != null) {
-					return Stream.of(theCell).filter(inRect);
+				Cell theCell = cellIndex.get(cellID);
+				if (theCell != null && theCell.getIndex() >= fromIndex
+						&& theCell.inRect(lonMin, lonMax, latMin, latMax)) {
+					return Stream.of(theCell);
 				}
 			}
 			return Stream.of();
 		}
 
-		// If a cell level was specified, but not a cell ID, return all cells at
-		// the given level
-		if (cellLevel != null) {
-			Collection<Cell> theCells = cellsByLevel.get(cellLevel);
-			if (theCells != null) {
-				return theCells.stream().filter(inRect);
-			}
-			return Stream.of();
-		}
-
-		// If no constraints were specified, return all cells
-		return cellsByLevel.values().stream().flatMap(l -> l.stream())
-				.filter(inRect);
+		// Otherwise, walk the rHEALPix tree, skipping subtrees which are at the
+		// wrong level or fall outside the bounding box
+		return cellIndex.query(cellLevel, lonMin, lonMax, latMin, latMax,
+				fromIndex);
 	}
 	
 	public Set<Product> getProducts() {
@@ -144,11 +207,162 @@ public class HDF5Dataset {
 	 *         be found.
 	 */
 	public Cell dggsCell(String dggsID) {
-		String path = dggsID.replaceAll("(.)", "/$1");
-		try {
-			return new Cell(path, this);
-		} catch (Cell.NotACell e) {
+		return cellIndex.get(dggsID);
+	}
+
+	/**
+	 * Look up a single observation by its key, as found in an observation URL.
+	 * This goes straight to the catalog (a binary search on cell ID, then on
+	 * the cell's times for the product) instead of enumerating the cell's
+	 * observations.
+	 *
+	 * @param pixel
+	 *            true for a <code>PixelObservation</code>, false for a
+	 *            <code>TileObservation</code>
+	 * @return the observation, or <code>null</code> if the dataset has no data
+	 *         for that product, time, cell and band.
+	 */
+	public Observation observation(String productName,
+			ZonedDateTime timestamp, String cellID, int band, boolean pixel) {
+		long id = observationID(productName, timestamp, cellID, band, pixel);
+		return id == ObservationID.NONE ? null : observation(id);
+	}
+
+	/**
+	 * Like {@link #observation(String, ZonedDateTime, String, int, boolean)},
+	 * but only works out the observation's {@link ObservationID}.
+	 *
+	 * @return the ID, or {@link ObservationID#NONE} if there is no such
+	 *         observation
+	 */
+	public long observationID(String productName, ZonedDateTime timestamp,
+			String cellID, int band, boolean pixel) {
+		CellCatalog cat = catalog;
+		int cell = cat.indexOf(cellID);
+		int product = cat.productIndex(productName);
+		if (cell < 0 || product < 0) {
+			return ObservationID.NONE;
+		}
+		if (band < 0 || band >= cat.getProduct(product).getNumBands()) {
+			return ObservationID.NONE;
+		}
+		int k = cat.timeIndexOf(cell, product, timestamp.toEpochSecond());
+		if (k < 0) {
+			return ObservationID.NONE;
+		}
+		return ObservationID.pack(cell, cat.epochIndex(cell, product, k),
+				product, band, !pixel);
+	}
+
+	/**
+	 * Turn an {@link ObservationID} from this dataset back into an
+	 * observation.
+	 *
+	 * @return the observation, or <code>null</code> if the ID doesn't name an
+	 *         observation in this dataset
+	 */
+	public Observation observation(long id) {
+		CellCatalog cat = catalog;
+		if (id < 0) {
+			return null;
+		}
+		int cell = ObservationID.cellIndex(id);
+		int product = ObservationID.productIndex(id);
+		int epoch = ObservationID.epochIndex(id);
+		if (cell >= cat.size() || product >= cat.numProducts()
+				|| epoch >= cat.numEpochs()) {
 			return null;
 		}
+		Product prod = cat.getProduct(product);
+		if (ObservationID.band(id) >= prod.getNumBands() || cat
+				.timeIndexOf(cell, product, cat.epoch(epoch)) < 0) {
+			return null;
+		}
+		Cell theCell = new Cell(cat, cell);
+		if (ObservationID.isTile(id)) {
+			return new TileObservation(theCell, prod, id);
+		}
+		return new PixelObservation(theCell, prod, id);
+	}
+
+	/**
+	 * Read a float64 dataset from this file. All reads of observation data go
+	 * through here (i.e. through the I/O threads), since it's safe to share
+	 * between query threads. The array must not be modified.
+	 */
+	double[] readDoubleArray(String path) {
+		return resources.io.readDoubleArray(filename, path);
+	}
+
+	/** Read a uint8 dataset from this file; see above */
+	byte[] readByteArray(String path) {
+		return resources.io.readByteArray(filename, path);
+	}
+
+	/**
+	 * Pool of open readers used by this dataset, which is shared with the
+	 * rest of its collection (if any). Mostly useful for its metrics.
+	 */
+	public ReaderPool getReaderPool() {
+		return resources.readers;
+	}
+
+	/**
+	 * Observation counts for the file, for estimating the cost of a query
+	 * before running it. Counting takes a pass over the whole catalog, so it's
+	 * done the first time somebody asks, and only once.
+	 */
+	public ObservationStatistics getStatistics() {
+		ObservationStatistics rv = statistics;
+		if (rv == null) {
+			rv = new ObservationStatistics(catalog);
+			statistics = rv;
+		}
+		return rv;
+	}
+
+	/** Have the statistics been counted yet? */
+	boolean hasStatistics() {
+		return statistics != null;
+	}
+
+	/**
+	 * This file as a collection of one, for code written against collections.
+	 * It's made the first time it's needed and shared after that, so that
+	 * single-file lookups don't summarise the file over and over. Disposing
+	 * of the collection disposes of this dataset.
+	 */
+	public HDF5Collection asCollection() {
+		HDF5Collection rv = asCollection;
+		if (rv == null) {
+			rv = new HDF5Collection(this);
+			asCollection = rv;
+		}
+		return rv;
+	}
+
+	/** Metadata for every cell in the dataset */
+	CellCatalog getCatalog() {
+		return catalog;
+	}
+
+	/** Cache of pixel arrays shared by every query on this dataset */
+	public PixelCache getPixelCache() {
+		return resources.pixelCache;
+	}
+
+	/** Off-heap cache of PNG tiles shared by every query on this dataset */
+	public TileCache getTileCache() {
+		return resources.tileCache;
+	}
+
+	/** Options this dataset was opened with */
+	public DatasetOptions getOptions() {
+		return options;
+	}
+
+	/** Path to the underlying HDF5 file */
+	public String getFilename() {
+		return filename;
 	}
 }
@@ -0,0 +1,262 @@
+package anuled.dynamicstore.backend;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+
+/**
+ * Owns all reads of observation data from one or more HDF5 files. Query
+ * threads never touch an <code>IHDF5Reader</code> themselves; instead they
+ * submit read requests to a small set of dedicated I/O threads, which borrow
+ * readers from a {@link ReaderPool}. One set of threads can serve every file
+ * in an {@link HDF5Collection}, so the number of threads doesn't grow with
+ * the number of files.
+ *
+ * Each I/O thread takes every request waiting in the queue as one batch,
+ * sorts it by file and dataset path and serves it in that order, borrowing
+ * one reader per file in the batch. Requests for the same
+ * dataset (e.g. several query threads asking for different bands of one pixel)
+ * are answered with a single read. Under load, batches get bigger, so the
+ * cost of each HDF5 call is shared by more clients rather than every client
+ * queueing for its own call.
+ */
+class HDF5IO {
+	private static final int MAX_BATCH = 512;
+
+	private final ReaderPool readers;
+	private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+	private final List<Thread> workers = new ArrayList<>();
+	private final AtomicInteger liveWorkers = new AtomicInteger();
+	private volatile boolean closed = false;
+
+	/** Kind of HDF5 dataset being read */
+	private static enum Kind {
+		DOUBLES, BYTES
+	}
+
+	private static final class Request {
+		final String filename;
+		final String path;
+		final Kind kind;
+		final CompletableFuture<Object> result = new CompletableFuture<>();
+		// outcome of the read, held until the reader has been handed back
+		Object data;
+		RuntimeException error;
+
+		Request(String filename, String path, Kind kind) {
+			this.filename = filename;
+			this.path = path;
+			this.kind = kind;
+		}
+
+		boolean sameFile(Request other) {
+			return filename.equals(other.filename);
+		}
+
+		boolean sameRead(Request other) {
+			return kind == other.kind && path.equals(other.path)
+					&& sameFile(other);
+		}
+	}
+
+	// Tells a worker to finish up
+	private static final Request STOP = new Request("", "", Kind.BYTES);
+
+	private static final Comparator<Request> BATCH_ORDER = Comparator
+			.comparing((Request r) -> r.filename).thenComparing(r -> r.path)
+			.thenComparing(r -> r.kind);
+
+	/**
+	 * Start I/O threads.
+	 *
+	 * @param readers
+	 *            where the threads get their readers from
+	 * @param numThreads
+	 *            number of I/O threads to use
+	 * @param name
+	 *            used to name the threads
+	 */
+	HDF5IO(ReaderPool readers, int numThreads, String name) {
+		this.readers = readers;
+		name = "hdf5-io-" + name;
+		liveWorkers.set(numThreads);
+		for (int i = 0; i < numThreads; i++) {
+			Thread worker = new Thread(this::run, name + "-" + i);
+			worker.setDaemon(true);
+			workers.add(worker);
+			worker.start();
+		}
+	}
+
+	private void run() {
+		List<Request> batch = new ArrayList<>();
+		try {
+			boolean stopping = false;
+			while (!stopping) {
+				batch.clear();
+				batch.add(queue.take());
+				queue.drainTo(batch, MAX_BATCH - 1);
+				// one stop request is ours; leave the rest for other workers
+				int stops = 0;
+				while (batch.remove(STOP)) {
+					stops++;
+				}
+				for (int i = 1; i < stops; i++) {
+					queue.add(STOP);
+				}
+				stopping = stops > 0;
+				serve(batch);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			failAll(batch);
+			if (liveWorkers.decrementAndGet() == 0) {
+				failQueued();
+			}
+		}
+	}
+
+	private static void failAll(List<Request> requests) {
+		for (Request request : requests) {
+			request.result.completeExceptionally(
+					new IllegalStateException("HDF5 reader was closed"));
+		}
+		requests.clear();
+	}
+
+	/** Fail anything left in the queue after the last worker has stopped */
+	private void failQueued() {
+		List<Request> leftover = new ArrayList<>();
+		queue.drainTo(leftover);
+		failAll(leftover);
+	}
+
+	private void serve(List<Request> batch) {
+		batch.sort(BATCH_ORDER);
+		int start = 0;
+		while (start < batch.size()) {
+			Request first = batch.get(start);
+			int end = start + 1;
+			while (end < batch.size() && first.sameFile(batch.get(end))) {
+				end++;
+			}
+			IHDF5Reader reader;
+			try {
+				reader = readers.acquire(first.filename);
+			} catch (RuntimeException e) {
+				// can't open the file (or the pool is closed)
+				for (int i = start; i < end; i++) {
+					batch.get(i).result.completeExceptionally(e);
+				}
+				start = end;
+				continue;
+			}
+			List<Request> group = batch.subList(start, end);
+			try {
+				serveFile(reader, group);
+			} finally {
+				readers.release(first.filename, reader);
+			}
+			// only answer once the reader is back in the pool, so that
+			// clients never see a reader still checked out on their behalf
+			for (Request request : group) {
+				if (request.error != null) {
+					request.result.completeExceptionally(request.error);
+				} else {
+					request.result.complete(request.data);
+				}
+			}
+			start = end;
+		}
+		batch.clear();
+	}
+
+	/** Serve (sorted) requests which are all for one file */
+	private static void serveFile(IHDF5Reader reader, List<Request> batch) {
+		int start = 0;
+		while (start < batch.size()) {
+			Request first = batch.get(start);
+			int end = start + 1;
+			while (end < batch.size() && first.sameRead(batch.get(end))) {
+				end++;
+			}
+			try {
+				Object data = first.kind == Kind.DOUBLES
+						? reader.readDoubleArray(first.path)
+						: reader.uint8().readArray(first.path);
+				for (int i = start; i < end; i++) {
+					batch.get(i).data = data;
+				}
+			} catch (RuntimeException e) {
+				for (int i = start; i < end; i++) {
+					batch.get(i).error = e;
+				}
+			}
+			start = end;
+		}
+	}
+
+	private Object read(String filename, String path, Kind kind) {
+		if (closed) {
+			throw new IllegalStateException("HDF5 reader was closed");
+		}
+		Request request = new Request(filename, path, kind);
+		queue.add(request);
+		if (liveWorkers.get() == 0) {
+			// raced with close(), so nobody will serve us
+			failQueued();
+		}
+		try {
+			return request.result.join();
+		} catch (CompletionException e) {
+			// the error was thrown on an I/O thread (and may be shared with
+			// other readers of the same dataset), so wrap it to say what was
+			// being read and to keep this thread's stack
+			String what = "Couldn't read " + path + " from " + filename;
+			if (e.getCause() instanceof IllegalStateException) {
+				throw new IllegalStateException(what, e.getCause());
+			}
+			throw new RuntimeException(what, e.getCause());
+		}
+	}
+
+	/**
+	 * Read a float64 dataset from a file. The returned array may be shared
+	 * with other callers who read the same dataset at the same time, so it
+	 * must not be modified.
+	 */
+	double[] readDoubleArray(String filename, String path) {
+		return (double[]) read(filename, path, Kind.DOUBLES);
+	}
+
+	/**
+	 * Read a uint8 dataset from a file. As with
+	 * {@link #readDoubleArray(String, String)}, the array must not be
+	 * modified.
+	 */
+	byte[] readByteArray(String filename, String path) {
+		return (byte[]) read(filename, path, Kind.BYTES);
+	}
+
+	/**
+	 * Stop the I/O threads. Requests which are still queued when the last
+	 * thread stops fail with an <code>IllegalStateException</code>.
+	 */
+	void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		for (int i = 0; i < workers.size(); i++) {
+			queue.add(STOP);
+		}
+	}
+}
@@ -0,0 +1,220 @@
+package anuled.dynamicstore.backend;
+
+import java.util.Arrays;
+
+/**
+ * {@link CellCatalog} which keeps each column in a Java array. This is what
+ * the catalog loader produces, and what a dataset uses unless it has been
+ * asked to keep its catalog off-heap.
+ */
+final class HeapCellCatalog extends CellCatalog {
+	final int size;
+	// Interned DGGS IDs, sorted
+	final String[] ids;
+	// Per-cell geometry
+	final double[] centreLon, centreLat, latMin, latMax, longMin, longMax;
+	// Cell i has bounds points boundsOffsets[i] until boundsOffsets[i + 1],
+	// stored as (lon, lat) pairs in the bounds array
+	final int[] boundsOffsets;
+	final double[] bounds;
+	// Distinct timestamps (in epoch seconds), sorted
+	final long[] epochs;
+	// Times for cell i and product p are timeIndices[timeOffsets[i * P + p]]
+	// until timeIndices[timeOffsets[i * P + p + 1]], where P is the number of
+	// products. Each entry is an index into epochs.
+	final int[] timeOffsets;
+	final int[] timeIndices;
+	// Subtree rooted at cell i is cells i until subtreeEnd[i]; the remaining
+	// arrays hold the extent and deepest level of each subtree
+	final int[] subtreeEnd;
+	final double[] subLatMin, subLatMax, subLongMin, subLongMax;
+	final int[] subMaxLevel;
+
+	HeapCellCatalog(HDF5Dataset owner, String[] ids, double[] centreLon,
+			double[] centreLat, double[] latMin, double[] latMax,
+			double[] longMin, double[] longMax, int[] boundsOffsets,
+			double[] bounds, Product[] products, long[] epochs,
+			int[] timeOffsets, int[] timeIndices) {
+		super(owner, products);
+		this.size = ids.length;
+		this.ids = ids;
+		this.centreLon = centreLon;
+		this.centreLat = centreLat;
+		this.latMin = latMin;
+		this.latMax = latMax;
+		this.longMin = longMin;
+		this.longMax = longMax;
+		this.boundsOffsets = boundsOffsets;
+		this.bounds = bounds;
+		this.epochs = epochs;
+		this.timeOffsets = timeOffsets;
+		this.timeIndices = timeIndices;
+
+		subtreeEnd = new int[size];
+		subLatMin = latMin.clone();
+		subLatMax = latMax.clone();
+		subLongMin = longMin.clone();
+		subLongMax = longMax.clone();
+		subMaxLevel = new int[size];
+		computeSubtrees();
+	}
+
+	/**
+	 * Fill in the subtree arrays with one pass over the cells, keeping a stack
+	 * of the ancestors of the current cell (innermost on top). When a subtree
+	 * ends, its extent is folded into its parent's.
+	 */
+	private void computeSubtrees() {
+		int[] stack = new int[size];
+		int depth = 0;
+		for (int i = 0; i < size; i++) {
+			while (depth > 0 && !ids[i].startsWith(ids[stack[depth - 1]])) {
+				closeSubtree(stack, depth--, i);
+			}
+			subMaxLevel[i] = getLevel(i);
+			stack[depth++] = i;
+		}
+		while (depth > 0) {
+			closeSubtree(stack, depth--, size);
+		}
+	}
+
+	private void closeSubtree(int[] stack, int depth, int end) {
+		int node = stack[depth - 1];
+		subtreeEnd[node] = end;
+		if (depth > 1) {
+			int parent = stack[depth - 2];
+			subLatMin[parent] = Math.min(subLatMin[parent], subLatMin[node]);
+			subLatMax[parent] = Math.max(subLatMax[parent], subLatMax[node]);
+			subLongMin[parent] = Math.min(subLongMin[parent],
+					subLongMin[node]);
+			subLongMax[parent] = Math.max(subLongMax[parent],
+					subLongMax[node]);
+			subMaxLevel[parent] = Math.max(subMaxLevel[parent],
+					subMaxLevel[node]);
+		}
+	}
+
+	@Override
+	int size() {
+		return size;
+	}
+
+	@Override
+	String getID(int cell) {
+		return ids[cell];
+	}
+
+	@Override
+	int getLevel(int cell) {
+		return ids[cell].length();
+	}
+
+	@Override
+	int indexOf(String dggsID) {
+		int idx = Arrays.binarySearch(ids, dggsID);
+		return idx >= 0 ? idx : -1;
+	}
+
+	@Override
+	double getCentreLon(int cell) {
+		return centreLon[cell];
+	}
+
+	@Override
+	double getCentreLat(int cell) {
+		return centreLat[cell];
+	}
+
+	@Override
+	double getLatMin(int cell) {
+		return latMin[cell];
+	}
+
+	@Override
+	double getLatMax(int cell) {
+		return latMax[cell];
+	}
+
+	@Override
+	double getLongMin(int cell) {
+		return longMin[cell];
+	}
+
+	@Override
+	double getLongMax(int cell) {
+		return longMax[cell];
+	}
+
+	@Override
+	int numBoundsPoints(int cell) {
+		return boundsOffsets[cell + 1] - boundsOffsets[cell];
+	}
+
+	@Override
+	double boundsLon(int cell, int point) {
+		return bounds[2 * (boundsOffsets[cell] + point)];
+	}
+
+	@Override
+	double boundsLat(int cell, int point) {
+		return bounds[2 * (boundsOffsets[cell] + point) + 1];
+	}
+
+	@Override
+	int numEpochs() {
+		return epochs.length;
+	}
+
+	@Override
+	long epoch(int i) {
+		return epochs[i];
+	}
+
+	@Override
+	int numTimes(int cell, int product) {
+		int slot = cell * products.length + product;
+		return timeOffsets[slot + 1] - timeOffsets[slot];
+	}
+
+	@Override
+	long epochSecond(int cell, int product, int k) {
+		return epochs[timeIndices[timeOffsets[cell * products.length + product]
+				+ k]];
+	}
+
+	@Override
+	int epochIndex(int cell, int product, int k) {
+		return timeIndices[timeOffsets[cell * products.length + product] + k];
+	}
+
+	@Override
+	int subtreeEnd(int cell) {
+		return subtreeEnd[cell];
+	}
+
+	@Override
+	double subtreeLatMin(int cell) {
+		return subLatMin[cell];
+	}
+
+	@Override
+	double subtreeLatMax(int cell) {
+		return subLatMax[cell];
+	}
+
+	@Override
+	double subtreeLongMin(int cell) {
+		return subLongMin[cell];
+	}
+
+	@Override
+	double subtreeLongMax(int cell) {
+		return subLongMax[cell];
+	}
+
+	@Override
+	int subtreeMaxLevel(int cell) {
+		return subMaxLevel[cell];
+	}
+}
@@ -0,0 +1,211 @@
+package anuled.dynamicstore.backend;
+
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * {@link CellCatalog} which reads its columns directly out of a memory-mapped
+ * catalog file (see {@link CatalogFile}). None of the catalog lives on the
+ * Java heap, so GC pauses don't grow with the size of the dataset, and
+ * several processes serving the same file share one copy of the catalog in
+ * the OS page cache.
+ *
+ * All reads use absolute indexing into the mapped buffers, so the catalog can
+ * be shared between threads without locking.
+ */
+final class MappedCellCatalog extends CellCatalog {
+	private final int size;
+	private final DoubleBuffer centreLon, centreLat, latMin, latMax, longMin,
+			longMax, bounds;
+	private final DoubleBuffer subLatMin, subLatMax, subLongMin, subLongMax;
+	private final LongBuffer epochs;
+	private final IntBuffer boundsOffsets, timeOffsets, timeIndices,
+			idOffsets, subtreeEnd, subMaxLevel;
+	// UTF-8 bytes of all the (sorted) DGGS IDs, back to back
+	private final ByteBuffer idBytes;
+
+	MappedCellCatalog(HDF5Dataset owner, CatalogFile.Layout layout) {
+		super(owner, layout.products);
+		this.size = layout.numCells;
+		centreLon = layout.centreLon.asDoubleBuffer();
+		centreLat = layout.centreLat.asDoubleBuffer();
+		latMin = layout.latMin.asDoubleBuffer();
+		latMax = layout.latMax.asDoubleBuffer();
+		longMin = layout.longMin.asDoubleBuffer();
+		longMax = layout.longMax.asDoubleBuffer();
+		bounds = layout.bounds.asDoubleBuffer();
+		subLatMin = layout.subLatMin.asDoubleBuffer();
+		subLatMax = layout.subLatMax.asDoubleBuffer();
+		subLongMin = layout.subLongMin.asDoubleBuffer();
+		subLongMax = layout.subLongMax.asDoubleBuffer();
+		epochs = layout.epochs.asLongBuffer();
+		boundsOffsets = layout.boundsOffsets.asIntBuffer();
+		timeOffsets = layout.timeOffsets.asIntBuffer();
+		timeIndices = layout.timeIndices.asIntBuffer();
+		idOffsets = layout.idOffsets.asIntBuffer();
+		subtreeEnd = layout.subtreeEnd.asIntBuffer();
+		subMaxLevel = layout.subMaxLevel.asIntBuffer();
+		idBytes = layout.idBytes;
+	}
+
+	@Override
+	int size() {
+		return size;
+	}
+
+	@Override
+	String getID(int cell) {
+		int start = idOffsets.get(cell);
+		byte[] bytes = new byte[idOffsets.get(cell + 1) - start];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = idBytes.get(start + i);
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	@Override
+	int getLevel(int cell) {
+		// DGGS IDs are ASCII, so bytes and characters line up
+		return idOffsets.get(cell + 1) - idOffsets.get(cell);
+	}
+
+	/**
+	 * Compare the ID of a cell to a string without decoding the ID. This
+	 * agrees with <code>String.compareTo</code> as long as both are ASCII.
+	 */
+	private int compareID(int cell, String dggsID) {
+		int start = idOffsets.get(cell);
+		int length = idOffsets.get(cell + 1) - start;
+		int common = Math.min(length, dggsID.length());
+		for (int i = 0; i < common; i++) {
+			int diff = (idBytes.get(start + i) & 0xff) - dggsID.charAt(i);
+			if (diff != 0) {
+				return diff;
+			}
+		}
+		return length - dggsID.length();
+	}
+
+	@Override
+	int indexOf(String dggsID) {
+		int lo = 0, hi = size - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int cmp = compareID(mid, dggsID);
+			if (cmp < 0) {
+				lo = mid + 1;
+			} else if (cmp > 0) {
+				hi = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	double getCentreLon(int cell) {
+		return centreLon.get(cell);
+	}
+
+	@Override
+	double getCentreLat(int cell) {
+		return centreLat.get(cell);
+	}
+
+	@Override
+	double getLatMin(int cell) {
+		return latMin.get(cell);
+	}
+
+	@Override
+	double getLatMax(int cell) {
+		return latMax.get(cell);
+	}
+
+	@Override
+	double getLongMin(int cell) {
+		return longMin.get(cell);
+	}
+
+	@Override
+	double getLongMax(int cell) {
+		return longMax.get(cell);
+	}
+
+	@Override
+	int numBoundsPoints(int cell) {
+		return boundsOffsets.get(cell + 1) - boundsOffsets.get(cell);
+	}
+
+	@Override
+	double boundsLon(int cell, int point) {
+		return bounds.get(2 * (boundsOffsets.get(cell) + point));
+	}
+
+	@Override
+	double boundsLat(int cell, int point) {
+		return bounds.get(2 * (boundsOffsets.get(cell) + point) + 1);
+	}
+
+	@Override
+	int numEpochs() {
+		return epochs.limit();
+	}
+
+	@Override
+	long epoch(int i) {
+		return epochs.get(i);
+	}
+
+	@Override
+	int numTimes(int cell, int product) {
+		int slot = cell * products.length + product;
+		return timeOffsets.get(slot + 1) - timeOffsets.get(slot);
+	}
+
+	@Override
+	long epochSecond(int cell, int product, int k) {
+		int slot = cell * products.length + product;
+		return epochs.get(timeIndices.get(timeOffsets.get(slot) + k));
+	}
+
+	@Override
+	int epochIndex(int cell, int product, int k) {
+		int slot = cell * products.length + product;
+		return timeIndices.get(timeOffsets.get(slot) + k);
+	}
+
+	@Override
+	int subtreeEnd(int cell) {
+		return subtreeEnd.get(cell);
+	}
+
+	@Override
+	double subtreeLatMin(int cell) {
+		return subLatMin.get(cell);
+	}
+
+	@Override
+	double subtreeLatMax(int cell) {
+		return subLatMax.get(cell);
+	}
+
+	@Override
+	double subtreeLongMin(int cell) {
+		return subLongMin.get(cell);
+	}
+
+	@Override
+	double subtreeLongMax(int cell) {
+		return subLongMax.get(cell);
+	}
+
+	@Override
+	int subtreeMaxLevel(int cell) {
+		return subMaxLevel.get(cell);
+	}
+}
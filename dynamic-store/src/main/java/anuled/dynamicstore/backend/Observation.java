@@ -6,15 +6,32 @@ import java.time.ZonedDateTime;
  * Class representing a single "observation". An observation is tied to a single
  * DGGS cell <em>and</em> a single band. It can be either a tile or a
  * pixel—there are subclasses for each.
+ *
+ * Observations are flyweights: besides references to the cell and product,
+ * each one is just an {@link ObservationID}, and the timestamp is only
+ * decoded from the catalog if somebody asks for it. Two observations are
+ * equal when they come from the same dataset and have the same ID (so cell,
+ * product, time, band and type all have to match), which makes them safe to
+ * use as keys.
  */
 public abstract class Observation {
-	int band;
-	Cell cell;
-	Product product;
-	ZonedDateTime timestamp;
+	final int band;
+	final Cell cell;
+	final Product product;
+	final long id;
+	// decoded lazily; racing threads just decode it twice
+	private ZonedDateTime timestamp;
 
+	/**
+	 * Make an observation for a given product, time and band of a cell.
+	 *
+	 * @throws InvalidBandException
+	 *             if the product has no such band
+	 * @throws IllegalArgumentException
+	 *             if the cell has no data for that product and time
+	 */
 	protected Observation(Cell cell, Product product, ZonedDateTime timestamp,
-			int band) {
+			int band, boolean tile) {
 		if (band < 0 || band >= product.getNumBands()) {
 			throw new InvalidBandException("Band " + band + " out of range [0, "
 					+ product.getNumBands() + ")");
@@ -23,6 +40,28 @@ public abstract class Observation {
 		this.band = band;
 		this.product = product;
 		this.timestamp = timestamp;
+		CellCatalog catalog = cell.getCatalog();
+		int p = catalog.productIndex(product);
+		int k = p < 0 ? -1
+				: catalog.timeIndexOf(cell.getIndex(), p,
+						timestamp.toEpochSecond());
+		if (k < 0) {
+			throw new IllegalArgumentException("No " + product.getName()
+					+ " data for " + cell + " at " + timestamp);
+		}
+		this.id = ObservationID.pack(cell.getIndex(),
+				catalog.epochIndex(cell.getIndex(), p, k), p, band, tile);
+	}
+
+	/**
+	 * Flyweight constructor for an ID which is already known to be valid (e.g.
+	 * one produced by an {@link ObservationCursor})
+	 */
+	Observation(Cell cell, Product product, long id) {
+		this.cell = cell;
+		this.product = product;
+		this.id = id;
+		this.band = ObservationID.band(id);
 	}
 
 	/** DGGS cell associated with this observation */
@@ -55,7 +94,21 @@ public abstract class Observation {
 	 * Get the time at which this observation was produced.
 	 */
 	public ZonedDateTime getTimestamp() {
-		return timestamp;
+		ZonedDateTime rv = timestamp;
+		if (rv == null) {
+			rv = CellCatalog.toTimestamp(cell.getCatalog()
+					.epoch(ObservationID.epochIndex(id)));
+			timestamp = rv;
+		}
+		return rv;
+	}
+
+	/**
+	 * Compact identifier for this observation within its dataset; see
+	 * {@link ObservationID}
+	 */
+	public long getID() {
+		return id;
 	}
 
 	/**
@@ -76,13 +129,13 @@ public abstract class Observation {
 			return false;
 		}
 		Observation obsOther = (Observation) other;
-		return getCell().equals(obsOther.getCell())
-				&& getBand() == obsOther.getBand();
+		return id == obsOther.id
+				&& getCell().getDataset() == obsOther.getCell().getDataset();
 	}
 
 	@Override
 	public int hashCode() {
-		return getBand() ^ getCell().hashCode();
+		return Long.hashCode(id) * 31 + getCell().getDataset().hashCode();
 	}
 
 	@Override
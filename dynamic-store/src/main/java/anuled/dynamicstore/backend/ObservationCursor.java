@@ -0,0 +1,397 @@
+package anuled.dynamicstore.backend;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Enumerates the observations of one or more cells: the cross product
+ *
+ * (products) x (times in range) x (bands of product) x (pixel or tile)
+ *
+ * for each cell in turn, in that order. Cells come in catalog order (by DGGS
+ * ID) and products are sorted by name, so the order is stable: the same
+ * query over the same file always visits observations in the same sequence,
+ * which is what makes {@link #skip(long)} (and so paging with
+ * <code>OFFSET</code>) and {@link #seekAfter(long)} (resuming from a
+ * continuation token) meaningful.
+ *
+ * The position in the cross product is kept in plain int counters, so
+ * stepping from one observation to the next doesn't box anything or go
+ * through a lambda. {@link #nextID()} yields packed {@link ObservationID}s
+ * and allocates nothing at all; {@link #next()} wraps each ID in a flyweight
+ * {@link Observation}. Since the size of each cell's and product's share of
+ * the cross product is known from the catalog, {@link #count()} and
+ * {@link #skip(long)} work per cell and per product rather than per
+ * observation.
+ *
+ * A cursor is used either directly, with <code>next</code> or
+ * <code>nextID</code>, or as the
+ * {@link Spliterator} behind a stream (see {@link #stream()}). It isn't
+ * thread-safe, and it can't be split, so a parallel scan should use one
+ * cursor per file (as {@link HDF5Collection} does).
+ */
+public final class ObservationCursor implements Spliterator<Observation> {
+	// range of "kinds" to visit: 0 is pixels, 1 is tiles
+	private static final int PIXEL = 0, TILE = 1;
+
+	private final int kindStart, kindEnd;
+	// band to visit, or -1 for all of them
+	private final int onlyBand;
+	private final long timeMin, timeMax;
+
+	private Iterator<Cell> cells = Collections.emptyIterator();
+	private Cell cell;
+	private CellCatalog catalog;
+	private int cellIndex, numProducts;
+	private Product product;
+	// current position; each counter is advanced once its inner ones are
+	// exhausted. inProduct is false until the cursor is within a product
+	// which has something to visit.
+	private int productIndex, time, timeStart, timeEnd, band, bandStart,
+			bandEnd, kind;
+	private boolean inProduct;
+	// set when the cursor is already at the next observation (after a skip)
+	private boolean pending;
+
+	/**
+	 * @param band
+	 *            sensor band for all observations, or null if all bands are
+	 *            desired
+	 * @param expectedType
+	 *            {@link TileObservation}, {@link PixelObservation} or null,
+	 *            depending on which type of observation (if any particular
+	 *            type) is desired
+	 * @param timeMin
+	 *            earliest time to include, in epoch seconds
+	 * @param timeMax
+	 *            latest time to include, in epoch seconds
+	 */
+	public ObservationCursor(Integer band, Class<?> expectedType,
+			long timeMin, long timeMax) {
+		if (expectedType == null) {
+			kindStart = PIXEL;
+			kindEnd = TILE + 1;
+		} else if (expectedType.equals(PixelObservation.class)) {
+			kindStart = PIXEL;
+			kindEnd = PIXEL + 1;
+		} else if (expectedType.equals(TileObservation.class)) {
+			kindStart = TILE;
+			kindEnd = TILE + 1;
+		} else {
+			throw new RuntimeException("Expected type must be "
+					+ "PixelObservation or TileObservation");
+		}
+		if (band == null) {
+			onlyBand = -1;
+		} else {
+			// bands are never negative, so this matches nothing
+			onlyBand = band < 0 ? Integer.MAX_VALUE : band;
+		}
+		this.timeMin = timeMin;
+		this.timeMax = timeMax;
+	}
+
+	/** Start again, enumerating the observations of one cell */
+	public ObservationCursor reset(Cell cell) {
+		return reset(Collections.singletonList(cell).iterator());
+	}
+
+	/** Start again, enumerating the observations of each cell in turn */
+	public ObservationCursor reset(Iterator<Cell> cells) {
+		this.cells = cells;
+		cell = null;
+		catalog = null;
+		numProducts = productIndex = 0;
+		inProduct = pending = false;
+		return this;
+	}
+
+	/** Move on to the next cell, or return false if there isn't one */
+	private boolean nextCell() {
+		inProduct = false;
+		if (!cells.hasNext()) {
+			cell = null;
+			return false;
+		}
+		cell = cells.next();
+		catalog = cell.getCatalog();
+		cellIndex = cell.getIndex();
+		numProducts = catalog.numProducts();
+		productIndex = -1;
+		return true;
+	}
+
+	/**
+	 * Set up the time and band ranges for the current product, and move to
+	 * its first observation.
+	 *
+	 * @return the number of observations for the product (possibly zero)
+	 */
+	private long enterProduct() {
+		product = catalog.getProduct(productIndex);
+		int numBands = product.getNumBands();
+		timeStart = catalog.timeLowerBound(cellIndex, productIndex, timeMin);
+		timeEnd = catalog.timeUpperBound(cellIndex, productIndex, timeMax);
+		if (onlyBand < 0) {
+			bandStart = 0;
+			bandEnd = numBands;
+		} else {
+			bandStart = onlyBand;
+			bandEnd = onlyBand < numBands ? onlyBand + 1 : onlyBand;
+		}
+		time = timeStart;
+		band = bandStart;
+		kind = kindStart;
+		long size = (long) Math.max(0, timeEnd - timeStart)
+				* (bandEnd - bandStart) * (kindEnd - kindStart);
+		inProduct = size > 0;
+		return size;
+	}
+
+	/** Number of observations left for the current cell, from the start */
+	private long cellSize() {
+		long rv = 0;
+		for (productIndex = 0; productIndex < numProducts; productIndex++) {
+			rv += enterProduct();
+		}
+		return rv;
+	}
+
+	/** Move to the next position, or return false if there isn't one */
+	private boolean advance() {
+		if (pending) {
+			pending = false;
+			return true;
+		}
+		if (inProduct) {
+			if (++kind < kindEnd) {
+				return true;
+			}
+			kind = kindStart;
+			if (++band < bandEnd) {
+				return true;
+			}
+			band = bandStart;
+			if (++time < timeEnd) {
+				return true;
+			}
+		}
+		while (true) {
+			if (cell != null && ++productIndex < numProducts) {
+				if (enterProduct() > 0) {
+					return true;
+				}
+			} else if (!nextCell()) {
+				return false;
+			}
+		}
+	}
+
+	/** ID of the observation at the current position */
+	private long currentID() {
+		return ObservationID.pack(cellIndex,
+				catalog.epochIndex(cellIndex, productIndex, time),
+				productIndex, band, kind == TILE);
+	}
+
+	/**
+	 * Advance to the next observation and return its ID (relative to the
+	 * dataset of the cell it belongs to), or return
+	 * {@link ObservationID#NONE} once every observation has been visited
+	 */
+	public long nextID() {
+		return advance() ? currentID() : ObservationID.NONE;
+	}
+
+	/**
+	 * Count the observations left to visit, without visiting them: for each
+	 * cell, the count is worked out per product from the number of bands and
+	 * the size of the run of matching times, so nothing is allocated and no
+	 * data is read. Only valid on a cursor which has just been reset; the
+	 * cursor is exhausted afterwards.
+	 */
+	public long count() {
+		long rv = 0;
+		while (nextCell()) {
+			rv += cellSize();
+		}
+		return rv;
+	}
+
+	/**
+	 * Skip over the next <code>n</code> observations without visiting them,
+	 * so that the next observation returned is the one which would otherwise
+	 * have come <code>n</code>th (counting from zero). Whole cells and
+	 * products are skipped using their sizes, then the position within a
+	 * product is worked out directly, so the cost depends on the number of
+	 * cells skipped rather than the number of observations. Only valid on a
+	 * cursor which has just been reset.
+	 *
+	 * @return the number of observations skipped, which is less than
+	 *         <code>n</code> only if the cursor ran out
+	 */
+	public long skip(long n) {
+		long skipped = 0;
+		while (skipped < n) {
+			if (!nextCell()) {
+				return skipped;
+			}
+			long size = cellSize();
+			if (skipped + size <= n) {
+				skipped += size;
+				inProduct = false;
+				continue;
+			}
+			long rest = n - skipped;
+			for (productIndex = 0;; productIndex++) {
+				long productSize = enterProduct();
+				if (rest < productSize) {
+					break;
+				}
+				rest -= productSize;
+			}
+			int kinds = kindEnd - kindStart;
+			long perTime = (long) (bandEnd - bandStart) * kinds;
+			time = timeStart + (int) (rest / perTime);
+			rest %= perTime;
+			band = bandStart + (int) (rest / kinds);
+			kind = kindStart + (int) (rest % kinds);
+			pending = true;
+			return n;
+		}
+		return skipped;
+	}
+
+	/**
+	 * Move just past the observation with the given ID, so that the next
+	 * observation returned is the first one after it in the cursor's order.
+	 * The ID has to come from the dataset the cursor's cells belong to, but
+	 * needn't match the cursor's band, type or times. This is done with a few
+	 * binary searches, rather than by visiting observations. Only valid on a
+	 * cursor which has just been reset, with cells starting at the ID's cell
+	 * or after it (see
+	 * {@link HDF5Dataset#cells(Integer, String, Double, Double, Double, Double, int)}).
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the ID can't have come from the cursor's dataset
+	 */
+	public void seekAfter(long id) {
+		if (!nextCell()) {
+			return;
+		}
+		if (cellIndex != ObservationID.cellIndex(id)) {
+			// the ID's cell isn't visited, so start from this one's top
+			return;
+		}
+		int epoch = ObservationID.epochIndex(id);
+		if (epoch >= catalog.numEpochs()) {
+			throw new IllegalArgumentException("Observation ID "
+					+ ObservationID.toString(id) + " isn't from this dataset");
+		}
+		productIndex = ObservationID.productIndex(id);
+		if (productIndex >= numProducts || enterProduct() == 0) {
+			// advance() will move on to the next product or cell
+			productIndex = Math.min(productIndex, numProducts);
+			inProduct = false;
+			return;
+		}
+		long epochSecond = catalog.epoch(epoch);
+		int k = catalog.timeLowerBound(cellIndex, productIndex, epochSecond);
+		boolean exact = k < catalog.numTimes(cellIndex, productIndex)
+				&& catalog.epochSecond(cellIndex, productIndex,
+						k) == epochSecond;
+		if (!exact || k < timeStart) {
+			// every observation from time k (or timeStart) on comes after
+			time = Math.max(k, timeStart);
+			if (time >= timeEnd) {
+				inProduct = false;
+			} else {
+				pending = true;
+			}
+			return;
+		}
+		if (k >= timeEnd) {
+			inProduct = false;
+			return;
+		}
+		// otherwise position on the last (band, kind) at time k which isn't
+		// after the ID, and let advance() step past it
+		time = k;
+		int idBand = ObservationID.band(id);
+		int idKind = ObservationID.isTile(id) ? TILE : PIXEL;
+		if (idBand < bandStart) {
+			pending = true;
+		} else if (idBand >= bandEnd) {
+			band = bandEnd - 1;
+			kind = kindEnd - 1;
+		} else {
+			band = idBand;
+			if (idKind < kindStart) {
+				pending = true;
+			} else {
+				kind = Math.min(idKind, kindEnd - 1);
+			}
+		}
+	}
+
+	/** Cell of the observation most recently returned */
+	public Cell getCell() {
+		return cell;
+	}
+
+	/**
+	 * Advance to the next observation and return it, or return null once
+	 * every observation has been visited
+	 */
+	public Observation next() {
+		if (!advance()) {
+			return null;
+		}
+		if (kind == PIXEL) {
+			return new PixelObservation(cell, product, currentID());
+		}
+		return new TileObservation(cell, product, currentID());
+	}
+
+	/** Stream of the remaining observations */
+	public Stream<Observation> stream() {
+		return StreamSupport.stream(this, false);
+	}
+
+	@Override
+	public boolean tryAdvance(Consumer<? super Observation> action) {
+		Observation obs = next();
+		if (obs == null) {
+			return false;
+		}
+		action.accept(obs);
+		return true;
+	}
+
+	@Override
+	public void forEachRemaining(Consumer<? super Observation> action) {
+		Observation obs;
+		while ((obs = next()) != null) {
+			action.accept(obs);
+		}
+	}
+
+	@Override
+	public Spliterator<Observation> trySplit() {
+		return null;
+	}
+
+	@Override
+	public long estimateSize() {
+		return Long.MAX_VALUE;
+	}
+
+	@Override
+	public int characteristics() {
+		return ORDERED | NONNULL;
+	}
+}
@@ -0,0 +1,146 @@
+package anuled.dynamicstore.backend;
+
+/**
+ * Packs everything that identifies an observation within one
+ * {@link HDF5Dataset} into a single <code>long</code>, so that scans, joins
+ * and caches can pass observations around without allocating anything. From
+ * the most significant end, an ID holds:
+ *
+ * <ol>
+ * <li>a zero sign bit (so IDs are never negative),</li>
+ * <li>the cell's index in the catalog (26 bits),</li>
+ * <li>the index of the timestamp among the catalog's distinct timestamps (20
+ * bits),</li>
+ * <li>the product's index in the catalog (8 bits),</li>
+ * <li>the band (8 bits), and</li>
+ * <li>whether the observation is a tile rather than a pixel (1 bit).</li>
+ * </ol>
+ *
+ * IDs therefore sort by cell, then time, then product, band and type. They
+ * only make sense relative to the dataset they came from; use
+ * {@link HDF5Dataset#observation(long)} to turn one back into an
+ * {@link Observation}, and {@link Observation#getID()} to go the other way.
+ */
+public final class ObservationID {
+	/** Returned in place of an ID when there is no such observation */
+	public static final long NONE = -1;
+
+	static final int TILE_BITS = 1, BAND_BITS = 8, PRODUCT_BITS = 8,
+			EPOCH_BITS = 20, CELL_BITS = 26;
+	private static final int BAND_SHIFT = TILE_BITS,
+			PRODUCT_SHIFT = BAND_SHIFT + BAND_BITS,
+			EPOCH_SHIFT = PRODUCT_SHIFT + PRODUCT_BITS,
+			CELL_SHIFT = EPOCH_SHIFT + EPOCH_BITS;
+	private static final long BAND_MASK = ((1L << BAND_BITS) - 1) << BAND_SHIFT;
+
+	private ObservationID() {
+	}
+
+	private static long field(long id, int shift, int bits) {
+		return (id >>> shift) & ((1L << bits) - 1);
+	}
+
+	private static void checkRange(String what, int value, int bits) {
+		if (value < 0 || value >= 1 << bits) {
+			throw new IllegalArgumentException(what + " " + value
+					+ " doesn't fit in an observation ID");
+		}
+	}
+
+	/**
+	 * Check that every observation in a catalog can be given an ID, so that
+	 * a file which is too big for IDs is rejected when it's opened, rather
+	 * than partway through a scan whose results are already on their way
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the catalog has too many cells, timestamps, products or
+	 *             bands
+	 */
+	static void checkCatalog(String filename, CellCatalog catalog) {
+		int maxBands = 0;
+		for (int p = 0; p < catalog.numProducts(); p++) {
+			maxBands = Math.max(maxBands,
+					catalog.getProduct(p).getNumBands());
+		}
+		checkCounts(filename, catalog.size(), catalog.numEpochs(),
+				catalog.numProducts(), maxBands);
+	}
+
+	/** Check the sizes behind {@link #checkCatalog(String, CellCatalog)} */
+	static void checkCounts(String filename, int cells, int epochs,
+			int products, int bands) {
+		checkCount(filename, "cells", cells, CELL_BITS);
+		checkCount(filename, "distinct timestamps", epochs, EPOCH_BITS);
+		checkCount(filename, "products", products, PRODUCT_BITS);
+		checkCount(filename, "bands", bands, BAND_BITS);
+	}
+
+	private static void checkCount(String filename, String what, int count,
+			int bits) {
+		if (count > 1 << bits) {
+			throw new IllegalArgumentException(filename + " has " + count
+					+ " " + what + ", but observation IDs can only address "
+					+ (1 << bits));
+		}
+	}
+
+	/**
+	 * Pack the parts of an ID together
+	 *
+	 * @throws IllegalArgumentException
+	 *             if a part is out of range (e.g. the catalog has more cells
+	 *             than an ID can address)
+	 */
+	static long pack(int cell, int epoch, int product, int band,
+			boolean tile) {
+		checkRange("Cell index", cell, CELL_BITS);
+		checkRange("Timestamp index", epoch, EPOCH_BITS);
+		checkRange("Product index", product, PRODUCT_BITS);
+		checkRange("Band", band, BAND_BITS);
+		return (long) cell << CELL_SHIFT | (long) epoch << EPOCH_SHIFT
+				| (long) product << PRODUCT_SHIFT | (long) band << BAND_SHIFT
+				| (tile ? 1 : 0);
+	}
+
+	/** Index of the observation's cell in the dataset's catalog */
+	public static int cellIndex(long id) {
+		return (int) field(id, CELL_SHIFT, CELL_BITS);
+	}
+
+	/** Index of the observation's timestamp in the dataset's catalog */
+	public static int epochIndex(long id) {
+		return (int) field(id, EPOCH_SHIFT, EPOCH_BITS);
+	}
+
+	/** Index of the observation's product in the dataset's catalog */
+	public static int productIndex(long id) {
+		return (int) field(id, PRODUCT_SHIFT, PRODUCT_BITS);
+	}
+
+	public static int band(long id) {
+		return (int) field(id, BAND_SHIFT, BAND_BITS);
+	}
+
+	/** Is this the ID of a tile (as opposed to a pixel)? */
+	public static boolean isTile(long id) {
+		return (id & 1) != 0;
+	}
+
+	/**
+	 * ID of the pixel observation for band zero with the same cell, time and
+	 * product; this identifies data shared by every band of a pixel
+	 */
+	static long firstBandPixel(long id) {
+		return id & ~BAND_MASK & ~1L;
+	}
+
+	/** Human-readable breakdown of an ID, for debugging */
+	public static String toString(long id) {
+		if (id == NONE) {
+			return "ObservationID: none";
+		}
+		return "ObservationID: cell=" + cellIndex(id) + ", epoch="
+				+ epochIndex(id) + ", product=" + productIndex(id) + ", band="
+				+ band(id) + ", type=" + (isTile(id) ? "tile" : "pixel");
+	}
+}
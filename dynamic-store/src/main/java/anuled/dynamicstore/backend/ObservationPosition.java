@@ -0,0 +1,172 @@
+package anuled.dynamicstore.backend;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Position of an observation in the (stable) order in which an
+ * {@link HDF5Collection} enumerates observations: its file, and its cell,
+ * product, time, band and type. Everything but the file is kept as a stable
+ * key (DGGS ID, product name, epoch second and so on) rather than as an index
+ * into the file's catalog, so a position still names the same observation
+ * after the catalog is rebuilt with more cells or times.
+ *
+ * The file is kept as its index in the collection, along with a fingerprint
+ * of the names of the files up to and including it (see
+ * {@link HDF5Collection#position(Observation)}). Files are only ever added
+ * to the end of a collection, but after a restart a new file may sort
+ * earlier; the fingerprint then no longer matches, and the position is
+ * rejected rather than resuming at the wrong observation.
+ *
+ * Positions are used as continuation tokens for long scans: a client is
+ * handed the position of the last observation on a page as an opaque string
+ * (see {@link #encode()}), and passes it back to get the observations after
+ * it (see
+ * {@link HDF5Collection#observationsAfter(Integer, String, Double, Double, Double, Double, Integer, Class, long, long, ObservationPosition)}).
+ * Resuming seeks straight to the position, so unlike <code>OFFSET</code> its
+ * cost doesn't grow with the number of observations already seen.
+ */
+public final class ObservationPosition {
+	private final int fileIndex, fileFingerprint;
+	private final String cellID, productName;
+	private final long epochSecond;
+	private final int band;
+	private final boolean tile;
+
+	public ObservationPosition(int fileIndex, int fileFingerprint,
+			String cellID, String productName, long epochSecond, int band,
+			boolean tile) {
+		if (fileIndex < 0 || band < 0 || cellID == null
+				|| productName == null) {
+			throw new IllegalArgumentException("Invalid position: file "
+					+ fileIndex + ", cell " + cellID + ", product "
+					+ productName + ", band " + band);
+		}
+		this.fileIndex = fileIndex;
+		this.fileFingerprint = fileFingerprint;
+		this.cellID = cellID;
+		this.productName = productName;
+		this.epochSecond = epochSecond;
+		this.band = band;
+		this.tile = tile;
+	}
+
+	/** Index of the observation's file in the collection */
+	public int getFileIndex() {
+		return fileIndex;
+	}
+
+	/**
+	 * Fingerprint of the names of the collection's files, up to and
+	 * including the observation's
+	 */
+	public int getFileFingerprint() {
+		return fileFingerprint;
+	}
+
+	/** DGGS ID of the observation's cell */
+	public String getCellID() {
+		return cellID;
+	}
+
+	public String getProductName() {
+		return productName;
+	}
+
+	/** Time of the observation, in epoch seconds */
+	public long getEpochSecond() {
+		return epochSecond;
+	}
+
+	public int getBand() {
+		return band;
+	}
+
+	/** Is the observation a tile (rather than a pixel)? */
+	public boolean isTile() {
+		return tile;
+	}
+
+	/** Opaque, URL-safe string form of the position */
+	public String encode() {
+		byte[] cell = cellID.getBytes(StandardCharsets.UTF_8);
+		byte[] product = productName.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer buf = ByteBuffer.allocate(2 * Integer.BYTES + Long.BYTES
+				+ Integer.BYTES + 1 + 2 * Integer.BYTES + cell.length
+				+ product.length);
+		buf.putInt(fileIndex).putInt(fileFingerprint).putLong(epochSecond)
+				.putInt(band).put((byte) (tile ? 1 : 0));
+		buf.putInt(cell.length).put(cell).putInt(product.length).put(product);
+		return Base64.getUrlEncoder().withoutPadding()
+				.encodeToString(buf.array());
+	}
+
+	/**
+	 * Parse a string made by {@link #encode()}
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the string isn't an encoded position
+	 */
+	public static ObservationPosition decode(String token) {
+		try {
+			ByteBuffer buf = ByteBuffer
+					.wrap(Base64.getUrlDecoder().decode(token));
+			int fileIndex = buf.getInt(), fileFingerprint = buf.getInt();
+			long epochSecond = buf.getLong();
+			int band = buf.getInt();
+			byte tile = buf.get();
+			String cellID = getString(buf), productName = getString(buf);
+			if (buf.hasRemaining() || (tile & ~1) != 0) {
+				throw new IllegalArgumentException(
+						"Invalid continuation token " + token);
+			}
+			return new ObservationPosition(fileIndex, fileFingerprint, cellID,
+					productName, epochSecond, band, tile == 1);
+		} catch (IllegalArgumentException | BufferUnderflowException e) {
+			throw new IllegalArgumentException(
+					"Invalid continuation token " + token, e);
+		}
+	}
+
+	private static String getString(ByteBuffer buf) {
+		int length = buf.getInt();
+		if (length < 0 || length > buf.remaining()) {
+			throw new BufferUnderflowException();
+		}
+		byte[] bytes = new byte[length];
+		buf.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if (!(other instanceof ObservationPosition)) {
+			return false;
+		}
+		ObservationPosition pos = (ObservationPosition) other;
+		return fileIndex == pos.fileIndex
+				&& fileFingerprint == pos.fileFingerprint
+				&& cellID.equals(pos.cellID)
+				&& productName.equals(pos.productName)
+				&& epochSecond == pos.epochSecond && band == pos.band
+				&& tile == pos.tile;
+	}
+
+	@Override
+	public int hashCode() {
+		int rv = fileIndex;
+		rv = rv * 31 + cellID.hashCode();
+		rv = rv * 31 + productName.hashCode();
+		rv = rv * 31 + Long.hashCode(epochSecond);
+		return (rv * 31 + band) * 2 + (tile ? 1 : 0);
+	}
+
+	@Override
+	public String toString() {
+		return "ObservationPosition: file=" + fileIndex + ", cell=" + cellID
+				+ ", product=" + productName + ", time=" + epochSecond
+				+ ", band=" + band + ", type=" + (tile ? "tile" : "pixel");
+	}
+}
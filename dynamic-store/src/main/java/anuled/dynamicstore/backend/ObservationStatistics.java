@@ -0,0 +1,214 @@
+package anuled.dynamicstore.backend;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Observation counts for one or more files, worked out from their catalogs
+ * (so without reading any data). Counts include pixels and tiles alike; every
+ * (cell, product, time, band) has one of each. Besides the total, the counts
+ * are broken down by cell level, band, product and timestamp, which is enough
+ * for the query planner to estimate how many observations a filter on any of
+ * those will match (see
+ * {@link anuled.dynamicstore.rdfmapper.ObservationFilter#estimateCount()}).
+ *
+ * Statistics are immutable. Each file's are counted the first time they're
+ * needed (see {@link HDF5Dataset#getStatistics()}), and a collection merges
+ * those of its files the first time they're needed after a file is added.
+ */
+public final class ObservationStatistics {
+	private static final ObservationStatistics EMPTY = new ObservationStatistics(
+			0, new long[0], new long[0], new long[0], Collections.emptyMap(),
+			new long[0], new long[0]);
+
+	private final long total;
+	// indexed by level (i.e. length of the DGGS ID)
+	private final long[] byLevel, cellsByLevel;
+	private final long[] byBand;
+	private final Map<String, Long> byProduct;
+	// distinct timestamps in ascending order, and the count for each
+	private final long[] epochs, byEpoch;
+
+	private ObservationStatistics(long total, long[] byLevel,
+			long[] cellsByLevel, long[] byBand, Map<String, Long> byProduct,
+			long[] epochs, long[] byEpoch) {
+		this.total = total;
+		this.byLevel = byLevel;
+		this.cellsByLevel = cellsByLevel;
+		this.byBand = byBand;
+		this.byProduct = Collections.unmodifiableMap(byProduct);
+		this.epochs = epochs;
+		this.byEpoch = byEpoch;
+	}
+
+	/** Count the observations in a catalog; visits each (cell, product) once */
+	ObservationStatistics(CellCatalog catalog) {
+		int maxLevel = -1, maxBands = 0, P = catalog.numProducts();
+		for (int p = 0; p < P; p++) {
+			maxBands = Math.max(maxBands, catalog.getProduct(p).getNumBands());
+		}
+		for (int root = 0; root < catalog.size(); root = catalog
+				.subtreeEnd(root)) {
+			maxLevel = Math.max(maxLevel, catalog.subtreeMaxLevel(root));
+		}
+		long[] levels = new long[maxLevel + 1],
+				cells = new long[maxLevel + 1];
+		long[] products = new long[P];
+		long[] epochCounts = new long[catalog.numEpochs()];
+		// observations per band: every product has bands 0..numBands-1, so
+		// count the times seen by products with at least b + 1 bands
+		long[] timesByNumBands = new long[maxBands + 1];
+		long sum = 0;
+		for (int cell = 0; cell < catalog.size(); cell++) {
+			int level = catalog.getLevel(cell);
+			cells[level]++;
+			for (int p = 0; p < P; p++) {
+				int numTimes = catalog.numTimes(cell, p);
+				if (numTimes == 0) {
+					continue;
+				}
+				int numBands = catalog.getProduct(p).getNumBands();
+				// a pixel and a tile for each band at each time
+				long count = 2L * numTimes * numBands;
+				sum += count;
+				levels[level] += count;
+				products[p] += count;
+				timesByNumBands[numBands] += numTimes;
+				for (int k = 0; k < numTimes; k++) {
+					epochCounts[catalog.epochIndex(cell, p, k)] += 2L
+							* numBands;
+				}
+			}
+		}
+		long[] bands = new long[maxBands];
+		long times = 0;
+		for (int b = maxBands - 1; b >= 0; b--) {
+			times += timesByNumBands[b + 1];
+			bands[b] = 2 * times;
+		}
+		Map<String, Long> productCounts = new LinkedHashMap<>();
+		for (int p = 0; p < P; p++) {
+			productCounts.put(catalog.getProduct(p).getName(), products[p]);
+		}
+		long[] allEpochs = new long[epochCounts.length];
+		for (int i = 0; i < allEpochs.length; i++) {
+			allEpochs[i] = catalog.epoch(i);
+		}
+
+		this.total = sum;
+		this.byLevel = levels;
+		this.cellsByLevel = cells;
+		this.byBand = bands;
+		this.byProduct = Collections.unmodifiableMap(productCounts);
+		this.epochs = allEpochs;
+		this.byEpoch = epochCounts;
+	}
+
+	/** Statistics for all of the given files together */
+	static ObservationStatistics merge(List<ObservationStatistics> parts) {
+		if (parts.isEmpty()) {
+			return EMPTY;
+		} else if (parts.size() == 1) {
+			return parts.get(0);
+		}
+		long sum = 0;
+		long[] levels = new long[0], cells = new long[0], bands = new long[0];
+		Map<String, Long> products = new LinkedHashMap<>();
+		TreeMap<Long, Long> times = new TreeMap<>();
+		for (ObservationStatistics part : parts) {
+			sum += part.total;
+			levels = add(levels, part.byLevel);
+			cells = add(cells, part.cellsByLevel);
+			bands = add(bands, part.byBand);
+			part.byProduct.forEach((name, count) -> products.merge(name, count,
+					Long::sum));
+			for (int i = 0; i < part.epochs.length; i++) {
+				times.merge(part.epochs[i], part.byEpoch[i], Long::sum);
+			}
+		}
+		long[] epochs = new long[times.size()], byEpoch = new long[times
+				.size()];
+		int i = 0;
+		for (Map.Entry<Long, Long> entry : times.entrySet()) {
+			epochs[i] = entry.getKey();
+			byEpoch[i++] = entry.getValue();
+		}
+		return new ObservationStatistics(sum, levels, cells, bands, products,
+				epochs, byEpoch);
+	}
+
+	private static long[] add(long[] left, long[] right) {
+		long[] rv = Arrays.copyOf(left, Math.max(left.length, right.length));
+		for (int i = 0; i < right.length; i++) {
+			rv[i] += right[i];
+		}
+		return rv;
+	}
+
+	/** Number of observations (pixels and tiles) */
+	public long getTotal() {
+		return total;
+	}
+
+	/** Number of observations of cells at a level of the DGGS hierarchy */
+	public long countForLevel(int level) {
+		return level >= 0 && level < byLevel.length ? byLevel[level] : 0;
+	}
+
+	/** Number of cells at a level of the DGGS hierarchy */
+	public long cellsAtLevel(int level) {
+		return level >= 0 && level < cellsByLevel.length ? cellsByLevel[level]
+				: 0;
+	}
+
+	/** Number of observations for a band (of any product) */
+	public long countForBand(int band) {
+		return band >= 0 && band < byBand.length ? byBand[band] : 0;
+	}
+
+	/** Number of observations for the product with the given name */
+	public long countForProduct(String productName) {
+		return byProduct.getOrDefault(productName, 0L);
+	}
+
+	/** Names of the products counted, each mapped to its count */
+	public Map<String, Long> getProductCounts() {
+		return byProduct;
+	}
+
+	/**
+	 * Number of observations taken between two times (inclusive), in epoch
+	 * seconds
+	 */
+	public long countForTimes(long timeMin, long timeMax) {
+		if (timeMin > timeMax) {
+			return 0;
+		}
+		int start = Arrays.binarySearch(epochs, timeMin);
+		if (start < 0) {
+			start = -start - 1;
+		}
+		long rv = 0;
+		for (int i = start; i < epochs.length && epochs[i] <= timeMax; i++) {
+			rv += byEpoch[i];
+		}
+		return rv;
+	}
+
+	/** Number of distinct timestamps */
+	public int numEpochs() {
+		return epochs.length;
+	}
+
+	@Override
+	public String toString() {
+		return "ObservationStatistics: total=" + total + ", byLevel="
+				+ Arrays.toString(byLevel) + ", byBand="
+				+ Arrays.toString(byBand) + ", byProduct=" + byProduct
+				+ ", epochs=" + epochs.length;
+	}
+}
@@ -0,0 +1,118 @@
+package anuled.dynamicstore.backend;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Size-bounded LRU cache of the pixel arrays read by
+ * {@link PixelObservation#getPixel()}. Each <code>pixel@&lt;time&gt;</code>
+ * dataset holds the values for every band, so caching the whole decoded array
+ * means a query across all bands of a cell only reads it from HDF5 once.
+ *
+ * One cache is shared by every query against an <code>HDF5Dataset</code>. The
+ * budget is in (approximate) bytes of heap used by the cached arrays; a budget
+ * of zero disables caching. Cached arrays are shared between callers and must
+ * not be modified.
+ */
+public class PixelCache {
+	// Rough per-entry cost of the key, map entry and array header
+	private static final long ENTRY_OVERHEAD = 96;
+
+	private final long maxBytes;
+	private final LinkedHashMap<CacheKey, double[]> entries =
+			new LinkedHashMap<>(16, 0.75f, true);
+	private long sizeBytes = 0;
+	private long hits = 0, misses = 0, evictions = 0;
+
+	public PixelCache(long maxBytes) {
+		if (maxBytes < 0) {
+			throw new IllegalArgumentException(
+					"Cache budget must be non-negative");
+		}
+		this.maxBytes = maxBytes;
+	}
+
+	private static long cost(double[] pixels) {
+		return ENTRY_OVERHEAD + 8L * pixels.length;
+	}
+
+	/**
+	 * Fetch the pixel array for an observation, reading it with the given
+	 * loader on a miss. The loader runs without holding the cache lock, so two
+	 * threads missing on the same key at once may both read it.
+	 */
+	double[] get(Observation obs, Supplier<double[]> loader) {
+		CacheKey key = new CacheKey(obs, true);
+		synchronized (this) {
+			double[] cached = entries.get(key);
+			if (cached != null) {
+				hits++;
+				return cached;
+			}
+			misses++;
+		}
+
+		double[] pixels = loader.get();
+		long cost = cost(pixels);
+		if (cost > maxBytes) {
+			return pixels;
+		}
+		synchronized (this) {
+			double[] old = entries.put(key, pixels);
+			if (old != null) {
+				sizeBytes -= cost(old);
+			}
+			sizeBytes += cost;
+			Iterator<Map.Entry<CacheKey, double[]>> iter = entries
+					.entrySet().iterator();
+			while (sizeBytes > maxBytes && iter.hasNext()) {
+				sizeBytes -= cost(iter.next().getValue());
+				iter.remove();
+				evictions++;
+			}
+		}
+		return pixels;
+	}
+
+	/** Drop everything in the cache (counters are left alone) */
+	public synchronized void clear() {
+		entries.clear();
+		sizeBytes = 0;
+	}
+
+	/** Maximum number of bytes the cache will hold */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/** Approximate number of bytes currently held */
+	public synchronized long getSizeBytes() {
+		return sizeBytes;
+	}
+
+	/** Number of arrays currently held */
+	public synchronized int getEntryCount() {
+		return entries.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "PixelCache: " + entries.size() + " arrays, " + sizeBytes + "/"
+				+ maxBytes + " bytes, " + hits + " hits, " + misses
+				+ " misses, " + evictions + " evictions";
+	}
+}
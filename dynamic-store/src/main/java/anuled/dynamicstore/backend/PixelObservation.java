@@ -3,7 +3,6 @@ package anuled.dynamicstore.backend;
 import java.time.ZonedDateTime;
 
 import anuled.dynamicstore.Util;
-import ch.systemsx.cisd.hdf5.IHDF5Reader;
 
 /**
  * <code>Observation</code> subclass for single pixel observations. In this
@@ -13,7 +12,11 @@ import ch.systemsx.cisd.hdf5.IHDF5Reader;
 public final class PixelObservation extends Observation {
 	protected PixelObservation(Cell cell, Product product,
 			ZonedDateTime timestamp, int band) {
-		super(cell, product, timestamp, band);
+		super(cell, product, timestamp, band, false);
+	}
+
+	PixelObservation(Cell cell, Product product, long id) {
+		super(cell, product, id);
 	}
 
 	public int getPixelLevel() {
@@ -21,26 +24,22 @@ public final class PixelObservation extends Observation {
 	}
 
 	public double getPixel() {
-		IHDF5Reader fp = cell.getReader();
+		double[] pixels = cell.getDataset().getPixelCache().get(this,
+				this::readPixels);
+		return pixels[band];
+	}
+
+	/** Read the values for every band of this pixel from HDF5 */
+	private double[] readPixels() {
 		String dsPath = cell.getPath() + "/" + product.getName() + "/pixel"
-				+ "@" + Util.canonicalTimeString(timestamp);
-		return fp.readDoubleArray(dsPath)[band];
+				+ "@" + Util.canonicalTimeString(getTimestamp());
+		return cell.getDataset().readDoubleArray(dsPath);
 	}
 
 	public double getResolution() {
 		return 1.0 / getCell().getDegreesSpanned();
 	}
 
-	@Override
-	public boolean equals(Object other) {
-		return super.equals(other) && (other instanceof PixelObservation);
-	}
-
-	@Override
-	public int hashCode() {
-		return super.hashCode() ^ PixelObservation.class.hashCode();
-	}
-
 	@Override
 	public String toString() {
 		return super.toString() + ", type=pixel";
@@ -6,8 +6,6 @@ import org.apache.jena.rdf.model.Model;
 import org.apache.jena.rdf.model.ModelFactory;
 import org.apache.jena.rdf.model.Resource;
 
-import ch.systemsx.cisd.hdf5.IHDF5Reader;
-
 /**
  * Metadata class representing a particular dataset offered by the middleware
  * (e.g. <code>"landsat"</code>)
@@ -22,17 +20,20 @@ public class Product {
 		this.owner = owner;
 		this.productName = productName;
 
-		// Read basic metadata (number of bands, size of tiles in DGGS cells)
-		IHDF5Reader fp = owner.getReader();
-		String prefix = "/products/" + productName;
-		this.numBands = fp.readInt(prefix + "/numbands");
-		this.tileSize = fp.readInt(prefix + "/tilesize");
+		owner.withReader(fp -> {
+			// Read basic metadata (number of bands, size of tiles in DGGS
+			// cells)
+			String prefix = "/products/" + productName;
+			this.numBands = fp.readInt(prefix + "/numbands");
+			this.tileSize = fp.readInt(prefix + "/tilesize");
 
-		// Read and parse Turtle-formatted metadata
-		String metaString = fp.readString(prefix + "/meta");
-		StringReader metaReader = new StringReader(metaString);
-		metaModel = ModelFactory.createDefaultModel();
-		metaModel.read(metaReader, "", "TTL");
+			// Read and parse Turtle-formatted metadata
+			String metaString = fp.readString(prefix + "/meta");
+			StringReader metaReader = new StringReader(metaString);
+			metaModel = ModelFactory.createDefaultModel();
+			metaModel.read(metaReader, "", "TTL");
+			return null;
+		});
 	}
 
 	public String getName() {
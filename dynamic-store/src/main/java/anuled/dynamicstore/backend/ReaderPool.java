@@ -0,0 +1,207 @@
+package anuled.dynamicstore.backend;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+
+/**
+ * Pool of open <code>IHDF5Reader</code>s, shared by every file in an
+ * {@link HDF5Collection} (or owned by a single {@link HDF5Dataset}). Each open
+ * reader costs a file descriptor and a fair amount of native memory in the
+ * HDF5 library, so a deployment spanning thousands of files can't keep one
+ * open per file.
+ *
+ * Readers are borrowed with {@link #acquire(String)} and handed back with
+ * {@link #release(String, IHDF5Reader)}. Returned readers stay open while
+ * idle, so hot files aren't reopened on every read, but once more than
+ * <code>maxOpen</code> readers are open the least recently used idle ones are
+ * closed. A file whose reader was closed is reopened transparently on the next
+ * acquire.
+ *
+ * The limit is soft: if every open reader is in use, acquire opens another
+ * rather than waiting, and the pool shrinks back to the limit as readers are
+ * released. Readers are only held for the length of a batch of reads (see
+ * {@link HDF5IO}) or while a file is being opened, so the overshoot is bounded
+ * by the number of threads doing those things.
+ */
+public class ReaderPool {
+	private final int maxOpen;
+	// idle readers, least recently released first; keys are unique handles
+	private final LinkedHashMap<Handle, IHDF5Reader> idle = new LinkedHashMap<>();
+	// files which have been opened at least once, for counting reopens
+	private final Set<String> seen = new HashSet<>();
+	private int numOpen = 0;
+	private boolean closed = false;
+	private long opens = 0, reopens = 0, evictions = 0, hits = 0;
+	private long openNanos = 0;
+
+	/** Identity of one idle reader (a file can have several) */
+	private static final class Handle {
+		final String filename;
+
+		Handle(String filename) {
+			this.filename = filename;
+		}
+	}
+
+	public ReaderPool(int maxOpen) {
+		if (maxOpen < 1) {
+			throw new IllegalArgumentException(
+					"Need to allow at least one open file");
+		}
+		this.maxOpen = maxOpen;
+	}
+
+	/**
+	 * Borrow a reader for a file, opening one if there is no idle reader for
+	 * it. The reader must be handed back with
+	 * {@link #release(String, IHDF5Reader)}, and must not be used after that.
+	 */
+	IHDF5Reader acquire(String filename) {
+		synchronized (this) {
+			if (closed) {
+				throw new IllegalStateException("Reader pool was closed");
+			}
+			for (Iterator<Map.Entry<Handle, IHDF5Reader>> iter = idle
+					.entrySet().iterator(); iter.hasNext();) {
+				Map.Entry<Handle, IHDF5Reader> entry = iter.next();
+				if (entry.getKey().filename.equals(filename)) {
+					iter.remove();
+					hits++;
+					return entry.getValue();
+				}
+			}
+			// make room now rather than after the open, so that we never
+			// have more than maxOpen open because of idle readers
+			while (numOpen >= maxOpen && !idle.isEmpty()) {
+				evictEldest();
+			}
+			numOpen++;
+		}
+
+		// open outside the lock; opening a big file can take a while
+		long start = System.nanoTime();
+		IHDF5Reader reader;
+		try {
+			reader = HDF5Factory.openForReading(filename);
+		} catch (RuntimeException e) {
+			synchronized (this) {
+				numOpen--;
+			}
+			throw e;
+		}
+		long elapsed = System.nanoTime() - start;
+		synchronized (this) {
+			opens++;
+			openNanos += elapsed;
+			if (!seen.add(filename)) {
+				reopens++;
+			}
+		}
+		return reader;
+	}
+
+	/** Hand back a reader borrowed with {@link #acquire(String)} */
+	void release(String filename, IHDF5Reader reader) {
+		synchronized (this) {
+			if (!closed) {
+				idle.put(new Handle(filename), reader);
+				while (numOpen > maxOpen && !idle.isEmpty()) {
+					evictEldest();
+				}
+				return;
+			}
+			numOpen--;
+		}
+		reader.close();
+	}
+
+	private void evictEldest() {
+		Iterator<IHDF5Reader> iter = idle.values().iterator();
+		IHDF5Reader reader = iter.next();
+		iter.remove();
+		numOpen--;
+		evictions++;
+		// closing is quick, and doing it here keeps the count honest
+		reader.close();
+	}
+
+	/** Close every idle reader for a file (e.g. when it's disposed of) */
+	synchronized void closeFile(String filename) {
+		for (Iterator<Map.Entry<Handle, IHDF5Reader>> iter = idle.entrySet()
+				.iterator(); iter.hasNext();) {
+			Map.Entry<Handle, IHDF5Reader> entry = iter.next();
+			if (entry.getKey().filename.equals(filename)) {
+				iter.remove();
+				numOpen--;
+				entry.getValue().close();
+			}
+		}
+	}
+
+	/**
+	 * Close every idle reader. Readers which are still borrowed are closed
+	 * when they are released, and nothing more can be acquired.
+	 */
+	synchronized void close() {
+		closed = true;
+		for (IHDF5Reader reader : idle.values()) {
+			reader.close();
+			numOpen--;
+		}
+		idle.clear();
+	}
+
+	/** Soft limit on the number of open readers */
+	public int getMaxOpen() {
+		return maxOpen;
+	}
+
+	/** Number of readers currently open, whether idle or borrowed */
+	public synchronized int getOpenCount() {
+		return numOpen;
+	}
+
+	/** Number of readers currently open but idle */
+	public synchronized int getIdleCount() {
+		return idle.size();
+	}
+
+	/** Total number of times a file has been opened */
+	public synchronized long getOpens() {
+		return opens;
+	}
+
+	/** Opens of a file which had already been opened (and closed) before */
+	public synchronized long getReopens() {
+		return reopens;
+	}
+
+	/** Acquires served by an idle reader, without opening anything */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/** Idle readers closed to stay under the limit */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/** Total wall-clock time spent opening files, in nanoseconds */
+	public synchronized long getOpenNanos() {
+		return openNanos;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "ReaderPool: " + numOpen + "/" + maxOpen + " open ("
+				+ idle.size() + " idle), " + opens + " opens, " + reopens
+				+ " reopens, " + hits + " hits, " + evictions
+				+ " evictions, " + (openNanos / 1000000) + " ms opening";
+	}
+}
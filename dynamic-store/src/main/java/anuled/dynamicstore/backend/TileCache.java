@@ -0,0 +1,464 @@
+package anuled.dynamicstore.backend;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Off-heap cache of the PNG tiles read by {@link TileObservation}. Tile bytes
+ * are copied once into direct memory and handed out from there, so a hot tile
+ * never touches HDF5 (or allocates on the Java heap) a second time.
+ *
+ * <p>
+ * Storage is a slab allocator: direct memory is reserved in slabs, and each
+ * slab is carved into equal power-of-two slots for one size class. The byte
+ * budget caps the total size of all slabs, so the cache's native footprint
+ * never exceeds it, and no direct buffers are allocated or freed once the
+ * slabs are in place. Slabs move between size classes as the mix of tile
+ * sizes changes: a slab is carved up again for another class once every tile
+ * in it has been evicted.
+ * </p>
+ *
+ * <p>
+ * Eviction is segmented LRU. New tiles enter a probationary segment; a tile
+ * which is hit again moves to a protected segment, which holds at most 80% of
+ * the budget. Tiles which are only ever requested once (e.g. during a big
+ * scan) are therefore evicted before tiles which the map front-end keeps
+ * coming back to. When a slot is needed and no slab space is left, the cache
+ * reuses an empty slab if there is one. Otherwise it looks for the least
+ * recently used tile (in probation, then the protected segment) which is
+ * either of the same size class, or in a slab of another class with no
+ * leased-out tiles. The former is simply evicted; in the latter case the
+ * whole slab is emptied and handed to the new tile's size class.
+ * </p>
+ *
+ * <p>
+ * Because slots are reused, tiles are handed out as {@link Lease}s which pin
+ * the slot until they are closed.
+ * </p>
+ */
+public class TileCache {
+	// Smallest slot is 256 bytes; 9x9 PNG tiles are usually a few hundred
+	private static final int MIN_SLOT_SHIFT = 8;
+	private static final int DEFAULT_SLAB_SIZE = 1 << 20;
+	private static final double PROTECTED_FRACTION = 0.8;
+
+	private final long maxBytes;
+	private final int slabSize;
+	private final Map<CacheKey, Entry> entries = new HashMap<>();
+	private final List<Slab> slabs = new ArrayList<>();
+	// free slots for each size class, numbered as in slotNumber()
+	private final List<ArrayDeque<Integer>> freeSlots;
+	private final Segment probation = new Segment();
+	private final Segment protectedSeg = new Segment();
+	private long slabBytes = 0;
+	// slabs with no tiles in them (including ones still leased out)
+	private int emptySlabs = 0;
+	private long hits = 0, misses = 0, evictions = 0;
+
+	/** Direct memory carved into slots for one size class at a time */
+	private static final class Slab {
+		final int index;
+		final ByteBuffer memory;
+		int sizeClass;
+		// tile in each slot, if any; a tile stays here until its slot is free
+		Entry[] occupants;
+		int used = 0;
+		// number of occupants which are leased out
+		int pinned = 0;
+
+		Slab(int index, ByteBuffer memory) {
+			this.index = index;
+			this.memory = memory;
+		}
+	}
+
+	/** Cached tile, linked into one of the two LRU segments */
+	private static final class Entry {
+		final CacheKey key;
+		final Slab slab;
+		final int index;
+		final ByteBuffer slot;
+		Segment segment;
+		Entry prev, next;
+		int pins = 0;
+		// set when evicted while pinned; slot is freed on the last release
+		boolean evicted = false;
+
+		Entry(CacheKey key, Slab slab, int index, ByteBuffer slot) {
+			this.key = key;
+			this.slab = slab;
+			this.index = index;
+			this.slot = slot;
+		}
+	}
+
+	/** Doubly-linked list of entries, most recently used at the head */
+	private static final class Segment {
+		Entry head, tail;
+		long bytes = 0;
+
+		void addFirst(Entry entry) {
+			entry.segment = this;
+			entry.prev = null;
+			entry.next = head;
+			if (head != null) {
+				head.prev = entry;
+			} else {
+				tail = entry;
+			}
+			head = entry;
+			bytes += entry.slot.capacity();
+		}
+
+		void remove(Entry entry) {
+			if (entry.prev != null) {
+				entry.prev.next = entry.next;
+			} else {
+				head = entry.next;
+			}
+			if (entry.next != null) {
+				entry.next.prev = entry.prev;
+			} else {
+				tail = entry.prev;
+			}
+			entry.prev = entry.next = null;
+			entry.segment = null;
+			bytes -= entry.slot.capacity();
+		}
+	}
+
+	/**
+	 * Read-only view of a tile's PNG bytes. The data stays valid until the
+	 * lease is closed.
+	 */
+	public static class Lease implements AutoCloseable {
+		private final TileCache cache;
+		private final Entry entry;
+		private final ByteBuffer data;
+		private boolean closed = false;
+
+		private Lease(TileCache cache, Entry entry, ByteBuffer data) {
+			this.cache = cache;
+			this.entry = entry;
+			this.data = data;
+		}
+
+		/** Tile bytes, from position zero to the limit */
+		public ByteBuffer getData() {
+			return data;
+		}
+
+		/** Copy the tile onto the heap */
+		public byte[] toArray() {
+			byte[] bytes = new byte[data.remaining()];
+			data.duplicate().get(bytes);
+			return bytes;
+		}
+
+		@Override
+		public void close() {
+			if (!closed && entry != null) {
+				cache.release(entry);
+			}
+			closed = true;
+		}
+	}
+
+	public TileCache(long maxBytes) {
+		this(maxBytes, DEFAULT_SLAB_SIZE);
+	}
+
+	/**
+	 * @param slabSize
+	 *            size of each direct memory allocation, which is also the
+	 *            largest tile that will be cached; a power of two. It is
+	 *            reduced if it exceeds the budget.
+	 */
+	TileCache(long maxBytes, int slabSize) {
+		if (maxBytes < 0) {
+			throw new IllegalArgumentException(
+					"Cache budget must be non-negative");
+		}
+		if (Integer.bitCount(slabSize) != 1
+				|| slabSize < 1 << MIN_SLOT_SHIFT) {
+			throw new IllegalArgumentException(
+					"Slab size must be a power of two of at least "
+							+ (1 << MIN_SLOT_SHIFT));
+		}
+		this.maxBytes = maxBytes;
+		while (slabSize > maxBytes && slabSize > 1 << MIN_SLOT_SHIFT) {
+			slabSize >>= 1;
+		}
+		this.slabSize = slabSize;
+		int numClasses = Integer.numberOfTrailingZeros(slabSize)
+				- MIN_SLOT_SHIFT + 1;
+		freeSlots = new ArrayList<>(numClasses);
+		for (int c = 0; c < numClasses; c++) {
+			freeSlots.add(new ArrayDeque<>());
+		}
+	}
+
+	/** Size class for a tile, or -1 if it is too big to cache */
+	private int sizeClass(int length) {
+		if (length > slabSize) {
+			return -1;
+		}
+		// smallest shift such that (1 << shift) >= length
+		int shift = 32
+				- Integer.numberOfLeadingZeros(Math.max(length, 1) - 1);
+		return Math.max(shift, MIN_SLOT_SHIFT) - MIN_SLOT_SHIFT;
+	}
+
+	private static ByteBuffer slice(ByteBuffer buf, int start, int length) {
+		ByteBuffer dup = buf.duplicate();
+		((Buffer) dup).position(start);
+		((Buffer) dup).limit(start + length);
+		return dup.slice();
+	}
+
+	private static int slotSize(int sizeClass) {
+		return 1 << (sizeClass + MIN_SLOT_SHIFT);
+	}
+
+	/**
+	 * Number for a slot in the free lists: slabs are numbered in the order
+	 * they were allocated, and have room for as many slots as the smallest
+	 * size class would give them
+	 */
+	private int slotNumber(int slab, int index) {
+		return slab * (slabSize >> MIN_SLOT_SHIFT) + index;
+	}
+
+	/** Hand a slab's slots to a size class (all of them must be free) */
+	private void carve(int slabIndex, int sizeClass) {
+		Slab slab = slabs.get(slabIndex);
+		slab.sizeClass = sizeClass;
+		slab.occupants = new Entry[slabSize / slotSize(sizeClass)];
+		ArrayDeque<Integer> free = freeSlots.get(sizeClass);
+		for (int i = slab.occupants.length - 1; i >= 0; i--) {
+			free.push(slotNumber(slabIndex, i));
+		}
+	}
+
+	/** Take a slab away from its size class and give it to another */
+	private void recarve(int slabIndex, int sizeClass) {
+		int oldClass = slabs.get(slabIndex).sizeClass;
+		int first = slotNumber(slabIndex, 0),
+				end = slotNumber(slabIndex + 1, 0);
+		freeSlots.get(oldClass).removeIf(n -> n >= first && n < end);
+		carve(slabIndex, sizeClass);
+	}
+
+	/** Find a free slot of the given class, evicting tiles if need be */
+	private Entry allocate(CacheKey key, int sizeClass) {
+		ArrayDeque<Integer> free = freeSlots.get(sizeClass);
+		if (free.isEmpty() && slabBytes + slabSize <= maxBytes) {
+			slabs.add(new Slab(slabs.size(),
+					ByteBuffer.allocateDirect(slabSize)));
+			slabBytes += slabSize;
+			emptySlabs++;
+			carve(slabs.size() - 1, sizeClass);
+		}
+		if (free.isEmpty() && emptySlabs > 0) {
+			for (int i = 0; i < slabs.size(); i++) {
+				if (slabs.get(i).used == 0) {
+					recarve(i, sizeClass);
+					break;
+				}
+			}
+		}
+		if (free.isEmpty()) {
+			evictFrom(probation, sizeClass);
+		}
+		if (free.isEmpty()) {
+			evictFrom(protectedSeg, sizeClass);
+		}
+		Integer number = free.poll();
+		if (number == null) {
+			return null;
+		}
+		int slotsPerSlab = slabSize >> MIN_SLOT_SHIFT;
+		Slab slab = slabs.get(number / slotsPerSlab);
+		int index = number % slotsPerSlab;
+		int slotSize = slotSize(sizeClass);
+		Entry entry = new Entry(key, slab, index,
+				slice(slab.memory, index * slotSize, slotSize));
+		slab.occupants[index] = entry;
+		if (slab.used++ == 0) {
+			emptySlabs--;
+		}
+		return entry;
+	}
+
+	/**
+	 * Make room for a tile of a size class by evicting the least recently
+	 * used tile which is either of that class, or in an unpinned slab of
+	 * another class (in which case the whole slab is emptied and recarved)
+	 */
+	private void evictFrom(Segment segment, int sizeClass) {
+		for (Entry entry = segment.tail; entry != null; entry = entry.prev) {
+			Slab slab = entry.slab;
+			if (slab.sizeClass == sizeClass && entry.pins == 0) {
+				evict(entry);
+				return;
+			}
+			if (slab.sizeClass != sizeClass && slab.pinned == 0) {
+				for (Entry occupant : slab.occupants) {
+					if (occupant != null) {
+						evict(occupant);
+					}
+				}
+				recarve(slab.index, sizeClass);
+				return;
+			}
+		}
+	}
+
+	private void evict(Entry entry) {
+		entry.segment.remove(entry);
+		entries.remove(entry.key);
+		evictions++;
+		if (entry.pins == 0) {
+			free(entry);
+		} else {
+			entry.evicted = true;
+		}
+	}
+
+	private void free(Entry entry) {
+		Slab slab = entry.slab;
+		slab.occupants[entry.index] = null;
+		if (--slab.used == 0) {
+			emptySlabs++;
+		}
+		freeSlots.get(slab.sizeClass)
+				.push(slotNumber(slab.index, entry.index));
+	}
+
+	private synchronized void release(Entry entry) {
+		entry.pins--;
+		if (entry.pins == 0) {
+			entry.slab.pinned--;
+			if (entry.evicted) {
+				free(entry);
+			}
+		}
+	}
+
+	/** Record a hit, promoting the tile to (the head of) protected */
+	private void touch(Entry entry) {
+		entry.segment.remove(entry);
+		protectedSeg.addFirst(entry);
+		long protectedCap = (long) (maxBytes * PROTECTED_FRACTION);
+		while (protectedSeg.bytes > protectedCap
+				&& protectedSeg.tail != entry) {
+			Entry demoted = protectedSeg.tail;
+			protectedSeg.remove(demoted);
+			probation.addFirst(demoted);
+		}
+	}
+
+	private Lease lease(Entry entry, int length) {
+		if (entry.pins++ == 0) {
+			entry.slab.pinned++;
+		}
+		return new Lease(this, entry,
+				slice(entry.slot, 0, length).asReadOnlyBuffer());
+	}
+
+	/**
+	 * Fetch the tile for an observation, reading it with the given loader on a
+	 * miss. The loader runs without holding the cache lock, so two threads
+	 * missing on the same key at once may both read it. The returned lease
+	 * must be closed.
+	 */
+	Lease get(TileObservation obs, Supplier<byte[]> loader) {
+		CacheKey key = new CacheKey(obs, false);
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			if (entry != null) {
+				hits++;
+				touch(entry);
+				return lease(entry, entry.slot.limit());
+			}
+			misses++;
+		}
+
+		byte[] tile = loader.get();
+		int sizeClass = sizeClass(tile.length);
+		synchronized (this) {
+			Entry entry = null;
+			if (sizeClass >= 0 && !entries.containsKey(key)) {
+				entry = allocate(key, sizeClass);
+			}
+			if (entry == null) {
+				// too big, already cached by a racing thread, or everything
+				// which could make room is pinned
+				return new Lease(this, null, ByteBuffer.wrap(tile));
+			}
+			ByteBuffer slot = entry.slot;
+			((Buffer) slot).clear();
+			slot.put(tile);
+			((Buffer) slot).flip();
+			entries.put(key, entry);
+			probation.addFirst(entry);
+			return lease(entry, tile.length);
+		}
+	}
+
+	/**
+	 * Drop every tile (counters are left alone). Slots of tiles which are
+	 * still leased out are reused once their leases are closed.
+	 */
+	public synchronized void clear() {
+		for (Entry entry : entries.values().toArray(new Entry[0])) {
+			evict(entry);
+			evictions--;
+		}
+	}
+
+	/** Maximum number of bytes of direct memory the cache will reserve */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/** Bytes of direct memory reserved so far */
+	public synchronized long getReservedBytes() {
+		return slabBytes;
+	}
+
+	/** Bytes of slot space currently holding tiles */
+	public synchronized long getSizeBytes() {
+		return probation.bytes + protectedSeg.bytes;
+	}
+
+	/** Number of tiles currently held */
+	public synchronized int getEntryCount() {
+		return entries.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "TileCache: " + entries.size() + " tiles, " + getSizeBytes()
+				+ "/" + maxBytes + " bytes, " + hits + " hits, " + misses
+				+ " misses, " + evictions + " evictions";
+	}
+}
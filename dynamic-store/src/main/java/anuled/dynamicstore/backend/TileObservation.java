@@ -3,8 +3,6 @@ package anuled.dynamicstore.backend;
 import java.time.ZonedDateTime;
 
 import anuled.dynamicstore.Util;
-import ch.systemsx.cisd.hdf5.IHDF5ByteReader;
-import ch.systemsx.cisd.hdf5.IHDF5Reader;
 
 /**
  * <code>Observation</code> subclass for entire image tiles. Unlike
@@ -14,7 +12,11 @@ import ch.systemsx.cisd.hdf5.IHDF5Reader;
 public final class TileObservation extends Observation {
 	protected TileObservation(Cell cell, Product product,
 			ZonedDateTime timestamp, int band) {
-		super(cell, product, timestamp, band);
+		super(cell, product, timestamp, band, true);
+	}
+
+	TileObservation(Cell cell, Product product, long id) {
+		super(cell, product, id);
 	}
 
 	public int getPixelLevel() {
@@ -25,25 +27,29 @@ public final class TileObservation extends Observation {
 
 	/** Return contents of tile as a byte array of PNG data */
 	public byte[] getTile() {
-		IHDF5Reader fp = cell.getReader();
-		IHDF5ByteReader dataReader = fp.uint8();
-		String dsPath = cell.getPath() + "/" + product.getName() + "/png_band_"
-				+ band + "@" + Util.canonicalTimeString(timestamp);
-		return dataReader.readArray(dsPath);
+		try (TileCache.Lease lease = openTile()) {
+			return lease.toArray();
+		}
 	}
 
-	public double getResolution() {
-		return product.getTileSize() / getCell().getDegreesSpanned();
+	/**
+	 * Borrow the PNG data for this tile from the dataset's tile cache, without
+	 * copying it onto the heap. The lease must be closed when the data is no
+	 * longer needed.
+	 */
+	public TileCache.Lease openTile() {
+		return cell.getDataset().getTileCache().get(this, this::readTile);
 	}
 
-	@Override
-	public boolean equals(Object other) {
-		return super.equals(other) && (other instanceof TileObservation);
+	/** Read the PNG data for this tile from HDF5 */
+	private byte[] readTile() {
+		String dsPath = cell.getPath() + "/" + product.getName() + "/png_band_"
+				+ band + "@" + Util.canonicalTimeString(getTimestamp());
+		return cell.getDataset().readByteArray(dsPath);
 	}
 
-	@Override
-	public int hashCode() {
-		return super.hashCode() ^ TileObservation.class.hashCode();
+	public double getResolution() {
+		return product.getTileSize() / getCell().getDegreesSpanned();
 	}
 
 	@Override
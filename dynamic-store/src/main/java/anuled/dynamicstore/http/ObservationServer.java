@@ -0,0 +1,403 @@
+package anuled.dynamicstore.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.jena.atlas.io.AWriter;
+import org.apache.jena.atlas.io.IO;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.util.iterator.ExtendedIterator;
+
+import anuled.dynamicstore.ObservationGraph;
+import anuled.dynamicstore.ObservationNode;
+import anuled.dynamicstore.backend.HDF5Collection;
+import anuled.dynamicstore.backend.Observation;
+import anuled.dynamicstore.backend.ObservationPosition;
+import anuled.dynamicstore.backend.PixelObservation;
+import anuled.dynamicstore.backend.TileCache;
+import anuled.dynamicstore.backend.TileObservation;
+import anuled.dynamicstore.rdfmapper.ObservationFilter;
+import anuled.dynamicstore.rdfmapper.ObservationMeta;
+import anuled.dynamicstore.rdfmapper.URLScheme;
+import anuled.dynamicstore.writer.StreamingRDFWriter;
+import spark.Request;
+import spark.Response;
+import spark.Service;
+
+/**
+ * Small embedded HTTP server for hot, simple lookups which don't need the
+ * SPARQL stack. Observations are named by the path of their observation URL
+ * (everything after {@link URLScheme#DATA_PREFIX}), under one of:
+ *
+ * <dl>
+ * <dt><code>/tile/&lt;path&gt;.png</code></dt>
+ * <dd>a tile's PNG, at the URLs made by
+ * {@link URLScheme#tileURL(String, Observation)}; see
+ * {@link anuled.dynamicstore.backend.DatasetOptions#setTileURLPrefix(String)}
+ * </dd>
+ * <dt><code>/pixel/&lt;path&gt;</code></dt>
+ * <dd>a pixel's value, as plain text</dd>
+ * <dt><code>/observation/&lt;path&gt;</code></dt>
+ * <dd>every triple about an observation, as N-Triples (or Turtle, if the
+ * client prefers it)</dd>
+ * <dt><code>/observations</code></dt>
+ * <dd>a page of observations' triples, for harvesting the whole graph (or
+ * the part matching the <code>cell</code>, <code>level</code>,
+ * <code>band</code> and <code>type</code> parameters). Pages have up to
+ * <code>limit</code> observations; when there are more, a
+ * <code>Link</code> header with <code>rel="next"</code> gives the URL of the
+ * next page, whose <code>after</code> parameter is a continuation token (see
+ * {@link ObservationPosition}). Each page costs the same to fetch however far
+ * into the scan it is, and only one page is held in memory at a time.</dd>
+ * </dl>
+ *
+ * Tiles and pixels have a known length, so they are sent with a
+ * <code>Content-Length</code>; triples are streamed out as they are made, in
+ * chunks, and gzipped for clients which accept that. Either way the
+ * connection can be kept alive for the next lookup. Tiles are streamed
+ * straight out of the tile cache (PNGs don't gain from gzip), with an
+ * <code>ETag</code> (a hash of the PNG) and a <code>Cache-Control</code>
+ * header, so browsers and proxies can cache them and revalidate them with
+ * <code>If-None-Match</code>.
+ */
+public class ObservationServer implements AutoCloseable {
+	/** Path under which tiles are served */
+	public static final String TILE_PATH = "/tile/";
+	/** Path under which pixel values are served */
+	public static final String PIXEL_PATH = "/pixel/";
+	/** Path under which observations' triples are served */
+	public static final String OBSERVATION_PATH = "/observation/";
+	/** Path at which pages of observations are served */
+	public static final String OBSERVATIONS_PATH = "/observations";
+	/** Number of observations in a page, unless the client asks otherwise */
+	public static final int DEFAULT_PAGE_SIZE = 1000;
+	/** Largest page a client can ask for */
+	public static final int MAX_PAGE_SIZE = 100000;
+	/** Default lifetime of a cached tile, in seconds */
+	public static final long DEFAULT_MAX_AGE = 24 * 60 * 60;
+
+	private static final String NTRIPLES = "application/n-triples",
+			TURTLE = "text/turtle";
+
+	private final ObservationGraph graph;
+	private final HDF5Collection collection;
+	private final String cacheControl;
+	private final Service http;
+
+	/**
+	 * Start serving; returns once the server is listening.
+	 *
+	 * @param graph
+	 *            graph to serve observations (and their triples) from
+	 * @param port
+	 *            port to listen on
+	 * @param maxAgeSeconds
+	 *            how long clients may cache a tile without revalidating it
+	 * @throws IllegalStateException
+	 *             if the port is already in use
+	 */
+	public ObservationServer(ObservationGraph graph, int port,
+			long maxAgeSeconds) {
+		if (port <= 0 || port > 0xffff) {
+			throw new IllegalArgumentException("Invalid port " + port);
+		}
+		if (maxAgeSeconds < 0) {
+			throw new IllegalArgumentException(
+					"Maximum age must be non-negative");
+		}
+		checkPortFree(port);
+		this.graph = graph;
+		this.collection = graph.getCollection();
+		this.cacheControl = "public, max-age=" + maxAgeSeconds;
+		http = Service.ignite().port(port);
+		http.get(TILE_PATH + "*", this::serveTile);
+		http.get(PIXEL_PATH + "*", this::servePixel);
+		http.get(OBSERVATION_PATH + "*", this::serveTriples);
+		http.get(OBSERVATIONS_PATH, this::servePage);
+		http.awaitInitialization();
+	}
+
+	public ObservationServer(ObservationGraph graph, int port) {
+		this(graph, port, DEFAULT_MAX_AGE);
+	}
+
+	/**
+	 * Spark calls System.exit() if it can't bind its port, which would take
+	 * the whole SPARQL server down with it, so find out first
+	 */
+	private static void checkPortFree(int port) {
+		try (ServerSocket socket = new ServerSocket()) {
+			socket.setReuseAddress(true);
+			socket.bind(new InetSocketAddress(port));
+		} catch (IOException e) {
+			throw new IllegalStateException(
+					"Can't listen on port " + port + ": " + e.getMessage());
+		}
+	}
+
+	/** Tile URL prefix for a server reachable at the given host and port */
+	public static String urlPrefix(String host, int port) {
+		return "http://" + host + ":" + port + TILE_PATH;
+	}
+
+	/** Find the observation named by a request path, or return null */
+	private Observation lookup(String prefix, String path, boolean tile) {
+		try {
+			ObservationMeta meta = tile
+					? URLScheme.parseTileURL(prefix, path)
+					: URLScheme.parseObservationURL(prefix, path);
+			return ObservationFilter.retrieveFromMeta(meta, collection, null);
+		} catch (URLScheme.ParseException e) {
+			return null;
+		}
+	}
+
+	private static Object notFound(Response res, String what) {
+		res.status(404);
+		res.type("text/plain");
+		return "No such " + what;
+	}
+
+	private Object serveTile(Request req, Response res) throws IOException {
+		Observation obs = lookup(TILE_PATH, req.pathInfo(), true);
+		if (!(obs instanceof TileObservation)) {
+			return notFound(res, "tile");
+		}
+
+		try (TileCache.Lease lease = ((TileObservation) obs).openTile()) {
+			ByteBuffer data = lease.getData().duplicate();
+			String etag = etag(data.duplicate());
+			res.header("ETag", etag);
+			res.header("Cache-Control", cacheControl);
+			if (matches(req.headers("If-None-Match"), etag)) {
+				res.status(304);
+				return "";
+			}
+			res.type("image/png");
+			res.raw().setContentLength(data.remaining());
+			WritableByteChannel out = Channels
+					.newChannel(res.raw().getOutputStream());
+			while (data.hasRemaining()) {
+				out.write(data);
+			}
+		}
+		return sent(res);
+	}
+
+	private Object servePixel(Request req, Response res) throws IOException {
+		Observation obs = lookup(PIXEL_PATH, req.pathInfo(), false);
+		if (!(obs instanceof PixelObservation)) {
+			return notFound(res, "pixel");
+		}
+		byte[] body = Double.toString(((PixelObservation) obs).getPixel())
+				.getBytes(StandardCharsets.US_ASCII);
+		res.type("text/plain");
+		res.raw().setContentLength(body.length);
+		res.raw().getOutputStream().write(body);
+		return sent(res);
+	}
+
+	private Object serveTriples(Request req, Response res)
+			throws IOException {
+		Observation obs = lookup(OBSERVATION_PATH, req.pathInfo(), false);
+		if (obs == null) {
+			return notFound(res, "observation");
+		}
+		return writeTriples(req, res, Collections.singletonList(obs));
+	}
+
+	private static Object badRequest(Response res, String why) {
+		res.status(400);
+		res.type("text/plain");
+		return why;
+	}
+
+	private Object servePage(Request req, Response res) throws IOException {
+		ObservationFilter filter = new ObservationFilter(collection,
+				graph.getQBDataSetPrefix());
+		int limit = DEFAULT_PAGE_SIZE;
+		ObservationPosition after = null;
+		try {
+			if (req.queryParams("limit") != null) {
+				limit = Integer.parseInt(req.queryParams("limit"));
+				if (limit <= 0 || limit > MAX_PAGE_SIZE) {
+					return badRequest(res, "Limit must be between 1 and "
+							+ MAX_PAGE_SIZE);
+				}
+			}
+			if (req.queryParams("after") != null) {
+				after = ObservationPosition.decode(req.queryParams("after"));
+			}
+			if (req.queryParams("cell") != null) {
+				filter.constrainCellID(req.queryParams("cell"));
+			}
+			if (req.queryParams("level") != null) {
+				filter.constrainLevel(
+						Integer.parseInt(req.queryParams("level")));
+			}
+			if (req.queryParams("band") != null) {
+				filter.constrainBandNum(
+						Integer.parseInt(req.queryParams("band")));
+			}
+			String type = req.queryParams("type");
+			if ("pixel".equals(type)) {
+				filter.constrainToPixel();
+			} else if ("tile".equals(type)) {
+				filter.constrainToTile();
+			} else if (type != null) {
+				return badRequest(res, "Type must be pixel or tile");
+			}
+		} catch (IllegalArgumentException e) {
+			// includes NumberFormatException
+			return badRequest(res, e.getMessage());
+		}
+
+		// fetch one extra observation to find out whether there's a next page
+		List<Observation> page;
+		try (Stream<Observation> observations = filter.executeAfter(after)) {
+			page = observations.limit(limit + 1L)
+					.collect(Collectors.toList());
+		} catch (IllegalArgumentException e) {
+			return badRequest(res, e.getMessage());
+		}
+		if (page.size() > limit) {
+			page = page.subList(0, limit);
+			ObservationPosition last = collection
+					.position(page.get(limit - 1));
+			res.header("Link", "<" + nextPageURL(req, last)
+					+ ">; rel=\"next\"");
+		}
+		return writeTriples(req, res, page);
+	}
+
+	/** URL of the page after the one ending at the given position */
+	private static String nextPageURL(Request req, ObservationPosition last) {
+		StringBuilder sb = new StringBuilder(OBSERVATIONS_PATH).append('?');
+		for (String param : req.queryParams()) {
+			if (!param.equals("after")) {
+				sb.append(urlEncode(param)).append('=')
+						.append(urlEncode(req.queryParams(param)))
+						.append('&');
+			}
+		}
+		return sb.append("after=").append(last.encode()).toString();
+	}
+
+	private static String urlEncode(String value) {
+		try {
+			return URLEncoder.encode(value, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			// every JRE has UTF-8
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Write every triple about each of the given observations, in the format
+	 * (and encoding) the client asked for
+	 */
+	private Object writeTriples(Request req, Response res,
+			List<Observation> observations) throws IOException {
+		String accept = req.headers("Accept");
+		boolean turtle = accept != null && accept.contains(TURTLE)
+				&& !accept.contains(NTRIPLES);
+		res.type((turtle ? TURTLE : NTRIPLES) + "; charset=utf-8");
+		res.header("Vary", "Accept, Accept-Encoding");
+
+		OutputStream out = res.raw().getOutputStream();
+		String acceptEncoding = req.headers("Accept-Encoding");
+		boolean gzip = acceptEncoding != null
+				&& acceptEncoding.contains("gzip");
+		if (gzip) {
+			res.header("Content-Encoding", "gzip");
+			out = new GZIPOutputStream(out, 8192);
+		}
+		AWriter writer = IO.wrapUTF8(out);
+		StreamingRDFWriter stream = turtle
+				? StreamingRDFWriter.turtle(writer)
+				: StreamingRDFWriter.ntriples(writer);
+		stream.start();
+		for (Observation obs : observations) {
+			ExtendedIterator<Triple> triples = graph
+					.find(new ObservationNode(obs), Node.ANY, Node.ANY);
+			try {
+				triples.forEachRemaining(stream::triple);
+			} finally {
+				triples.close();
+			}
+		}
+		stream.finish();
+		if (gzip) {
+			// writes the trailer, but leaves the connection open
+			((GZIPOutputStream) out).finish();
+		}
+		return sent(res);
+	}
+
+	/**
+	 * Commit a response whose body we wrote ourselves. Spark leaves committed
+	 * responses alone; otherwise it would write (and maybe gzip) the route's
+	 * return value after our body.
+	 */
+	private static Object sent(Response res) throws IOException {
+		res.raw().flushBuffer();
+		return "";
+	}
+
+	/** Strong entity tag: the SHA-1 of the tile's bytes */
+	static String etag(ByteBuffer data) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			// every JRE has SHA-1
+			throw new RuntimeException(e);
+		}
+		digest.update(data);
+		StringBuilder sb = new StringBuilder("\"");
+		for (byte b : digest.digest()) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16))
+					.append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.append('"').toString();
+	}
+
+	/** Does an If-None-Match header name the given tag? */
+	static boolean matches(String ifNoneMatch, String etag) {
+		if (ifNoneMatch == null) {
+			return false;
+		}
+		for (String tag : ifNoneMatch.split(",")) {
+			tag = tag.trim();
+			if (tag.startsWith("W/")) {
+				tag = tag.substring(2);
+			}
+			if (tag.equals("*") || tag.equals(etag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** Stop serving; doesn't dispose of the graph's files */
+	@Override
+	public void close() {
+		http.stop();
+	}
+}
@@ -1,26 +1,37 @@
 package anuled.dynamicstore.rdfmapper;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.NoSuchElementException;
 import java.util.Optional;
 import java.util.stream.Stream;
 
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.jena.graph.Node;
 
-import anuled.dynamicstore.backend.Cell;
+import anuled.dynamicstore.ImageNode;
+import anuled.dynamicstore.backend.HDF5Collection;
 import anuled.dynamicstore.backend.HDF5Dataset;
 import anuled.dynamicstore.backend.Observation;
+import anuled.dynamicstore.backend.ObservationPosition;
+import anuled.dynamicstore.backend.ObservationStatistics;
 import anuled.dynamicstore.backend.PixelObservation;
+import anuled.dynamicstore.backend.Product;
 import anuled.dynamicstore.backend.TileObservation;
+import anuled.dynamicstore.rdfmapper.properties.DataSetProperty;
 import anuled.dynamicstore.rdfmapper.properties.ObservationProperty;
 import anuled.dynamicstore.rdfmapper.properties.PropertyIndex;
+import anuled.dynamicstore.rdfmapper.properties.TimeProperty;
 
 /**
  * Class for filtering observations in the virtual RDF graph.
  */
 public class ObservationFilter {
+	/** Guessed fraction of observations within one side of a bounding box */
+	static final double BOUND_SELECTIVITY = 0.5;
+	/** Guessed fraction of observations passing any other naive constraint */
+	static final double NAIVE_SELECTIVITY = 0.1;
+
 	// Things we can filter the underlying observations by: whether they're
 	// pixels or tiles, band number, DGGS cell, level of DGGS cell in hierarchy
 	String reqCellID = null;
@@ -30,15 +41,23 @@ public class ObservationFilter {
 	Double latMax = null;
 	Double lonMin = null;
 	Double lonMax = null;
+	// inclusive bounds on observation time, in epoch seconds
+	long timeMin = Long.MIN_VALUE;
+	long timeMax = Long.MAX_VALUE;
 	Class<?> reqClass = null;
 	// set empty = true when there are no matching observations
 	boolean empty = false;
 	List<Pair<ObservationProperty, Node>> naiveConstraints = new ArrayList<>();
-	HDF5Dataset dataset;
+	HDF5Collection datasets;
 	String qbDatasetPrefix;
 
 	public ObservationFilter(HDF5Dataset dataset, String qbDatasetPrefix) {
-		this.dataset = dataset;
+		this(dataset.asCollection(), qbDatasetPrefix);
+	}
+
+	public ObservationFilter(HDF5Collection datasets,
+			String qbDatasetPrefix) {
+		this.datasets = datasets;
 		this.qbDatasetPrefix = qbDatasetPrefix;
 	}
 
@@ -113,6 +132,18 @@ public class ObservationFilter {
 		return this;
 	}
 
+	/** Only match observations at or after a time (in epoch seconds) */
+	public ObservationFilter constrainTimeMin(long timeMin) {
+		this.timeMin = Math.max(this.timeMin, timeMin);
+		return this;
+	}
+
+	/** Only match observations at or before a time (in epoch seconds) */
+	public ObservationFilter constrainTimeMax(long timeMax) {
+		this.timeMax = Math.min(this.timeMax, timeMax);
+		return this;
+	}
+
 	public ObservationFilter constrainToPixel() {
 		constrainType(PixelObservation.class);
 		return this;
@@ -137,58 +168,236 @@ public class ObservationFilter {
 	}
 
 	public Stream<Observation> execute() {
-		if (empty) {
+		return execute(0);
+	}
+
+	/**
+	 * Like {@link #execute()}, but skipping the first <code>offset</code>
+	 * matching observations. Observations always come in the same order (see
+	 * {@link HDF5Collection#observations(Integer, String, Double, Double, Double, Double, Integer, Class, long, long)}),
+	 * so this can be used to page through results. Unless there are naive
+	 * constraints, the skipped observations are never made.
+	 */
+	public Stream<Observation> execute(long offset) {
+		if (empty || timeMin > timeMax) {
 			return Stream.of();
-		} else {
-			Stream<Cell> cells = dataset.cells(reqLevel, reqCellID, lonMin,
-					lonMax, latMin, latMax);
-			Stream<Observation> observations = cells
-					.flatMap(c -> c.observations(reqBandNum, reqClass))
-					.filter(o -> {
-						String qbDatasetURI = MetadataFactory
-								.datasetURI(qbDatasetPrefix, o.getProduct());
-						for (Pair<ObservationProperty, Node> pair : naiveConstraints) {
-							ObservationProperty prop = pair.getLeft();
-							Node expected = pair.getRight();
-							Stream<Node> actual = prop.valuesForObservation(o,
-									qbDatasetURI);
-							if (!actual.anyMatch(v -> expected.equals(v))) {
-								return false;
-							}
-						}
-						return true;
-					});
+		} else if (naiveConstraints.isEmpty()) {
+			// files which can't match are skipped without being touched, and
+			// each file is scanned by one cursor
+			return datasets.observations(reqLevel, reqCellID, lonMin, lonMax,
+					latMin, latMax, reqBandNum, reqClass, timeMin, timeMax,
+					offset);
+		}
+		// skip sequentially: on a parallel stream, skip buffers the whole scan
+		// before handing anything over
+		return checkNaively(datasets.observations(reqLevel, reqCellID,
+				lonMin, lonMax, latMin, latMax, reqBandNum, reqClass, timeMin,
+				timeMax)).sequential().skip(offset);
+	}
+
+	/**
+	 * Like {@link #execute()}, but starting just after the observation at the
+	 * given position (see {@link HDF5Collection#position(Observation)}), or at
+	 * the beginning if it's null. Resuming from a position costs the same
+	 * however far into the results it is.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the position can't have come from the filter's
+	 *             collection
+	 */
+	public Stream<Observation> executeAfter(ObservationPosition after) {
+		if (empty || timeMin > timeMax) {
+			return Stream.of();
+		}
+		return checkNaively(datasets.observationsAfter(reqLevel, reqCellID,
+				lonMin, lonMax, latMin, latMax, reqBandNum, reqClass, timeMin,
+				timeMax, after));
+	}
+
+	/**
+	 * Like {@link #execute()}, but ordered by time (latest first, if
+	 * <code>latestFirst</code> is set) rather than by file and cell; see
+	 * {@link HDF5Collection#observationsByTime(Integer, String, Double, Double, Double, Double, Integer, Class, long, long, boolean)}
+	 */
+	public Stream<Observation> executeByTime(boolean latestFirst) {
+		return executeByTime(latestFirst, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Like {@link #executeByTime(boolean)}, but only the first
+	 * <code>limit</code> observations; see
+	 * {@link HDF5Collection#observationsByTime(Integer, String, Double, Double, Double, Double, Integer, Class, long, long, boolean, long)}
+	 */
+	public Stream<Observation> executeByTime(boolean latestFirst,
+			long limit) {
+		if (empty || timeMin > timeMax) {
+			return Stream.of();
+		}
+		if (!naiveConstraints.isEmpty()) {
+			// can't tell how many observations the check will throw away
+			return checkNaively(datasets.observationsByTime(reqLevel,
+					reqCellID, lonMin, lonMax, latMin, latMax, reqBandNum,
+					reqClass, timeMin, timeMax, latestFirst)).limit(limit);
+		}
+		return datasets.observationsByTime(reqLevel, reqCellID, lonMin,
+				lonMax, latMin, latMax, reqBandNum, reqClass, timeMin, timeMax,
+				latestFirst, limit);
+	}
+
+	/**
+	 * Like {@link #execute()}, but ordered by DGGS ID across all files; see
+	 * {@link HDF5Collection#observationsByCell(Integer, String, Double, Double, Double, Double, Integer, Class, long, long)}
+	 */
+	public Stream<Observation> executeByCell() {
+		if (empty || timeMin > timeMax) {
+			return Stream.of();
+		}
+		return checkNaively(datasets.observationsByCell(reqLevel, reqCellID,
+				lonMin, lonMax, latMin, latMax, reqBandNum, reqClass, timeMin,
+				timeMax));
+	}
+
+	/** Filter out observations which don't meet the naive constraints */
+	private Stream<Observation> checkNaively(
+			Stream<Observation> observations) {
+		if (naiveConstraints.isEmpty()) {
 			return observations;
 		}
+		return observations.filter(o -> {
+			String qbDatasetURI = MetadataFactory.datasetURI(qbDatasetPrefix,
+					o.getProduct());
+			for (Pair<ObservationProperty, Node> pair : naiveConstraints) {
+				ObservationProperty prop = pair.getLeft();
+				Node expected = pair.getRight();
+				Stream<Node> actual = prop.valuesForObservation(o,
+						qbDatasetURI);
+				if (!actual.anyMatch(v -> ImageNode.sameValue(expected, v))) {
+					return false;
+				}
+			}
+			return true;
+		});
+	}
+
+	/**
+	 * Count the observations {@link #execute()} would return. Unless there
+	 * are naive constraints (which have to be checked against each
+	 * observation), the count is worked out from the catalogs, without
+	 * enumerating any observations.
+	 */
+	public long count() {
+		if (empty || timeMin > timeMax) {
+			return 0;
+		}
+		if (!naiveConstraints.isEmpty()) {
+			// every observation has to be checked, so check several files at
+			// once
+			return execute().parallel().count();
+		}
+		return datasets.count(reqLevel, reqCellID, lonMin, lonMax, latMin,
+				latMax, reqBandNum, reqClass, timeMin, timeMax);
+	}
+
+	/**
+	 * Estimate how many observations {@link #execute()} would return, using
+	 * only the collection's {@link ObservationStatistics}. Constraints on
+	 * level, band, product, type and time are estimated from the counts for
+	 * each; they are assumed to be independent of one another. Bounding box
+	 * constraints and other naive constraints are given a fixed selectivity,
+	 * since the statistics say nothing about them.
+	 */
+	public long estimateCount() {
+		if (empty || timeMin > timeMax) {
+			return 0;
+		}
+		ObservationStatistics stats = datasets.getStatistics();
+		double total = stats.getTotal();
+		if (total == 0) {
+			return 0;
+		}
+		double rv = total;
+		Integer level = reqLevel;
+		if (reqCellID != null) {
+			// IDs are one character per level
+			if (level != null && level != reqCellID.length()) {
+				return 0;
+			}
+			level = reqCellID.length();
+		}
+		if (level != null) {
+			rv *= stats.countForLevel(level) / total;
+		}
+		if (reqCellID != null) {
+			long cells = stats.cellsAtLevel(level);
+			rv = cells == 0 ? 0 : rv / cells;
+		}
+		if (reqBandNum != null) {
+			rv *= stats.countForBand(reqBandNum) / total;
+		}
+		if (reqClass != null) {
+			// one pixel and one tile for everything
+			rv /= 2;
+		}
+		if (timeMin != Long.MIN_VALUE || timeMax != Long.MAX_VALUE) {
+			rv *= stats.countForTimes(timeMin, timeMax) / total;
+		}
+		for (Double bound : Arrays.asList(latMin, latMax, lonMin, lonMax)) {
+			if (bound != null) {
+				rv *= BOUND_SELECTIVITY;
+			}
+		}
+		for (Pair<ObservationProperty, Node> pair : naiveConstraints) {
+			ObservationProperty prop = pair.getLeft();
+			if (prop instanceof DataSetProperty) {
+				rv *= productCount(stats, pair.getRight()) / total;
+			} else if (!(prop instanceof TimeProperty)) {
+				// (time has already been accounted for by its range)
+				rv *= NAIVE_SELECTIVITY;
+			}
+		}
+		return rv == 0 ? 0 : Math.max(1, Math.round(rv));
+	}
+
+	/** Count of observations with the given qb:dataSet */
+	private long productCount(ObservationStatistics stats, Node dataset) {
+		if (!dataset.isURI()) {
+			return 0;
+		}
+		for (Product product : datasets.getProducts()) {
+			if (MetadataFactory.datasetURI(qbDatasetPrefix, product)
+					.equals(dataset.getURI())) {
+				return stats.countForProduct(product.getName());
+			}
+		}
+		return 0;
 	}
 
+	/**
+	 * Find the observation described by a parsed observation URL, or return
+	 * null if there is no such observation. This is a direct lookup on the
+	 * dataset, so it doesn't need to enumerate any observations.
+	 */
 	public static Observation retrieveFromMeta(ObservationMeta meta,
 			HDF5Dataset dataset, String qbDatasetPrefix) {
-		ObservationFilter filter = new ObservationFilter(dataset,
+		return retrieveFromMeta(meta, dataset.asCollection(),
 				qbDatasetPrefix);
-		filter.constrainBandNum(meta.band);
-		filter.constrainCellID(meta.cell);
-		filter.constrainLevel(meta.levelSquare);
-		if (meta.levelPixel == meta.levelSquare) {
-			filter.constrainToPixel();
-		} else {
-			filter.constrainToTile();
-		}
-		Stream<Observation> results = filter.execute();
-		Optional<Observation> maybeFst = results.findFirst();
-		Observation fst;
-		try {
-			fst = maybeFst.get();
-		} catch (NoSuchElementException e) {
+	}
+
+	/** Like the above, but looks through every file in a collection */
+	public static Observation retrieveFromMeta(ObservationMeta meta,
+			HDF5Collection datasets, String qbDatasetPrefix) {
+		if (meta.cell == null || meta.product == null
+				|| meta.timestamp == null
+				|| meta.levelSquare != meta.cell.length()) {
 			return null;
 		}
-
-		// We know that band number, cell ID and levelSquare match. Just need to
-		// check that levelPixel and datetime match
-		boolean tsEqual = fst.getTimestamp().equals(meta.timestamp);
-		if (fst.getPixelLevel() == meta.levelPixel && tsEqual) {
-			return fst;
+		boolean isPixel = meta.levelPixel == meta.levelSquare;
+		Observation obs = datasets.observation(meta.product, meta.timestamp,
+				meta.cell, meta.band, isPixel);
+		// tiles also need the right number of pixel levels below the cell
+		if (obs == null || obs.getPixelLevel() != meta.levelPixel) {
+			return null;
 		}
-		return null;
+		return obs;
 	}
 }
@@ -1,49 +1,138 @@
 package anuled.dynamicstore.rdfmapper;
 
-import java.time.OffsetDateTime;
+import java.time.DateTimeException;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import anuled.dynamicstore.backend.Cell;
+import anuled.dynamicstore.backend.HDF5Dataset;
 import anuled.dynamicstore.backend.Observation;
+import anuled.dynamicstore.backend.ObservationID;
 
 /**
- * Code for formatting and parsing using our observation URL scheme.
+ * Code for formatting and parsing using our observation URL scheme. URLs look
+ * like this (all on one line):
+ *
+ * <pre>
+ * https://anulinkedearth.org/rdf/observation/LS8_OLI_TIRS_NBAR/2013/05/27/
+ *     23/58/20/cell/R7852/levelSquare-5/levelPixel-5/band-4
+ * </pre>
+ *
+ * URLs are formatted and parsed for every observation a query binds or
+ * returns, so both directions are written by hand: formatting appends
+ * straight into a <code>StringBuilder</code>, and parsing is a single pass
+ * over the URL which only allocates the strings and timestamp it returns.
  */
 public class URLScheme {
 	// eventually this will have to be configurable
 	public static String DATA_PREFIX = "https://anulinkedearth.org/rdf/observation/";
-	
-	public static Pattern SUFFIX_PATTERN = Pattern
-			.compile("^(?<product>\\w+)"
-					+ "/(?<year>\\d{4})/(?<month>\\d{2})/(?<day>\\d{2})"
-					+ "/(?<hour>\\d{2})/(?<minute>\\d{2})/(?<second>\\d{2})"
-					+ "/cell/(?<cellID>[N-S]\\d*)"
-					+ "/levelSquare-(?<levelSquare>\\d+)"
-					+ "/levelPixel-(?<levelPixel>\\d+)"
-					+ "/band-(?<band>\\d+)$");
+	/** Ending for tile URLs; see {@link #tileURL(String, Observation)} */
+	public static final String TILE_SUFFIX = ".png";
+
+	/** Append <code>value</code> with at least <code>width</code> digits */
+	private static void appendPadded(StringBuilder sb, int value, int width) {
+		int digits = 1;
+		for (int v = value; v >= 10; v /= 10) {
+			digits++;
+		}
+		for (int i = digits; i < width; i++) {
+			sb.append('0');
+		}
+		sb.append(value);
+	}
 
 	/**
 	 * Get the URL corresponding to a specific observation (cell + band +
 	 * resolution) in the dataset.
 	 */
 	public static String observationURL(Observation obs) {
-		String rv = DATA_PREFIX + obs.getProduct().getName() + "/";
+		return appendObservationURL(
+				new StringBuilder(DATA_PREFIX.length() + 96), obs).toString();
+	}
+
+	/**
+	 * Append the URL for an observation to a builder, which can be reused
+	 * (e.g. after <code>setLength(0)</code>) for the next URL.
+	 *
+	 * @return the builder
+	 */
+	public static StringBuilder appendObservationURL(StringBuilder sb,
+			Observation obs) {
+		return appendObservationPath(sb.append(DATA_PREFIX), obs);
+	}
+
+	/** Append everything in an observation URL after the prefix */
+	private static StringBuilder appendObservationPath(StringBuilder sb,
+			Observation obs) {
+		sb.append(obs.getProduct().getName()).append('/');
 
 		// Add date/time
-		OffsetDateTime dt = obs.getTimestamp().toOffsetDateTime();
-		rv += String.format("%04d/%02d/%02d/%02d/%02d/%02d", dt.getYear(),
-				dt.getMonthValue(), dt.getDayOfMonth(), dt.getHour(),
-				dt.getMinute(), dt.getSecond());
+		ZonedDateTime dt = obs.getTimestamp();
+		appendPadded(sb, dt.getYear(), 4);
+		sb.append('/');
+		appendPadded(sb, dt.getMonthValue(), 2);
+		sb.append('/');
+		appendPadded(sb, dt.getDayOfMonth(), 2);
+		sb.append('/');
+		appendPadded(sb, dt.getHour(), 2);
+		sb.append('/');
+		appendPadded(sb, dt.getMinute(), 2);
+		sb.append('/');
+		appendPadded(sb, dt.getSecond(), 2);
 
 		// DGGS details
 		Cell cell = obs.getCell();
-		rv += String.format("/cell/%s/levelSquare-%d/levelPixel-%d/band-%d",
-				cell.getDGGSIdent(), obs.getCellLevel(), obs.getPixelLevel(),
-				obs.getBand());
-		return rv;
+		return sb.append("/cell/").append(cell.getDGGSIdent())
+				.append("/levelSquare-").append(obs.getCellLevel())
+				.append("/levelPixel-").append(obs.getPixelLevel())
+				.append("/band-").append(obs.getBand());
+	}
+
+	/**
+	 * Get the URL for an observation given by its {@link ObservationID},
+	 * or null if the ID doesn't name an observation in the dataset
+	 */
+	public static String observationURL(HDF5Dataset dataset, long id) {
+		Observation obs = dataset.observation(id);
+		return obs == null ? null : observationURL(obs);
+	}
+
+	/**
+	 * Find the {@link ObservationID} named by an observation URL.
+	 *
+	 * @return the ID, or {@link ObservationID#NONE} if the dataset has no
+	 *         such observation
+	 * @throws ParseException
+	 *             if the URL isn't an observation URL at all
+	 */
+	public static long observationID(String url, HDF5Dataset dataset) {
+		Observation obs = ObservationFilter.retrieveFromMeta(
+				parseObservationURL(url), dataset, null);
+		return obs == null ? ObservationID.NONE : obs.getID();
+	}
+
+	/**
+	 * URL for a tile's PNG data, for serving images by reference rather than
+	 * inline. It's the observation URL with <code>prefix</code> in place of
+	 * {@link #DATA_PREFIX} and {@link #TILE_SUFFIX} on the end, so it stays
+	 * the same across restarts and reorganisations of the HDF5 files.
+	 */
+	public static String tileURL(String prefix, Observation obs) {
+		return appendObservationPath(
+				new StringBuilder(prefix.length() + 100).append(prefix), obs)
+						.append(TILE_SUFFIX).toString();
+	}
+
+	/**
+	 * Parse a URL made by {@link #tileURL(String, Observation)}; this also
+	 * works on just the path part, given just the path part of the prefix.
+	 */
+	public static ObservationMeta parseTileURL(String prefix, String url) {
+		if (!url.endsWith(TILE_SUFFIX)) {
+			throw new ParseException("URL '" + url + "' is not a tile URL");
+		}
+		return parseObservationURL(prefix,
+				url.substring(0, url.length() - TILE_SUFFIX.length()));
 	}
 
 	public static class ParseException extends RuntimeException {
@@ -54,34 +143,155 @@ public class URLScheme {
 		}
 	}
 
-	public static ObservationMeta parseObservationURL(String url) {
-		if (!url.startsWith(DATA_PREFIX)) {
-			throw new ParseException("URL '" + url + "' does not start with '"
-					+ DATA_PREFIX + "'");
+	/** Single-pass parser for one URL; see parseObservationURL */
+	private static final class Parser {
+		private final String url;
+		private final int suffixStart;
+		private int pos;
+
+		Parser(String url, int start) {
+			this.url = url;
+			this.suffixStart = start;
+			this.pos = start;
+		}
+
+		ParseException fail() {
+			return new ParseException("Invalid suffix: '"
+					+ url.substring(suffixStart) + "'");
+		}
+
+		/** Consume a literal */
+		void expect(String literal) {
+			if (!url.startsWith(literal, pos)) {
+				throw fail();
+			}
+			pos += literal.length();
+		}
+
+		void expect(char c) {
+			if (pos >= url.length() || url.charAt(pos) != c) {
+				throw fail();
+			}
+			pos++;
+		}
+
+		private static boolean isDigit(char c) {
+			return c >= '0' && c <= '9';
+		}
+
+		/** Consume exactly <code>width</code> digits */
+		int fixedInt(int width) {
+			if (pos + width > url.length()) {
+				throw fail();
+			}
+			int value = 0;
+			for (int i = 0; i < width; i++) {
+				char c = url.charAt(pos++);
+				if (!isDigit(c)) {
+					throw fail();
+				}
+				value = value * 10 + (c - '0');
+			}
+			return value;
+		}
+
+		/** Consume one or more digits */
+		int anyInt() {
+			int start = pos;
+			long value = 0;
+			while (pos < url.length() && isDigit(url.charAt(pos))) {
+				value = value * 10 + (url.charAt(pos++) - '0');
+				if (value > Integer.MAX_VALUE) {
+					throw fail();
+				}
+			}
+			if (pos == start) {
+				throw fail();
+			}
+			return (int) value;
+		}
+
+		/** Consume a product name (one or more word characters) */
+		String product() {
+			int start = pos;
+			while (pos < url.length()) {
+				char c = url.charAt(pos);
+				if (!(isDigit(c) || (c >= 'a' && c <= 'z')
+						|| (c >= 'A' && c <= 'Z') || c == '_')) {
+					break;
+				}
+				pos++;
+			}
+			if (pos == start) {
+				throw fail();
+			}
+			return url.substring(start, pos);
+		}
+
+		/** Consume a cell ID: a face from N to S, then any digits */
+		String cellID() {
+			int start = pos;
+			if (pos >= url.length() || url.charAt(pos) < 'N'
+					|| url.charAt(pos) > 'S') {
+				throw fail();
+			}
+			pos++;
+			while (pos < url.length() && isDigit(url.charAt(pos))) {
+				pos++;
+			}
+			return url.substring(start, pos);
+		}
+
+		ObservationMeta parse() {
+			ObservationMeta rv = new ObservationMeta();
+			rv.product = product();
+			expect('/');
+			int year = fixedInt(4);
+			expect('/');
+			int month = fixedInt(2);
+			expect('/');
+			int day = fixedInt(2);
+			expect('/');
+			int hour = fixedInt(2);
+			expect('/');
+			int minute = fixedInt(2);
+			expect('/');
+			int second = fixedInt(2);
+			expect("/cell/");
+			rv.cell = cellID();
+			expect("/levelSquare-");
+			rv.levelSquare = anyInt();
+			expect("/levelPixel-");
+			rv.levelPixel = anyInt();
+			expect("/band-");
+			rv.band = anyInt();
+			if (pos != url.length()) {
+				throw fail();
+			}
+			try {
+				rv.timestamp = ZonedDateTime.of(year, month, day, hour,
+						minute, second, 0, ZoneOffset.UTC);
+			} catch (DateTimeException e) {
+				throw fail();
+			}
+			return rv;
 		}
-		String suffix = url.substring(DATA_PREFIX.length());
-		return parseObservationURLSuffix(suffix);
 	}
 
-	private static ObservationMeta parseObservationURLSuffix(String suffix) {
-		Matcher matcher = SUFFIX_PATTERN.matcher(suffix);
-		if (!matcher.matches()) {
-			throw new ParseException("Invalid suffix: '" + suffix + "'");
+	public static ObservationMeta parseObservationURL(String url) {
+		return parseObservationURL(DATA_PREFIX, url);
+	}
+
+	/**
+	 * Parse an observation URL with some other prefix in place of
+	 * {@link #DATA_PREFIX} (e.g. just the path of a URL on another server)
+	 */
+	public static ObservationMeta parseObservationURL(String prefix,
+			String url) {
+		if (!url.startsWith(prefix)) {
+			throw new ParseException("URL '" + url + "' does not start with '"
+					+ prefix + "'");
 		}
-		ObservationMeta rv = new ObservationMeta();
-		int year = Integer.parseInt(matcher.group("year")),
-				month = Integer.parseInt(matcher.group("month")),
-				day = Integer.parseInt(matcher.group("day")),
-				hour = Integer.parseInt(matcher.group("hour")),
-				minute = Integer.parseInt(matcher.group("minute")),
-				second = Integer.parseInt(matcher.group("second"));
-		rv.timestamp = ZonedDateTime.of(year, month, day, hour, minute, second,
-				0, ZoneOffset.UTC);
-		rv.cell = matcher.group("cellID");
-		rv.levelSquare = Integer.parseInt(matcher.group("levelSquare"));
-		rv.levelPixel = Integer.parseInt(matcher.group("levelPixel"));
-		rv.band = Integer.parseInt(matcher.group("band"));
-		rv.product = matcher.group("product");
-		return rv;
+		return new Parser(url, prefix.length()).parse();
 	}
 }
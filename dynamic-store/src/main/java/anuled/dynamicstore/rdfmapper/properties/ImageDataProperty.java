@@ -1,13 +1,14 @@
 package anuled.dynamicstore.rdfmapper.properties;
 
-import java.util.Base64;
 import java.util.stream.Stream;
 
 import org.apache.jena.graph.Node;
 
+import anuled.dynamicstore.ImageNode;
 import anuled.dynamicstore.Util;
 import anuled.dynamicstore.backend.Observation;
 import anuled.dynamicstore.backend.TileObservation;
+import anuled.dynamicstore.rdfmapper.URLScheme;
 import anuled.vocabulary.LED;
 
 public class ImageDataProperty implements ObservationProperty {
@@ -20,10 +21,15 @@ public class ImageDataProperty implements ObservationProperty {
 	@Override
 	public Stream<Node> valuesForObservation(Observation obs, String qbDatasetURI) {
 		if (obs instanceof TileObservation){
-			TileObservation tileObs = (TileObservation) obs;
-			String b64Data = Base64.getEncoder().encodeToString(tileObs.getTile());
-			String dataURI = "data:image/png;base64," + b64Data;
-			return Stream.of(Util.createURINode(dataURI));
+			String tilePrefix = obs.getCell().getDataset().getOptions()
+					.getTileURLPrefix();
+			if (tilePrefix != null) {
+				// Link to the PNG, which can then be cached by the client
+				return Stream.of(Util.createURINode(
+						URLScheme.tileURL(tilePrefix, obs)));
+			}
+			// Encoded lazily, and then only by whoever writes it out
+			return Stream.of(new ImageNode((TileObservation) obs));
 		}
 		// For PixelObservations, we can't do anything
 		return Stream.of();
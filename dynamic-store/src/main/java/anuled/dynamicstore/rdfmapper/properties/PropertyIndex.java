@@ -10,6 +10,7 @@ import java.util.stream.Stream;
 import org.apache.jena.rdf.model.Resource;
 
 import static anuled.dynamicstore.rdfmapper.properties.LatLonBoxProperty.BoundType.*;
+import static anuled.dynamicstore.rdfmapper.properties.TimeRangeProperty.BoundType.*;
 
 public class PropertyIndex {
 	private static Map<String, ObservationProperty> index = new HashMap<>();
@@ -59,6 +60,16 @@ public class PropertyIndex {
 		for (LatLonBoxProperty property : otherProperties) {
 			register(property);
 		}
+
+		// ...and the time range ones
+		TimeRangeProperty[] timeProperties = {
+				new TimeRangeProperty(TimeFrom),
+				new TimeRangeProperty(TimeAfter),
+				new TimeRangeProperty(TimeUntil),
+				new TimeRangeProperty(TimeBefore) };
+		for (TimeRangeProperty property : timeProperties) {
+			register(property);
+		}
 	}
 
 	public static Optional<ObservationProperty> getProperty(Resource uri) {
@@ -1,12 +1,15 @@
 package anuled.dynamicstore.rdfmapper.properties;
 
+import java.time.Instant;
 import java.util.GregorianCalendar;
+import java.util.Optional;
 import java.util.stream.Stream;
 
 import org.apache.jena.graph.Node;
 
 import anuled.dynamicstore.Util;
 import anuled.dynamicstore.backend.Observation;
+import anuled.dynamicstore.rdfmapper.ObservationFilter;
 import anuled.vocabulary.LED;
 
 public class TimeProperty implements ObservationProperty {
@@ -24,4 +27,23 @@ public class TimeProperty implements ObservationProperty {
 	public Stream<Node> valuesForObservation(Observation obs, String qbDatasetURI) {
 		return Stream.of(Util.createLiteralNode(getTimestamp(obs)));
 	}
+
+	@Override
+	public void applyToFilter(ObservationFilter filter, Node value) {
+		Optional<Instant> time = Util.toInstant(value);
+		if (!time.isPresent()) {
+			filter.constrainImpossibly();
+			return;
+		}
+		// Narrow each cell down to the one matching time; the naive
+		// constraint still checks that the literal is exactly ours.
+		Instant instant = time.get();
+		if (instant.getNano() != 0) {
+			filter.constrainImpossibly();
+			return;
+		}
+		filter.constrainTimeMin(instant.getEpochSecond());
+		filter.constrainTimeMax(instant.getEpochSecond());
+		filter.constrainNaively(this, value);
+	}
 }
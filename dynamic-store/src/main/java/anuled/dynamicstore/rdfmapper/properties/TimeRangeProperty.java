@@ -0,0 +1,104 @@
+package anuled.dynamicstore.rdfmapper.properties;
+
+import static anuled.dynamicstore.Util.*;
+
+import java.time.Instant;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import org.apache.jena.graph.Node;
+
+import anuled.dynamicstore.backend.Observation;
+import anuled.dynamicstore.rdfmapper.ObservationFilter;
+
+/**
+ * Internal pseudo-property which puts lower and upper bounds on
+ * <code>led:time</code>, in the same way that {@link LatLonBoxProperty} bounds
+ * the lat/lon properties. These are inserted by the middleware when it finds
+ * a <code>FILTER()</code> comparing the object of a <code>led:time</code>
+ * triple against a constant, so that the filter can be answered by
+ * binary-searching each cell's times rather than checking every observation.
+ */
+public class TimeRangeProperty implements ObservationProperty {
+	private static String propertyGUID = UUID.randomUUID().toString();
+
+	public static enum BoundType {
+		// time must be >= value
+		TimeFrom,
+		// time must be > value
+		TimeAfter,
+		// time must be <= value
+		TimeUntil,
+		// time must be < value
+		TimeBefore;
+
+		// same trick as LatLonBoxProperty: these URIs are not for outside use
+		private String uri = "x-anu-led:" + this.name() + "-time-range-"
+				+ propertyGUID;
+
+		public String getURI() {
+			return uri;
+		}
+	}
+
+	private BoundType type;
+	private String uri;
+
+	public TimeRangeProperty(BoundType type) {
+		this.type = type;
+		this.uri = type.getURI();
+	}
+
+	@Override
+	public String getURI() {
+		return uri;
+	}
+
+	@Override
+	public Stream<Node> valuesForObservation(Observation obs,
+			String qbDatasetURI) {
+		throw new RuntimeException("Property is internal, and not intended "
+				+ "to be used to generate bindings. Are you sure your code "
+				+ "is correct?");
+	}
+
+	/** Smallest whole second at or after an instant */
+	private static long ceilSecond(Instant instant) {
+		return instant.getNano() == 0 ? instant.getEpochSecond()
+				: instant.getEpochSecond() + 1;
+	}
+
+	@Override
+	public void applyToFilter(ObservationFilter filter, Node value) {
+		Optional<Instant> realVal = toInstant(value);
+		if (!realVal.isPresent()) {
+			filter.constrainImpossibly();
+			return;
+		}
+		// Observation times are whole seconds, so every bound can be turned
+		// into an inclusive bound on epoch seconds
+		Instant limit = realVal.get();
+		switch (type) {
+		case TimeFrom:
+			filter.constrainTimeMin(ceilSecond(limit));
+			break;
+		case TimeAfter:
+			filter.constrainTimeMin(limit.getEpochSecond() + 1);
+			break;
+		case TimeUntil:
+			filter.constrainTimeMax(limit.getEpochSecond());
+			break;
+		case TimeBefore:
+			filter.constrainTimeMax(ceilSecond(limit) - 1);
+			break;
+		default:
+			throw new RuntimeException("Unhandled type " + type);
+		}
+	}
+
+	@Override
+	public boolean isInternal() {
+		return true;
+	}
+}
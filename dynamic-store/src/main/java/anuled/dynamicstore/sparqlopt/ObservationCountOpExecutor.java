@@ -0,0 +1,266 @@
+package anuled.dynamicstore.sparqlopt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import org.apache.jena.atlas.iterator.Iter;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.sparql.algebra.Op;
+import org.apache.jena.sparql.algebra.op.OpBGP;
+import org.apache.jena.sparql.algebra.op.OpFilter;
+import org.apache.jena.sparql.algebra.op.OpGroup;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.ExecutionContext;
+import org.apache.jena.sparql.engine.QueryIterator;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.apache.jena.sparql.engine.binding.BindingMap;
+import org.apache.jena.sparql.engine.iterator.QueryIterPlainWrapper;
+import org.apache.jena.sparql.engine.iterator.QueryIterSingleton;
+import org.apache.jena.sparql.expr.Expr;
+import org.apache.jena.sparql.expr.ExprAggregator;
+import org.apache.jena.sparql.expr.ExprList;
+import org.apache.jena.sparql.expr.NodeValue;
+import org.apache.jena.sparql.expr.aggregate.AggCount;
+import org.apache.jena.sparql.expr.aggregate.AggCountDistinct;
+import org.apache.jena.sparql.expr.aggregate.AggCountVar;
+import org.apache.jena.sparql.expr.aggregate.AggCountVarDistinct;
+import org.apache.jena.sparql.expr.aggregate.Aggregator;
+
+import anuled.dynamicstore.ObservationGraph;
+import anuled.dynamicstore.rdfmapper.properties.DGGSCellProperty;
+import anuled.dynamicstore.rdfmapper.properties.LatMaxProperty;
+import anuled.dynamicstore.rdfmapper.properties.LatMinProperty;
+import anuled.dynamicstore.rdfmapper.properties.LongMaxProperty;
+import anuled.dynamicstore.rdfmapper.properties.LongMinProperty;
+import anuled.dynamicstore.rdfmapper.properties.ObservationProperty;
+import anuled.dynamicstore.rdfmapper.properties.PropertyIndex;
+import anuled.dynamicstore.rdfmapper.properties.TimeProperty;
+
+/**
+ * Answers <code>COUNT</code> queries over observations from the catalog,
+ * rather than by enumerating observations (and their triples) and counting
+ * them in ARQ. A group is pushed down when:
+ *
+ * <ul>
+ * <li>it has no grouping variables, and only <code>COUNT(*)</code>,
+ * <code>COUNT(DISTINCT *)</code>, <code>COUNT(?v)</code> or
+ * <code>COUNT(DISTINCT ?obs)</code> aggregates;</li>
+ * <li>its pattern is a BGP (possibly under a filter) in which every triple
+ * has the same variable, <code>?obs</code>, as its subject;</li>
+ * <li>every triple's predicate is concrete, and its object is either concrete
+ * or a variable appearing nowhere else in the BGP, whose predicate has exactly
+ * one value per observation (<code>led:latMin</code>, <code>led:latMax</code>,
+ * <code>led:longMin</code>, <code>led:longMax</code>, <code>led:time</code>
+ * or <code>led:dggsCell</code>); and</li>
+ * <li>every filter expression is an inequality between one of those variables
+ * and a constant which the stage generator would turn into an equivalent
+ * constraint on <code>?obs</code>.</li>
+ * </ul>
+ *
+ * The count is then that of the matching observations, which the
+ * {@link ObservationGraph} works out from cell counts, products, times and
+ * bands (see {@link ObservationGraph#countObservations(List)}). Anything else
+ * goes through the usual evaluation.
+ */
+public class ObservationCountOpExecutor extends ObservationGraphOpExecutor {
+	public ObservationCountOpExecutor(ExecutionContext execCxt) {
+		super(execCxt);
+	}
+
+	/**
+	 * Pattern which matches observations without having to be evaluated: the
+	 * observation variable, the concrete triples whose matches are the
+	 * observations, and the triples binding each observation's values
+	 */
+	protected static class ObservationPattern {
+		public final Var obsVar;
+		public final List<Triple> triples;
+		// triples with variable objects, each matching once per observation
+		public final List<Triple> valueTriples;
+		// variables bound by the pattern (and so counted by COUNT(?v))
+		public final Set<Var> vars;
+
+		ObservationPattern(Var obsVar, List<Triple> triples,
+				List<Triple> valueTriples, Set<Var> vars) {
+			this.obsVar = obsVar;
+			this.triples = triples;
+			this.valueTriples = valueTriples;
+			this.vars = vars;
+		}
+	}
+
+	/** Does a property have exactly one value for every observation? */
+	private static boolean singleValued(ObservationProperty prop) {
+		return prop instanceof LatMinProperty || prop instanceof LatMaxProperty
+				|| prop instanceof LongMinProperty
+				|| prop instanceof LongMaxProperty
+				|| prop instanceof TimeProperty
+				|| prop instanceof DGGSCellProperty;
+	}
+
+	/**
+	 * Turn a pattern (e.g. the one under a group) into an
+	 * {@link ObservationPattern}, if its solutions are exactly the
+	 * observations matching some concrete triples.
+	 */
+	protected static Optional<ObservationPattern> observationPattern(Op op) {
+		ExprList exprs = new ExprList();
+		if (op instanceof OpFilter) {
+			exprs = ((OpFilter) op).getExprs();
+			op = ((OpFilter) op).getSubOp();
+		}
+		if (!(op instanceof OpBGP)) {
+			return Optional.empty();
+		}
+		List<Triple> bgp = ((OpBGP) op).getPattern().getList();
+		if (bgp.isEmpty() || !bgp.get(0).getSubject().isVariable()) {
+			return Optional.empty();
+		}
+		Var obsVar = Var.alloc(bgp.get(0).getSubject());
+
+		List<Triple> triples = new ArrayList<>(),
+				valueTriples = new ArrayList<>();
+		Set<Var> vars = new HashSet<>();
+		vars.add(obsVar);
+		// property of the triple each object variable is bound by
+		Map<Var, ObservationProperty> objProps = new HashMap<>();
+		for (Triple trip : bgp) {
+			Node pred = trip.getPredicate(), obj = trip.getObject();
+			if (!obsVar.equals(trip.getSubject()) || !pred.isURI()) {
+				return Optional.empty();
+			}
+			if (obj.isConcrete()) {
+				triples.add(trip);
+				continue;
+			}
+			Optional<ObservationProperty> prop = PropertyIndex
+					.getProperty(pred.getURI());
+			if (!obj.isVariable() || !prop.isPresent()
+					|| !singleValued(prop.get())
+					|| !vars.add(Var.alloc(obj))) {
+				return Optional.empty();
+			}
+			objProps.put(Var.alloc(obj), prop.get());
+			valueTriples.add(trip);
+		}
+
+		// each filter expression must become a constraint on ?obs which
+		// matches exactly the same observations
+		for (Expr expr : ExprList.splitConjunction(exprs)) {
+			Optional<InequalityConstraint> maybeConstraint = InequalityConstraint
+					.fromExpr(expr);
+			if (!maybeConstraint.isPresent()) {
+				return Optional.empty();
+			}
+			InequalityConstraint constraint = maybeConstraint.get();
+			if (!(constraint.leftIsVar() ^ constraint.rightIsVar())) {
+				return Optional.empty();
+			}
+			ObservationProperty prop = objProps.get(constraint.leftIsVar()
+					? constraint.leftVar() : constraint.rightVar());
+			// lat/lon bounds are always inclusive, so only non-strict
+			// inequalities translate exactly
+			if (prop == null || !(prop instanceof TimeProperty
+					|| constraint.getType() == ConstraintType.LESS_EQ)) {
+				return Optional.empty();
+			}
+			Optional<Triple> newTriple = ObservationGraphStageGenerator
+					.constraintToTriple(constraint, obsVar, prop);
+			if (!newTriple.isPresent()) {
+				return Optional.empty();
+			}
+			triples.add(newTriple.get());
+		}
+		return Optional.of(new ObservationPattern(obsVar, triples,
+				valueTriples, vars));
+	}
+
+	/**
+	 * Can an aggregate be answered with the number of solutions to the
+	 * pattern? Every solution has a distinct observation, so that's true of
+	 * <code>COUNT(*)</code> and <code>COUNT(DISTINCT *)</code>, and of
+	 * counting any variable which the pattern binds (distinctly, for the
+	 * observation itself). <code>COUNT</code> of a variable which the pattern
+	 * doesn't bind is always zero.
+	 */
+	private static Optional<Boolean> countsSolutions(Aggregator agg,
+			ObservationPattern pattern) {
+		if (agg instanceof AggCount || agg instanceof AggCountDistinct) {
+			return Optional.of(true);
+		}
+		if (!(agg instanceof AggCountVar || agg instanceof AggCountVarDistinct)
+				|| agg.getExprList().size() != 1) {
+			return Optional.empty();
+		}
+		Expr expr = agg.getExprList().get(0);
+		if (!expr.isVariable() || (agg instanceof AggCountVarDistinct
+				&& !expr.asVar().equals(pattern.obsVar))) {
+			return Optional.empty();
+		}
+		return Optional.of(pattern.vars.contains(expr.asVar()));
+	}
+
+	/**
+	 * Is there exactly one input solution, binding none of the pattern's
+	 * variables? Only then are the pattern's solutions independent of the
+	 * input.
+	 */
+	protected static boolean unconstrained(List<Binding> inputs,
+			ObservationPattern pattern) {
+		return inputs.size() == 1 && pattern.vars.stream()
+				.noneMatch(v -> inputs.get(0).contains(v));
+	}
+
+	@Override
+	public QueryIterator execute(OpGroup opGroup, QueryIterator input) {
+		Graph graph = execCxt.getActiveGraph();
+		if (!(graph instanceof ObservationGraph)
+				|| !opGroup.getGroupVars().isEmpty()
+				|| opGroup.getAggregators().isEmpty()) {
+			return super.execute(opGroup, input);
+		}
+		Optional<ObservationPattern> maybePattern = observationPattern(
+				opGroup.getSubOp());
+		if (!maybePattern.isPresent()) {
+			return super.execute(opGroup, input);
+		}
+		ObservationPattern pattern = maybePattern.get();
+		List<Boolean> counted = new ArrayList<>();
+		for (ExprAggregator agg : opGroup.getAggregators()) {
+			Optional<Boolean> countsSolutions = countsSolutions(
+					agg.getAggregator(), pattern);
+			if (!countsSolutions.isPresent()) {
+				return super.execute(opGroup, input);
+			}
+			counted.add(countsSolutions.get());
+		}
+
+		// the pattern is counted once, so there has to be exactly one input
+		// solution, and it can't constrain any of the pattern's variables.
+		// The group would have consumed every input solution anyway.
+		List<Binding> inputs = Iter.toList(input);
+		if (!unconstrained(inputs, pattern)) {
+			return super.execute(opGroup,
+					new QueryIterPlainWrapper(inputs.iterator(), execCxt));
+		}
+
+		long count = ((ObservationGraph) graph)
+				.countObservations(pattern.triples);
+		Node countNode = NodeValue.makeInteger(count).asNode();
+		Node zeroNode = NodeValue.makeInteger(0).asNode();
+		BindingMap rv = BindingFactory.create();
+		for (int i = 0; i < counted.size(); i++) {
+			rv.add(opGroup.getAggregators().get(i).getVar(),
+					counted.get(i) ? countNode : zeroNode);
+		}
+		return QueryIterSingleton.create(rv, execCxt);
+	}
+}
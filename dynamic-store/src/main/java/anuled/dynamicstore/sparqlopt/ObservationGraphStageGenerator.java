@@ -12,6 +12,7 @@ import java.util.Set;
 import org.apache.commons.collections4.map.LazyMap;
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.GraphStatisticsHandler;
 import org.apache.jena.graph.Node;
 import org.apache.jena.graph.Triple;
 import org.apache.jena.sparql.core.BasicPattern;
@@ -20,6 +21,7 @@ import org.apache.jena.sparql.engine.ExecutionContext;
 import org.apache.jena.sparql.engine.QueryIterator;
 import org.apache.jena.sparql.engine.iterator.QueryIterBlockTriples;
 import org.apache.jena.sparql.engine.main.StageGenerator;
+import org.apache.jena.sparql.util.VarUtils;
 
 import anuled.dynamicstore.ObservationGraph;
 import anuled.dynamicstore.Util;
@@ -30,6 +32,8 @@ import anuled.dynamicstore.rdfmapper.properties.LongMaxProperty;
 import anuled.dynamicstore.rdfmapper.properties.LongMinProperty;
 import anuled.dynamicstore.rdfmapper.properties.ObservationProperty;
 import anuled.dynamicstore.rdfmapper.properties.PropertyIndex;
+import anuled.dynamicstore.rdfmapper.properties.TimeProperty;
+import anuled.dynamicstore.rdfmapper.properties.TimeRangeProperty;
 
 /**
  * Jena <code>StageGenerator</code> which handles BGP matching for
@@ -143,6 +147,10 @@ public class ObservationGraphStageGenerator implements StageGenerator {
 		}
 		// TODO: Log warning if the thing above isn't true.
 
+		if (prop instanceof TimeProperty) {
+			return Optional.of(timeConstraintToTriple(constraint, var));
+		}
+
 		// check whether the given property is measuring lat or lon
 		boolean isLat;
 		if (prop instanceof LatMaxProperty || prop instanceof LatMinProperty) {
@@ -197,6 +205,31 @@ public class ObservationGraphStageGenerator implements StageGenerator {
 				Util.createURINode(type.getURI()), constraintNode));
 	}
 
+	/**
+	 * Like <code>constraintToTriple</code>, but for the object of a
+	 * <code>led:time</code> triple. Unlike the lat/lon properties, time can be
+	 * bounded from either side (and strictly or not).
+	 */
+	private static Triple timeConstraintToTriple(
+			InequalityConstraint constraint, Var var) {
+		boolean strict = constraint.getType() == ConstraintType.LESS;
+		TimeRangeProperty.BoundType type;
+		Node constraintNode;
+		if (constraint.leftIsVar()) {
+			// time < constant or time <= constant
+			type = strict ? TimeRangeProperty.BoundType.TimeBefore
+					: TimeRangeProperty.BoundType.TimeUntil;
+			constraintNode = constraint.getRight();
+		} else {
+			// constant < time or constant <= time
+			type = strict ? TimeRangeProperty.BoundType.TimeAfter
+					: TimeRangeProperty.BoundType.TimeFrom;
+			constraintNode = constraint.getLeft();
+		}
+		return new Triple(var, Util.createURINode(type.getURI()),
+				constraintNode);
+	}
+
 	/**
 	 * Generate constraints (presumably from a higher-level <code>FILTER</code>)
 	 * for a triple pattern. Constraints are encoded as new triples so that
@@ -268,6 +301,70 @@ public class ObservationGraphStageGenerator implements StageGenerator {
 		return allBlocks;
 	}
 
+	/**
+	 * Estimate how many solutions a block will produce for each solution fed
+	 * into it, given that the variables in <code>bound</code> already have
+	 * values. A variable block whose variable is bound only checks that
+	 * observation, as does a triple whose subject is bound; otherwise the
+	 * estimate comes from the graph's statistics. An arbitrary block is only
+	 * as expensive as its most selective triple, since the rest are joined
+	 * against that triple's matches.
+	 */
+	protected static long estimateCost(TripleBlock block, Set<Var> bound,
+			ObservationGraph graph) {
+		if (block.type == TripleBlockType.VARIABLE_PATTERN_BLOCK) {
+			Node subj = block.pattern.get(0).getSubject();
+			if (bound.contains(subj)) {
+				return 1;
+			}
+			return graph.estimateObservations(block.pattern);
+		}
+		GraphStatisticsHandler stats = graph.getStatisticsHandler();
+		long rv = Long.MAX_VALUE;
+		for (Triple trip : block.pattern) {
+			Node subj = trip.getSubject();
+			long cost;
+			if (subj.isConcrete() || bound.contains(subj)) {
+				cost = 1;
+			} else {
+				cost = stats.getStatistic(Node.ANY, trip.getPredicate(),
+						trip.getObject());
+			}
+			rv = Math.min(rv, cost);
+		}
+		return rv;
+	}
+
+	/**
+	 * Order blocks so that the most selective go first, using the graph's
+	 * statistics. Blocks are picked greedily: at each step, the cheapest
+	 * remaining block (given the variables bound by the blocks before it) is
+	 * next, with ties going to the earlier block. Since the blocks are
+	 * joined, the order doesn't change the results, only how many
+	 * observations are enumerated along the way.
+	 */
+	protected static List<TripleBlock> orderBlocks(List<TripleBlock> blocks,
+			ObservationGraph graph) {
+		List<TripleBlock> remaining = new ArrayList<>(blocks);
+		List<TripleBlock> rv = new ArrayList<>(blocks.size());
+		Set<Var> bound = new HashSet<>();
+		while (!remaining.isEmpty()) {
+			int best = 0;
+			long bestCost = Long.MAX_VALUE;
+			for (int i = 0; i < remaining.size(); i++) {
+				long cost = estimateCost(remaining.get(i), bound, graph);
+				if (cost < bestCost) {
+					best = i;
+					bestCost = cost;
+				}
+			}
+			TripleBlock next = remaining.remove(best);
+			rv.add(next);
+			VarUtils.addVarsTriples(bound, next.pattern);
+		}
+		return rv;
+	}
+
 	@Override
 	public QueryIterator execute(BasicPattern pattern, QueryIterator input,
 			ExecutionContext execCtx) {
@@ -290,15 +387,18 @@ public class ObservationGraphStageGenerator implements StageGenerator {
 		List<Triple> extraConstraints = makeNewConstraints(propMap,
 				constraintsOn);
 
-		// choose a sane triple ordering; this is required by the
-		// partitionBlocks function
+		// group triples into blocks (partitionBlocks needs triples with the
+		// same subject to be adjacent), then run the most selective blocks
+		// first
 		ArrayList<Triple> newTrips = new ArrayList<>();
 		newTrips.addAll(pattern.getList());
 		newTrips.addAll(extraConstraints);
 		newTrips.sort(new TripleComparator());
+		List<TripleBlock> blocks = orderBlocks(partitionBlocks(newTrips),
+				obsGraph);
 
 		QueryIterator finalIter = input;
-		for (TripleBlock block : partitionBlocks(newTrips)) {
+		for (TripleBlock block : blocks) {
 			assert block.pattern.size() > 0;
 			switch (block.type) {
 			case VARIABLE_PATTERN_BLOCK:
@@ -0,0 +1,207 @@
+package anuled.dynamicstore.sparqlopt;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import org.apache.jena.atlas.iterator.Iter;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.query.Query;
+import org.apache.jena.query.SortCondition;
+import org.apache.jena.sparql.algebra.Op;
+import org.apache.jena.sparql.algebra.op.OpOrder;
+import org.apache.jena.sparql.algebra.op.OpProject;
+import org.apache.jena.sparql.algebra.op.OpSlice;
+import org.apache.jena.sparql.algebra.op.OpTopN;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.ExecutionContext;
+import org.apache.jena.sparql.engine.QueryIterator;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.iterator.QueryIterExtendByVar;
+import org.apache.jena.sparql.engine.iterator.QueryIterPlainWrapper;
+import org.apache.jena.sparql.engine.iterator.QueryIterProject;
+
+import anuled.dynamicstore.ObservationGraph;
+import anuled.dynamicstore.ObservationNode;
+import anuled.dynamicstore.rdfmapper.properties.DGGSCellProperty;
+import anuled.dynamicstore.rdfmapper.properties.ObservationProperty;
+import anuled.dynamicstore.rdfmapper.properties.PropertyIndex;
+import anuled.dynamicstore.rdfmapper.properties.TimeProperty;
+
+/**
+ * Pushes <code>LIMIT</code> and <code>OFFSET</code> down to the cursors which
+ * enumerate observations. Observations always come out of an
+ * {@link ObservationGraph} in the same order (file, then DGGS cell, product,
+ * time, band and pixel before tile), so a slice of the solutions to a
+ * pattern is a slice of that order. Cells, products and so on before the
+ * offset are skipped using counts from the catalog, and no observations are
+ * made past the limit; fetching page 1000 costs about as much as fetching
+ * page 1.
+ *
+ * Slices of ordered solutions (including ARQ's top-N operator, which it uses
+ * for <code>ORDER BY ... LIMIT k</code> with small k) are pushed down too,
+ * when the order is by the object of the pattern's <code>led:time</code>
+ * triple (either way), or ascending by the object of its
+ * <code>led:dggsCell</code> triple. Observations are then enumerated in that
+ * order directly (see {@link ObservationGraph#observationURIsByTime(List, boolean, long)}
+ * and {@link ObservationGraph#observationURIsByCell(List)}) and the first k
+ * taken, so nothing is sorted and memory use doesn't depend on how many
+ * observations match.
+ *
+ * A slice is pushed down when it's directly over (a projection of) a
+ * possibly ordered pattern which {@link ObservationCountOpExecutor} could
+ * count, and its input is a single solution which doesn't bind any of the
+ * pattern's variables. The observations' values (for
+ * <code>?obs led:time ?t</code> and so on) are then filled in for only the
+ * observations in the slice. Other slices go through the usual evaluation.
+ */
+public class ObservationSliceOpExecutor extends ObservationCountOpExecutor {
+	public ObservationSliceOpExecutor(ExecutionContext execCxt) {
+		super(execCxt);
+	}
+
+	/** Orders in which observations can be enumerated without sorting */
+	private enum Ordering {
+		CATALOG, OLDEST_FIRST, LATEST_FIRST, BY_CELL
+	}
+
+	/**
+	 * Which order do the given sort conditions put a pattern's solutions in
+	 * (if it's one we can enumerate directly)? Ties can be broken any way we
+	 * like, so sorting on the time or the cell alone is enough.
+	 */
+	private static Optional<Ordering> ordering(List<SortCondition> conditions,
+			ObservationPattern pattern) {
+		if (conditions == null) {
+			return Optional.of(Ordering.CATALOG);
+		}
+		if (conditions.size() != 1
+				|| !conditions.get(0).getExpression().isVariable()) {
+			return Optional.empty();
+		}
+		Var var = conditions.get(0).getExpression().asVar();
+		boolean descending = conditions.get(0)
+				.getDirection() == Query.ORDER_DESCENDING;
+		for (Triple trip : pattern.valueTriples) {
+			if (!trip.getObject().equals(var)) {
+				continue;
+			}
+			ObservationProperty prop = PropertyIndex
+					.getProperty(trip.getPredicate().getURI()).get();
+			if (prop instanceof TimeProperty) {
+				return Optional.of(descending ? Ordering.LATEST_FIRST
+						: Ordering.OLDEST_FIRST);
+			} else if (prop instanceof DGGSCellProperty && !descending) {
+				return Optional.of(Ordering.BY_CELL);
+			}
+		}
+		return Optional.empty();
+	}
+
+	@Override
+	public QueryIterator execute(OpSlice opSlice, QueryIterator input) {
+		Op op = opSlice.getSubOp();
+		List<Var> projectVars = null;
+		if (op instanceof OpProject) {
+			projectVars = ((OpProject) op).getVars();
+			op = ((OpProject) op).getSubOp();
+		}
+		List<SortCondition> conditions = null;
+		if (op instanceof OpOrder) {
+			conditions = ((OpOrder) op).getConditions();
+			op = ((OpOrder) op).getSubOp();
+		}
+		long start = opSlice.getStart() == Query.NOLIMIT ? 0
+				: opSlice.getStart();
+		return slice(op, conditions, start, opSlice.getLength(), projectVars,
+				input, in -> super.execute(opSlice, in));
+	}
+
+	@Override
+	public QueryIterator execute(OpTopN opTop, QueryIterator input) {
+		return slice(opTop.getSubOp(), opTop.getConditions(), 0,
+				opTop.getLimit(), null, input, in -> super.execute(opTop, in));
+	}
+
+	/**
+	 * Evaluate a slice of the (ordered) solutions to a pattern directly, or
+	 * hand the input to <code>fallback</code> if that isn't possible
+	 *
+	 * @param conditions
+	 *            order of the solutions, or null for the graph's own order
+	 * @param length
+	 *            maximum number of solutions, or {@link Query#NOLIMIT}
+	 * @param projectVars
+	 *            variables to project the solutions to, or null to keep them
+	 *            all
+	 */
+	private QueryIterator slice(Op op, List<SortCondition> conditions,
+			long start, long length, List<Var> projectVars,
+			QueryIterator input,
+			Function<QueryIterator, QueryIterator> fallback) {
+		Graph graph = execCxt.getActiveGraph();
+		if (!(graph instanceof ObservationGraph)) {
+			return fallback.apply(input);
+		}
+		Optional<ObservationPattern> maybePattern = observationPattern(op);
+		if (!maybePattern.isPresent()) {
+			return fallback.apply(input);
+		}
+		ObservationPattern pattern = maybePattern.get();
+		Optional<Ordering> ordering = ordering(conditions, pattern);
+		if (!ordering.isPresent()) {
+			return fallback.apply(input);
+		}
+
+		// as with counts, the pattern can only be sliced once, so its
+		// solutions can't depend on the input
+		List<Binding> inputs = Iter.toList(input);
+		if (!unconstrained(inputs, pattern)) {
+			return fallback.apply(
+					new QueryIterPlainWrapper(inputs.iterator(), execCxt));
+		}
+
+		ObservationGraph obsGraph = (ObservationGraph) graph;
+		Stream<ObservationNode> observations;
+		switch (ordering.get()) {
+		case OLDEST_FIRST:
+		case LATEST_FIRST:
+			// only the first start + length times need to be kept
+			long needed = length == Query.NOLIMIT
+					|| start > Long.MAX_VALUE - length ? Long.MAX_VALUE
+							: start + length;
+			observations = obsGraph.observationURIsByTime(pattern.triples,
+					ordering.get() == Ordering.LATEST_FIRST, needed)
+					.skip(start);
+			break;
+		case BY_CELL:
+			observations = obsGraph.observationURIsByCell(pattern.triples)
+					.skip(start);
+			break;
+		default:
+			observations = obsGraph.observationURIs(pattern.triples, start);
+		}
+		if (length != Query.NOLIMIT) {
+			// limit is lazy only on a sequential stream; in parallel, each
+			// file would fill up to length observations before the first
+			// came out
+			observations = observations.sequential().limit(length);
+		}
+		// Iterator<ObservationNode> is an Iterator<Node> in all but name
+		Iterator<Node> obsNodes = observations.map(n -> (Node) n).iterator();
+		QueryIterator rv = new QueryIterExtendByVar(inputs.get(0),
+				pattern.obsVar, obsNodes, execCxt);
+		if (!pattern.valueTriples.isEmpty()) {
+			rv = ObservationGraphStageGenerator
+					.chainTriples(pattern.valueTriples, rv, execCxt);
+		}
+		if (projectVars != null) {
+			rv = new QueryIterProject(rv, projectVars, execCxt);
+		}
+		return rv;
+	}
+}
@@ -0,0 +1,86 @@
+package anuled.dynamicstore.writer;
+
+import org.apache.jena.atlas.io.AWriter;
+import org.apache.jena.graph.Node;
+import org.apache.jena.riot.out.NodeFormatter;
+
+import anuled.dynamicstore.ImageNode;
+
+/**
+ * Wraps a Jena {@link NodeFormatter}, streaming {@link ImageNode}s out as
+ * <code>&lt;data:...&gt;</code> rather than asking them for their URI. Data
+ * URIs never need escaping or abbreviating, so this is valid in both N-Triples
+ * and Turtle.
+ */
+public class ImageNodeFormatter implements NodeFormatter {
+	private final NodeFormatter inner;
+
+	public ImageNodeFormatter(NodeFormatter inner) {
+		this.inner = inner;
+	}
+
+	@Override
+	public void format(AWriter w, Node n) {
+		if (n instanceof ImageNode) {
+			formatURI(w, n);
+		} else {
+			inner.format(w, n);
+		}
+	}
+
+	@Override
+	public void formatURI(AWriter w, Node n) {
+		if (n instanceof ImageNode) {
+			w.print('<');
+			((ImageNode) n).writeURI(w);
+			w.print('>');
+		} else {
+			inner.formatURI(w, n);
+		}
+	}
+
+	@Override
+	public void formatURI(AWriter w, String uriStr) {
+		inner.formatURI(w, uriStr);
+	}
+
+	@Override
+	public void formatVar(AWriter w, Node n) {
+		inner.formatVar(w, n);
+	}
+
+	@Override
+	public void formatVar(AWriter w, String name) {
+		inner.formatVar(w, name);
+	}
+
+	@Override
+	public void formatBNode(AWriter w, Node n) {
+		inner.formatBNode(w, n);
+	}
+
+	@Override
+	public void formatBNode(AWriter w, String label) {
+		inner.formatBNode(w, label);
+	}
+
+	@Override
+	public void formatLiteral(AWriter w, Node n) {
+		inner.formatLiteral(w, n);
+	}
+
+	@Override
+	public void formatLitString(AWriter w, String lex) {
+		inner.formatLitString(w, lex);
+	}
+
+	@Override
+	public void formatLitLang(AWriter w, String lex, String langTag) {
+		inner.formatLitLang(w, lex, langTag);
+	}
+
+	@Override
+	public void formatLitDT(AWriter w, String lex, String datatypeURI) {
+		inner.formatLitDT(w, lex, datatypeURI);
+	}
+}
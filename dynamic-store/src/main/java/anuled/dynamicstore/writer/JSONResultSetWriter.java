@@ -0,0 +1,121 @@
+package anuled.dynamicstore.writer;
+
+import java.util.List;
+
+import org.apache.jena.atlas.io.AWriter;
+import org.apache.jena.graph.Node;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+
+/** SPARQL 1.1 Query Results JSON Format */
+public class JSONResultSetWriter extends StreamingResultSetWriter {
+	@Override
+	protected void start(AWriter out, List<String> vars) {
+		out.print("{\n  \"head\": {\n    \"vars\": [");
+		for (int i = 0; i < vars.size(); i++) {
+			out.print(i == 0 ? " " : " , ");
+			out.print(quote(vars.get(i)));
+		}
+		out.print(" ]\n  } ,\n  \"results\": {\n    \"bindings\": [");
+	}
+
+	@Override
+	protected void solution(AWriter out, Var[] vars, Binding binding,
+			boolean first) {
+		out.print(first ? "\n      {" : " ,\n      {");
+		boolean firstVar = true;
+		for (Var var : vars) {
+			Node node = binding.get(var);
+			if (node == null) {
+				continue;
+			}
+			out.print(firstVar ? "\n        " : " ,\n        ");
+			firstVar = false;
+			out.print(quote(var.getVarName()));
+			out.print(": ");
+			value(out, node);
+		}
+		out.print("\n      }");
+	}
+
+	private static void value(AWriter out, Node node) {
+		if (node.isURI()) {
+			out.print("{ \"type\": \"uri\" , \"value\": \"");
+			printURI(out, node, JSONResultSetWriter::escape);
+			out.print("\" }");
+		} else if (node.isBlank()) {
+			out.print("{ \"type\": \"bnode\" , \"value\": ");
+			out.print(quote(node.getBlankNodeLabel()));
+			out.print(" }");
+		} else if (node.isLiteral()) {
+			out.print("{ \"type\": \"literal\" , ");
+			String lang = node.getLiteralLanguage();
+			String dt = datatypeOf(node);
+			if (lang != null && !lang.isEmpty()) {
+				out.print("\"xml:lang\": " + quote(lang) + " , ");
+			} else if (dt != null) {
+				out.print("\"datatype\": " + quote(dt) + " , ");
+			}
+			out.print("\"value\": ");
+			out.print(quote(node.getLiteralLexicalForm()));
+			out.print(" }");
+		} else {
+			throw new IllegalArgumentException("Can't write node " + node);
+		}
+	}
+
+	@Override
+	protected void finish(AWriter out) {
+		out.print("\n    ]\n  }\n}\n");
+	}
+
+	@Override
+	protected void write(AWriter out, boolean result) {
+		out.print("{\n  \"head\": { } ,\n  \"boolean\": " + result + "\n}\n");
+	}
+
+	private static String quote(String s) {
+		return "\"" + escape(s) + "\"";
+	}
+
+	/** Escape the contents of a JSON string */
+	private static String escape(String s) {
+		StringBuilder sb = null;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			String replacement;
+			switch (c) {
+			case '"':
+				replacement = "\\\"";
+				break;
+			case '\\':
+				replacement = "\\\\";
+				break;
+			case '\n':
+				replacement = "\\n";
+				break;
+			case '\r':
+				replacement = "\\r";
+				break;
+			case '\t':
+				replacement = "\\t";
+				break;
+			default:
+				replacement = c < 0x20 ? String.format("\\u%04x", (int) c)
+						: null;
+			}
+			if (replacement != null && sb == null) {
+				sb = new StringBuilder(s.length() + 16);
+				sb.append(s, 0, i);
+			}
+			if (sb != null) {
+				if (replacement != null) {
+					sb.append(replacement);
+				} else {
+					sb.append(c);
+				}
+			}
+		}
+		return sb == null ? s : sb.toString();
+	}
+}
@@ -0,0 +1,83 @@
+package anuled.dynamicstore.writer;
+
+import org.apache.jena.atlas.io.AWriter;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.out.NodeFormatter;
+import org.apache.jena.riot.out.NodeFormatterNT;
+import org.apache.jena.riot.out.NodeFormatterTTL;
+import org.apache.jena.riot.system.PrefixMap;
+import org.apache.jena.riot.system.PrefixMapFactory;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.sparql.core.Quad;
+
+/**
+ * Writes triples one per line as they arrive, as N-Triples or as flat Turtle
+ * (N-Triples plus prefixes). Image data is streamed out by
+ * {@link ImageNodeFormatter}. Quads are written as their triples; graph names
+ * are dropped.
+ */
+public class StreamingRDFWriter implements StreamRDF {
+	private final AWriter out;
+	private final NodeFormatter nodeFmt;
+	// null when writing N-Triples
+	private final PrefixMap prefixes;
+	private final NodeFormatter prefixFmt = new NodeFormatterNT();
+
+	private StreamingRDFWriter(AWriter out, NodeFormatter nodeFmt,
+			PrefixMap prefixes) {
+		this.out = out;
+		this.nodeFmt = new ImageNodeFormatter(nodeFmt);
+		this.prefixes = prefixes;
+	}
+
+	public static StreamingRDFWriter ntriples(AWriter out) {
+		return new StreamingRDFWriter(out, new NodeFormatterNT(), null);
+	}
+
+	public static StreamingRDFWriter turtle(AWriter out) {
+		// the formatter sees prefixes as they're added to the map
+		PrefixMap prefixes = PrefixMapFactory.createForOutput();
+		return new StreamingRDFWriter(out,
+				new NodeFormatterTTL(null, prefixes), prefixes);
+	}
+
+	@Override
+	public void start() {
+	}
+
+	@Override
+	public void triple(Triple triple) {
+		nodeFmt.format(out, triple.getSubject());
+		out.print(' ');
+		nodeFmt.format(out, triple.getPredicate());
+		out.print(' ');
+		nodeFmt.format(out, triple.getObject());
+		out.print(" .\n");
+	}
+
+	@Override
+	public void quad(Quad quad) {
+		triple(quad.asTriple());
+	}
+
+	@Override
+	public void base(String base) {
+		// URIs are always written out in full
+	}
+
+	@Override
+	public void prefix(String prefix, String iri) {
+		if (prefixes == null) {
+			return;
+		}
+		out.print("@prefix " + prefix + ": ");
+		prefixFmt.formatURI(out, iri);
+		out.print(" .\n");
+		prefixes.add(prefix, iri);
+	}
+
+	@Override
+	public void finish() {
+		out.flush();
+	}
+}
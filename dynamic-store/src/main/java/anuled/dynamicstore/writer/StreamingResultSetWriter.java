@@ -0,0 +1,96 @@
+package anuled.dynamicstore.writer;
+
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+import org.apache.jena.atlas.io.AWriter;
+import org.apache.jena.atlas.io.IO;
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.Node;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.riot.resultset.ResultSetWriter;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.util.Context;
+
+import anuled.dynamicstore.ImageNode;
+
+/**
+ * Base for SPARQL result writers which write each solution as it is produced
+ * and stream {@link ImageNode}s out instead of building their URIs.
+ */
+public abstract class StreamingResultSetWriter implements ResultSetWriter {
+	@Override
+	public void write(OutputStream out, ResultSet resultSet, Context context) {
+		AWriter w = IO.wrapUTF8(out);
+		write(w, resultSet);
+		w.flush();
+	}
+
+	@Override
+	public void write(Writer out, ResultSet resultSet, Context context) {
+		AWriter w = IO.wrap(out);
+		write(w, resultSet);
+		w.flush();
+	}
+
+	@Override
+	public void write(OutputStream out, boolean result, Context context) {
+		AWriter w = IO.wrapUTF8(out);
+		write(w, result);
+		w.flush();
+	}
+
+	private void write(AWriter out, ResultSet resultSet) {
+		List<String> varNames = resultSet.getResultVars();
+		Var[] vars = new Var[varNames.size()];
+		for (int i = 0; i < vars.length; i++) {
+			vars[i] = Var.alloc(varNames.get(i));
+		}
+		start(out, varNames);
+		boolean first = true;
+		while (resultSet.hasNext()) {
+			Binding binding = resultSet.nextBinding();
+			solution(out, vars, binding, first);
+			first = false;
+		}
+		finish(out);
+	}
+
+	/** Write everything up to the first solution */
+	protected abstract void start(AWriter out, List<String> vars);
+
+	/** Write one solution; unbound variables have null values */
+	protected abstract void solution(AWriter out, Var[] vars,
+			Binding binding, boolean first);
+
+	/** Write everything after the last solution */
+	protected abstract void finish(AWriter out);
+
+	/** Write the result of an ASK query */
+	protected abstract void write(AWriter out, boolean result);
+
+	/** Write a URI node's URI, escaped unless it's an image */
+	protected static void printURI(AWriter out, Node node,
+			UnaryOperator<String> escape) {
+		if (node instanceof ImageNode) {
+			// base64 never needs escaping
+			((ImageNode) node).writeURI(out);
+		} else {
+			out.print(escape.apply(node.getURI()));
+		}
+	}
+
+	/** Datatype to report for a literal, or null for plain strings */
+	protected static String datatypeOf(Node literal) {
+		String lang = literal.getLiteralLanguage();
+		String dt = literal.getLiteralDatatypeURI();
+		if ((lang != null && !lang.isEmpty()) || dt == null
+				|| dt.equals(XSDDatatype.XSDstring.getURI())) {
+			return null;
+		}
+		return dt;
+	}
+}
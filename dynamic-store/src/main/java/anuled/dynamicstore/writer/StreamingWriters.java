@@ -0,0 +1,107 @@
+package anuled.dynamicstore.writer;
+
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Map;
+
+import org.apache.jena.atlas.io.AWriter;
+import org.apache.jena.atlas.io.IO;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFFormat;
+import org.apache.jena.riot.RDFWriterRegistry;
+import org.apache.jena.riot.WriterGraphRIOT;
+import org.apache.jena.riot.resultset.ResultSetLang;
+import org.apache.jena.riot.resultset.ResultSetWriterRegistry;
+import org.apache.jena.riot.system.PrefixMap;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFWriter;
+import org.apache.jena.sparql.util.Context;
+import org.apache.jena.util.iterator.ExtendedIterator;
+
+/**
+ * Registers the streaming writers with Jena, in place of its own writers for
+ * SPARQL JSON and XML results, N-Triples and flat Turtle. Anything which
+ * looks its writers up in Jena's registries (<code>RDFDataMgr</code>,
+ * <code>StreamRDFWriter</code>, <code>ResultSetWriterRegistry</code>) then
+ * streams image data rather than building it into strings. Pretty Turtle
+ * still needs whole URIs, since it has to group triples before writing them,
+ * and <code>ResultSetFormatter</code> doesn't use the registry at all.
+ */
+public final class StreamingWriters {
+	private static boolean initialised = false;
+
+	private StreamingWriters() {
+	}
+
+	public static synchronized void init() {
+		if (initialised) {
+			return;
+		}
+		ResultSetWriterRegistry.register(ResultSetLang.SPARQLResultSetJSON,
+				lang -> new JSONResultSetWriter());
+		ResultSetWriterRegistry.register(ResultSetLang.SPARQLResultSetXML,
+				lang -> new XMLResultSetWriter());
+		for (RDFFormat format : new RDFFormat[] { RDFFormat.NTRIPLES_UTF8,
+				RDFFormat.TURTLE_FLAT }) {
+			RDFWriterRegistry.register(format, GraphWriter::new);
+			StreamRDFWriter.register(format,
+					(out, fmt) -> create(IO.wrapUTF8(out), fmt));
+		}
+		initialised = true;
+	}
+
+	/** Stream for writing triples in the given (registered) format */
+	static StreamRDF create(AWriter out, RDFFormat format) {
+		if (format.getLang().equals(Lang.TURTLE)) {
+			return StreamingRDFWriter.turtle(out);
+		}
+		return StreamingRDFWriter.ntriples(out);
+	}
+
+	private static class GraphWriter implements WriterGraphRIOT {
+		private final RDFFormat format;
+
+		GraphWriter(RDFFormat format) {
+			this.format = format;
+		}
+
+		@Override
+		public void write(OutputStream out, Graph graph, PrefixMap prefixMap,
+				String baseURI, Context context) {
+			write(IO.wrapUTF8(out), graph, prefixMap);
+		}
+
+		@Override
+		public void write(Writer out, Graph graph, PrefixMap prefixMap,
+				String baseURI, Context context) {
+			write(IO.wrap(out), graph, prefixMap);
+		}
+
+		private void write(AWriter out, Graph graph, PrefixMap prefixMap) {
+			StreamRDF stream = create(out, format);
+			stream.start();
+			if (prefixMap != null) {
+				for (Map.Entry<String, String> e : prefixMap
+						.getMappingCopyStr().entrySet()) {
+					stream.prefix(e.getKey(), e.getValue());
+				}
+			}
+			ExtendedIterator<Triple> triples = graph
+					.find(Node.ANY, Node.ANY, Node.ANY);
+			try {
+				triples.forEachRemaining(stream::triple);
+			} finally {
+				triples.close();
+			}
+			stream.finish();
+		}
+
+		@Override
+		public Lang getLang() {
+			return format.getLang();
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package anuled.dynamicstore.writer;
+
+import java.util.List;
+
+import org.apache.jena.atlas.io.AWriter;
+import org.apache.jena.graph.Node;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+
+/** SPARQL Query Results XML Format */
+public class XMLResultSetWriter extends StreamingResultSetWriter {
+	private static final String HEADER = "<?xml version=\"1.0\"?>\n"
+			+ "<sparql xmlns=\"http://www.w3.org/2005/sparql-results#\">\n";
+
+	@Override
+	protected void start(AWriter out, List<String> vars) {
+		out.print(HEADER);
+		out.print("  <head>\n");
+		for (String var : vars) {
+			out.print("    <variable name=\"" + escape(var) + "\"/>\n");
+		}
+		out.print("  </head>\n  <results>\n");
+	}
+
+	@Override
+	protected void solution(AWriter out, Var[] vars, Binding binding,
+			boolean first) {
+		out.print("    <result>\n");
+		for (Var var : vars) {
+			Node node = binding.get(var);
+			if (node == null) {
+				continue;
+			}
+			out.print("      <binding name=\"" + escape(var.getVarName())
+					+ "\">");
+			value(out, node);
+			out.print("</binding>\n");
+		}
+		out.print("    </result>\n");
+	}
+
+	private static void value(AWriter out, Node node) {
+		if (node.isURI()) {
+			out.print("<uri>");
+			printURI(out, node, XMLResultSetWriter::escape);
+			out.print("</uri>");
+		} else if (node.isBlank()) {
+			out.print("<bnode>" + escape(node.getBlankNodeLabel())
+					+ "</bnode>");
+		} else if (node.isLiteral()) {
+			String lang = node.getLiteralLanguage();
+			String dt = datatypeOf(node);
+			if (lang != null && !lang.isEmpty()) {
+				out.print("<literal xml:lang=\"" + escape(lang) + "\">");
+			} else if (dt != null) {
+				out.print("<literal datatype=\"" + escape(dt) + "\">");
+			} else {
+				out.print("<literal>");
+			}
+			out.print(escape(node.getLiteralLexicalForm()));
+			out.print("</literal>");
+		} else {
+			throw new IllegalArgumentException("Can't write node " + node);
+		}
+	}
+
+	@Override
+	protected void finish(AWriter out) {
+		out.print("  </results>\n</sparql>\n");
+	}
+
+	@Override
+	protected void write(AWriter out, boolean result) {
+		out.print(HEADER);
+		out.print("  <head></head>\n  <boolean>" + result
+				+ "</boolean>\n</sparql>\n");
+	}
+
+	/** Escape text for use in element content or attribute values */
+	private static String escape(String s) {
+		StringBuilder sb = null;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			String replacement;
+			switch (c) {
+			case '&':
+				replacement = "&amp;";
+				break;
+			case '<':
+				replacement = "&lt;";
+				break;
+			case '>':
+				replacement = "&gt;";
+				break;
+			case '"':
+				replacement = "&quot;";
+				break;
+			default:
+				replacement = null;
+			}
+			if (replacement != null && sb == null) {
+				sb = new StringBuilder(s.length() + 16);
+				sb.append(s, 0, i);
+			}
+			if (sb != null) {
+				if (replacement != null) {
+					sb.append(replacement);
+				} else {
+					sb.append(c);
+				}
+			}
+		}
+		return sb == null ? s : sb.toString();
+	}
+}
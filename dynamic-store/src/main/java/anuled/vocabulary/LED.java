@@ -39,6 +39,16 @@ public class LED extends AbstractVocabulary {
 	// These are for Jena and the middleware
 	public static final Property uriPrefix = property("uriPrefix");
 	public static final Property hdf5Path = property("hdf5Path");
+	public static final Property hdf5Directory = property("hdf5Directory");
+	public static final Property loaderParallelism = property("loaderParallelism");
+	public static final Property catalogStorage = property("catalogStorage");
+	public static final Property pixelCacheBytes = property("pixelCacheBytes");
+	public static final Property tileCacheBytes = property("tileCacheBytes");
+	public static final Property maxOpenFiles = property("maxOpenFiles");
+	public static final Property watchDirectory = property("watchDirectory");
+	public static final Property watchSettleMillis = property("watchSettleMillis");
+	public static final Property tileURLPrefix = property("tileURLPrefix");
+	public static final Property httpPort = property("httpPort");
 	public static final Property qbCovDataset = property("qbCovDataset");
 	public static final Resource QBCovDataset = resource("QBCovDataset");
 	public static final Resource QBCovObservationGraph = resource("QBCovObservationGraph");
@@ -50,8 +50,12 @@ public final class TestData {
 		return tempFile.getAbsolutePath();
 	}
 
-	/** Clean up all resources created by the constructor */
+	/**
+	 * Clean up all resources created by the constructor, along with any cell
+	 * catalog which <code>HDF5Dataset</code> wrote next to the test file.
+	 */
 	public void dispose() {
+		new File(getPath() + ".catalog").delete();
 		tempFile.delete();
 		tempFile = null;
 	}
@@ -3,6 +3,7 @@ package anuled.dynamicstore;
 import static org.junit.Assert.*;
 
 import java.io.IOException;
+import java.io.StringWriter;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
@@ -10,6 +11,9 @@ import java.util.Set;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import org.apache.jena.atlas.io.AWriter;
+import org.apache.jena.atlas.io.IO;
+import org.apache.jena.graph.GraphStatisticsHandler;
 import org.apache.jena.graph.Node;
 import org.apache.jena.graph.Triple;
 import org.apache.jena.query.Query;
@@ -29,6 +33,7 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import anuled.dynamicstore.backend.Observation;
+import anuled.dynamicstore.rdfmapper.properties.PropertyIndex;
 import anuled.vocabulary.LED;
 import anuled.vocabulary.QB;
 
@@ -122,6 +127,117 @@ public class TestObservationGraph {
 				new Triple(missingVar, LED.etmBand.asNode(),
 						Util.createLiteralNode(2)));
 		assertEquals(6, graph.observationURIs(trips).count());
+		assertEquals(6, graph.estimateObservations(trips));
+	}
+
+	@Test
+	public void testStatisticsHandler() {
+		GraphStatisticsHandler stats = graph.getStatisticsHandler();
+		assertTrue(stats instanceof ObservationStatisticsHandler);
+		Node any = Node.ANY;
+		int numProperties = PropertyIndex.externalPropertyURIs().size();
+		assertEquals(84, stats.getStatistic(any, LED.etmBand.asNode(), any));
+		assertEquals(12, stats.getStatistic(any, LED.etmBand.asNode(),
+				Util.createLiteralNode(3)));
+		assertEquals(42, stats.getStatistic(any, RDF.type.asNode(),
+				LED.Pixel.asNode()));
+		assertEquals(84, stats.getStatistic(any, QB.dataSet.asNode(),
+				Util.createURINode(
+						"http://example.com/fakeDSLS8_OLI_TIRS_NBAR-dataset")));
+		assertEquals(0, stats.getStatistic(any, QB.dataSet.asNode(),
+				Util.createURINode("http://example.com/notADataSet")));
+		assertEquals(0, stats.getStatistic(any,
+				Util.createURINode("http://example.com/notAProperty"), any));
+		assertEquals(84 * numProperties, stats.getStatistic(any, any, any));
+		// variables are wildcards too
+		assertEquals(84, stats.getStatistic(Var.alloc("s"),
+				LED.etmBand.asNode(), Var.alloc("o")));
+		Node subj = Util.createURINode(awesomeURI);
+		assertEquals(1, stats.getStatistic(subj, LED.etmBand.asNode(), any));
+		assertEquals(numProperties, stats.getStatistic(subj, any, any));
+	}
+
+	@Test
+	public void testObservationNode() {
+		Observation obs = graph.obsForURI(awesomeURI);
+		ObservationNode node = new ObservationNode(obs),
+				same = new ObservationNode(graph.obsForURI(awesomeURI));
+		Node plain = Util.createURINode(awesomeURI);
+		assertEquals(node, same);
+		assertEquals(node.hashCode(), same.hashCode());
+		// plain URI nodes must agree in both directions
+		assertEquals(node, plain);
+		assertEquals(plain, node);
+		assertEquals(plain.hashCode(), node.hashCode());
+		Observation other = graph.observationURIs(Arrays.asList())
+				.map(ObservationNode::getObservation)
+				.filter(o -> !o.equals(obs)).findFirst().get();
+		assertNotEquals(node, new ObservationNode(other));
+
+		// lookups by node should hand back the same node as the subject
+		List<Triple> trips = graph.graphBaseFind(Triple.createMatch(node,
+				RDF.type.asNode(), null)).toList();
+		assertEquals(2, trips.size());
+		for (Triple trip : trips) {
+			assertSame(node, trip.getSubject());
+		}
+	}
+
+	@Test
+	public void testPlainObservationURIs() {
+		// observation URIs in queries are plain nodes, which still have to
+		// match up with the observation nodes the graph makes
+		String obs = "<" + awesomeURI + ">";
+		String[] queries = {
+				"SELECT ?b WHERE { ?s led:etmBand ?b FILTER(?s = " + obs
+						+ ") }",
+				"SELECT ?b WHERE { ?s led:etmBand ?b FILTER(sameTerm(?s, "
+						+ obs + ")) }",
+				"SELECT ?b WHERE { ?s led:etmBand ?b VALUES ?s { " + obs
+						+ " } }",
+				"SELECT ?b WHERE { { ?s led:etmBand ?b } { SELECT ?s WHERE { "
+						+ "VALUES ?s { " + obs + " } } } }",
+				"SELECT ?b WHERE { ?s led:etmBand ?b FILTER(?s IN (" + obs
+						+ ")) }" };
+		for (String query : queries) {
+			assertEquals(query, 1, countResults(runSelect(query)));
+		}
+	}
+
+	@Test
+	public void testImageNode() {
+		List<Node> images = graph.find(Node.ANY, LED.imageData.asNode(),
+				Node.ANY).mapWith(Triple::getObject).toList();
+		assertEquals(42, images.size());
+		ImageNode image = (ImageNode) images.get(0);
+		String uri = image.getURI();
+		assertTrue(uri.startsWith(ImageNode.PREFIX));
+		// encoded once, then kept
+		assertSame(uri, image.getURI());
+		assertEquals(uri, image.toString());
+		StringWriter out = new StringWriter();
+		AWriter writer = IO.wrap(out);
+		image.writeURI(writer);
+		writer.flush();
+		assertEquals(uri, out.toString());
+
+		// equal to another node for the same tile, but not to anything else
+		ImageNode same = new ImageNode(image.getObservation());
+		assertEquals(image, same);
+		assertEquals(image.hashCode(), same.hashCode());
+		assertNotEquals(image, images.get(1));
+		Node plain = Util.createURINode(uri);
+		assertNotEquals(image, plain);
+		assertNotEquals(plain, image);
+		assertTrue(ImageNode.sameValue(image, plain));
+		assertTrue(ImageNode.sameValue(plain, image));
+
+		// ...but a plain data URI can still be looked up (the fixture's tiles
+		// may well share images)
+		long sameImage = images.stream().filter(n -> n.hasURI(uri)).count();
+		assertTrue(sameImage >= 1);
+		assertEquals(sameImage, graph
+				.find(Node.ANY, LED.imageData.asNode(), plain).toList().size());
 	}
 
 	@Test
@@ -199,6 +315,21 @@ public class TestObservationGraph {
 		assertEquals(expectedCells, allCells);
 	}
 	
+	@Test
+	public void testTimeFilteredQuery() {
+		String query = "SELECT DISTINCT ?s WHERE {"
+				+ "?s a qb:Observation; led:time ?t. FILTER(%s)}";
+		assertEquals(84, countResults(runSelect(String.format(query,
+				"?t >= \"2013-05-27T23:58:20Z\"^^xsd:dateTime"
+						+ " && ?t < \"2013-05-28T00:00:00Z\"^^xsd:dateTime"))));
+		assertEquals(0, countResults(runSelect(String.format(query,
+				"?t > \"2013-05-27T23:58:20Z\"^^xsd:dateTime"))));
+		assertEquals(0, countResults(runSelect(String.format(query,
+				"\"2013-05-27T23:58:20Z\"^^xsd:dateTime > ?t"))));
+		assertEquals(84, countResults(runSelect(String.format(query,
+				"?t <= \"2013-05-28T09:58:20+10:00\"^^xsd:dateTime"))));
+	}
+
 	private int countResults(ResultSet results) {
 		int rv = 0;
 		while (results.hasNext()) {
@@ -2,8 +2,14 @@ package anuled.dynamicstore;
 
 import static org.junit.Assert.*;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Arrays;
 import java.util.Iterator;
 import org.apache.jena.assembler.Assembler;
 import org.apache.jena.assembler.exceptions.AssemblerException;
@@ -11,6 +17,7 @@ import org.apache.jena.query.Dataset;
 import org.apache.jena.rdf.model.Model;
 import org.apache.jena.rdf.model.ModelFactory;
 import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.vocabulary.RDF;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -65,9 +72,65 @@ public class TestQBCovGraphAssembler {
 					.listStatements().hasNext());
 		}
 
+		// unknown catalog storage modes are rejected
+		dsDef.removeAll(LED.catalogStorage);
+		dsDef.addLiteral(LED.catalogStorage, "floppy");
+		boolean gotException = false;
+		try {
+			Assembler.general.open(root);
+		} catch (AssemblerException e) {
+			gotException = true;
+		}
+		assertTrue(gotException);
+		dsDef.removeAll(LED.catalogStorage);
+		dsDef.addLiteral(LED.catalogStorage, "heap");
+
+		// a directory of HDF5 files is served as one dataset
+		File dir = Files.createTempDirectory("qbcov-assembler").toFile();
+		File copy = new File(dir, "scene.h5");
+		try {
+			Files.copy(new File(td.getPath()).toPath(), copy.toPath());
+			dsDef.removeAll(LED.hdf5Path);
+			dsDef.addLiteral(LED.hdf5Directory, dir.getPath());
+			QBCovDataset qbcov = (QBCovDataset) Assembler.general
+					.open(dsDef);
+			assertEquals(Arrays.asList(copy.getPath()),
+					qbcov.getHDF5Paths());
+			assertTrue(qbcov.getObservationGraph().find(null, null, null)
+					.hasNext());
+
+			// but not alongside a path
+			dsDef.addLiteral(LED.hdf5Path, td.getPath());
+			gotException = false;
+			try {
+				Assembler.general.open(dsDef);
+			} catch (AssemblerException e) {
+				gotException = true;
+			}
+			assertTrue(gotException);
+			dsDef.removeAll(LED.hdf5Path);
+
+			// and the directory had better exist
+			dsDef.removeAll(LED.hdf5Directory);
+			dsDef.addLiteral(LED.hdf5Directory, copy.getPath());
+			gotException = false;
+			try {
+				Assembler.general.open(dsDef);
+			} catch (AssemblerException e) {
+				gotException = true;
+			}
+			assertTrue(gotException);
+		} finally {
+			dsDef.removeAll(LED.hdf5Directory);
+			dsDef.addLiteral(LED.hdf5Path, td.getPath());
+			new File(copy.getPath() + ".catalog").delete();
+			copy.delete();
+			dir.delete();
+		}
+
 		// try with two HDF5 paths
 		dsDef.addLiteral(LED.hdf5Path, "some other path");
-		boolean gotException = false;
+		gotException = false;
 		try {
 			Assembler.general.open(root);
 		} catch (AssemblerException e) {
@@ -87,4 +150,78 @@ public class TestQBCovGraphAssembler {
 		assertTrue(gotException);
 	}
 
+	@Test(timeout = 60000)
+	public void testWatchDirectory() throws IOException, InterruptedException {
+		QBCovGraphAssembler.init();
+		Model spec = ModelFactory.createDefaultModel();
+		Resource dsDef = spec.createResource()
+				.addProperty(RDF.type, LED.QBCovDataset)
+				.addProperty(LED.uriPrefix, "https://example.com/watched/")
+				.addLiteral(LED.watchDirectory, true)
+				.addLiteral(LED.watchSettleMillis, 100L);
+
+		// watching needs a directory
+		dsDef.addLiteral(LED.hdf5Path, td.getPath());
+		boolean gotException = false;
+		try {
+			Assembler.general.open(dsDef);
+		} catch (AssemblerException e) {
+			gotException = true;
+		}
+		assertTrue(gotException);
+		dsDef.removeAll(LED.hdf5Path);
+
+		// which can start out empty
+		File dir = Files.createTempDirectory("qbcov-watch").toFile();
+		File scene = new File(dir, "scene.h5");
+		dsDef.addLiteral(LED.hdf5Directory, dir.getPath());
+		QBCovDataset qbcov = (QBCovDataset) Assembler.general.open(dsDef);
+		try {
+			assertTrue(qbcov.getHDF5Paths().isEmpty());
+			assertFalse(qbcov.getMetaGraph().find(null, null, null).hasNext());
+			Files.copy(new File(td.getPath()).toPath(), scene.toPath());
+			while (qbcov.getHDF5Paths().isEmpty()) {
+				Thread.sleep(50);
+			}
+			assertEquals(Arrays.asList(scene.getPath()), qbcov.getHDF5Paths());
+			// both the observations and the metadata for the new product
+			assertTrue(qbcov.getObservationGraph().find(null, null, null)
+					.hasNext());
+			assertTrue(qbcov.getMetaGraph().find(null, null, null).hasNext());
+		} finally {
+			qbcov.dispose();
+			new File(scene.getPath() + ".catalog").delete();
+			scene.delete();
+			dir.delete();
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void testHTTPServer() throws IOException {
+		QBCovGraphAssembler.init();
+		int port;
+		try (ServerSocket socket = new ServerSocket(0)) {
+			port = socket.getLocalPort();
+		}
+		Model spec = ModelFactory.createDefaultModel();
+		Resource dsDef = spec.createResource()
+				.addProperty(RDF.type, LED.QBCovDataset)
+				.addProperty(LED.uriPrefix, "https://example.com/tiles/")
+				.addLiteral(LED.hdf5Path, td.getPath())
+				.addLiteral(LED.httpPort, port);
+		QBCovDataset qbcov = (QBCovDataset) Assembler.general.open(dsDef);
+		try {
+			// images are links to the server, which is up
+			String url = qbcov.getObservationGraph()
+					.find(null, LED.imageData.asNode(), null).next()
+					.getObject().getURI();
+			assertTrue(url, url.startsWith("http://localhost:" + port));
+			HttpURLConnection conn = (HttpURLConnection) new URL(url)
+					.openConnection();
+			assertEquals(200, conn.getResponseCode());
+			conn.getInputStream().close();
+		} finally {
+			qbcov.dispose();
+		}
+	}
 }
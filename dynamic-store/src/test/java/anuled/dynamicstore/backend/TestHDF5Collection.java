@@ -0,0 +1,714 @@
+package anuled.dynamicstore.backend;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import anuled.dynamicstore.TestData;
+import anuled.dynamicstore.rdfmapper.ObservationFilter;
+
+public class TestHDF5Collection {
+	private static TestData td;
+	private static File dir;
+	private HDF5Collection collection;
+	private static final ZonedDateTime TIME = ZonedDateTime
+			.parse("2013-05-27T23:58:20Z");
+
+	@BeforeClass
+	public static void setUpClass() throws IOException {
+		td = new TestData();
+		// two "scenes" (which happen to be identical), plus some noise
+		dir = Files.createTempDirectory("hdf5-collection").toFile();
+		for (String name : new String[] { "b.h5", "a.H5" }) {
+			Files.copy(new File(td.getPath()).toPath(),
+					new File(dir, name).toPath());
+		}
+		new File(dir, "notes.txt").createNewFile();
+		new File(dir, "nested.h5").mkdir();
+	}
+
+	@AfterClass
+	public static void tearDownClass() {
+		for (File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+		td.dispose();
+	}
+
+	@Before
+	public void setUp() {
+		List<String> paths = HDF5Collection.listDirectory(dir.getPath());
+		collection = HDF5Collection.open(paths,
+				new DatasetOptions().setLoaderParallelism(2));
+	}
+
+	@After
+	public void tearDown() {
+		collection.dispose();
+	}
+
+	@Test
+	public void testListDirectory() {
+		List<String> paths = HDF5Collection.listDirectory(dir.getPath());
+		assertEquals(Arrays.asList(new File(dir, "a.H5").getPath(),
+				new File(dir, "b.h5").getPath()), paths);
+
+		boolean gotException = false;
+		try {
+			HDF5Collection.listDirectory(td.getPath());
+		} catch (IllegalArgumentException e) {
+			gotException = true;
+		}
+		assertTrue(gotException);
+	}
+
+	@Test
+	public void testMergedView() {
+		assertEquals(2, collection.getDatasets().size());
+		// products are merged by name
+		assertEquals(1, collection.getProducts().size());
+		HDF5Dataset first = collection.getDatasets().get(0);
+		HDF5Dataset second = collection.getDatasets().get(1);
+		// the caches are shared between files
+		assertSame(first.getPixelCache(), second.getPixelCache());
+		assertSame(first.getTileCache(), second.getTileCache());
+
+		ObservationFilter filter = new ObservationFilter(collection,
+				"http://fake/");
+		assertEquals(2 * 84, filter.execute().count());
+
+		Observation obs = collection.observation("LS8_OLI_TIRS_NBAR", TIME,
+				"R7852", 3, true);
+		assertNotNull(obs);
+		assertEquals("R7852", obs.getCell().getDGGSIdent());
+		assertNull(collection.observation("LS8_OLI_TIRS_NBAR",
+				TIME.plusYears(1), "R7852", 3, true));
+		assertNull(collection.observation("NOT_A_PRODUCT", TIME, "R7852", 3,
+				true));
+	}
+
+	@Test
+	public void testBoundedOpenFiles() {
+		// one reader between two files, so alternating between them means
+		// closing one and (re)opening the other each time
+		HDF5Collection small = HDF5Collection.open(
+				HDF5Collection.listDirectory(dir.getPath()),
+				new DatasetOptions().setMaxOpenFiles(1).setPixelCacheBytes(0));
+		try {
+			ReaderPool pool = small.getDatasets().get(0).getReaderPool();
+			assertSame(pool, small.getDatasets().get(1).getReaderPool());
+			assertEquals(1, pool.getOpenCount());
+			long opens = pool.getOpens();
+			for (int i = 0; i < 4; i++) {
+				HDF5Dataset dataset = small.getDatasets().get(i % 2);
+				Cell cell = dataset.dggsCell("R7852");
+				((PixelObservation) cell.observations(3,
+						PixelObservation.class).findFirst().get()).getPixel();
+				assertEquals(1, pool.getOpenCount());
+			}
+			assertTrue(pool.getOpens() > opens);
+			assertTrue(pool.getReopens() > 0);
+			assertTrue(pool.getEvictions() > 0);
+		} finally {
+			small.dispose();
+		}
+	}
+
+	@Test
+	public void testAddFile() {
+		List<String> paths = HDF5Collection.listDirectory(dir.getPath());
+		HDF5Collection growing = HDF5Collection.open(
+				Collections.singletonList(paths.get(0)), new DatasetOptions());
+		try {
+			List<HDF5Dataset> before = growing.getDatasets();
+			ObservationFilter filter = new ObservationFilter(growing,
+					"http://fake/");
+			// a query started before the new file arrives doesn't see it
+			Stream<Observation> inFlight = filter.execute();
+			int[] notified = { 0 };
+			growing.addListener(dataset -> notified[0]++);
+
+			HDF5Dataset added = growing.addFile(paths.get(1));
+			assertNotNull(added);
+			assertEquals(1, notified[0]);
+			assertEquals(84, inFlight.count());
+			assertEquals(1, before.size());
+			assertEquals(2, growing.getDatasets().size());
+			assertTrue(growing.contains(paths.get(1)));
+			assertSame(growing.getDatasets().get(0).getReaderPool(),
+					added.getReaderPool());
+			assertEquals(2 * 84, filter.execute().count());
+
+			// adding the same file again does nothing
+			assertNull(growing.addFile(paths.get(1)));
+			assertFalse(growing.add(added));
+			assertEquals(1, notified[0]);
+		} finally {
+			growing.dispose();
+		}
+
+		// only collections which own their resources can open more files
+		boolean gotException = false;
+		try {
+			new HDF5Collection(Collections.emptyList()).addFile(paths.get(0));
+		} catch (IllegalStateException e) {
+			gotException = true;
+		}
+		assertTrue(gotException);
+	}
+
+	@Test(timeout = 60000)
+	public void testDirectoryWatcher() throws Exception {
+		File watched = Files.createTempDirectory("hdf5-watch").toFile();
+		HDF5Collection live = HDF5Collection.open(Collections.emptyList(),
+				new DatasetOptions());
+		try {
+			// already there when we start watching
+			Files.copy(new File(td.getPath()).toPath(),
+					new File(watched, "first.h5").toPath());
+			try (DirectoryWatcher watcher = new DirectoryWatcher(live,
+					watched.getPath(), 100)) {
+				// arrives later
+				Files.copy(new File(td.getPath()).toPath(),
+						new File(watched, "second.h5").toPath());
+				// not HDF5 at all, despite the name
+				Files.write(new File(watched, "junk.h5").toPath(),
+						new byte[] { 1, 2, 3 });
+				while (watcher.getAdded() < 2 || watcher.getFailed() < 1) {
+					Thread.sleep(50);
+				}
+				assertEquals(2, live.getDatasets().size());
+				assertTrue(live.contains(
+						new File(watched, "second.h5").getPath()));
+				assertEquals(2 * 84, new ObservationFilter(live,
+						"http://fake/").execute().count());
+			}
+		} finally {
+			live.dispose();
+			for (File file : watched.listFiles()) {
+				file.delete();
+			}
+			watched.delete();
+		}
+	}
+
+	@Test
+	public void testPruning() {
+		long time = TIME.toEpochSecond();
+		long all = Long.MIN_VALUE, none = Long.MAX_VALUE;
+		assertEquals(2, collection
+				.candidates(null, null, null, null, null, null, all, none)
+				.size());
+		assertEquals(2, collection
+				.candidates(5, "R7852", null, null, null, null, time, time)
+				.size());
+
+		// times on either side of the files' data
+		assertTrue(collection.candidates(null, null, null, null, null, null,
+				time + 1, none).isEmpty());
+		assertTrue(collection.candidates(null, null, null, null, null, null,
+				all, time - 1).isEmpty());
+		// somewhere far from the scene (which is near Canberra)
+		assertTrue(collection.candidates(null, null, 0.0, 10.0, null, null,
+				all, none).isEmpty());
+		assertTrue(collection.candidates(null, null, null, null, 10.0, 20.0,
+				all, none).isEmpty());
+		// cells too deep, or missing altogether
+		assertTrue(collection.candidates(20, null, null, null, null, null,
+				all, none).isEmpty());
+		assertTrue(collection.candidates(null, "R7852999", null, null, null,
+				null, all, none).isEmpty());
+
+		ObservationFilter filter = new ObservationFilter(collection,
+				"http://fake/");
+		filter.constrainTimeMin(time + 1);
+		assertEquals(0, filter.execute().count());
+	}
+
+	@Test
+	public void testStatistics() {
+		long time = TIME.toEpochSecond();
+		ObservationStatistics single = new HDF5Collection(
+				collection.getDatasets().get(0)).getStatistics();
+		assertEquals(84, single.getTotal());
+		assertEquals(84, single.countForProduct("LS8_OLI_TIRS_NBAR"));
+		assertEquals(0, single.countForProduct("NOT_A_PRODUCT"));
+		// a pixel and a tile for each of six cells
+		assertEquals(12, single.countForBand(3));
+		assertEquals(0, single.countForBand(7));
+		assertEquals(84, single.countForTimes(time, time));
+		assertEquals(0, single.countForTimes(time + 1, Long.MAX_VALUE));
+		assertEquals(1, single.numEpochs());
+		assertEquals(1, single.cellsAtLevel(5));
+		assertEquals(14, single.countForLevel(5));
+		long levelSum = 0;
+		for (int level = 0; level < 20; level++) {
+			levelSum += single.countForLevel(level);
+		}
+		assertEquals(84, levelSum);
+
+		// the two files are merged
+		ObservationStatistics merged = collection.getStatistics();
+		assertEquals(2 * 84, merged.getTotal());
+		assertEquals(2 * 12, merged.countForBand(3));
+		assertEquals(2 * 14, merged.countForLevel(5));
+		assertEquals(2, merged.cellsAtLevel(5));
+		assertEquals(2 * 84, merged.countForTimes(time, time));
+		assertEquals(1, merged.numEpochs());
+
+		// estimates should be exact for constraints the statistics cover
+		ObservationFilter filter = new ObservationFilter(collection,
+				"http://fake/");
+		assertEquals(2 * 84, filter.estimateCount());
+		filter.constrainBandNum(3).constrainToPixel();
+		assertEquals(filter.execute().count(), filter.estimateCount());
+		filter.constrainTimeMin(time + 1);
+		assertEquals(0, filter.estimateCount());
+		filter = new ObservationFilter(collection, "http://fake/");
+		filter.constrainLevel(5);
+		assertEquals(filter.execute().count(), filter.estimateCount());
+		filter.constrainCellID("R78");
+		assertEquals(0, filter.estimateCount());
+	}
+
+	@Test
+	public void testCount() {
+		long time = TIME.toEpochSecond();
+		assertEquals(2 * 84, collection.count(null, null, null, null, null,
+				null, null, null, Long.MIN_VALUE, Long.MAX_VALUE));
+		assertEquals(2 * 6, collection.count(null, null, null, null, null,
+				null, 3, TileObservation.class, time, time));
+		assertEquals(2 * 7, collection.count(null, "R7852", null, null, null,
+				null, null, PixelObservation.class, time, time));
+		assertEquals(0, collection.count(null, null, null, null, null, null,
+				null, null, time + 1, Long.MAX_VALUE));
+
+		// counts agree with scans, bounding boxes included
+		ObservationFilter filter = new ObservationFilter(collection,
+				"http://fake/");
+		filter.constrainLatMin(-36).constrainLonMax(150).constrainToTile();
+		assertEquals(filter.execute().count(), filter.count());
+		// a cursor which has been counted has nothing left
+		ObservationCursor cursor = new ObservationCursor(null, null,
+				Long.MIN_VALUE, Long.MAX_VALUE).reset(collection
+						.getDatasets().get(0).cells(null, null, null, null,
+								null, null)
+						.iterator());
+		assertEquals(84, cursor.count());
+		assertNull(cursor.next());
+	}
+
+	/** Dataset which counts the cells it hands out */
+	private static final class CountingDataset extends HDF5Dataset {
+		final AtomicInteger cellsVisited = new AtomicInteger();
+
+		CountingDataset(String filename, DatasetResources shared) {
+			super(filename, new DatasetOptions(), shared);
+		}
+
+		@Override
+		Stream<Cell> cells(Integer cellLevel, String cellID, Double lonMin,
+				Double lonMax, Double latMin, Double latMax, int fromIndex) {
+			return super.cells(cellLevel, cellID, lonMin, lonMax, latMin,
+					latMax, fromIndex).peek(c -> cellsVisited.incrementAndGet());
+		}
+	}
+
+	private static int visited(List<CountingDataset> files) {
+		return files.stream().mapToInt(f -> f.cellsVisited.get()).sum();
+	}
+
+	private static void reset(List<CountingDataset> files) {
+		files.forEach(f -> f.cellsVisited.set(0));
+	}
+
+	@Test
+	public void testLazyScans() {
+		DatasetResources shared = new DatasetResources(new DatasetOptions(),
+				"lazy");
+		List<CountingDataset> files = new ArrayList<>();
+		for (int i = 0; i < 40; i++) {
+			files.add(new CountingDataset(td.getPath(), shared));
+		}
+		HDF5Collection big = new HDF5Collection(new ArrayList<>(files));
+		try {
+			// 40 files of 84 observations in 6 cells each, but the first
+			// observation only needs the first cell of the first file
+			Observation first = big.observations(null, null, null, null, null,
+					null, null, null, Long.MIN_VALUE, Long.MAX_VALUE)
+					.iterator().next();
+			assertSame(files.get(0), first.getCell().getDataset());
+			assertEquals(1, visited(files));
+			assertEquals(1, files.get(0).cellsVisited.get());
+			reset(files);
+			// scans are sequential unless asked otherwise, so limit doesn't
+			// start on every file at once
+			Stream<Observation> scan = big.observations(null, null, null,
+					null, null, null, null, null, Long.MIN_VALUE,
+					Long.MAX_VALUE);
+			assertFalse(scan.isParallel());
+			assertEquals(Arrays.asList(first),
+					scan.limit(1).collect(Collectors.toList()));
+			assertEquals(1, visited(files));
+			reset(files);
+
+			try (Stream<Cell> cells = big.cells(null, null, null, null, null,
+					null, Long.MIN_VALUE, Long.MAX_VALUE)) {
+				Iterator<Cell> iter = cells.iterator();
+				iter.next();
+				iter.next();
+			}
+			assertEquals(2, visited(files));
+
+			// (and a full scan still sees everything, in parallel or not)
+			assertEquals(40 * 84, big.observations(null, null, null, null,
+					null, null, null, null, Long.MIN_VALUE, Long.MAX_VALUE)
+					.count());
+			assertEquals(40 * 84, big.observations(null, null, null, null,
+					null, null, null, null, Long.MIN_VALUE, Long.MAX_VALUE)
+					.parallel().count());
+			assertEquals(40 * 6, big.cells(null, null, null, null, null,
+					null, Long.MIN_VALUE, Long.MAX_VALUE).parallel().count());
+		} finally {
+			big.dispose();
+			shared.close();
+		}
+	}
+
+	/** Dataset whose cells come from a made-up catalog with many times */
+	private static final class SyntheticDataset extends HDF5Dataset {
+		final CellCatalog synthetic;
+		final AtomicInteger cellsVisited = new AtomicInteger();
+
+		SyntheticDataset(String filename, DatasetResources shared,
+				int numEpochs) {
+			super(filename, new DatasetOptions(), shared);
+			CellCatalog.Builder builder = new CellCatalog.Builder(
+					getProducts());
+			double[][] bounds = { { 148.0, -34.0 }, { 150.0, -34.0 },
+					{ 150.0, -36.0 }, { 148.0, -36.0 } };
+			for (int i = 0; i < 8; i++) {
+				// cells share some times and not others
+				List<ZonedDateTime> times = new ArrayList<>();
+				for (int j = 0; j < numEpochs; j++) {
+					times.add(TIME.plusDays(i % 3 + 2 * j));
+				}
+				Map<Product, List<ZonedDateTime>> cellTimes = new HashMap<>();
+				for (Product product : getProducts()) {
+					cellTimes.put(product, times);
+				}
+				builder.add("R" + i, new double[] { 149.0, -35.0 }, bounds,
+						cellTimes);
+			}
+			synthetic = builder.build(this);
+		}
+
+		@Override
+		CellCatalog getCatalog() {
+			return synthetic;
+		}
+
+		@Override
+		Stream<Cell> cells(Integer cellLevel, String cellID, Double lonMin,
+				Double lonMax, Double latMin, Double latMax, int fromIndex) {
+			return IntStream.range(fromIndex, synthetic.size())
+					.mapToObj(i -> new Cell(synthetic, i))
+					.peek(c -> cellsVisited.incrementAndGet());
+		}
+	}
+
+	@Test
+	public void testObservationsByTime() {
+		DatasetResources shared = new DatasetResources(new DatasetOptions(),
+				"byTime");
+		try {
+			for (int numEpochs : new int[] { 3, 30 }) {
+				List<SyntheticDataset> files = Arrays.asList(
+						new SyntheticDataset(td.getPath(), shared, numEpochs),
+						new SyntheticDataset(td.getPath(), shared, numEpochs));
+				HDF5Collection many = new HDF5Collection(
+						new ArrayList<>(files));
+				List<Observation> usual = many.observations(null, null, null,
+						null, null, null, null, null, Long.MIN_VALUE,
+						Long.MAX_VALUE).collect(Collectors.toList());
+				assertEquals(2 * 8 * numEpochs * 14, usual.size());
+				for (boolean latestFirst : new boolean[] { false, true }) {
+					for (SyntheticDataset file : files) {
+						file.cellsVisited.set(0);
+					}
+					List<Observation> byTime = many.observationsByTime(null,
+							null, null, null, null, null, null, null,
+							Long.MIN_VALUE, Long.MAX_VALUE, latestFirst)
+							.collect(Collectors.toList());
+					// the usual order, stably sorted by time
+					Comparator<Observation> order = Comparator
+							.comparing(Observation::getTimestamp);
+					List<Observation> expected = new ArrayList<>(usual);
+					expected.sort(latestFirst ? order.reversed() : order);
+					assertEquals(expected, byTime);
+					// each cell is visited once to set up the merge, however
+					// many times it has
+					for (SyntheticDataset file : files) {
+						assertEquals(8, file.cellsVisited.get());
+					}
+
+					// with a limit, only the times which could make it are
+					// kept, including part of one time's observations
+					for (int limit : new int[] { 0, 1, 13, 14, 15, 100,
+							expected.size(), expected.size() + 1 }) {
+						assertEquals(
+								expected.subList(0,
+										Math.min(limit, expected.size())),
+								many.observationsByTime(null, null, null, null,
+										null, null, null, null, Long.MIN_VALUE,
+										Long.MAX_VALUE, latestFirst, limit)
+										.collect(Collectors.toList()));
+					}
+					List<Observation> band3 = expected.stream()
+							.filter(o -> o.getBand() == 3)
+							.collect(Collectors.toList());
+					assertEquals(band3.subList(0, 10),
+							many.observationsByTime(null, null, null, null,
+									null, null, 3, null, Long.MIN_VALUE,
+									Long.MAX_VALUE, latestFirst, 10)
+									.collect(Collectors.toList()));
+				}
+
+				// bands, types and time ranges are still respected
+				long from = TIME.plusDays(3).toEpochSecond(),
+						to = TIME.plusDays(6).toEpochSecond();
+				List<Observation> tiles = many.observationsByTime(null, null,
+						null, null, null, null, 2, TileObservation.class, from,
+						to, true).collect(Collectors.toList());
+				assertEquals(usual.stream().filter(o -> o.getBand() == 2
+						&& o instanceof TileObservation
+						&& o.getTimestamp().toEpochSecond() >= from
+						&& o.getTimestamp().toEpochSecond() <= to).count(),
+						tiles.size());
+				for (int i = 1; i < tiles.size(); i++) {
+					assertFalse(tiles.get(i).getTimestamp()
+							.isAfter(tiles.get(i - 1).getTimestamp()));
+				}
+				many.dispose();
+			}
+		} finally {
+			shared.close();
+		}
+	}
+
+	@Test
+	public void testObservationsAfter() {
+		List<Observation> all = collection.observationsAfter(null, null,
+				null, null, null, null, null, null, Long.MIN_VALUE,
+				Long.MAX_VALUE, null).collect(Collectors.toList());
+		assertEquals(2 * 84, all.size());
+		for (int i : new int[] { 0, 1, 13, 83, 84, 100, 167 }) {
+			ObservationPosition pos = collection.position(all.get(i));
+			assertEquals(i < 84 ? 0 : 1, pos.getFileIndex());
+			// positions survive being turned into tokens and back
+			pos = ObservationPosition.decode(pos.encode());
+			assertEquals(all.subList(i + 1, all.size()),
+					collection.observationsAfter(null, null, null, null,
+							null, null, null, null, Long.MIN_VALUE,
+							Long.MAX_VALUE, pos)
+							.collect(Collectors.toList()));
+		}
+
+		// a whole scan in pages, resuming from the last observation each time
+		ObservationFilter filter = new ObservationFilter(collection,
+				"http://fake/");
+		filter.constrainBandNum(2);
+		List<Observation> expected = filter.execute()
+				.collect(Collectors.toList());
+		List<Observation> pages = new ArrayList<>();
+		ObservationPosition after = null;
+		List<Observation> page;
+		do {
+			page = filter.executeAfter(after).limit(5)
+					.collect(Collectors.toList());
+			pages.addAll(page);
+			if (!page.isEmpty()) {
+				after = collection.position(page.get(page.size() - 1));
+			}
+		} while (page.size() == 5);
+		assertEquals(2 * 12, expected.size());
+		assertEquals(expected, pages);
+
+		for (String bad : new String[] { "", "junk!", "AAAA" }) {
+			try {
+				ObservationPosition.decode(bad);
+				fail("Decoded " + bad);
+			} catch (IllegalArgumentException e) {
+			}
+		}
+		ObservationPosition last = collection.position(all.get(100));
+		for (ObservationPosition bad : new ObservationPosition[] {
+				new ObservationPosition(2, last.getFileFingerprint(),
+						last.getCellID(), last.getProductName(),
+						last.getEpochSecond(), last.getBand(), false),
+				// not an observation in the file
+				new ObservationPosition(1, last.getFileFingerprint(),
+						"R9999", last.getProductName(),
+						last.getEpochSecond(), last.getBand(), false),
+				new ObservationPosition(1, last.getFileFingerprint(),
+						last.getCellID(), last.getProductName(),
+						last.getEpochSecond() + 1, last.getBand(), false),
+				// files before it have changed
+				new ObservationPosition(1, last.getFileFingerprint() + 1,
+						last.getCellID(), last.getProductName(),
+						last.getEpochSecond(), last.getBand(), false) }) {
+			try {
+				collection.observationsAfter(null, null, null, null, null,
+						null, null, null, Long.MIN_VALUE, Long.MAX_VALUE, bad);
+				fail("Resumed from " + bad);
+			} catch (IllegalArgumentException e) {
+			}
+		}
+	}
+
+	@Test
+	public void testStalePositions() throws IOException {
+		List<Observation> all = collection.observations(null, null, null,
+				null, null, null, null, null, Long.MIN_VALUE, Long.MAX_VALUE)
+				.collect(Collectors.toList());
+		String first = collection.position(all.get(10)).encode();
+		String second = collection.position(all.get(100)).encode();
+		List<String> paths = HDF5Collection.listDirectory(dir.getPath());
+
+		// a file added at the end leaves earlier positions alone
+		File later = new File(dir, "c.h5");
+		Files.copy(new File(td.getPath()).toPath(), later.toPath());
+		HDF5Collection grown = HDF5Collection.open(
+				HDF5Collection.listDirectory(dir.getPath()),
+				new DatasetOptions());
+		try {
+			assertEquals(3, grown.getDatasets().size());
+			assertEquals(3 * 84 - 101, grown.observationsAfter(null, null,
+					null, null, null, null, null, null, Long.MIN_VALUE,
+					Long.MAX_VALUE, ObservationPosition.decode(second))
+					.count());
+		} finally {
+			grown.dispose();
+			later.delete();
+		}
+
+		// but a file which sorts earlier means positions after it would
+		// resume in the wrong place, so they're refused
+		Collections.reverse(paths);
+		HDF5Collection reordered = HDF5Collection.open(paths,
+				new DatasetOptions());
+		try {
+			for (String token : new String[] { first, second }) {
+				try {
+					reordered.observationsAfter(null, null, null, null, null,
+							null, null, null, Long.MIN_VALUE, Long.MAX_VALUE,
+							ObservationPosition.decode(token));
+					fail("Resumed from " + token);
+				} catch (IllegalArgumentException e) {
+				}
+			}
+		} finally {
+			reordered.dispose();
+		}
+	}
+
+	@Test
+	public void testOrderedObservations() {
+		long time = TIME.toEpochSecond();
+		List<Observation> all = collection.observations(null, null, null,
+				null, null, null, null, null, Long.MIN_VALUE, Long.MAX_VALUE)
+				.collect(Collectors.toList());
+
+		// merging the files by cell keeps each cell's observations together,
+		// first file first
+		List<Observation> byCell = collection.observationsByCell(null, null,
+				null, null, null, null, null, null, Long.MIN_VALUE,
+				Long.MAX_VALUE).collect(Collectors.toList());
+		assertEquals(2 * 84, byCell.size());
+		assertEquals(new HashSet<>(all), new HashSet<>(byCell));
+		for (int i = 1; i < byCell.size(); i++) {
+			assertTrue(byCell.get(i - 1).getCell().getDGGSIdent().compareTo(
+					byCell.get(i).getCell().getDGGSIdent()) <= 0);
+		}
+		List<HDF5Dataset> files = collection.getDatasets();
+		assertEquals(all.subList(0, 14), byCell.stream()
+				.filter(o -> o.getCell().getDataset() == files.get(0))
+				.limit(14).collect(Collectors.toList()));
+		assertEquals(files.get(1), byCell.get(14).getCell().getDataset());
+		assertEquals(all.subList(84, 84 + 14), byCell.subList(14, 28));
+
+		// there's only one time, so either way that's the usual order
+		for (boolean latestFirst : new boolean[] { false, true }) {
+			assertEquals(all, collection.observationsByTime(null, null, null,
+					null, null, null, null, null, Long.MIN_VALUE,
+					Long.MAX_VALUE, latestFirst).collect(Collectors.toList()));
+			assertEquals(all.subList(0, 3),
+					collection.observationsByTime(null, null, null, null,
+							null, null, null, null, time, time, latestFirst)
+							.limit(3).collect(Collectors.toList()));
+			assertEquals(0, collection.observationsByTime(null, null, null,
+					null, null, null, null, null, time + 1, Long.MAX_VALUE,
+					latestFirst).count());
+			assertEquals(0, collection.observationsByTime(null, null, null,
+					null, null, null, null, null, Long.MIN_VALUE, time - 1,
+					latestFirst).count());
+		}
+	}
+
+	private List<Observation> observationsFrom(Integer band,
+			Class<?> expectedType, long offset) {
+		return collection.observations(null, null, null, null, null, null,
+				band, expectedType, Long.MIN_VALUE, Long.MAX_VALUE, offset)
+				.collect(Collectors.toList());
+	}
+
+	@Test
+	public void testObservationsOffset() {
+		// offsets within the first file, at its end, and in the second file
+		List<Observation> all = observationsFrom(null, null, 0);
+		assertEquals(2 * 84, all.size());
+		assertEquals(all, observationsFrom(null, null, 0));
+		for (int offset : new int[] { 1, 13, 83, 84, 85, 167 }) {
+			assertEquals("offset " + offset, all.subList(offset, all.size()),
+					observationsFrom(null, null, offset));
+		}
+		assertTrue(observationsFrom(null, null, 2 * 84).isEmpty());
+		assertTrue(observationsFrom(null, null, 1000).isEmpty());
+
+		// offsets count matching observations only
+		List<Observation> tiles = observationsFrom(2, TileObservation.class,
+				0);
+		assertEquals(2 * 6, tiles.size());
+		assertEquals(tiles.subList(7, tiles.size()),
+				observationsFrom(2, TileObservation.class, 7));
+
+		try {
+			observationsFrom(null, null, -1);
+			fail("Negative offsets should be rejected");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+}
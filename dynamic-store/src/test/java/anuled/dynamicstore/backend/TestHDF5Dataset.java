@@ -2,13 +2,26 @@ package anuled.dynamicstore.backend;
 
 import static org.junit.Assert.*;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.NodeFactory;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Assert;
@@ -17,6 +30,9 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import anuled.dynamicstore.TestData;
+import anuled.dynamicstore.rdfmapper.ObservationFilter;
+import anuled.dynamicstore.rdfmapper.URLScheme;
+import anuled.vocabulary.LED;
 
 public class TestHDF5Dataset {
 	private HDF5Dataset ds;
@@ -65,6 +81,159 @@ public class TestHDF5Dataset {
 		assertEquals(expectedCellIDs, cellIDs);
 	}
 
+	@Test
+	public void testCellTreeQueries() {
+		// cells come back in DGGS ID order
+		List<String> allIDs = ds.cells(null, null, null, null, null, null)
+				.map(Cell::getDGGSIdent).collect(Collectors.toList());
+		List<String> sortedIDs = allIDs.stream().sorted()
+				.collect(Collectors.toList());
+		assertEquals(sortedIDs, allIDs);
+
+		// level and bounding box constraints combine
+		Set<String> cellIDs = ds.cells(6, null, null, 149.3, -35.5, null)
+				.map(Cell::getDGGSIdent).collect(Collectors.toSet());
+		assertEquals(new HashSet<>(Arrays.asList("R78520", "R78523")),
+				cellIDs);
+		assertEquals(0, ds.cells(6, null, null, 149.3, -35.5, -35.4).count());
+		assertEquals(1, ds.cells(3, null, null, null, null, null).count());
+		assertEquals(1, ds.cells(4, null, null, null, null, null).count());
+		assertEquals(0, ds.cells(7, null, null, null, null, null).count());
+		assertEquals(0, ds.cells(12, null, null, null, null, null).count());
+
+		// boxes which miss the data entirely should prune everything
+		assertEquals(0, ds.cells(null, null, 0.0, 10.0, null, null).count());
+		assertEquals(0, ds.cells(null, null, null, null, 10.0, 20.0).count());
+	}
+
+	private Set<String> allCellIDs(HDF5Dataset dataset) {
+		return dataset.cells(null, null, null, null, null, null)
+				.map(Cell::getDGGSIdent).collect(Collectors.toSet());
+	}
+
+	@Test
+	public void testCatalogSidecar() throws IOException {
+		// setUp() should have left a catalog behind for us
+		File sidecar = new File(td.getPath() + ".catalog");
+		assertTrue(sidecar.isFile());
+
+		// a dataset loaded from the catalog should be indistinguishable from
+		// one loaded by walking the HDF5 file
+		HDF5Dataset cached = new HDF5Dataset(td.getPath());
+		try {
+			assertEquals(allCellIDs(ds), allCellIDs(cached));
+			Cell cell = cached.dggsCell("R78520");
+			assertEquals(-34.85536, cell.getLat(), 1e-5);
+			assertEquals(149.07407, cell.getLon(), 1e-5);
+			assertEquals(5, cell.getBounds().size());
+			assertEquals(14, cell.observations(null, null).count());
+			assertEquals(defaultTimestamp, cell.observations(null, null)
+					.findFirst().get().getTimestamp());
+		} finally {
+			cached.dispose();
+		}
+
+		// garbage catalogs are ignored and replaced
+		Files.write(sidecar.toPath(), new byte[] { 1, 2, 3 });
+		HDF5Dataset rebuilt = new HDF5Dataset(td.getPath());
+		try {
+			assertEquals(allCellIDs(ds), allCellIDs(rebuilt));
+			assertTrue(sidecar.length() > 3);
+		} finally {
+			rebuilt.dispose();
+		}
+	}
+
+	@Test
+	public void testParallelLoader() {
+		DatasetOptions options = new DatasetOptions().setUseCatalogFile(false)
+				.setLoaderParallelism(3);
+		HDF5Dataset parallel = new HDF5Dataset(td.getPath(), options);
+		try {
+			assertEquals(allCellIDs(ds), allCellIDs(parallel));
+			assertEquals(84, parallel.cells(null, null, null, null, null, null)
+					.flatMap(c -> c.observations(null, null)).count());
+		} finally {
+			parallel.dispose();
+		}
+
+		boolean gotException = false;
+		try {
+			options.setLoaderParallelism(0);
+		} catch (IllegalArgumentException e) {
+			gotException = true;
+		}
+		assertTrue(gotException);
+	}
+
+	@Test
+	public void testMappedCatalog() {
+		DatasetOptions options = new DatasetOptions()
+				.setCatalogStorage(DatasetOptions.CatalogStorage.MAPPED);
+		HDF5Dataset mapped = new HDF5Dataset(td.getPath(), options);
+		try {
+			assertTrue(mapped.getCatalog() instanceof MappedCellCatalog);
+			CellCatalog heap = ds.getCatalog();
+			CellCatalog offHeap = mapped.getCatalog();
+			assertEquals(heap.size(), offHeap.size());
+			for (int i = 0; i < heap.size(); i++) {
+				assertEquals(heap.getID(i), offHeap.getID(i));
+				assertEquals(i, offHeap.indexOf(heap.getID(i)));
+				assertEquals(heap.subtreeEnd(i), offHeap.subtreeEnd(i));
+				assertEquals(heap.subtreeLatMin(i), offHeap.subtreeLatMin(i),
+						0);
+			}
+			assertEquals(-1, offHeap.indexOf("R7852999"));
+
+			Cell cell = mapped.dggsCell("R78520");
+			assertEquals(ds.dggsCell("R78520").getBounds(), cell.getBounds());
+			assertEquals(-34.85536, cell.getLat(), 1e-5);
+			assertEquals(14, cell.observations(null, null).count());
+			assertEquals(allCellIDs(ds), allCellIDs(mapped));
+			assertEquals(2, mapped.cells(6, null, null, 149.3, -35.5, null)
+					.count());
+		} finally {
+			mapped.dispose();
+		}
+	}
+
+	@Test
+	public void testCatalogBuilder() {
+		CellCatalog.Builder left = new CellCatalog.Builder(ds.getProducts());
+		CellCatalog.Builder right = new CellCatalog.Builder(ds.getProducts());
+		double[] centre = { 149.0, -35.0 };
+		double[][] bounds = { { 148.0, -34.0 }, { 150.0, -34.0 },
+				{ 150.0, -36.0 }, { 148.0, -36.0 }, { 148.0, -34.0 } };
+		ZonedDateTime later = defaultTimestamp.plusDays(16);
+		right.add("R7", centre, bounds, Collections.singletonMap(
+				defaultProduct, Arrays.asList(later, defaultTimestamp)));
+		left.add("R", centre, bounds, Collections.emptyMap());
+		left.add("R70", centre, bounds, Collections.singletonMap(
+				defaultProduct, Arrays.asList(defaultTimestamp)));
+		left.addAll(right);
+		CellCatalog catalog = left.build(ds);
+
+		// cells are sorted by ID and timestamps are sorted and shared
+		assertEquals(3, catalog.size());
+		assertEquals("R", catalog.getID(0));
+		assertEquals("R7", catalog.getID(1));
+		assertEquals(1, catalog.indexOf("R7"));
+		assertEquals(-1, catalog.indexOf("R8"));
+		assertEquals(2, catalog.numEpochs());
+		int p = catalog.productIndex(defaultProduct);
+		assertEquals(0, catalog.numTimes(0, p));
+		assertEquals(2, catalog.numTimes(1, p));
+		assertEquals(defaultTimestamp, catalog.timestamp(1, p, 0));
+		assertEquals(later, catalog.timestamp(1, p, 1));
+
+		Cell cell = new Cell(catalog, 1);
+		assertEquals("/R/7", cell.getPath());
+		assertEquals(-36.0, cell.getLatMin(), 1e-10);
+		assertEquals(150.0, cell.getLongMax(), 1e-10);
+		assertEquals(5, cell.getBounds().size());
+		assertEquals(2 * 7 * 2, cell.observations(null, null).count());
+	}
+
 	@Test
 	public void testMetadata() {
 		// check cell metadata is correct
@@ -163,6 +332,545 @@ public class TestHDF5Dataset {
 		assertTrue(gotException);
 	}
 
+	@Test
+	public void testObservationCursor() {
+		List<Cell> cells = ds.cells(null, null, null, null, null, null)
+				.collect(Collectors.toList());
+		// one cursor over every cell visits the same observations, in the
+		// same order, as the per-cell streams
+		List<Observation> expected = cells.stream()
+				.flatMap(c -> c.observations(null, null))
+				.collect(Collectors.toList());
+		ObservationCursor cursor = new ObservationCursor(null, null,
+				Long.MIN_VALUE, Long.MAX_VALUE).reset(cells.iterator());
+		List<Observation> actual = new ArrayList<>();
+		Observation obs;
+		while ((obs = cursor.next()) != null) {
+			actual.add(obs);
+		}
+		assertEquals(84, actual.size());
+		assertEquals(expected, actual);
+		// cells in ID order, then products, times and bands, with the pixel
+		// before the tile
+		assertTrue(actual.get(0) instanceof PixelObservation);
+		assertEquals(0, actual.get(0).getBand());
+		assertTrue(actual.get(1) instanceof TileObservation);
+		assertEquals(0, actual.get(1).getBand());
+		assertEquals(1, actual.get(2).getBand());
+		assertEquals(cells.get(1), actual.get(14).getCell());
+		// stays exhausted
+		assertNull(cursor.next());
+		assertNull(cursor.next());
+
+		// skipping lands on the same observation as stepping
+		for (int n : new int[] { 0, 1, 13, 14, 15, 50, 83 }) {
+			cursor.reset(cells.iterator());
+			assertEquals(n, cursor.skip(n));
+			assertEquals(expected.get(n), cursor.next());
+			assertEquals(83 - n, cursor.stream().count());
+		}
+		cursor.reset(cells.iterator());
+		assertEquals(84, cursor.skip(84));
+		assertNull(cursor.next());
+		cursor.reset(cells.iterator());
+		assertEquals(84, cursor.skip(1000));
+		assertNull(cursor.next());
+		// ...including when only some bands and types match
+		ObservationCursor tiles = new ObservationCursor(3,
+				TileObservation.class, Long.MIN_VALUE, Long.MAX_VALUE);
+		List<Observation> bandThree = tiles.reset(cells.iterator()).stream()
+				.collect(Collectors.toList());
+		assertEquals(6, bandThree.size());
+		tiles.reset(cells.iterator()).skip(4);
+		assertEquals(bandThree.subList(4, 6),
+				tiles.stream().collect(Collectors.toList()));
+
+		// and can be reused
+		Cell cell = ds.dggsCell("R7852");
+		assertEquals(14, cursor.reset(cell).stream().count());
+		assertEquals(7, new ObservationCursor(null, TileObservation.class,
+				Long.MIN_VALUE, Long.MAX_VALUE).reset(cell).stream()
+						.filter(o -> o instanceof TileObservation).count());
+		assertEquals(2, cell.observations(3, null).count());
+		assertEquals(0, cell.observations(7, null).count());
+		assertEquals(0, cell.observations(-1, null).count());
+		long time = defaultTimestamp.toEpochSecond();
+		assertEquals(14, cell.observations(null, null, time, time).count());
+		assertEquals(0,
+				cell.observations(null, null, time + 1, time + 5).count());
+
+		boolean gotException = false;
+		try {
+			cell.observations(null, String.class);
+		} catch (RuntimeException e) {
+			gotException = true;
+		}
+		assertTrue(gotException);
+	}
+
+	/** Observations left after seeking a fresh cursor past an ID */
+	private List<Observation> afterSeek(Integer band, Class<?> type,
+			long id) {
+		ObservationCursor cursor = new ObservationCursor(band, type,
+				Long.MIN_VALUE, Long.MAX_VALUE).reset(ds.cells(null, null,
+						null, null, null, null, ObservationID.cellIndex(id))
+						.iterator());
+		cursor.seekAfter(id);
+		return cursor.stream().collect(Collectors.toList());
+	}
+
+	@Test
+	public void testSeekAfter() {
+		List<Observation> all = new ObservationCursor(null, null,
+				Long.MIN_VALUE, Long.MAX_VALUE)
+						.reset(ds.cells(null, null, null, null, null, null)
+								.iterator())
+						.stream().collect(Collectors.toList());
+		assertEquals(84, all.size());
+		for (int i = 0; i < all.size(); i++) {
+			long id = all.get(i).getID();
+			// resuming after each observation gives the rest, in order...
+			assertEquals(all.subList(i + 1, all.size()),
+					afterSeek(null, null, id));
+			// ...even when the cursor only wants some of them
+			List<Observation> rest = all.subList(i + 1, all.size());
+			assertEquals(rest.stream().filter(o -> o.getBand() == 3)
+					.collect(Collectors.toList()), afterSeek(3, null, id));
+			assertEquals(rest.stream()
+					.filter(o -> o instanceof TileObservation)
+					.collect(Collectors.toList()),
+					afterSeek(null, TileObservation.class, id));
+			assertEquals(rest.stream()
+					.filter(o -> o instanceof PixelObservation
+							&& o.getBand() == 0)
+					.collect(Collectors.toList()),
+					afterSeek(0, PixelObservation.class, id));
+		}
+		assertTrue(afterSeek(null, null, all.get(83).getID()).isEmpty());
+
+		boolean gotException = false;
+		try {
+			afterSeek(null, null, ObservationID.pack(0, (1 << 20) - 1, 0, 0,
+					false));
+		} catch (IllegalArgumentException e) {
+			gotException = true;
+		}
+		assertTrue(gotException);
+	}
+
+	@Test
+	public void testLazyStatistics() {
+		HDF5Dataset fresh = new HDF5Dataset(td.getPath());
+		try {
+			// keyed lookups never count the catalog's observations
+			Observation obs = getTileObs(fresh.dggsCell("R7852"), 3);
+			String url = URLScheme.observationURL(obs);
+			assertEquals(obs.getID(), URLScheme.observationID(url, fresh));
+			assertEquals(obs, ObservationFilter.retrieveFromMeta(
+					URLScheme.parseObservationURL(url), fresh, null));
+			// (one pixel and one tile)
+			assertEquals(2, new ObservationFilter(fresh, "http://example.com/")
+					.constrainProperty(LED.etmBand.getURI(),
+							NodeFactory.createLiteralByValue(3,
+									XSDDatatype.XSDint))
+					.constrainProperty(LED.dggsCell.getURI(),
+							NodeFactory.createLiteral("R7852"))
+					.count());
+			assertFalse(fresh.hasStatistics());
+			assertSame(fresh.asCollection(), fresh.asCollection());
+
+			// the planner's first estimate counts them, once
+			ObservationStatistics stats = fresh.asCollection().getStatistics();
+			assertTrue(fresh.hasStatistics());
+			assertEquals(84, stats.getTotal());
+			assertSame(stats, fresh.getStatistics());
+			assertSame(stats, fresh.asCollection().getStatistics());
+		} finally {
+			fresh.dispose();
+		}
+	}
+
+	@Test
+	public void testObservationIDs() {
+		ObservationCursor ids = new ObservationCursor(null, null,
+				Long.MIN_VALUE, Long.MAX_VALUE).reset(ds
+						.cells(null, null, null, null, null, null).iterator());
+		ObservationCursor objects = new ObservationCursor(null, null,
+				Long.MIN_VALUE, Long.MAX_VALUE).reset(ds
+						.cells(null, null, null, null, null, null).iterator());
+		Set<Long> seen = new HashSet<>();
+		long id;
+		while ((id = ids.nextID()) != ObservationID.NONE) {
+			assertTrue(id >= 0);
+			assertTrue(seen.add(id));
+			Observation obs = objects.next();
+			assertEquals(id, obs.getID());
+			// IDs map back to (equal) observations
+			Observation fromID = ds.observation(id);
+			assertEquals(obs, fromID);
+			assertEquals(obs.hashCode(), fromID.hashCode());
+			assertEquals(obs.getTimestamp(), fromID.getTimestamp());
+			assertEquals(obs.getCell(), fromID.getCell());
+			assertEquals(obs.getBand(), ObservationID.band(id));
+			assertEquals(obs instanceof TileObservation,
+					ObservationID.isTile(id));
+			assertEquals(id, ds.observationID(obs.getProduct().getName(),
+					obs.getTimestamp(), obs.getCell().getDGGSIdent(),
+					obs.getBand(), obs instanceof PixelObservation));
+		}
+		assertNull(objects.next());
+		assertEquals(84, seen.size());
+
+		// nonsense IDs don't name anything
+		assertNull(ds.observation(ObservationID.NONE));
+		assertNull(ds.observation(ObservationID.pack(1000, 0, 0, 0, false)));
+		assertNull(ds.observation(ObservationID.pack(0, 0, 0, 7, false)));
+		assertNull(ds.observation(ObservationID.pack(0, 1, 0, 0, false)));
+		assertNull(ds.observation(ObservationID.pack(0, 0, 1, 0, false)));
+		assertEquals(ObservationID.NONE, ds.observationID(
+				"LS8_OLI_TIRS_NBAR", defaultTimestamp.plusDays(1), "R7852",
+				0, true));
+
+		// parts which don't fit are rejected
+		boolean gotException = false;
+		try {
+			ObservationID.pack(0, 0, 0, 256, false);
+		} catch (IllegalArgumentException e) {
+			gotException = true;
+		}
+		assertTrue(gotException);
+		// ...and catalogs which need them are rejected up front
+		ObservationID.checkCounts("ok.h5", 1 << 26, 1 << 20, 256, 256);
+		int[][] tooBig = { { (1 << 26) + 1, 1, 1, 1 },
+				{ 1, (1 << 20) + 1, 1, 1 }, { 1, 1, 257, 1 },
+				{ 1, 1, 1, 257 } };
+		for (int[] counts : tooBig) {
+			gotException = false;
+			try {
+				ObservationID.checkCounts("big.h5", counts[0], counts[1],
+						counts[2], counts[3]);
+			} catch (IllegalArgumentException e) {
+				gotException = true;
+				assertTrue(e.getMessage().startsWith("big.h5 has "));
+			}
+			assertTrue(Arrays.toString(counts), gotException);
+		}
+		long packed = ObservationID.pack((1 << 26) - 1, 5, 3, 200, true);
+		assertTrue(packed > 0);
+		assertEquals((1 << 26) - 1, ObservationID.cellIndex(packed));
+		assertEquals(5, ObservationID.epochIndex(packed));
+		assertEquals(3, ObservationID.productIndex(packed));
+		assertEquals(200, ObservationID.band(packed));
+		assertTrue(ObservationID.isTile(packed));
+		assertEquals(ObservationID.pack((1 << 26) - 1, 5, 3, 0, false),
+				ObservationID.firstBandPixel(packed));
+		assertEquals("ObservationID: none", ObservationID.toString(-1));
+		assertEquals("ObservationID: cell=0, epoch=0, product=0, band=2, "
+				+ "type=tile", ObservationID.toString(
+						ObservationID.pack(0, 0, 0, 2, true)));
+
+		// observations of times a cell doesn't have can't be made
+		gotException = false;
+		try {
+			ds.dggsCell("R7852").pixelObservation(defaultProduct,
+					defaultTimestamp.plusSeconds(1), 0);
+		} catch (IllegalArgumentException e) {
+			gotException = true;
+		}
+		assertTrue(gotException);
+	}
+
+	@Test
+	public void testKeyedLookup() {
+		ZonedDateTime time = ZonedDateTime.parse("2013-05-27T23:58:20Z");
+		String prod = "LS8_OLI_TIRS_NBAR";
+		Observation pixel = ds.observation(prod, time, "R7852", 3, true);
+		assertTrue(pixel instanceof PixelObservation);
+		assertEquals(getPixelObs(ds.dggsCell("R7852"), 3), pixel);
+		assertEquals(time, pixel.getTimestamp());
+		Observation tile = ds.observation(prod, time, "R78523", 6, false);
+		assertTrue(tile instanceof TileObservation);
+		assertEquals("R78523", tile.getCell().getDGGSIdent());
+
+		// anything which isn't in the dataset comes back null
+		assertNull(ds.observation(prod, time, "R7852999", 3, true));
+		assertNull(ds.observation("NOT_A_PRODUCT", time, "R7852", 3, true));
+		assertNull(ds.observation(prod, time.plusDays(1), "R7852", 3, true));
+		assertNull(ds.observation(prod, time, "R7852", 7, true));
+		assertNull(ds.observation(prod, time, "R7852", -1, false));
+	}
+
+	@Test
+	public void testPixelCache() {
+		Cell cell = ds.dggsCell("R7852");
+		PixelCache cache = ds.getPixelCache();
+		cache.clear();
+		long misses = cache.getMisses(), hits = cache.getHits();
+		// all bands of a pixel come from one read
+		for (int band = 0; band < 7; band++) {
+			getPixelObs(cell, band).getPixel();
+		}
+		assertEquals(misses + 1, cache.getMisses());
+		assertEquals(hits + 6, cache.getHits());
+		assertEquals(5029.4, getPixelObs(cell, 3).getPixel(), 1e-1);
+		assertEquals(1, cache.getEntryCount());
+		assertTrue(cache.getSizeBytes() > 7 * 8);
+
+		// a cache with room for only one array evicts the older one
+		HDF5Dataset small = new HDF5Dataset(td.getPath(),
+				new DatasetOptions().setPixelCacheBytes(200));
+		try {
+			PixelCache smallCache = small.getPixelCache();
+			getPixelObs(small.dggsCell("R7852"), 0).getPixel();
+			getPixelObs(small.dggsCell("R78520"), 0).getPixel();
+			assertEquals(1, smallCache.getEntryCount());
+			assertEquals(1, smallCache.getEvictions());
+			assertTrue(smallCache.getSizeBytes() <= 200);
+			getPixelObs(small.dggsCell("R7852"), 1).getPixel();
+			assertEquals(3, smallCache.getMisses());
+		} finally {
+			small.dispose();
+		}
+
+		// and a zero budget caches nothing
+		HDF5Dataset uncached = new HDF5Dataset(td.getPath(),
+				new DatasetOptions().setPixelCacheBytes(0));
+		try {
+			Cell uncachedCell = uncached.dggsCell("R7852");
+			assertEquals(5029.4, getPixelObs(uncachedCell, 3).getPixel(),
+					1e-1);
+			assertEquals(0, uncached.getPixelCache().getEntryCount());
+		} finally {
+			uncached.dispose();
+		}
+	}
+
+	@Test
+	public void testTileCache() {
+		Cell cell = ds.dggsCell("R7852");
+		TileCache cache = ds.getTileCache();
+		cache.clear();
+		long misses = cache.getMisses(), hits = cache.getHits();
+		byte[] first = getTileObs(cell, 4).getTile();
+		byte[] second = getTileObs(cell, 4).getTile();
+		isPNG(second);
+		assertArrayEquals(first, second);
+		assertEquals(misses + 1, cache.getMisses());
+		assertEquals(hits + 1, cache.getHits());
+		assertTrue(cache.getReservedBytes() <= cache.getMaxBytes());
+
+		try (TileCache.Lease lease = getTileObs(cell, 4).openTile()) {
+			assertTrue(lease.getData().isDirect());
+			assertTrue(lease.getData().isReadOnly());
+			assertEquals(first.length, lease.getData().remaining());
+		}
+
+		// with room for a single slot, tiles get evicted, but never while
+		// they're leased out
+		// (tiles are ~100 bytes, so they all share the smallest slot size)
+		long oneSlab = 256;
+		HDF5Dataset small = new HDF5Dataset(td.getPath(),
+				new DatasetOptions().setTileCacheBytes(oneSlab));
+		try {
+			TileCache smallCache = small.getTileCache();
+			Cell smallCell = small.dggsCell("R7852");
+			try (TileCache.Lease pinned = getTileObs(smallCell, 0)
+					.openTile()) {
+				byte[] pinnedCopy = pinned.toArray();
+				for (int band = 1; band < 7; band++) {
+					isPNG(getTileObs(smallCell, band).getTile());
+				}
+				assertArrayEquals(pinnedCopy, pinned.toArray());
+			}
+			for (int band = 1; band < 7; band++) {
+				getTileObs(smallCell, band).getTile();
+			}
+			assertEquals(1, smallCache.getEntryCount());
+			assertTrue(smallCache.getEvictions() > 0);
+			assertTrue(smallCache.getReservedBytes() <= oneSlab);
+		} finally {
+			small.dispose();
+		}
+	}
+
+	/** Fetch a tile of the given size through a cache, checking its length */
+	private static void fetch(TileCache cache, TileObservation obs, int size) {
+		try (TileCache.Lease lease = cache.get(obs, () -> new byte[size])) {
+			assertEquals(size, lease.getData().remaining());
+		}
+	}
+
+	/** Fetch a tile twice, checking that the second fetch is a hit */
+	private static void fetchTwice(TileCache cache, TileObservation obs,
+			int size) {
+		fetch(cache, obs, size);
+		long misses = cache.getMisses();
+		fetch(cache, obs, size);
+		assertEquals(misses, cache.getMisses());
+	}
+
+	@Test
+	public void testTileCacheSizeClasses() {
+		List<TileObservation> tiles = ds
+				.cells(null, null, null, null, null, null)
+				.flatMap(c -> c.observations(null, null))
+				.filter(o -> o instanceof TileObservation)
+				.map(o -> (TileObservation) o).collect(Collectors.toList());
+		// four slabs, each with room for four small tiles or one large one
+		TileCache cache = new TileCache(4096, 1024);
+		for (int i = 0; i < 16; i++) {
+			fetch(cache, tiles.get(i), 200);
+		}
+		assertEquals(16, cache.getEntryCount());
+		assertEquals(4096, cache.getReservedBytes());
+
+		// once the budget is full of small tiles, large ones take over slabs
+		// rather than going uncached
+		for (int i = 16; i < 20; i++) {
+			fetchTwice(cache, tiles.get(i), 1000);
+		}
+		assertEquals(4, cache.getEntryCount());
+		assertEquals(16, cache.getEvictions());
+
+		// ...and so on for another size, including while a slab is pinned
+		try (TileCache.Lease pinned = cache.get(tiles.get(19),
+				() -> new byte[1000])) {
+			for (int i = 20; i < 26; i++) {
+				fetchTwice(cache, tiles.get(i), 500);
+			}
+			assertEquals(1000, pinned.getData().remaining());
+			assertEquals(7, cache.getEntryCount());
+		}
+		for (int i = 26; i < 42; i++) {
+			fetch(cache, tiles.get(i), 200);
+		}
+		assertTrue(cache.getEntryCount() > 4);
+		assertEquals(4096, cache.getReservedBytes());
+	}
+
+	@Test(timeout = 60000)
+	public void testConcurrentReads() throws Exception {
+		// no caches, so that every read goes through the I/O threads
+		DatasetOptions options = new DatasetOptions().setPixelCacheBytes(0)
+				.setTileCacheBytes(0).setIOThreads(2);
+		HDF5Dataset shared = new HDF5Dataset(td.getPath(), options);
+		try {
+			List<Observation> allObs = shared
+					.cells(null, null, null, null, null, null)
+					.flatMap(c -> c.observations(null, null))
+					.collect(Collectors.toList());
+			Map<Observation, Object> expected = new HashMap<>();
+			for (Observation obs : allObs) {
+				expected.put(obs, readObs(obs));
+			}
+
+			int numClients = 8;
+			ExecutorService clients = Executors.newFixedThreadPool(numClients);
+			try {
+				List<Future<Integer>> results = new ArrayList<>();
+				for (int client = 0; client < numClients; client++) {
+					int seed = client;
+					results.add(clients.submit(() -> {
+						Random random = new Random(seed);
+						for (int i = 0; i < 500; i++) {
+							Observation obs = allObs
+									.get(random.nextInt(allObs.size()));
+							Object value = readObs(obs);
+							if (obs instanceof PixelObservation) {
+								assertEquals(expected.get(obs), value);
+							} else {
+								assertArrayEquals((byte[]) expected.get(obs),
+										(byte[]) value);
+							}
+						}
+						return seed;
+					}));
+				}
+				for (Future<Integer> result : results) {
+					result.get();
+				}
+			} finally {
+				clients.shutdown();
+			}
+		} finally {
+			shared.dispose();
+		}
+
+		// reads after dispose() fail rather than hanging
+		boolean gotException = false;
+		try {
+			getPixelObs(shared.dggsCell("R7852"), 0).getPixel();
+		} catch (IllegalStateException e) {
+			gotException = true;
+		}
+		assertTrue(gotException);
+	}
+
+	@Test
+	public void testReadErrors() {
+		HDF5Dataset shared = new HDF5Dataset(td.getPath(),
+				new DatasetOptions().setIOThreads(1));
+		try {
+			shared.readDoubleArray("/R7852/missing");
+			fail("Read a dataset which isn't there");
+		} catch (RuntimeException e) {
+			// the I/O thread's error says what was being read, and keeps the
+			// reading thread's stack
+			assertTrue(e.getMessage().contains("/R7852/missing"));
+			assertTrue(e.getMessage().contains(td.getPath()));
+			assertNotNull(e.getCause());
+			assertTrue(Arrays.stream(e.getStackTrace()).anyMatch(
+					f -> f.getMethodName().equals("testReadErrors")));
+		} finally {
+			shared.dispose();
+		}
+	}
+
+	@Test
+	public void testReaderPool() {
+		DatasetOptions options = new DatasetOptions().setPixelCacheBytes(0)
+				.setMaxOpenFiles(1);
+		HDF5Dataset pooled = new HDF5Dataset(td.getPath(), options);
+		ReaderPool pool = pooled.getReaderPool();
+		try {
+			assertEquals(1, pool.getMaxOpen());
+			// the reader used while opening is kept around, but idle
+			assertNull(pooled.getReader());
+			assertEquals(1, pool.getOpens());
+			assertEquals(1, pool.getOpenCount());
+			assertEquals(1, pool.getIdleCount());
+			assertTrue(pool.getOpenNanos() > 0);
+
+			// reads reuse it rather than opening the file again
+			Cell cell = pooled.dggsCell("R7852");
+			for (int band = 0; band < 7; band++) {
+				getPixelObs(cell, band).getPixel();
+			}
+			assertEquals(1, pool.getOpens());
+			assertEquals(0, pool.getReopens());
+			assertTrue(pool.getHits() >= 1);
+			assertEquals(1, pool.getOpenCount());
+		} finally {
+			pooled.dispose();
+		}
+		assertEquals(0, pool.getOpenCount());
+
+		boolean gotException = false;
+		try {
+			new DatasetOptions().setMaxOpenFiles(0);
+		} catch (IllegalArgumentException e) {
+			gotException = true;
+		}
+		assertTrue(gotException);
+	}
+
+	private static Object readObs(Observation obs) {
+		if (obs instanceof PixelObservation) {
+			return ((PixelObservation) obs).getPixel();
+		}
+		return ((TileObservation) obs).getTile();
+	}
+
 	@Test
 	public void testToString() {
 		Cell cell = ds.dggsCell("R78520");
@@ -197,5 +905,14 @@ public class TestHDF5Dataset {
 		// Cell IDs should also be equal
 		otherTile = getTileObs(ds.dggsCell("R7852"), 3);
 		assertTrue(!tileObs.equals(otherTile));
+		// as should datasets, since IDs are only unique within one
+		HDF5Dataset other = new HDF5Dataset(td.getPath());
+		try {
+			otherTile = getTileObs(other.dggsCell("R78520"), 3);
+			assertEquals(tileObs.getID(), otherTile.getID());
+			assertTrue(!tileObs.equals(otherTile));
+		} finally {
+			other.dispose();
+		}
 	}
 }
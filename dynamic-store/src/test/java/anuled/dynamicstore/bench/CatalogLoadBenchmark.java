@@ -0,0 +1,66 @@
+package anuled.dynamicstore.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import anuled.dynamicstore.backend.DatasetOptions;
+import anuled.dynamicstore.backend.HDF5Dataset;
+
+/**
+ * Compares start-up time for the serial and parallel catalog loaders on a
+ * large synthetic file. The sidecar catalog is disabled so that every
+ * iteration walks the whole HDF5 hierarchy.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CatalogLoadBenchmark {
+	@Param({ "4" })
+	public int depth;
+
+	@Param({ "1", "2", "6" })
+	public int parallelism;
+
+	private File h5File;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		h5File = SyntheticData.createTempFile(depth, 2);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		h5File.delete();
+	}
+
+	@Benchmark
+	public int openDataset() {
+		DatasetOptions options = new DatasetOptions()
+				.setUseCatalogFile(false).setLoaderParallelism(parallelism);
+		HDF5Dataset ds = new HDF5Dataset(h5File.getPath(), options);
+		try {
+			return (int) ds.cells(null, null, null, null, null, null)
+					.count();
+		} finally {
+			ds.dispose();
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package anuled.dynamicstore.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import anuled.dynamicstore.backend.DatasetOptions;
+import anuled.dynamicstore.backend.HDF5Dataset;
+import anuled.dynamicstore.backend.PixelObservation;
+
+/**
+ * Stress test for the HDF5 I/O layer: several client threads read random
+ * pixels from one dataset at once, with caching disabled. Each invocation
+ * performs a fixed number of reads per client, so throughput is
+ * <code>clients * READS_PER_CLIENT / time</code>; it should grow with the
+ * number of clients rather than collapse.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ConcurrentReadBenchmark {
+	private static final int READS_PER_CLIENT = 2000;
+
+	@Param({ "1", "2", "4", "8", "16" })
+	public int clients;
+
+	@Param({ "1", "2" })
+	public int ioThreads;
+
+	private File h5File;
+	private HDF5Dataset ds;
+	private List<PixelObservation> pixels;
+	private ExecutorService pool;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		h5File = SyntheticData.createTempFile(3, 2);
+		DatasetOptions options = new DatasetOptions().setPixelCacheBytes(0)
+				.setTileCacheBytes(0).setIOThreads(ioThreads);
+		ds = new HDF5Dataset(h5File.getPath(), options);
+		pixels = ds.cells(null, null, null, null, null, null)
+				.flatMap(c -> c.observations(null, PixelObservation.class))
+				.map(obs -> (PixelObservation) obs)
+				.collect(Collectors.toList());
+		pool = Executors.newFixedThreadPool(clients);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		pool.shutdown();
+		ds.dispose();
+		h5File.delete();
+		new File(h5File.getPath() + ".catalog").delete();
+	}
+
+	@Benchmark
+	public double readPixels() throws Exception {
+		List<Future<Double>> results = new ArrayList<>();
+		for (int client = 0; client < clients; client++) {
+			Random random = new Random(client);
+			results.add(pool.submit(() -> {
+				double sum = 0;
+				for (int i = 0; i < READS_PER_CLIENT; i++) {
+					sum += pixels.get(random.nextInt(pixels.size()))
+							.getPixel();
+				}
+				return sum;
+			}));
+		}
+		double total = 0;
+		for (Future<Double> result : results) {
+			total += result.get();
+		}
+		return total;
+	}
+}
@@ -0,0 +1,137 @@
+package anuled.dynamicstore.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import anuled.dynamicstore.backend.Cell;
+import anuled.dynamicstore.backend.HDF5Collection;
+import anuled.dynamicstore.backend.HDF5Dataset;
+import anuled.dynamicstore.backend.Observation;
+import anuled.dynamicstore.backend.ObservationCursor;
+import anuled.dynamicstore.backend.ObservationID;
+import anuled.dynamicstore.backend.PixelObservation;
+import anuled.dynamicstore.backend.Product;
+
+/**
+ * Cost of enumerating every observation in a file (without reading any
+ * data), which is what an unconstrained scan spends its CPU on.
+ * <code>nestedStreams</code> reproduces the old enumeration, which built
+ * nested <code>flatMap</code>s of boxed streams for every cell;
+ * <code>cursorPerCell</code> uses one cursor per cell,
+ * <code>cursorScan</code> one cursor for the whole file and
+ * <code>cursorIDs</code> the same cursor without materialising observations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ObservationScanBenchmark {
+	@Param({ "4" })
+	public int depth;
+
+	@Param({ "1", "8" })
+	public int numTimes;
+
+	private File h5File;
+	private HDF5Dataset ds;
+	private HDF5Collection collection;
+	private List<Cell> cells;
+	private Product product;
+	// each cell's timestamps, as the old code would have read them
+	private List<List<ZonedDateTime>> cellTimes;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		h5File = SyntheticData.createTempFile(depth, numTimes);
+		ds = new HDF5Dataset(h5File.getPath());
+		collection = new HDF5Collection(ds);
+		cells = ds.cells(null, null, null, null, null, null)
+				.collect(Collectors.toList());
+		product = ds.getProducts().iterator().next();
+		cellTimes = new ArrayList<>();
+		for (Cell cell : cells) {
+			cellTimes.add(cell.observations(0, PixelObservation.class)
+					.map(Observation::getTimestamp)
+					.collect(Collectors.toList()));
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		ds.dispose();
+		h5File.delete();
+		new File(h5File.getPath() + ".catalog").delete();
+	}
+
+	/** The old pixel/tile x product x band x time stream pipeline */
+	private Stream<Observation> nested(Cell cell, List<ZonedDateTime> times) {
+		return Stream.of(true, false).flatMap(isPixel -> {
+			return IntStream.range(0, 1).boxed().flatMap(p -> {
+				return IntStream.range(0, product.getNumBands()).boxed()
+						.flatMap(band -> {
+					return IntStream.range(0, times.size()).mapToObj(k -> {
+						if (isPixel) {
+							return cell.pixelObservation(product,
+									times.get(k), band);
+						}
+						return cell.tileObservation(product, times.get(k),
+								band);
+					});
+				});
+			});
+		});
+	}
+
+	@Benchmark
+	public void nestedStreams(Blackhole bh) {
+		IntStream.range(0, cells.size()).boxed()
+				.flatMap(i -> nested(cells.get(i), cellTimes.get(i)))
+				.forEach(bh::consume);
+	}
+
+	@Benchmark
+	public void cursorPerCell(Blackhole bh) {
+		cells.stream().flatMap(c -> c.observations(null, null))
+				.forEach(bh::consume);
+	}
+
+	@Benchmark
+	public void cursorScan(Blackhole bh) {
+		collection.observations(null, null, null, null, null, null, null,
+				null, Long.MIN_VALUE, Long.MAX_VALUE).forEach(bh::consume);
+	}
+
+	@Benchmark
+	public void cursorIDs(Blackhole bh) {
+		ObservationCursor cursor = new ObservationCursor(null, null,
+				Long.MIN_VALUE, Long.MAX_VALUE).reset(cells.iterator());
+		long id;
+		while ((id = cursor.nextID()) != ObservationID.NONE) {
+			bh.consume(id);
+		}
+	}
+}
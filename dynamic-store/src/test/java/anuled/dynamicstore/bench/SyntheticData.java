@@ -0,0 +1,112 @@
+package anuled.dynamicstore.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+
+import anuled.dynamicstore.Util;
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+
+/**
+ * Writes large HDF5 files in the same layout as our real data, for use in
+ * benchmarks. Every top-level rHEALPix cell gets a complete subtree down to
+ * the requested depth, so a depth of <code>d</code> yields
+ * <code>6 * (9^(d+1) - 1) / 8</code> cells.
+ */
+public final class SyntheticData {
+	public static final String PRODUCT = "SYNTH_PRODUCT";
+	public static final int NUM_BANDS = 7;
+	public static final int TILE_SIZE = 9;
+	private static final String ROOT_CELLS = "NOPQRS";
+	private static final byte[] FAKE_PNG = { -0x77, 0x50, 0x4e, 0x47, 0x0d,
+			0x0a, 0x1a, 0x0a, 0, 0, 0, 0 };
+
+	private final IHDF5Writer writer;
+	private final int depth;
+	private final ZonedDateTime[] times;
+
+	private SyntheticData(IHDF5Writer writer, int depth, int numTimes) {
+		this.writer = writer;
+		this.depth = depth;
+		this.times = new ZonedDateTime[numTimes];
+		ZonedDateTime start = ZonedDateTime.of(2013, 5, 27, 23, 58, 20, 0,
+				ZoneOffset.UTC);
+		for (int i = 0; i < numTimes; i++) {
+			times[i] = start.plusDays(16 * i);
+		}
+	}
+
+	/**
+	 * Create a temporary synthetic HDF5 file. The caller is responsible for
+	 * deleting it.
+	 */
+	public static File createTempFile(int depth, int numTimes)
+			throws IOException {
+		File file = File.createTempFile("synthetic-", ".h5");
+		file.delete();
+		IHDF5Writer writer = HDF5Factory.open(file);
+		try {
+			new SyntheticData(writer, depth, numTimes).writeAll();
+		} finally {
+			writer.close();
+		}
+		return file;
+	}
+
+	private void writeAll() {
+		String prefix = "/products/" + PRODUCT;
+		writer.createGroup(prefix);
+		writer.writeInt(prefix + "/numbands", NUM_BANDS);
+		writer.writeInt(prefix + "/tilesize", TILE_SIZE);
+		writer.writeString(prefix + "/meta",
+				"<#extraAttributes> "
+						+ "<http://www.w3.org/2000/01/rdf-schema#label> "
+						+ "\"Synthetic benchmark data\" .");
+
+		for (int root = 0; root < ROOT_CELLS.length(); root++) {
+			double lonMin = -180 + 60 * root;
+			writeCell("/" + ROOT_CELLS.charAt(root), 0, lonMin, lonMin + 60,
+					-60, 60);
+		}
+	}
+
+	private void writeCell(String path, int level, double lonMin,
+			double lonMax, double latMin, double latMax) {
+		writer.createGroup(path);
+		writer.float64().setArrayAttr(path, "centre", new double[] {
+				(lonMin + lonMax) / 2, (latMin + latMax) / 2 });
+		writer.float64().setMatrixAttr(path, "bounds",
+				new double[][] { { lonMin, latMax }, { lonMax, latMax },
+						{ lonMax, latMin }, { lonMin, latMin },
+						{ lonMin, latMax } });
+
+		String prodPath = path + "/" + PRODUCT;
+		writer.createGroup(prodPath);
+		double[] pixel = new double[NUM_BANDS];
+		for (ZonedDateTime time : times) {
+			String timeString = Util.canonicalTimeString(time);
+			for (int band = 0; band < NUM_BANDS; band++) {
+				pixel[band] = level * 1000 + band;
+				writer.uint8().writeArray(
+						prodPath + "/png_band_" + band + "@" + timeString,
+						FAKE_PNG);
+			}
+			writer.writeDoubleArray(prodPath + "/pixel@" + timeString, pixel);
+		}
+
+		if (level < depth) {
+			double lonStep = (lonMax - lonMin) / 3,
+					latStep = (latMax - latMin) / 3;
+			for (int digit = 0; digit < 9; digit++) {
+				int row = digit / 3, col = digit % 3;
+				double childLonMin = lonMin + col * lonStep;
+				double childLatMax = latMax - row * latStep;
+				writeCell(path + "/" + digit, level + 1, childLonMin,
+						childLonMin + lonStep, childLatMax - latStep,
+						childLatMax);
+			}
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package anuled.dynamicstore.bench;
+
+import java.io.IOException;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import anuled.dynamicstore.TestData;
+import anuled.dynamicstore.backend.Cell;
+import anuled.dynamicstore.backend.HDF5Dataset;
+import anuled.dynamicstore.backend.Observation;
+import anuled.dynamicstore.rdfmapper.URLScheme;
+
+/**
+ * Formatting and parsing observation URLs for every observation in the test
+ * fixture. The <code>legacy*</code> benchmarks reproduce the old
+ * <code>String.format</code> formatter and named-group regex parser, for
+ * comparison with the hand-written ones in {@link URLScheme}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class URLSchemeBenchmark {
+	private static final Pattern LEGACY_PATTERN = Pattern
+			.compile("^(?<product>\\w+)"
+					+ "/(?<year>\\d{4})/(?<month>\\d{2})/(?<day>\\d{2})"
+					+ "/(?<hour>\\d{2})/(?<minute>\\d{2})/(?<second>\\d{2})"
+					+ "/cell/(?<cellID>[N-S]\\d*)"
+					+ "/levelSquare-(?<levelSquare>\\d+)"
+					+ "/levelPixel-(?<levelPixel>\\d+)"
+					+ "/band-(?<band>\\d+)$");
+
+	private TestData td;
+	private HDF5Dataset ds;
+	private List<Observation> observations;
+	private List<String> urls;
+	private final StringBuilder sb = new StringBuilder();
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		td = new TestData();
+		ds = new HDF5Dataset(td.getPath());
+		observations = ds.cells(null, null, null, null, null, null)
+				.flatMap(c -> c.observations(null, null))
+				.collect(Collectors.toList());
+		// decode timestamps now, so that only formatting is measured
+		observations.forEach(Observation::getTimestamp);
+		urls = observations.stream().map(URLScheme::observationURL)
+				.collect(Collectors.toList());
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		ds.dispose();
+		td.dispose();
+	}
+
+	private static String legacyURL(Observation obs) {
+		String rv = URLScheme.DATA_PREFIX + obs.getProduct().getName() + "/";
+		OffsetDateTime dt = obs.getTimestamp().toOffsetDateTime();
+		rv += String.format("%04d/%02d/%02d/%02d/%02d/%02d", dt.getYear(),
+				dt.getMonthValue(), dt.getDayOfMonth(), dt.getHour(),
+				dt.getMinute(), dt.getSecond());
+		Cell cell = obs.getCell();
+		rv += String.format("/cell/%s/levelSquare-%d/levelPixel-%d/band-%d",
+				cell.getDGGSIdent(), obs.getCellLevel(), obs.getPixelLevel(),
+				obs.getBand());
+		return rv;
+	}
+
+	/** Parse the way the old code did, returning the timestamp */
+	private static ZonedDateTime legacyParse(String url, Blackhole bh) {
+		Matcher matcher = LEGACY_PATTERN
+				.matcher(url.substring(URLScheme.DATA_PREFIX.length()));
+		if (!matcher.matches()) {
+			throw new URLScheme.ParseException(url);
+		}
+		bh.consume(matcher.group("cellID"));
+		bh.consume(matcher.group("product"));
+		bh.consume(Integer.parseInt(matcher.group("levelSquare")));
+		bh.consume(Integer.parseInt(matcher.group("levelPixel")));
+		bh.consume(Integer.parseInt(matcher.group("band")));
+		return ZonedDateTime.of(Integer.parseInt(matcher.group("year")),
+				Integer.parseInt(matcher.group("month")),
+				Integer.parseInt(matcher.group("day")),
+				Integer.parseInt(matcher.group("hour")),
+				Integer.parseInt(matcher.group("minute")),
+				Integer.parseInt(matcher.group("second")), 0,
+				ZoneOffset.UTC);
+	}
+
+	@Benchmark
+	public void legacyFormat(Blackhole bh) {
+		for (Observation obs : observations) {
+			bh.consume(legacyURL(obs));
+		}
+	}
+
+	@Benchmark
+	public void format(Blackhole bh) {
+		for (Observation obs : observations) {
+			bh.consume(URLScheme.observationURL(obs));
+		}
+	}
+
+	@Benchmark
+	public void formatReusingBuilder(Blackhole bh) {
+		for (Observation obs : observations) {
+			sb.setLength(0);
+			bh.consume(URLScheme.appendObservationURL(sb, obs).length());
+		}
+	}
+
+	@Benchmark
+	public void legacyParse(Blackhole bh) {
+		for (String url : urls) {
+			bh.consume(legacyParse(url, bh));
+		}
+	}
+
+	@Benchmark
+	public void parse(Blackhole bh) {
+		for (String url : urls) {
+			bh.consume(URLScheme.parseObservationURL(url));
+		}
+	}
+}
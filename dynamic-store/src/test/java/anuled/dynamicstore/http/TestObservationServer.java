@@ -0,0 +1,294 @@
+package anuled.dynamicstore.http;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.sparql.util.FmtUtils;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import anuled.dynamicstore.ObservationGraph;
+import anuled.dynamicstore.ObservationNode;
+import anuled.dynamicstore.TestData;
+import anuled.dynamicstore.backend.DatasetOptions;
+import anuled.dynamicstore.backend.HDF5Dataset;
+import anuled.dynamicstore.backend.Observation;
+import anuled.dynamicstore.backend.PixelObservation;
+import anuled.dynamicstore.backend.TileCache;
+import anuled.dynamicstore.backend.TileObservation;
+import anuled.dynamicstore.rdfmapper.URLScheme;
+import anuled.vocabulary.LED;
+
+public class TestObservationServer {
+	private static TestData td;
+	private int port;
+	private HDF5Dataset ds;
+	private ObservationGraph graph;
+	private ObservationServer server;
+
+	@BeforeClass
+	public static void setUpClass() throws IOException {
+		td = new TestData();
+	}
+
+	@AfterClass
+	public static void tearDownClass() {
+		td.dispose();
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			port = socket.getLocalPort();
+		}
+		ds = new HDF5Dataset(td.getPath(), new DatasetOptions()
+				.setTileURLPrefix(
+						ObservationServer.urlPrefix("localhost", port)));
+		graph = new ObservationGraph(ds, "http://fake/");
+		server = new ObservationServer(graph, port);
+	}
+
+	@After
+	public void tearDown() {
+		server.close();
+		ds.dispose();
+	}
+
+	private static HttpURLConnection get(String url, String etag)
+			throws IOException {
+		HttpURLConnection conn = (HttpURLConnection) new URL(url)
+				.openConnection();
+		if (etag != null) {
+			conn.setRequestProperty("If-None-Match", etag);
+		}
+		return conn;
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		int n;
+		while ((n = in.read(buf)) > 0) {
+			out.write(buf, 0, n);
+		}
+		in.close();
+		return out.toByteArray();
+	}
+
+	@Test
+	public void testServeTiles() throws IOException {
+		List<Node> images = graph
+				.find(Node.ANY, LED.imageData.asNode(), Node.ANY)
+				.mapWith(t -> t.getObject()).toList();
+		assertEquals(42, images.size());
+		String url = images.get(0).getURI();
+		assertTrue(url, url.startsWith("http://localhost:" + port + "/tile/"));
+
+		// the body is the tile's PNG
+		TileObservation obs = (TileObservation) ((ObservationNode) graph
+				.find(Node.ANY, LED.imageData.asNode(), images.get(0)).next()
+				.getSubject()).getObservation();
+		byte[] expected;
+		try (TileCache.Lease lease = obs.openTile()) {
+			expected = lease.toArray();
+		}
+		HttpURLConnection conn = get(url, null);
+		assertEquals(200, conn.getResponseCode());
+		assertEquals("image/png", conn.getContentType());
+		assertTrue(conn.getHeaderField("Cache-Control").contains("max-age"));
+		String etag = conn.getHeaderField("ETag");
+		assertNotNull(etag);
+		assertTrue(Arrays.equals(expected, readAll(conn.getInputStream())));
+
+		// a client holding the tile can revalidate it
+		conn = get(url, etag);
+		assertEquals(304, conn.getResponseCode());
+		assertEquals(etag, conn.getHeaderField("ETag"));
+		conn = get(url, "\"stale\", " + etag);
+		assertEquals(304, conn.getResponseCode());
+		conn = get(url, "\"stale\"");
+		assertEquals(200, conn.getResponseCode());
+		readAll(conn.getInputStream());
+
+		// pixels, unknown observations and junk aren't tiles
+		String pixelURL = URLScheme.tileURL(
+				ObservationServer.urlPrefix("localhost", port),
+				obs.getCell().pixelObservation(obs.getProduct(),
+						obs.getTimestamp(), obs.getBand()));
+		for (String bad : new String[] { pixelURL,
+				url.replace("/cell/", "/cell/S"),
+				"http://localhost:" + port + "/tile/junk" }) {
+			assertEquals(bad, 404, get(bad, null).getResponseCode());
+		}
+	}
+
+	@Test
+	public void testPortInUse() {
+		boolean gotException = false;
+		try {
+			new ObservationServer(graph, port);
+		} catch (IllegalStateException e) {
+			gotException = true;
+		}
+		assertTrue(gotException);
+	}
+
+	private String url(String path, Observation obs) {
+		return "http://localhost:" + port + path
+				+ URLScheme.observationURL(obs)
+						.substring(URLScheme.DATA_PREFIX.length());
+	}
+
+	@Test
+	public void testServePixel() throws IOException {
+		PixelObservation obs = (PixelObservation) graph
+				.observationURIs(Arrays.asList()).findFirst().get()
+				.getObservation();
+		HttpURLConnection conn = get(url(ObservationServer.PIXEL_PATH, obs),
+				null);
+		assertEquals(200, conn.getResponseCode());
+		assertEquals(obs.getPixel(), Double.parseDouble(new String(
+				readAll(conn.getInputStream()), StandardCharsets.US_ASCII)),
+				0);
+		// tiles have no single value
+		TileObservation tile = obs.getCell().tileObservation(obs.getProduct(),
+				obs.getTimestamp(), obs.getBand());
+		assertEquals(404, get(url(ObservationServer.PIXEL_PATH, tile), null)
+				.getResponseCode());
+	}
+
+	/** Parse what the server says about an observation */
+	private Model fetchTriples(Observation obs, String accept,
+			boolean gzip) throws IOException {
+		HttpURLConnection conn = get(url(ObservationServer.OBSERVATION_PATH,
+				obs), null);
+		if (accept != null) {
+			conn.setRequestProperty("Accept", accept);
+		}
+		conn.setRequestProperty("Accept-Encoding", gzip ? "gzip" : "identity");
+		assertEquals(200, conn.getResponseCode());
+		InputStream in = conn.getInputStream();
+		if (gzip) {
+			assertEquals("gzip", conn.getHeaderField("Content-Encoding"));
+			in = new GZIPInputStream(in);
+		} else {
+			assertNull(conn.getHeaderField("Content-Encoding"));
+		}
+		Lang lang = conn.getContentType().startsWith("text/turtle")
+				? Lang.TURTLE : Lang.NTRIPLES;
+		assertEquals(accept == null ? Lang.NTRIPLES : Lang.TURTLE, lang);
+		Model model = ModelFactory.createDefaultModel();
+		RDFDataMgr.read(model, new ByteArrayInputStream(readAll(in)), lang);
+		return model;
+	}
+
+	@Test
+	public void testServeTriples() throws IOException {
+		for (ObservationNode node : graph.observationURIs(Arrays.asList())
+				.limit(4).collect(Collectors.toList())) {
+			List<Triple> expected = graph.find(node, Node.ANY, Node.ANY)
+					.toList();
+			assertFalse(expected.isEmpty());
+			for (boolean gzip : new boolean[] { false, true }) {
+				for (String accept : new String[] { null, "text/turtle" }) {
+					Model model = fetchTriples(node.getObservation(), accept,
+							gzip);
+					// compare written forms, since datatypes aren't
+					// registered the same way after parsing
+					Set<String> actual = model.getGraph()
+							.find(Node.ANY, Node.ANY, Node.ANY)
+							.mapWith(t -> FmtUtils.stringForTriple(t))
+							.toSet();
+					assertEquals(expected.stream()
+							.map(t -> FmtUtils.stringForTriple(t))
+							.collect(Collectors.toSet()), actual);
+				}
+			}
+		}
+		assertEquals(404,
+				get("http://localhost:" + port
+						+ ObservationServer.OBSERVATION_PATH + "junk", null)
+								.getResponseCode());
+	}
+
+	/** Subjects of the triples on a page, and the page's next link */
+	private String fetchPage(String query, Set<String> subjects)
+			throws IOException {
+		HttpURLConnection conn = get("http://localhost:" + port
+				+ ObservationServer.OBSERVATIONS_PATH + query, null);
+		assertEquals(200, conn.getResponseCode());
+		Model model = ModelFactory.createDefaultModel();
+		RDFDataMgr.read(model,
+				new ByteArrayInputStream(readAll(conn.getInputStream())),
+				Lang.NTRIPLES);
+		model.listSubjects().forEachRemaining(r -> subjects.add(r.getURI()));
+		String link = conn.getHeaderField("Link");
+		if (link == null) {
+			return null;
+		}
+		assertTrue(link, link.endsWith(">; rel=\"next\""));
+		return link.substring(link.indexOf('<') + 1, link.indexOf('>'))
+				.substring(ObservationServer.OBSERVATIONS_PATH.length());
+	}
+
+	@Test
+	public void testServePages() throws IOException {
+		Set<String> expected = graph.observationURIs(Arrays.asList())
+				.map(n -> n.getURI()).collect(Collectors.toSet());
+		assertEquals(84, expected.size());
+
+		// harvest everything, a page at a time
+		Set<String> harvested = new HashSet<>();
+		int pages = 0;
+		String next = "?limit=10";
+		while (next != null) {
+			Set<String> page = new HashSet<>();
+			next = fetchPage(next, page);
+			assertEquals(next == null ? 4 : 10, page.size());
+			for (String subject : page) {
+				assertTrue(harvested.add(subject));
+			}
+			pages++;
+		}
+		assertEquals(9, pages);
+		assertEquals(expected, harvested);
+
+		// filters carry over to later pages
+		harvested.clear();
+		next = fetchPage("?type=tile&band=3&limit=4", harvested);
+		assertNotNull(next);
+		assertTrue(next, next.contains("band=3") && next.contains("type=tile"));
+		assertNull(fetchPage(next, harvested));
+		assertEquals(6, harvested.size());
+
+		for (String bad : new String[] { "?limit=0", "?limit=lots",
+				"?type=cube", "?after=junk", "?band=x" }) {
+			assertEquals(bad, 400, get("http://localhost:" + port
+					+ ObservationServer.OBSERVATIONS_PATH + bad, null)
+							.getResponseCode());
+		}
+	}
+}
@@ -9,6 +9,8 @@ import java.time.ZonedDateTime;
 import java.util.List;
 import java.util.stream.Collectors;
 
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.NodeFactory;
 import org.apache.jena.rdf.model.Resource;
 import org.apache.jena.vocabulary.RDF;
 import org.junit.After;
@@ -72,6 +74,20 @@ public class TestObservationFilter {
 		ObservationMeta brokenLevelMeta = meta.clone();
 		brokenLevelMeta.levelPixel = -1;
 		assertNull(ObservationFilter.retrieveFromMeta(brokenLevelMeta, ds, "http://fake/"));
+
+		// times and products which the cell has no data for
+		ObservationMeta brokenTimeMeta = meta.clone();
+		brokenTimeMeta.timestamp = brokenTimeMeta.timestamp.plusSeconds(1);
+		assertNull(ObservationFilter.retrieveFromMeta(brokenTimeMeta, ds, "http://fake/"));
+
+		ObservationMeta brokenProductMeta = meta.clone();
+		brokenProductMeta.product = "LS5_TM_NBAR";
+		assertNull(ObservationFilter.retrieveFromMeta(brokenProductMeta, ds, "http://fake/"));
+
+		ObservationMeta brokenSquareMeta = meta.clone();
+		brokenSquareMeta.levelSquare++;
+		brokenSquareMeta.levelPixel++;
+		assertNull(ObservationFilter.retrieveFromMeta(brokenSquareMeta, ds, "http://fake/"));
 	}
 
 	@Test
@@ -101,6 +117,29 @@ public class TestObservationFilter {
 		checkTypeFilterCount(42, LED.GridSquare);
 	}
 
+	@Test
+	public void testFilterByTime() {
+		long time = ZonedDateTime.parse("2013-05-27T23:58:20Z")
+				.toEpochSecond();
+		filter.constrainTimeMin(time - 10).constrainTimeMax(time);
+		assertEquals(84, filter.execute().count());
+		filter.constrainTimeMin(time + 1);
+		assertEquals(0, filter.execute().count());
+
+		// exact times are pushed down too, but must still match the literal
+		filter = new ObservationFilter(ds, "http://fake/");
+		filter.constrainProperty(LED.time.getURI(),
+				NodeFactory.createLiteral("2013-05-27T23:58:20Z",
+						XSDDatatype.XSDdateTime));
+		assertEquals(84, filter.execute().count());
+		assertEquals(time, filter.timeMin);
+		assertEquals(time, filter.timeMax);
+		filter = new ObservationFilter(ds, "http://fake/");
+		filter.constrainProperty(LED.time.getURI(),
+				createLiteralNode("not a time"));
+		assertEquals(0, filter.execute().count());
+	}
+
 	@Test
 	public void testIncompatibleType() {
 		filter.constrainToPixel().constrainToPixel();
@@ -13,6 +13,8 @@ import org.junit.Test;
 
 import anuled.dynamicstore.TestData;
 import anuled.dynamicstore.backend.Cell;
+import anuled.dynamicstore.backend.Observation;
+import anuled.dynamicstore.backend.ObservationID;
 import anuled.dynamicstore.backend.HDF5Dataset;
 import anuled.dynamicstore.backend.PixelObservation;
 import anuled.dynamicstore.backend.Product;
@@ -47,7 +49,22 @@ public class TestURLScheme {
 	public void testParseURL() {
 		String[] failureCases = {
 				"https://anulinkedearth.org/rdf/observation/LS8_OLI_TIRS_NBAR/2012/03/",
-				"http://google.com/", "!*(malformed(*A" };
+				"http://google.com/", "!*(malformed(*A",
+				// wrong face, bad date, huge numbers and trailing junk
+				URLScheme.DATA_PREFIX + "LS8/2012/03/02/23/13/42/cell/A91/"
+						+ "levelSquare-3/levelPixel-4/band-5",
+				URLScheme.DATA_PREFIX + "LS8/2012/13/02/23/13/42/cell/R91/"
+						+ "levelSquare-3/levelPixel-4/band-5",
+				URLScheme.DATA_PREFIX + "LS8/2012/03/02/23/13/42/cell/R91/"
+						+ "levelSquare-3/levelPixel-4/band-99999999999",
+				URLScheme.DATA_PREFIX + "LS8/2012/03/02/23/13/42/cell/R91/"
+						+ "levelSquare-3/levelPixel-4/band-5/",
+				URLScheme.DATA_PREFIX + "LS8/2012/03/02/23/13/4/cell/R91/"
+						+ "levelSquare-3/levelPixel-4/band-5",
+				URLScheme.DATA_PREFIX + "/2012/03/02/23/13/42/cell/R91/"
+						+ "levelSquare-3/levelPixel-4/band-5",
+				URLScheme.DATA_PREFIX + "LS8/2012/03/02/23/13/42/cell/R91/"
+						+ "levelSquare-/levelPixel-4/band-5" };
 		for (String failureCase : failureCases) {
 			try {
 				URLScheme.parseObservationURL(failureCase);
@@ -68,6 +85,11 @@ public class TestURLScheme {
 		assertEquals(5, meta.band);
 		assertEquals(ZonedDateTime.parse("2012-03-02T23:13:42Z"),
 				meta.timestamp);
+		assertEquals("LS8_OLI_TIRS_NBAR", meta.product);
+
+		// a face with no digits is the level 0 cell
+		meta = URLScheme.parseObservationURL(passCase.replace("R91", "S"));
+		assertEquals("S", meta.cell);
 	}
 
 	@Test
@@ -92,6 +114,48 @@ public class TestURLScheme {
 						+ "LS8_OLI_TIRS_NBAR/2013/05/27/"
 						+ "23/58/20/cell/R7852/levelSquare-5/levelPixel-7/band-4",
 				URLScheme.observationURL(tlObs));
+
+		// URLs and observation IDs map back and forth
+		for (Observation obs : new Observation[] { pxObs, tlObs }) {
+			String url = URLScheme.observationURL(obs);
+			assertEquals(obs.getID(), URLScheme.observationID(url, ds));
+			assertEquals(url, URLScheme.observationURL(ds, obs.getID()));
+		}
+		assertEquals(ObservationID.NONE, URLScheme.observationID(
+				URLScheme.observationURL(pxObs).replace("R7852", "R7853"),
+				ds));
+		assertNull(URLScheme.observationURL(ds, ObservationID.NONE));
+
+		// the builder can be reused
+		StringBuilder sb = new StringBuilder("junk");
+		sb.setLength(0);
+		URLScheme.appendObservationURL(sb, pxObs);
+		assertEquals(URLScheme.observationURL(pxObs), sb.toString());
+
+		// tile URLs swap the prefix and parse back the same way
+		String tileURL = URLScheme.tileURL("http://tiles/tile/", tlObs);
+		assertEquals("http://tiles/tile/LS8_OLI_TIRS_NBAR/2013/05/27/"
+				+ "23/58/20/cell/R7852/levelSquare-5/levelPixel-7/band-4.png",
+				tileURL);
+		ObservationMeta meta = URLScheme.parseTileURL("http://tiles/tile/",
+				tileURL);
+		assertEquals("R7852", meta.cell);
+		assertEquals(7, meta.levelPixel);
+		assertEquals(4, meta.band);
+		meta = URLScheme.parseTileURL("/tile/",
+				tileURL.substring("http://tiles".length()));
+		assertEquals(timestamp, meta.timestamp);
+		for (String bad : new String[] { tileURL.replace(".png", ""),
+				tileURL.replace("tiles", "elsewhere"),
+				URLScheme.observationURL(tlObs) }) {
+			boolean gotException = false;
+			try {
+				URLScheme.parseTileURL("http://tiles/tile/", bad);
+			} catch (URLScheme.ParseException e) {
+				gotException = true;
+			}
+			assertTrue(bad, gotException);
+		}
 	}
 
 	@Test
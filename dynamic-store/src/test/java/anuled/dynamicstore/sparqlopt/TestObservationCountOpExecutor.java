@@ -0,0 +1,177 @@
+package anuled.dynamicstore.sparqlopt;
+
+import static anuled.dynamicstore.sparqlopt.ObservationCountOpExecutor.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.Optional;
+
+import org.apache.jena.query.Query;
+import org.apache.jena.query.QueryExecutionFactory;
+import org.apache.jena.query.QueryFactory;
+import org.apache.jena.query.QuerySolution;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.query.ResultSetFormatter;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.impl.ModelCom;
+import org.apache.jena.sparql.algebra.Algebra;
+import org.apache.jena.sparql.algebra.Op;
+import org.apache.jena.sparql.algebra.op.OpGroup;
+import org.apache.jena.sparql.algebra.op.OpProject;
+import org.apache.jena.sparql.algebra.op.OpExtend;
+import org.apache.jena.vocabulary.XSD;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import anuled.dynamicstore.ObservationGraph;
+import anuled.dynamicstore.QBCovGraphAssembler;
+import anuled.dynamicstore.TestData;
+
+public class TestObservationCountOpExecutor {
+	private static TestData td;
+	private ObservationGraph graph;
+	private Model model;
+	private static final String PREFIXES = "prefix led: <http://www.anulinkedearth.org/sandbox/ANU-LED#>\n"
+			+ "prefix qb: <http://purl.org/linked-data/cube#>\n"
+			+ "prefix rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#>\n"
+			+ "prefix xsd: <http://www.w3.org/2001/XMLSchema#>\n";
+
+	@BeforeClass
+	public static void setUpClass() throws IOException {
+		td = new TestData();
+		QBCovGraphAssembler.init();
+	}
+
+	@AfterClass
+	public static void tearDownClass() {
+		td.dispose();
+	}
+
+	@Before
+	public void setUp() {
+		graph = new ObservationGraph(td.getPath(), "http://example.com/fakeDS");
+		model = new ModelCom(graph);
+	}
+
+	/** Pattern under the (only) group in a query */
+	private static Op groupPattern(String query) {
+		Op op = Algebra.compile(QueryFactory.create(PREFIXES + query));
+		while (!(op instanceof OpGroup)) {
+			if (op instanceof OpProject) {
+				op = ((OpProject) op).getSubOp();
+			} else if (op instanceof OpExtend) {
+				op = ((OpExtend) op).getSubOp();
+			} else {
+				fail("No group in " + op);
+			}
+		}
+		return ((OpGroup) op).getSubOp();
+	}
+
+	private QuerySolution runSelect(String query) {
+		Query q = QueryFactory.create(PREFIXES + query);
+		ResultSet results = QueryExecutionFactory.create(q, model)
+				.execSelect();
+		assertTrue(results.hasNext());
+		QuerySolution rv = results.next();
+		assertFalse(results.hasNext());
+		return rv;
+	}
+
+	/** Number of solutions to a pattern, found the slow way */
+	private int countSolutions(String where) {
+		Query q = QueryFactory.create(PREFIXES + "SELECT * WHERE " + where);
+		return ResultSetFormatter
+				.consume(QueryExecutionFactory.create(q, model).execSelect());
+	}
+
+	private long countQuery(String where) {
+		return runSelect("SELECT (COUNT(*) AS ?n) WHERE " + where)
+				.getLiteral("n").getLong();
+	}
+
+	@Test
+	public void testObservationPattern() {
+		Optional<ObservationPattern> pattern = observationPattern(groupPattern(
+				"SELECT (COUNT(*) AS ?n) WHERE { ?obs led:etmBand 3 ; "
+						+ "rdf:type led:Pixel }"));
+		assertTrue(pattern.isPresent());
+		assertEquals("obs", pattern.get().obsVar.getName());
+		assertEquals(2, pattern.get().triples.size());
+
+		// filters on single-valued properties become constraints
+		pattern = observationPattern(groupPattern("SELECT (COUNT(*) AS ?n) WHERE { "
+				+ "?obs led:latMin ?lat ; led:time ?t . "
+				+ "FILTER(?lat >= -36 && ?t < \"2014-01-01T00:00:00Z\"^^xsd:dateTime) }"));
+		assertTrue(pattern.isPresent());
+		assertEquals(2, pattern.get().triples.size());
+		assertEquals(3, pattern.get().vars.size());
+
+		// ...but only when they translate exactly
+		String[] unpushable = {
+				// strict bounds on lat/lon
+				"{ ?obs led:latMin ?lat FILTER(?lat > -36) }",
+				// more than one subject
+				"{ ?obs led:etmBand 3 . ?other led:etmBand 4 }",
+				// variable objects of multi-valued properties
+				"{ ?obs rdf:type ?type }",
+				// objects shared between triples
+				"{ ?obs led:latMin ?x ; led:latMax ?x }",
+				// filters we can't translate
+				"{ ?obs led:latMin ?lat FILTER(?lat != 3) }",
+				"{ ?obs led:latMin ?lat FILTER(?lat <= ?lat) }",
+				"{ ?obs led:etmBand 3 FILTER(?other <= 3) }",
+				// not a BGP
+				"{ { ?obs led:etmBand 3 } UNION { ?obs led:etmBand 4 } }" };
+		for (String where : unpushable) {
+			assertFalse(where, observationPattern(groupPattern(
+					"SELECT (COUNT(*) AS ?n) WHERE " + where)).isPresent());
+		}
+	}
+
+	@Test
+	public void testCountQueries() {
+		String[] patterns = { "{ ?obs led:etmBand 3 }",
+				"{ ?obs rdf:type qb:Observation }",
+				"{ ?obs rdf:type led:GridSquare ; led:dggsLevelSquare 5 }",
+				"{ ?obs led:dggsCell \"R78\" ; led:etmBand 2 }",
+				"{ ?obs led:etmBand 99 }",
+				"{ ?obs led:dggsLevelSquare 3 ; led:latMin ?lat ; "
+						+ "led:latMax ?latMax "
+						+ "FILTER(?lat >= -36 && ?latMax <= -35) }",
+				"{ ?obs led:time ?t "
+						+ "FILTER(?t >= \"2013-05-27T23:58:20Z\"^^xsd:dateTime) }",
+				"{ ?obs led:time ?t "
+						+ "FILTER(?t > \"2013-05-27T23:58:20Z\"^^xsd:dateTime) }",
+				"{ ?obs led:dggsCell ?cell ; led:etmBand 1 }",
+				// not pushed down, but should still give the same count
+				"{ ?obs led:latMin ?lat FILTER(?lat > -36) }" };
+		for (String where : patterns) {
+			assertEquals(where, countSolutions(where), countQuery(where));
+		}
+		assertEquals(84, countQuery("{ ?obs rdf:type qb:Observation }"));
+		assertEquals(12, countQuery("{ ?obs led:etmBand 3 }"));
+		assertEquals(0, countQuery("{ ?obs led:etmBand 99 }"));
+	}
+
+	@Test
+	public void testCountAggregates() {
+		QuerySolution solution = runSelect("SELECT (COUNT(*) AS ?all) "
+				+ "(COUNT(DISTINCT ?obs) AS ?obsCount) (COUNT(?t) AS ?times) "
+				+ "(COUNT(?nothing) AS ?none) "
+				+ "WHERE { ?obs led:etmBand 3 ; led:time ?t }");
+		assertEquals(12, solution.getLiteral("all").getLong());
+		assertEquals(12, solution.getLiteral("obsCount").getLong());
+		assertEquals(12, solution.getLiteral("times").getLong());
+		assertEquals(0, solution.getLiteral("none").getLong());
+		assertEquals(XSD.integer.getURI(),
+				solution.getLiteral("all").getDatatypeURI());
+
+		// COUNT(DISTINCT ?t) isn't the number of observations
+		solution = runSelect("SELECT (COUNT(DISTINCT ?t) AS ?n) "
+				+ "WHERE { ?obs led:etmBand 3 ; led:time ?t }");
+		assertEquals(1, solution.getLiteral("n").getLong());
+	}
+}
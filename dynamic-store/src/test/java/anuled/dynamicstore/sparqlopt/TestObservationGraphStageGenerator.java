@@ -2,6 +2,7 @@ package anuled.dynamicstore.sparqlopt;
 
 import static anuled.dynamicstore.Util.*;
 import static anuled.dynamicstore.rdfmapper.properties.LatLonBoxProperty.BoundType.*;
+import static anuled.dynamicstore.rdfmapper.properties.TimeRangeProperty.BoundType.*;
 import static anuled.dynamicstore.sparqlopt.ConstraintType.*;
 import static anuled.dynamicstore.sparqlopt.ObservationGraphStageGenerator.*;
 import static org.apache.jena.graph.NodeFactory.*;
@@ -28,6 +29,7 @@ import org.apache.jena.sparql.engine.binding.BindingFactory;
 import org.apache.jena.sparql.engine.iterator.QueryIterRoot;
 import org.apache.jena.sparql.engine.iterator.QueryIterSingleton;
 import org.apache.jena.vocabulary.RDF;
+import org.apache.jena.vocabulary.XSD;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -44,6 +46,8 @@ import anuled.dynamicstore.rdfmapper.properties.LongMaxProperty;
 import anuled.dynamicstore.rdfmapper.properties.LongMinProperty;
 import anuled.dynamicstore.rdfmapper.properties.ObservationProperty;
 import anuled.dynamicstore.rdfmapper.properties.PropertyIndex;
+import anuled.dynamicstore.rdfmapper.properties.TimeProperty;
+import anuled.dynamicstore.rdfmapper.properties.TimeRangeProperty;
 import anuled.dynamicstore.sparqlopt.ObservationGraphStageGenerator.PropertyMapping;
 import anuled.dynamicstore.sparqlopt.ObservationGraphStageGenerator.TripleBlock;
 import anuled.vocabulary.LED;
@@ -205,6 +209,72 @@ public class TestObservationGraphStageGenerator {
 		assertFalse(result.hasNext());
 	}
 
+	@Test
+	public void testOrderBlocks() {
+		Var a = Var.alloc("a"), b = Var.alloc("b"), cell = Var.alloc("cell");
+		TripleBlock everything = new TripleBlock(
+				TripleBlockType.VARIABLE_PATTERN_BLOCK,
+				Arrays.asList(new Triple(a, RDF.type.asNode(),
+						QB.Observation.asNode()))),
+				join = new TripleBlock(TripleBlockType.ARBITRARY_BLOCK,
+						Arrays.asList(new Triple(b, LED.dggsCell.asNode(),
+								cell))),
+				oneCell = new TripleBlock(
+						TripleBlockType.VARIABLE_PATTERN_BLOCK,
+						Arrays.asList(
+								new Triple(b, LED.etmBand.asNode(),
+										Util.createLiteralNode(3)),
+								new Triple(b, LED.dggsCell.asNode(),
+										Util.createLiteralNode("R7852"))));
+
+		Set<Var> none = Collections.emptySet();
+		assertEquals(84, estimateCost(everything, none, graph));
+		assertEquals(2, estimateCost(oneCell, none, graph));
+		assertEquals(84, estimateCost(join, none, graph));
+		// once ?b is bound, each block on it only looks at one observation
+		Set<Var> bound = Collections.singleton(b);
+		assertEquals(1, estimateCost(join, bound, graph));
+		assertEquals(1, estimateCost(oneCell, bound, graph));
+
+		// the most selective block goes first, then the one it binds
+		List<TripleBlock> ordered = orderBlocks(
+				Arrays.asList(everything, join, oneCell), graph);
+		assertEquals(Arrays.asList(oneCell, join, everything), ordered);
+	}
+
+	@Test
+	public void testExecuteMultipleBlocks() {
+		ObservationGraphStageGenerator gen = new ObservationGraphStageGenerator(
+				null);
+		ExecutionContext ctx = mock(ExecutionContext.class);
+		when(ctx.getActiveGraph()).thenReturn(graph);
+		// band 3 pixels joined with band 4 tiles of the same cell
+		Var pixel = Var.alloc("pixel"), tile = Var.alloc("tile"),
+				cell = Var.alloc("cell");
+		List<Triple> pattern = Arrays.asList(
+				new Triple(pixel, RDF.type.asNode(), LED.Pixel.asNode()),
+				new Triple(pixel, LED.etmBand.asNode(),
+						Util.createLiteralNode(3)),
+				new Triple(pixel, LED.dggsCell.asNode(), cell),
+				new Triple(tile, LED.dggsCell.asNode(), cell),
+				new Triple(tile, RDF.type.asNode(), LED.GridSquare.asNode()),
+				new Triple(tile, LED.etmBand.asNode(),
+						Util.createLiteralNode(4)));
+		QueryIterator root = QueryIterRoot.create(BindingFactory.binding(),
+				ctx);
+		QueryIterator result = gen.execute(BasicPattern.wrap(pattern), root,
+				ctx);
+		Set<Node> cells = new HashSet<>();
+		int count = 0;
+		while (result.hasNext()) {
+			Binding binding = result.next();
+			cells.add(binding.get(cell));
+			count++;
+		}
+		assertEquals(6, count);
+		assertEquals(6, cells.size());
+	}
+
 	@Test
 	public void testAssociatedProperties() {
 		List<Triple> emptyList = Collections.emptyList();
@@ -282,6 +352,36 @@ public class TestObservationGraphStageGenerator {
 				constraintToTriple(leftVarConstraint, v3, longMaxProp).get());
 	}
 
+	@Test
+	public void testTimeConstraintToTriple() {
+		Var v1 = Var.alloc("v1"), v2 = Var.alloc("v2");
+		Node time = createLiteralNode("2013-05-27T23:58:20Z",
+				XSD.dateTime.getURI());
+		ObservationProperty timeProp = new TimeProperty();
+		Function<TimeRangeProperty.BoundType, Node> uri = type -> Util
+				.createURINode(type.getURI());
+
+		// time can be bounded from either side, strictly or not
+		assertEquals(new Triple(v2, uri.apply(TimeBefore), time),
+				constraintToTriple(new InequalityConstraint(v1, time, LESS),
+						v2, timeProp).get());
+		assertEquals(new Triple(v2, uri.apply(TimeUntil), time),
+				constraintToTriple(
+						new InequalityConstraint(v1, time, LESS_EQ), v2,
+						timeProp).get());
+		assertEquals(new Triple(v2, uri.apply(TimeAfter), time),
+				constraintToTriple(new InequalityConstraint(time, v1, LESS),
+						v2, timeProp).get());
+		assertEquals(new Triple(v2, uri.apply(TimeFrom), time),
+				constraintToTriple(
+						new InequalityConstraint(time, v1, LESS_EQ), v2,
+						timeProp).get());
+
+		// still need exactly one variable
+		assertFalse(constraintToTriple(new InequalityConstraint(v1, v2, LESS),
+				v2, timeProp).isPresent());
+	}
+
 	@Test
 	public void testMakeNewConstraints() {
 		Var v1 = Var.alloc("v1"), v2 = Var.alloc("v2"), v3 = Var.alloc("v3");
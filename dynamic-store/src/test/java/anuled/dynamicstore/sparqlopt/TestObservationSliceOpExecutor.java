@@ -0,0 +1,230 @@
+package anuled.dynamicstore.sparqlopt;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.apache.jena.query.Query;
+import org.apache.jena.query.QueryExecutionFactory;
+import org.apache.jena.query.QueryFactory;
+import org.apache.jena.query.QuerySolution;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.impl.ModelCom;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import anuled.dynamicstore.ObservationGraph;
+import anuled.dynamicstore.QBCovGraphAssembler;
+import anuled.dynamicstore.TestData;
+import anuled.dynamicstore.backend.Cell;
+import anuled.dynamicstore.backend.HDF5Collection;
+import anuled.dynamicstore.backend.HDF5Dataset;
+
+public class TestObservationSliceOpExecutor {
+	private static TestData td;
+	private ObservationGraph graph;
+	private Model model;
+	private static final String PREFIXES = "prefix led: <http://www.anulinkedearth.org/sandbox/ANU-LED#>\n"
+			+ "prefix qb: <http://purl.org/linked-data/cube#>\n"
+			+ "prefix rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#>\n"
+			+ "prefix xsd: <http://www.w3.org/2001/XMLSchema#>\n";
+
+	@BeforeClass
+	public static void setUpClass() throws IOException {
+		td = new TestData();
+		QBCovGraphAssembler.init();
+	}
+
+	@AfterClass
+	public static void tearDownClass() {
+		td.dispose();
+	}
+
+	@Before
+	public void setUp() {
+		graph = new ObservationGraph(td.getPath(), "http://example.com/fakeDS");
+		model = new ModelCom(graph);
+	}
+
+	/** Each solution to a query, as a string */
+	private List<String> solutions(String query) {
+		Query q = QueryFactory.create(PREFIXES + query);
+		ResultSet results = QueryExecutionFactory.create(q, model)
+				.execSelect();
+		List<String> rv = new ArrayList<>();
+		while (results.hasNext()) {
+			QuerySolution solution = results.next();
+			StringBuilder sb = new StringBuilder();
+			results.getResultVars().forEach(
+					v -> sb.append(v).append('=').append(solution.get(v))
+							.append(' '));
+			rv.add(sb.toString());
+		}
+		return rv;
+	}
+
+	private static <T> List<T> slice(List<T> list, int offset, int limit) {
+		int start = Math.min(offset, list.size());
+		return list.subList(start, Math.min(start + limit, list.size()));
+	}
+
+	@Test
+	public void testSlices() {
+		String[] queries = { "SELECT ?obs WHERE { ?obs led:etmBand 3 }",
+				"SELECT * WHERE { ?obs rdf:type qb:Observation }",
+				"SELECT ?obs ?t ?lat WHERE { ?obs rdf:type led:Pixel ; "
+						+ "led:time ?t ; led:latMin ?lat }",
+				"SELECT ?obs WHERE { ?obs rdf:type led:GridSquare ; "
+						+ "led:latMin ?lat FILTER(?lat >= -36) }",
+				// not pushed down, but should still give the same slices
+				"SELECT ?obs WHERE { ?obs led:latMin ?lat FILTER(?lat > -36) }",
+				"SELECT ?obs ?type WHERE { ?obs rdf:type ?type ; "
+						+ "led:etmBand 2 }" };
+		for (String query : queries) {
+			List<String> all = solutions(query);
+			assertFalse(query, all.isEmpty());
+			for (int[] page : new int[][] { { 0, 5 }, { 3, 10 }, { 13, 1 },
+					{ all.size() - 2, 5 }, { all.size(), 5 },
+					{ 1000, 5 } }) {
+				String sliced = query + " LIMIT " + page[1] + " OFFSET "
+						+ page[0];
+				assertEquals(sliced, slice(all, page[0], page[1]),
+						solutions(sliced));
+			}
+			assertEquals(slice(all, 7, all.size()),
+					solutions(query + " OFFSET 7"));
+			assertEquals(slice(all, 0, 4), solutions(query + " LIMIT 4"));
+		}
+	}
+
+	/** Values of one variable in each solution to a query */
+	private List<String> column(String query, String var) {
+		Query q = QueryFactory.create(PREFIXES + query);
+		ResultSet results = QueryExecutionFactory.create(q, model)
+				.execSelect();
+		List<String> rv = new ArrayList<>();
+		results.forEachRemaining(s -> rv.add(s.get(var).toString()));
+		return rv;
+	}
+
+	@Test
+	public void testOrderedSlices() {
+		String[][] orderings = {
+				{ "SELECT ?obs ?t WHERE { ?obs led:time ?t ; led:etmBand 2 }",
+						"DESC(?t)", "t" },
+				{ "SELECT * WHERE { ?obs led:time ?t }", "?t", "t" },
+				{ "SELECT ?obs ?cell WHERE { ?obs led:dggsCell ?cell ; "
+						+ "rdf:type led:Pixel }", "?cell", "cell" },
+				{ "SELECT ?cell WHERE { ?obs led:dggsCell ?cell ; "
+						+ "led:time ?t FILTER(?t >= \"2013-01-01T00:00:00Z\""
+						+ "^^xsd:dateTime) }", "ASC(?cell)", "cell" },
+				// not pushed down, but should still give the same slices
+				{ "SELECT ?obs ?cell WHERE { ?obs led:dggsCell ?cell }",
+						"DESC(?cell)", "cell" } };
+		for (String[] ordering : orderings) {
+			String query = ordering[0] + " ORDER BY " + ordering[1];
+			String var = ordering[2];
+			// without a slice, ARQ sorts everything
+			List<String> sorted = column(query, var);
+			Set<String> all = new HashSet<>(solutions(ordering[0]));
+			assertFalse(query, sorted.isEmpty());
+			for (int[] page : new int[][] { { 0, 5 }, { 3, 10 },
+					{ 0, 2000 }, { sorted.size() - 2, 5 } }) {
+				String sliced = query + " LIMIT " + page[1] + " OFFSET "
+						+ page[0];
+				// ties can come in any order, so compare the sort keys, and
+				// check each solution is a real one
+				assertEquals(sliced, slice(sorted, page[0], page[1]),
+						column(sliced, var));
+				assertTrue(sliced, all.containsAll(solutions(sliced)));
+			}
+		}
+		List<String> cells = column("SELECT ?cell WHERE { "
+				+ "?obs led:dggsCell ?cell } ORDER BY ?cell LIMIT 15", "cell");
+		assertEquals(15, cells.size());
+		assertEquals(14, cells.stream().filter(c -> c.equals(cells.get(0)))
+				.count());
+	}
+
+	@Test
+	public void testPaging() {
+		// pages are stable, and together cover every observation once
+		String query = "SELECT ?obs WHERE { ?obs rdf:type qb:Observation } ";
+		List<String> pages = new ArrayList<>();
+		for (int offset = 0; offset < 84; offset += 10) {
+			List<String> page = solutions(
+					query + "LIMIT 10 OFFSET " + offset);
+			assertEquals(page,
+					solutions(query + "LIMIT 10 OFFSET " + offset));
+			pages.addAll(page);
+		}
+		assertEquals(solutions(query), pages);
+		assertEquals(84, pages.stream().distinct().count());
+	}
+
+	/** Dataset which counts how many of its cells have been looked at */
+	private static final class CountingDataset extends HDF5Dataset {
+		final AtomicInteger cellsVisited = new AtomicInteger();
+
+		CountingDataset(String filename) {
+			super(filename);
+		}
+
+		@Override
+		public Stream<Cell> cells(Integer cellLevel, String cellID,
+				Double lonMin, Double lonMax, Double latMin, Double latMax) {
+			return super.cells(cellLevel, cellID, lonMin, lonMax, latMin,
+					latMax).peek(c -> cellsVisited.incrementAndGet());
+		}
+	}
+
+	@Test
+	public void testMultiFileSlices() {
+		List<CountingDataset> files = new ArrayList<>();
+		for (int i = 0; i < 8; i++) {
+			files.add(new CountingDataset(td.getPath()));
+		}
+		HDF5Collection many = new HDF5Collection(new ArrayList<>(files));
+		try {
+			model = new ModelCom(
+					new ObservationGraph(many, "http://example.com/fakeDS"));
+			String[] queries = { "SELECT ?obs ?t WHERE { ?obs led:time ?t ; "
+					+ "led:etmBand 3 }",
+					// exact times are checked naively, observation by
+					// observation
+					"SELECT ?obs WHERE { ?obs led:etmBand 3 ; led:time "
+							+ "\"2013-05-27T23:58:20Z\"^^xsd:dateTime }" };
+			for (String query : queries) {
+				List<String> all = solutions(query);
+				assertEquals(8 * 12, all.size());
+				// a page never looks past the file it ends in (earlier
+				// files' cells are only skipped over, or checked naively)
+				for (int[] page : new int[][] { { 0, 5 }, { 14, 2 } }) {
+					files.forEach(f -> f.cellsVisited.set(0));
+					String sliced = query + " LIMIT " + page[1] + " OFFSET "
+							+ page[0];
+					assertEquals(sliced, slice(all, page[0], page[1]),
+							solutions(sliced));
+					int fileIndex = page[0] / 12;
+					assertTrue(sliced,
+							files.get(fileIndex).cellsVisited.get() > 0);
+					for (int i = fileIndex + 1; i < files.size(); i++) {
+						assertEquals(sliced, 0,
+								files.get(i).cellsVisited.get());
+					}
+				}
+			}
+		} finally {
+			many.dispose();
+		}
+	}
+}
@@ -3,6 +3,7 @@ package anuled.dynamicstore.util;
 import static anuled.dynamicstore.Util.*;
 import static org.junit.Assert.*;
 
+import java.time.Instant;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.util.Optional;
@@ -62,6 +63,29 @@ public class TestUtil {
 		assertFalse(toInt(createURINode("http://fake/")).isPresent());
 	}
 
+	@Test
+	public void testToInstant() {
+		Instant expected = Instant.parse("2013-05-27T23:58:20Z");
+		Node[] nodes = {
+				createLiteralNode("2013-05-27T23:58:20Z",
+						XSD.dateTime.getURI()),
+				createLiteralNode("2013-05-28T09:58:20+10:00",
+						XSD.dateTime.getURI()),
+				// no zone means UTC
+				createLiteralNode("2013-05-27T23:58:20",
+						XSD.dateTime.getURI()) };
+		for (Node node : nodes) {
+			assertEquals(expected, toInstant(node).get());
+		}
+		assertEquals(expected.plusMillis(250),
+				toInstant(createLiteralNode("2013-05-27T23:58:20.25Z",
+						XSD.dateTime.getURI())).get());
+
+		assertFalse(toInstant(createLiteralNode("A string")).isPresent());
+		assertFalse(toInstant(createLiteralNode(42)).isPresent());
+		assertFalse(toInstant(createURINode("http://fake/")).isPresent());
+	}
+
 	@Test
 	public void testCanonicalTime() {
 		ZonedDateTime someTime = ZonedDateTime.of(2016, 5, 3, 4, 2, 13, 9,
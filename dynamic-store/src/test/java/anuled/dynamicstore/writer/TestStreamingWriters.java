@@ -0,0 +1,156 @@
+package anuled.dynamicstore.writer;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.query.Query;
+import org.apache.jena.query.QueryExecutionFactory;
+import org.apache.jena.query.QueryFactory;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.query.ResultSetFactory;
+import org.apache.jena.query.ResultSetRewindable;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.RDFFormat;
+import org.apache.jena.riot.resultset.ResultSetLang;
+import org.apache.jena.riot.resultset.ResultSetWriter;
+import org.apache.jena.riot.resultset.ResultSetWriterRegistry;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.graph.GraphFactory;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import anuled.dynamicstore.ImageNode;
+import anuled.dynamicstore.ObservationGraph;
+import anuled.dynamicstore.QBCovGraphAssembler;
+import anuled.dynamicstore.TestData;
+import anuled.vocabulary.LED;
+
+public class TestStreamingWriters {
+	private static TestData td;
+	private ObservationGraph graph;
+	private Model model;
+
+	@BeforeClass
+	public static void setUpClass() throws IOException {
+		td = new TestData();
+		QBCovGraphAssembler.init();
+	}
+
+	@AfterClass
+	public static void tearDownClass() {
+		td.dispose();
+	}
+
+	@Before
+	public void setUp() {
+		graph = new ObservationGraph(td.getPath(), "http://example.com/fakeDS");
+		model = ModelFactory.createModelForGraph(graph);
+	}
+
+	private ResultSetRewindable runSelect() {
+		Query q = QueryFactory.create("prefix led: <" + LED.imageData.getNameSpace() + ">\n"
+				+ "SELECT ?s ?img ?band ?text ?missing WHERE {"
+				+ "?s led:imageData ?img; led:etmBand ?band."
+				+ "BIND(\"a \\\"quoted\\\" <b> & \\\\c\"@en AS ?text)}");
+		return ResultSetFactory.copyResults(
+				QueryExecutionFactory.create(q, model).execSelect());
+	}
+
+	private static ResultSetWriter writer(Lang lang) {
+		ResultSetWriter writer = ResultSetWriterRegistry.lookup(lang)
+				.create(lang);
+		assertTrue(writer instanceof StreamingResultSetWriter);
+		return writer;
+	}
+
+	/** Write the results out and read them back with Jena's parsers */
+	private void checkRoundTrip(Lang lang) {
+		ResultSetRewindable expected = runSelect();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writer(lang).write(out, expected, null);
+		expected.reset();
+		ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+		ResultSet actual = lang == ResultSetLang.SPARQLResultSetJSON
+				? ResultSetFactory.fromJSON(in) : ResultSetFactory.fromXML(in);
+		assertEquals(expected.getResultVars(), actual.getResultVars());
+		int rows = 0;
+		while (expected.hasNext()) {
+			assertTrue(actual.hasNext());
+			Binding exp = expected.nextBinding(), act = actual.nextBinding();
+			Node img = exp.get(Var.alloc("img"));
+			assertTrue(img instanceof ImageNode);
+			for (String var : expected.getResultVars()) {
+				Node e = exp.get(Var.alloc(var)), a = act.get(Var.alloc(var));
+				assertTrue(var + ": " + a, e == null ? a == null
+						: ImageNode.sameValue(e, a));
+			}
+			rows++;
+		}
+		assertFalse(actual.hasNext());
+		// one image per tile
+		assertEquals(42, rows);
+	}
+
+	@Test
+	public void testJSON() {
+		checkRoundTrip(ResultSetLang.SPARQLResultSetJSON);
+	}
+
+	@Test
+	public void testXML() {
+		checkRoundTrip(ResultSetLang.SPARQLResultSetXML);
+	}
+
+	@Test
+	public void testAsk() {
+		for (Lang lang : new Lang[] { ResultSetLang.SPARQLResultSetJSON,
+				ResultSetLang.SPARQLResultSetXML }) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			writer(lang).write(out, true, null);
+			String text = new String(out.toByteArray(),
+					StandardCharsets.UTF_8);
+			assertTrue(text, text.contains("true"));
+		}
+	}
+
+	@Test
+	public void testRDF() {
+		List<Triple> triples = graph
+				.find(Node.ANY, LED.imageData.asNode(), Node.ANY).toList();
+		Graph toWrite = GraphFactory.createDefaultGraph();
+		triples.forEach(toWrite::add);
+		toWrite.getPrefixMapping().setNsPrefix("led", LED.imageData.getNameSpace());
+		for (RDFFormat format : new RDFFormat[] { RDFFormat.NTRIPLES_UTF8,
+				RDFFormat.TURTLE_FLAT }) {
+			StringWriter out = new StringWriter();
+			RDFDataMgr.write(out, toWrite, format);
+			Model read = ModelFactory.createDefaultModel();
+			RDFDataMgr.read(read,
+					new ByteArrayInputStream(
+							out.toString().getBytes(StandardCharsets.UTF_8)),
+					format.getLang());
+			assertEquals(triples.size(), read.size());
+			for (Triple trip : triples) {
+				String uri = trip.getObject().getURI();
+				assertTrue(read.getGraph().contains(trip.getSubject(),
+						trip.getPredicate(),
+						org.apache.jena.graph.NodeFactory.createURI(uri)));
+			}
+		}
+	}
+}